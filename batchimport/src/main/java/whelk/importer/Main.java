@@ -4,24 +4,15 @@ import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.exporter.PushGateway;
 import se.kb.libris.util.marc.MarcRecord;
-import se.kb.libris.util.marc.io.Iso2709MarcRecordReader;
-import se.kb.libris.util.marc.io.MarcXmlRecordReader;
-import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
 import whelk.component.PostgreSQLComponent;
+import whelk.util.ThreadPool;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.transform.Templates;
 import java.io.*;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Collections;
-import java.util.Iterator;
 
 public class Main
 {
@@ -29,8 +20,6 @@ public class Main
 
     private static boolean verbose = false;
 
-    private static final List tempfiles = Collections.synchronizedList(new ArrayList<File>());
-
     // Metrics
     private final static String METRICS_PUSHGATEWAY = "metrics.libris.kb.se:9091";
     private final static CollectorRegistry registry = new CollectorRegistry();
@@ -139,29 +128,18 @@ public class Main
     private static void importStream(InputStream inputStream, Parameters parameters)
             throws Exception
     {
-        inputStream = streamAsXml(inputStream, parameters);
-
-        // Apply any transforms specified on the command line.
-        // The expectation is that after these transforms, the stream will consist of a series
-        // of marcxml records that the jmarctools.MarcXmlRecordReader can read. The order of the records
-        // is also expected to be; one bib record followed by any related holding records, after which
-        // comes the next bib record and so on.
-
-        for (Templates template : parameters.getTemplates())
-        {
-	    inputStream = transform(template.newTransformer(), inputStream);
-            //inputStream = transform(transformer, inputStream);
-        }
-
         int threadCount = 1;
         if (parameters.getRunParallel())
             threadCount = 2 * Runtime.getRuntime().availableProcessors();
-        ThreadPool threadPool = new ThreadPool( threadCount );
+        ThreadPool threadPool = new ThreadPool("batchimport", threadCount);
 
-        MarcXmlRecordReader reader = null;
+        // Records are read (and transformed with any transforms specified on the command line) as they are
+        // imported. The order of the records (after transforms) is expected to be; one bib record followed by
+        // any related holding records, after which comes the next bib record and so on.
+        MarcRecordStream reader = null;
         try
         {
-            reader = new MarcXmlRecordReader(inputStream, "/collection/record", null);
+            reader = MarcRecordStream.open(inputStream, parameters);
 
             long start = System.currentTimeMillis();
             long recordsBatched = 0;
@@ -172,6 +150,9 @@ public class Main
             List<MarcRecord> batch = new ArrayList<>();
             while ((marcRecord = reader.readRecord()) != null)
             {
+                if (recordsBatched == 0 && verbose)
+                    System.err.println("info: First record read after " + (System.currentTimeMillis() - start) + " ms.");
+
                 String collection = "bib"; // assumption
                 if (marcRecord.getLeader(6) == 'u' || marcRecord.getLeader(6) == 'v' ||
                         marcRecord.getLeader(6) == 'x' || marcRecord.getLeader(6) == 'y')
@@ -181,7 +162,7 @@ public class Main
                 {
                     if (recordsInBatch > 200)
                     {
-                        threadPool.executeOnThread(batch, Main::importBatch);
+                        threadPool.executeOnThread(batch, (b, threadIndex) -> importBatch(b));
                         batch = new ArrayList<>();
                         recordsInBatch = 0;
                     }
@@ -197,13 +178,13 @@ public class Main
                     {
                         long recordsPerSec = recordsBatched / secondDiff;
 	    		if ( verbose ) {
-                        	System.err.println("info: Currently importing " + recordsPerSec + " records / sec. Active threads: " + threadPool.getActiveThreadCount());
+                        	System.err.println("info: Currently importing " + recordsPerSec + " records / sec. Active threads: " + threadPool.getActiveThreadCount() + ". Queued batches: " + threadPool.getQueueSize());
 			}
                     }
                 }
             }
             // The last batch will not be followed by another bib.
-            threadPool.executeOnThread(batch, Main::importBatch);
+            threadPool.executeOnThread(batch, (b, threadIndex) -> importBatch(b));
         }
         finally
         {
@@ -214,20 +195,6 @@ public class Main
         }
 
 	inputStream.close();
-	removeTemporaryFiles();
-    }
-
-    private static void removeTemporaryFiles()
-    {
-	synchronized(tempfiles) {
-		Iterator<File> i = tempfiles.iterator();
-		while (i.hasNext()) {
-    			File f = i.next();
-    			f.delete();
-    			i.remove();
-		}
-	}
-
     }
 
     private static void importBatch(List<MarcRecord> batch)
@@ -288,62 +255,4 @@ public class Main
         }
         System.out.println();
     }
-
-    private static File getTemporaryFile()
-            throws IOException
-    {
-        File tempFile = File.createTempFile("xlimport", ".tmp");
-	tempfiles.add(tempFile);
-        return tempFile;
-    }
-
-    /**
-     * Convert inputStream into a new InputStream which consists of XML records, regardless of the
-     * original format.
-     */
-    private static InputStream streamAsXml(InputStream inputStream, Parameters parameters)
-            throws IOException
-    {
-        if (parameters.getFormat() == Parameters.INPUT_FORMAT.FORMAT_ISO2709)
-        {
-            File tmpFile = getTemporaryFile();
-
-            try(OutputStream tmpOut = new FileOutputStream(tmpFile))
-            {
-                Iso2709MarcRecordReader isoReader;
-                isoReader = new Iso2709MarcRecordReader(inputStream, parameters.getInputEncoding());
-
-                MarcXmlRecordWriter writer = new MarcXmlRecordWriter(tmpOut);
-
-                MarcRecord marcRecord;
-                while ((marcRecord = isoReader.readRecord()) != null)
-                {
-                    writer.writeRecord(marcRecord);
-                }
-                isoReader.close();
-                writer.close();
-                inputStream.close();
-            }
-
-            return new FileInputStream(tmpFile);
-        } else // Already xml
-            return inputStream;
-    }
-
-    /**
-     * Apply a transformation XSLT stylesheet on everything available in inputStream
-     * and generate a new InputStream of the transformed data.
-     */
-    private static InputStream transform(Transformer transformer, InputStream inputStream)
-            throws TransformerException, IOException
-    {
-        File tmpFile = getTemporaryFile();
-        try(OutputStream tmpOut = new FileOutputStream(tmpFile))
-        {
-            StreamResult result = new StreamResult(tmpOut);
-            transformer.transform( new StreamSource(inputStream), result );
-            inputStream.close();
-        }
-        return new FileInputStream(tmpFile);
-    }
 }
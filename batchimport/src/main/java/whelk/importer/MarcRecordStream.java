@@ -0,0 +1,261 @@
+package whelk.importer;
+
+import se.kb.libris.util.marc.MarcRecord;
+import se.kb.libris.util.marc.io.Iso2709MarcRecordReader;
+import se.kb.libris.util.marc.io.MarcXmlRecordReader;
+import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads MARC records from an input stream one at a time, in the order they are to be imported, with any XSLT
+ * transforms applied.
+ *
+ * Nothing is written to disk. ISO2709 input without transforms is read as is, without going through MARCXML.
+ * With --transformPerRecord each record is transformed on its own, as a collection of one record. Otherwise the
+ * conversion to MARCXML and each transform run on threads of their own, connected with pipes, so that records can
+ * be imported while the input is still being transformed.
+ */
+class MarcRecordStream implements AutoCloseable
+{
+    private static final String RECORD_PATH = "/collection/record";
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
+    private interface RecordReader
+    {
+        MarcRecord readRecord() throws Exception;
+        void close() throws Exception;
+    }
+
+    private interface Stage
+    {
+        void run(InputStream in, OutputStream out) throws Exception;
+    }
+
+    private final RecordReader reader;
+    private final List<Thread> stageThreads = new ArrayList<>();
+    private final AtomicReference<Throwable> stageFailure = new AtomicReference<>();
+
+    private MarcRecordStream(InputStream inputStream, Parameters parameters)
+            throws Exception
+    {
+        List<Templates> templates = parameters.getTemplates();
+        boolean isIso2709 = parameters.getFormat() == Parameters.INPUT_FORMAT.FORMAT_ISO2709;
+
+        if (templates.isEmpty() || parameters.getTransformPerRecord())
+        {
+            RecordReader source = isIso2709
+                    ? iso2709Reader(inputStream, parameters.getInputEncoding())
+                    : marcXmlReader(inputStream);
+            reader = templates.isEmpty() ? source : new PerRecordTransformingReader(source, templates);
+        }
+        else
+        {
+            if (isIso2709)
+            {
+                String encoding = parameters.getInputEncoding();
+                inputStream = pipe("batchimport-marcxml", inputStream, (in, out) -> writeAsXml(in, encoding, out));
+            }
+            int i = 0;
+            for (Templates template : templates)
+            {
+                Transformer transformer = template.newTransformer();
+                inputStream = pipe("batchimport-xslt-" + i++, inputStream,
+                        (in, out) -> transformer.transform(new StreamSource(in), new StreamResult(out)));
+            }
+            reader = marcXmlReader(inputStream);
+        }
+    }
+
+    static MarcRecordStream open(InputStream inputStream, Parameters parameters)
+            throws Exception
+    {
+        return new MarcRecordStream(inputStream, parameters);
+    }
+
+    /**
+     * @return the next record, or null at the end of the input
+     */
+    MarcRecord readRecord()
+            throws Exception
+    {
+        MarcRecord marcRecord;
+        try
+        {
+            marcRecord = reader.readRecord();
+        }
+        catch (Exception e)
+        {
+            // A failing stage breaks the pipe, report the actual cause
+            throwIfStageFailed();
+            throw e;
+        }
+        if (marcRecord == null)
+        {
+            joinStages();
+            throwIfStageFailed();
+        }
+        return marcRecord;
+    }
+
+    @Override
+    public void close()
+            throws Exception
+    {
+        reader.close();
+        for (Thread t : stageThreads)
+            t.interrupt();
+    }
+
+    private InputStream pipe(String name, InputStream in, Stage stage)
+            throws IOException
+    {
+        PipedInputStream result = new PipedInputStream(PIPE_BUFFER_SIZE);
+        PipedOutputStream out = new PipedOutputStream(result);
+        Thread t = new Thread(() ->
+        {
+            try (InputStream stageIn = in; OutputStream stageOut = out)
+            {
+                stage.run(stageIn, stageOut);
+            }
+            catch (Throwable e)
+            {
+                stageFailure.compareAndSet(null, e);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        stageThreads.add(t);
+        return result;
+    }
+
+    private void joinStages()
+            throws InterruptedException
+    {
+        for (Thread t : stageThreads)
+            t.join();
+    }
+
+    private void throwIfStageFailed()
+    {
+        Throwable e = stageFailure.get();
+        if (e != null)
+            throw new RuntimeException("Failed to read or transform input: " + e, e);
+    }
+
+    private static void writeAsXml(InputStream in, String encoding, OutputStream out)
+            throws Exception
+    {
+        Iso2709MarcRecordReader isoReader = new Iso2709MarcRecordReader(in, encoding);
+        MarcXmlRecordWriter writer = new MarcXmlRecordWriter(out);
+        MarcRecord marcRecord;
+        while ((marcRecord = isoReader.readRecord()) != null)
+        {
+            writer.writeRecord(marcRecord);
+        }
+        isoReader.close();
+        writer.close();
+    }
+
+    private static RecordReader iso2709Reader(InputStream in, String encoding)
+            throws Exception
+    {
+        Iso2709MarcRecordReader isoReader = new Iso2709MarcRecordReader(in, encoding);
+        return new RecordReader()
+        {
+            public MarcRecord readRecord() throws Exception { return isoReader.readRecord(); }
+            public void close() throws Exception { isoReader.close(); }
+        };
+    }
+
+    private static RecordReader marcXmlReader(InputStream in)
+            throws Exception
+    {
+        MarcXmlRecordReader xmlReader = new MarcXmlRecordReader(in, RECORD_PATH, null);
+        return new RecordReader()
+        {
+            public MarcRecord readRecord() throws Exception { return xmlReader.readRecord(); }
+            public void close() throws Exception { xmlReader.close(); }
+        };
+    }
+
+    /**
+     * Applies the transforms to each record from the source separately. A transform may produce zero or more records
+     * from each record.
+     */
+    private static class PerRecordTransformingReader implements RecordReader
+    {
+        private final RecordReader source;
+        private final List<Transformer> transformers = new ArrayList<>();
+        private final Deque<MarcRecord> pending = new ArrayDeque<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        PerRecordTransformingReader(RecordReader source, List<Templates> templates)
+                throws Exception
+        {
+            this.source = source;
+            for (Templates template : templates)
+                transformers.add(template.newTransformer());
+        }
+
+        public MarcRecord readRecord()
+                throws Exception
+        {
+            while (pending.isEmpty())
+            {
+                MarcRecord marcRecord = source.readRecord();
+                if (marcRecord == null)
+                    return null;
+                pending.addAll(transform(marcRecord));
+            }
+            return pending.removeFirst();
+        }
+
+        private List<MarcRecord> transform(MarcRecord marcRecord)
+                throws Exception
+        {
+            buffer.reset();
+            MarcXmlRecordWriter writer = new MarcXmlRecordWriter(buffer);
+            writer.writeRecord(marcRecord);
+            writer.close();
+            byte[] xml = buffer.toByteArray();
+
+            for (Transformer transformer : transformers)
+            {
+                buffer.reset();
+                transformer.transform(new StreamSource(new ByteArrayInputStream(xml)), new StreamResult(buffer));
+                transformer.reset();
+                xml = buffer.toByteArray();
+            }
+
+            List<MarcRecord> result = new ArrayList<>();
+            MarcXmlRecordReader xmlReader = new MarcXmlRecordReader(new ByteArrayInputStream(xml), RECORD_PATH, null);
+            MarcRecord transformed;
+            while ((transformed = xmlReader.readRecord()) != null)
+                result.add(transformed);
+            xmlReader.close();
+            return result;
+        }
+
+        public void close()
+                throws Exception
+        {
+            source.close();
+        }
+    }
+}
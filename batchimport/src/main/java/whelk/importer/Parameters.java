@@ -18,6 +18,7 @@ class Parameters
     private INPUT_FORMAT format;
     private boolean readOnly = true;
     private final List<Templates> templates = new ArrayList<>();
+    private boolean transformPerRecord = false;
     private final List<DUPLICATION_TYPE> dupTypes = new ArrayList<>();
     private String inputEncoding = "UTF-8";
     private boolean parallel = false;
@@ -34,6 +35,7 @@ class Parameters
     INPUT_FORMAT getFormat() { return format; }
     boolean getReadOnly() { return readOnly; }
     List<Templates> getTemplates() { return templates; }
+    boolean getTransformPerRecord() { return transformPerRecord; }
     List<DUPLICATION_TYPE> getDuplicationTypes() { return dupTypes; }
     String getInputEncoding() { return inputEncoding; }
     boolean getRunParallel() { return parallel; }
@@ -125,6 +127,11 @@ class Parameters
         System.err.println("              applied in the same order they are specified on the command line.");
         System.err.println("              XSLT transformation is optional.");
         System.err.println();
+        System.err.println("--transformPerRecord Apply the transformers to each record separately, as a collection of");
+        System.err.println("              one record, instead of to the input as a whole. This keeps memory use bounded");
+        System.err.println("              for large inputs, but can only be used with transformers that look at one");
+        System.err.println("              record at a time.");
+        System.err.println();
         System.err.println("--inEncoding  The character encoding of the incoming data. Only relevant if the format");
         System.err.println("              is \"iso2709\" as xml documents are expected to declare their encoding in the");
         System.err.println("              xml header. Defaults to UTF-8.");
@@ -316,6 +323,9 @@ class Parameters
             case "--forceUpdate":
                 forceUpdate = true;
                 break;
+            case "--transformPerRecord":
+                transformPerRecord = true;
+                break;
             default:
                 throw new IllegalArgumentException(parameter);
         }
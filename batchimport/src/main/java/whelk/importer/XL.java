@@ -14,6 +14,7 @@ import se.kb.libris.utils.isbn.IsbnException;
 import se.kb.libris.utils.isbn.IsbnParser;
 import whelk.Document;
 import whelk.IdGenerator;
+import whelk.TypedIdentifier;
 import whelk.Whelk;
 import whelk.component.PostgreSQLComponent;
 import whelk.converter.MarcJSONConverter;
@@ -30,15 +31,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
 class XL
 {
@@ -95,7 +97,13 @@ class XL
                 incomingMarcRecord.getLeader(6) == 'x' || incomingMarcRecord.getLeader(6) == 'y')
             collection = "hold";
 
-        Set<String> duplicateIDs = getDuplicates(incomingMarcRecord, collection, relatedWithBibResourceId);
+        // Bib records are converted before duplicate checking, with a newly generated id. The conversion is then
+        // reused for importing, with the id changed if it turns out to be a replace or merge.
+        Document converted = null;
+        if (collection.equals("bib"))
+            converted = convertToRDF(incomingMarcRecord, IdGenerator.generate());
+
+        Set<String> duplicateIDs = getDuplicates(incomingMarcRecord, converted, collection, relatedWithBibResourceId);
 
         String resultingResourceId = null;
 
@@ -111,7 +119,7 @@ class XL
 
         if (duplicateIDs.size() == 0) // No coinciding documents, simple import
         {
-            resultingResourceId = importNewRecord(incomingMarcRecord, collection, relatedWithBibResourceId, null);
+            resultingResourceId = importNewRecord(incomingMarcRecord, converted, collection, relatedWithBibResourceId, null);
 
             if (collection.equals("bib"))
                 importedBibRecords.inc();
@@ -125,13 +133,13 @@ class XL
                     m_parameters.getReplaceHold() && collection.equals("hold"))
             {
                 String idToReplace = duplicateIDs.iterator().next();
-                resultingResourceId = importNewRecord(incomingMarcRecord, collection, relatedWithBibResourceId, idToReplace);
+                resultingResourceId = importNewRecord(incomingMarcRecord, converted, collection, relatedWithBibResourceId, idToReplace);
             }
 
             // merge
             else if (m_merge != null && collection.equals("bib")) {
                 String idToMerge = duplicateIDs.iterator().next();
-                Document incoming = convertToRDF(incomingMarcRecord, idToMerge);
+                Document incoming = withSystemId(converted, idToMerge);
                 if (m_parameters.getReadOnly()) {
                     Document existing = m_whelk.getDocument(idToMerge);
                     m_merge.merge(existing, incoming, m_parameters.getChangedBy(), m_whelk);
@@ -140,6 +148,7 @@ class XL
                 }
                 else {
                     m_whelk.storeAtomicUpdate(idToMerge, false, IMPORT_SYSTEM_CODE, m_parameters.getChangedBy(), (Document existing) -> {
+                        // Computed the same way before and after, the stored checksum may be from older rules
                         String existingChecksum = existing.getChecksum(m_whelk.getJsonld());
                         m_merge.merge(existing, incoming, m_parameters.getChangedBy(), m_whelk);
                         String modifiedChecksum = existing.getChecksum(m_whelk.getJsonld());
@@ -189,14 +198,19 @@ class XL
         return resultingResourceId;
     }
 
-    private String importNewRecord(MarcRecord marcRecord, String collection, String relatedWithBibResourceId, String replaceSystemId)
+    /**
+     * @param converted the record already converted (with any id), or null if it has not been converted
+     */
+    private String importNewRecord(MarcRecord marcRecord, Document converted, String collection, String relatedWithBibResourceId, String replaceSystemId)
     {
+        Document rdfDoc;
+        if (converted == null)
+            rdfDoc = convertToRDF(marcRecord, replaceSystemId != null ? replaceSystemId : IdGenerator.generate());
+        else if (replaceSystemId != null)
+            rdfDoc = withSystemId(converted, replaceSystemId);
+        else
+            rdfDoc = converted;
 
-        String incomingId = IdGenerator.generate();
-        if (replaceSystemId != null)
-            incomingId = replaceSystemId;
-
-        Document rdfDoc = convertToRDF(marcRecord, incomingId);
         if (collection.equals("hold"))
         {
             String libraryUri = rdfDoc.getHeldBy();
@@ -346,6 +360,41 @@ class XL
         return convertedDocument;
     }
 
+    /**
+     * Change the system id of a document from convertToRDF(), instead of converting the record again.
+     *
+     * The id is only copied verbatim by the conversion (into @id:s, controlNumber and sameAs), and a generated id
+     * doesn't occur anywhere else, so every occurrence is replaced.
+     */
+    private Document withSystemId(Document convertedDocument, String id)
+    {
+        String oldId = convertedDocument.getShortId();
+        if (!oldId.equals(id))
+            replaceInStrings(convertedDocument.data, oldId, id);
+        return convertedDocument;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object replaceInStrings(Object node, String target, String replacement)
+    {
+        if (node instanceof Map)
+        {
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) node).entrySet())
+                entry.setValue(replaceInStrings(entry.getValue(), target, replacement));
+        }
+        else if (node instanceof List)
+        {
+            ListIterator<Object> it = ((List<Object>) node).listIterator();
+            while (it.hasNext())
+                it.set(replaceInStrings(it.next(), target, replacement));
+        }
+        else if (node instanceof String)
+        {
+            return ((String) node).replace(target, replacement);
+        }
+        return node;
+    }
+
     private MarcRecord cloneMarcRecord(MarcRecord original)
     {
         MarcRecord clone = new MarcRecordImpl();
@@ -359,13 +408,13 @@ class XL
         return clone;
     }
 
-    private Set<String> getDuplicates(MarcRecord marcRecord, String collection, String relatedWithBibResourceId)
+    private Set<String> getDuplicates(MarcRecord marcRecord, Document converted, String collection, String relatedWithBibResourceId)
             throws SQLException, IsbnException
     {
         switch (collection)
         {
             case "bib":
-                return getBibDuplicates(marcRecord);
+                return getBibDuplicates(marcRecord, converted);
             case "hold":
                 return getHoldDuplicates(marcRecord, relatedWithBibResourceId);
             default:
@@ -385,43 +434,29 @@ class XL
         return duplicateIDs;
     }
 
-    private Set<String> getBibDuplicates(MarcRecord marcRecord)
+    /**
+     * @param rdfDoc the converted record, for the ISBN and ISSN values
+     */
+    private Set<String> getBibDuplicates(MarcRecord marcRecord, Document rdfDoc)
             throws SQLException, IsbnException
     {
         Set<String> duplicateIDs = new HashSet<>();
 
-        // Perform an temporary conversion to use for duplicate checking. This conversion will
-        // then be discarded. The real conversion cannot take place until any duplicates are
-        // found (because the correct ID needs to be known when converting). Chicken and egg problem.
-        Document rdfDoc = convertToRDF(marcRecord, IdGenerator.generate());
-
         for (Parameters.DUPLICATION_TYPE dupType : m_parameters.getDuplicationTypes())
         {
             switch (dupType)
             {
                 case DUPTYPE_ISBNA: // International Standard Book Number (only from subfield A)
-                    for (String isbn : rdfDoc.getIsbnValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIsbn( isbn.toUpperCase(), this::getOnIsbn_ps ));
-                    }
+                    duplicateIDs.addAll(getDuplicatesOnIsbn(rdfDoc.getIsbnValues(), TypedIdentifier.IDENTIFIED_BY));
                     break;
                 case DUPTYPE_ISBNZ: // International Standard Book Number (only from subfield Z)
-                    for (String isbn : rdfDoc.getIsbnHiddenValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIsbn( isbn.toUpperCase(), this::getOnIsbnHidden_ps ));
-                    }
+                    duplicateIDs.addAll(getDuplicatesOnIsbn(rdfDoc.getIsbnHiddenValues(), TypedIdentifier.INDIRECTLY_IDENTIFIED_BY));
                     break;
                 case DUPTYPE_ISSNA: // International Standard Serial Number (only from marc 022_A)
-                    for (String issn : rdfDoc.getIssnValues())
-                    {
-                            duplicateIDs.addAll(getDuplicatesOnIssn( issn.toUpperCase() ));
-                    }
+                    duplicateIDs.addAll(getDuplicatesOnThingIds("ISSN", rdfDoc.getIssnValues(), TypedIdentifier.IDENTIFIED_BY));
                     break;
                 case DUPTYPE_ISSNZ: // International Standard Serial Number (only from marc 022_Z)
-                    for (String issn : rdfDoc.getIssnHiddenValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIssnHidden( issn.toUpperCase() ));
-                    }
+                    duplicateIDs.addAll(getDuplicatesOnThingIds("ISSN", rdfDoc.getIssnHiddenValues(), TypedIdentifier.CANCELED_ISSN));
                     break;
                 case DUPTYPE_035A:
                     // Unique id number in another system.
@@ -433,15 +468,15 @@ class XL
                     break;
                 case DUPTYPE_EAN:
                     // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnEAN(marcRecord));
+                    duplicateIDs.addAll(getDuplicatesOnThingIds("EAN", get024Values(marcRecord, '3', null), TypedIdentifier.IDENTIFIED_BY));
                     break;
                 case DUPTYPE_URI:
                     // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnURI(marcRecord));
+                    duplicateIDs.addAll(getDuplicatesOnThingIds("URI", get024Values(marcRecord, '7', "uri"), TypedIdentifier.IDENTIFIED_BY));
                     break;
                 case DUPTYPE_URN:
                     // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnURN(marcRecord));
+                    duplicateIDs.addAll(getDuplicatesOnThingIds("URN", get024Values(marcRecord, '7', "urn"), TypedIdentifier.IDENTIFIED_BY));
                     break;
             }
 
@@ -482,188 +517,103 @@ class XL
     }
 
     private List<String> getDuplicatesOn035a(MarcRecord marcRecord)
-            throws SQLException
     {
-        List<String> results = new ArrayList<>();
+        List<TypedIdentifier> systemNumbers = new ArrayList<>();
         for (Field field : marcRecord.getFields("035"))
         {
             String systemNumber = DigId.grep035a( (Datafield) field );
-
-            try(PostgreSQLComponent.ConnectionContext ignored =
-                        new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                PreparedStatement statement = getOnSystemNumber_ps(m_whelk.getStorage().getMyConnection(), systemNumber);
-                ResultSet resultSet = statement.executeQuery())
-            {
-                results.addAll( collectIDs(resultSet) );
-            }
+            if (systemNumber != null)
+                systemNumbers.add(TypedIdentifier.record("SystemNumber", systemNumber));
         }
-        return results;
+        return getDuplicatesOnTypedIds(systemNumbers, null);
     }
 
-    private List<String> getDuplicatesOnEAN(MarcRecord marcRecord)
-            throws SQLException
+    /**
+     * Values of 024 $a with the given first indicator, and if sf2 is not null, a $2 with that value
+     */
+    private static List<String> get024Values(MarcRecord marcRecord, char ind1, String sf2)
     {
-        List<String> results = new ArrayList<>();
+        List<String> values = new ArrayList<>();
         for (Datafield field : marcRecord.getDatafields("024"))
         {
-            if (field.getIndicator(0) == '3')
-            {
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingEan = subfield.getData();
+            if (field.getIndicator(0) != ind1)
+                continue;
+            if (sf2 != null && field.getSubfields("2").stream().noneMatch(sf -> sf.getData().equalsIgnoreCase(sf2)))
+                continue;
 
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnEAN_ps(m_whelk.getStorage().getMyConnection(), incomingEan);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
-            }
-        }
-        return results;
-    }
-
-    private List<String> getDuplicatesOnURI(MarcRecord marcRecord)
-            throws SQLException
-    {
-        List<String> results = new ArrayList<>();
-        for (Datafield field : marcRecord.getDatafields("024"))
-        {
-            if (field.getIndicator(0) == '7')
+            for (Subfield subfield : field.getSubfields("a"))
             {
-                List<Subfield> sf2uri = field.getSubfields("2").stream().filter(sf -> sf.getData().equalsIgnoreCase("uri")).collect(Collectors.toList());
-		if ( sf2uri.size() == 0 ) continue;
-
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingUri = subfield.getData();
-
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnURI_ps(m_whelk.getStorage().getMyConnection(), incomingUri);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
+                values.add(subfield.getData());
             }
         }
-        return results;
+        return values;
     }
 
-    private List<String> getDuplicatesOnURN(MarcRecord marcRecord)
-            throws SQLException
+    private List<String> getDuplicatesOnIsbn(Collection<String> isbns, String relation)
+            throws IsbnException
     {
-        List<String> results = new ArrayList<>();
-        for (Datafield field : marcRecord.getDatafields("024"))
+        List<TypedIdentifier> typedIds = new ArrayList<>();
+        for (String isbn : isbns)
         {
-            if (field.getIndicator(0) == '7')
-            {
-                List<Subfield> sf2urn = field.getSubfields("2").stream().filter(sf -> sf.getData().equalsIgnoreCase("urn")).collect(Collectors.toList());
-		if ( sf2urn.size() == 0 ) continue;
-
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingUrn = subfield.getData();
-
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnURN_ps(m_whelk.getStorage().getMyConnection(), incomingUrn);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
-            }
+            for (String form : getIsbnForms(isbn))
+                typedIds.add(TypedIdentifier.thing("ISBN", form, relation));
         }
-        return results;
+        return getDuplicatesOnTypedIds(typedIds, "bib");
     }
 
-    private List<String> getDuplicatesOnIsbn(String isbn, BiFunction<Connection, String, PreparedStatement> getPreparedStatement)
-            throws SQLException, IsbnException
+    /**
+     * The ISBN as is, in numeric form and in the other ISBN form (10 or 13), if those can be had
+     */
+    private static List<String> getIsbnForms(String isbn)
+            throws IsbnException
     {
         boolean hyphens = false;
+        List<String> forms = new ArrayList<>();
         if (isbn == null)
-            return new ArrayList<>();
+            return forms;
 
-        List<String> duplicateIDs = new ArrayList<>();
-
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), isbn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            duplicateIDs.addAll( collectIDs(resultSet) );
-        }
+        forms.add(isbn);
 
         Isbn typedIsbn = IsbnParser.parse(isbn);
         if (typedIsbn == null)
-            return duplicateIDs;
+            return forms;
 
         int otherType = typedIsbn.getType() == Isbn.ISBN10 ? Isbn.ISBN13 : Isbn.ISBN10;
-
-        String numericIsbn = typedIsbn.toString(hyphens);
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), numericIsbn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            duplicateIDs.addAll( collectIDs(resultSet) );
-        }
+        forms.add(typedIsbn.toString(hyphens));
 
         // Collect additional duplicates with the other ISBN form (if conversion is possible)
         try
         {
-            typedIsbn = typedIsbn.convert(otherType);
+            forms.add(typedIsbn.convert(otherType).toString(hyphens));
         } catch (ConvertException ce)
         {
-            return duplicateIDs;
+            // only the forms we have
         }
-        numericIsbn = typedIsbn.toString(hyphens);
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), numericIsbn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            duplicateIDs.addAll( collectIDs(resultSet) );
-        }
-
-        return duplicateIDs;
+        return forms;
     }
 
-    private List<String> getDuplicatesOnIssn(String issn)
-            throws SQLException
+    private List<String> getDuplicatesOnThingIds(String type, Collection<String> values, String relation)
     {
-        if (issn == null)
-            return new ArrayList<>();
-
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getOnIssn_ps(m_whelk.getStorage().getMyConnection(), issn);
-            ResultSet resultSet = statement.executeQuery())
+        List<TypedIdentifier> typedIds = new ArrayList<>();
+        for (String value : values)
         {
-            return collectIDs(resultSet);
+            if (value != null)
+                typedIds.add(TypedIdentifier.thing(type, value, relation));
         }
+        return getDuplicatesOnTypedIds(typedIds, "bib");
     }
 
-    private List<String> getDuplicatesOnIssnHidden(String issn)
-            throws SQLException
+    /**
+     * All typed identifiers are looked up in one query, see PostgreSQLComponent.getSystemIdsByTypedIds()
+     */
+    private List<String> getDuplicatesOnTypedIds(Collection<TypedIdentifier> typedIds, String collection)
     {
-        if (issn == null)
+        if (typedIds.isEmpty())
             return new ArrayList<>();
 
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getOnIssnHidden_ps(m_whelk.getStorage().getMyConnection(), issn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            return collectIDs(resultSet);
-        }
+        Set<String> duplicateIDs = new LinkedHashSet<>();
+        m_whelk.getStorage().getSystemIdsByTypedIds(typedIds, collection).values().forEach(duplicateIDs::addAll);
+        return new ArrayList<>(duplicateIDs);
     }
 
     private List<String> getDuplicatesOnHeldByHoldingFor(MarcRecord marcRecord, String relatedWithBibResourceId)
@@ -695,108 +645,6 @@ class XL
         return statement;
     }
 
-    /**
-     * "System number" is our ld equivalent of marc's 035a
-     */
-    private PreparedStatement getOnSystemNumber_ps(Connection connection, String systemNumber)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE deleted = false AND data#>'{@graph,0,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"SystemNumber\", \"value\": \"" + systemNumber + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnIsbn_ps(Connection connection, String isbn)
-    {
-        try
-        {
-            String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-            PreparedStatement statement = connection.prepareStatement(query);
-
-            statement.setObject(1, "[{\"@type\": \"ISBN\", \"value\": \"" + isbn + "\"}]", java.sql.Types.OTHER);
-
-            return statement;
-        } catch (SQLException se)
-        {
-            throw new RuntimeException(se);
-        }
-    }
-
-    private PreparedStatement getOnIssn_ps(Connection connection, String issn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"ISSN\", \"value\": \"" + issn + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnIsbnHidden_ps(Connection connection, String isbn)
-    {
-        try
-        {
-            String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,indirectlyIdentifiedBy}' @> ?";
-            PreparedStatement statement = connection.prepareStatement(query);
-
-            statement.setObject(1, "[{\"@type\": \"ISBN\", \"value\": \"" + isbn + "\"}]", java.sql.Types.OTHER);
-
-            return statement;
-        } catch (SQLException se)
-        {
-            throw new RuntimeException(se);
-        }
-    }
-
-    private PreparedStatement getOnIssnHidden_ps(Connection connection, String issn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND ( data#>'{@graph,1,identifiedBy}' @> ? OR data#>'{@graph,1,identifiedBy}' @> ?)";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"ISSN\", \"marc:canceledIssn\": [\"" + issn + "\"]}]", java.sql.Types.OTHER);
-        statement.setObject(2, "[{\"@type\": \"ISSN\", \"marc:canceledIssn\": \"" + issn + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnEAN_ps(Connection connection, String ean)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"EAN\", \"value\": \"" + ean + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnURI_ps(Connection connection, String uri)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"URI\", \"value\": \"" + uri + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnURN_ps(Connection connection, String urn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"URN\", \"value\": \"" + urn + "\"}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
     private PreparedStatement getOnHeldByHoldingFor_ps(Connection connection, String heldBy, String holdingForId)
             throws SQLException
     {
@@ -15,6 +15,7 @@ import whelk.component.PostgreSQLComponent
 import whelk.converter.JsonLdToTurtle
 import whelk.filter.LinkFinder
 import whelk.reindexer.ElasticReindexer
+import whelk.reindexer.VersionCompressor
 import whelk.util.PropertyLoader
 import whelk.util.Tools
 
@@ -53,12 +54,22 @@ class ImporterMain {
         DatasetImporter.importDataset(whelk, fname, dataset)
     }
 
-    @Command(args='[COLLECTION]')
-    void reindex(String collection=null) {
+    /**
+     * Options:
+     * --checkpoint=FILE  save progress to FILE, resume from it if it exists
+     * --readers=N, --shapers=N, --senders=N  number of threads in each stage
+     * --max-in-flight-mb=N  max size of bulk requests being sent or waiting to be sent
+     */
+    @Command(args='[COLLECTION] [--checkpoint=FILE] [--readers=N] [--shapers=N] [--senders=N] [--max-in-flight-mb=N]')
+    void reindex(String... args) {
+        List<String> collection = args.findAll { !it.startsWith('--') }
+        if (collection.size() > 1) {
+            throw new IllegalArgumentException("Only one collection can be given")
+        }
         boolean useCache = true
         Whelk whelk = Whelk.createLoadedSearchWhelk(props, useCache)
-        def reindex = new ElasticReindexer(whelk)
-        reindex.reindex(collection)
+        def reindex = configureReindexer(new ElasticReindexer(whelk), args)
+        reindex.reindex(collection ? collection.first() : null)
     }
 
     @Command(args='[COLLECTION]')
@@ -67,14 +78,50 @@ class ImporterMain {
         new CardRefresher(whelk).refresh(collection)
     }
 
-    @Command(args='[FROM]')
-    void reindexFrom(String from=null) {
+    /**
+     * FROM is in unix time (seconds). Takes the same options as reindex.
+     */
+    @Command(args='FROM [--checkpoint=FILE] [--readers=N] [--shapers=N] [--senders=N] [--max-in-flight-mb=N]')
+    void reindexFrom(String... args) {
+        List<String> from = args.findAll { !it.startsWith('--') }
+        if (from.size() != 1) {
+            throw new IllegalArgumentException("FROM must be given")
+        }
         boolean useCache = true
         Whelk whelk = Whelk.createLoadedSearchWhelk(props, useCache)
-        def reindex = new ElasticReindexer(whelk)
-        long fromUnixTime = Long.parseLong(from)
+        def reindex = configureReindexer(new ElasticReindexer(whelk), args)
+        long fromUnixTime = Long.parseLong(from.first())
         reindex.reindexFrom(fromUnixTime)
     }
+
+    private static ElasticReindexer configureReindexer(ElasticReindexer reindexer, String... args) {
+        args.findAll { it.startsWith('--') }.each { String arg ->
+            def (String option, String value) = arg.contains('=') ? arg.split('=', 2) : [arg, null]
+            if (value == null) {
+                throw new IllegalArgumentException("$option needs a value")
+            }
+            switch (option) {
+                case '--checkpoint':
+                    reindexer.checkpointFile = new File(value)
+                    break
+                case '--readers':
+                    reindexer.readers = Integer.parseInt(value)
+                    break
+                case '--shapers':
+                    reindexer.shapers = Integer.parseInt(value)
+                    break
+                case '--senders':
+                    reindexer.senders = Integer.parseInt(value)
+                    break
+                case '--max-in-flight-mb':
+                    reindexer.maxInFlightBytes = Long.parseLong(value) * 1024 * 1024
+                    break
+                default:
+                    throw new IllegalArgumentException("Unknown option $option")
+            }
+        }
+        return reindexer
+    }
     
     /**
      * The additional_types argument should be one of:
@@ -210,6 +257,34 @@ class ImporterMain {
         cos.close()
     }
 
+    /**
+     * Store all history again with the versionKeyframeInterval in the properties, see VersionCompressor.
+     * Options:
+     * --after=ID  start after this id
+     * --threads=N  number of threads, default 1
+     */
+    @Command(args='[--after=ID] [--threads=N]')
+    void compressVersions(String... args) {
+        def compressor = new VersionCompressor(new PostgreSQLComponent(props))
+        args.each { String arg ->
+            def (String option, String value) = arg.contains('=') ? arg.split('=', 2) : [arg, null]
+            if (value == null) {
+                throw new IllegalArgumentException("$option needs a value")
+            }
+            switch (option) {
+                case '--after':
+                    compressor.afterId = value
+                    break
+                case '--threads':
+                    compressor.threads = Integer.parseInt(value)
+                    break
+                default:
+                    throw new IllegalArgumentException("Unknown option $option")
+            }
+        }
+        compressor.compress()
+    }
+
     @Command(args='[FROM]')
     void queueSparqlUpdatesFrom(String from=null) {
         Whelk whelk = Whelk.createLoadedSearchWhelk(props)
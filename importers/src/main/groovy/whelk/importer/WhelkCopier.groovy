@@ -17,7 +17,7 @@ class WhelkCopier {
     List recordIds
     String additionalTypes
     boolean shouldExcludeItems
-    ThreadPool threadPool = new ThreadPool(Runtime.getRuntime().availableProcessors())
+    ThreadPool threadPool = new ThreadPool('whelk-copier', Runtime.getRuntime().availableProcessors())
     List<Document> saveQueue = []
 
     private int copied = 0
@@ -3,6 +3,7 @@ package whelk.reindexer
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.Whelk
+import whelk.component.PostgreSQLComponent
 import whelk.util.ThreadPool
 
 import java.time.Instant
@@ -23,7 +24,11 @@ class CardRefresher {
             long counter = 0
             long startTime = System.currentTimeMillis()
 
-            ThreadPool threadPool = new ThreadPool(whelk.storage.getPoolSize())
+            ThreadPool threadPool = new ThreadPool('card-refresher', whelk.storage.getPoolSize())
+            // Let every worker hold on to one connection instead of taking one from the pool per document
+            ThreadPool.WorkerLocal<PostgreSQLComponent.ConnectionContext> connection = threadPool.workerLocal(
+                    { new PostgreSQLComponent.ConnectionContext(whelk.storage.connectionContextTL) },
+                    { PostgreSQLComponent.ConnectionContext c -> c.close() })
 
             List<Document> documents = new ArrayList<>(BATCH_SIZE)
             for (document in whelk.storage.loadAll(collection)) {
@@ -32,7 +37,7 @@ class CardRefresher {
                 if (counter % BATCH_SIZE == 0) {
                     int docsPerSec = (int) ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
                     log.info("Processing $docsPerSec docs per second (running average since process start). Total count: $counter.")
-                    threadPool.executeOnThread(documents, new BatchHandler())
+                    threadPool.executeOnThread(documents, new BatchHandler(connection))
                     documents = new ArrayList<>(BATCH_SIZE)
                 }
             }
@@ -58,7 +63,14 @@ class CardRefresher {
     }
 
     private class BatchHandler implements ThreadPool.Worker<List<Document>> {
+        ThreadPool.WorkerLocal<PostgreSQLComponent.ConnectionContext> connection
+
+        BatchHandler(ThreadPool.WorkerLocal<PostgreSQLComponent.ConnectionContext> connection) {
+            this.connection = connection
+        }
+
         void doWork(List<Document> batch, int threadIndex) {
+            connection.get()
             refreshCards(batch)
         }
     }
@@ -3,17 +3,48 @@ package whelk.reindexer
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.Whelk
+import whelk.component.ElasticJsonWriter
+import whelk.component.PostgreSQLComponent
 import whelk.util.ThreadPool
 
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Reindexes documents in ElasticSearch as a pipeline of stages connected by bounded queues:
+ *
+ * read  - documents are read from PostgreSQL in batches. lddb is split into id ranges that are read in parallel.
+ * shape - batches are embellished and shaped into _bulk request bodies.
+ * send  - bodies are sent to ElasticSearch, limited by the number of requests and bytes in flight.
+ *
+ * Throughput and queue depths are reported periodically. If a checkpoint file is given, progress is saved
+ * there and a reindex started with the same file and parameters resumes where the previous one stopped.
+ */
 @Log
 class ElasticReindexer {
 
     static final int BATCH_SIZE = 300
     static final int MAX_RETRIES = 5
     static final int RETRY_WAIT_MS = 3000
+    static final int REPORT_INTERVAL_SECONDS = 10
+    // Number of id ranges per reader, so that readers finishing early can help with the rest
+    static final int PARTITIONS_PER_READER = 4
 
     Whelk whelk
 
+    int readers = 4
+    int shapers = Runtime.getRuntime().availableProcessors()
+    int senders = 4
+    long maxInFlightBytes = 256L * 1024 * 1024
+    File checkpointFile
+
     long startTime
 
     // Abort on unhandled exceptions, including those on worker threads.
@@ -40,25 +71,8 @@ class ElasticReindexer {
      */
     void reindexFrom(long fromUnixTime) {
         try {
-            int counter = 0
-            for (collection in whelk.storage.loadCollections()) {
-                boolean includeDeleted = true
-                List<Document> documents = []
-                for (document in whelk.storage.loadAll(collection, includeDeleted, new Date(fromUnixTime*1000))) {
-
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            println("Indexing $docsPerSec documents per second (running average since process start). Total count: $counter.")
-                            bulkIndexWithRetries(documents, whelk)
-                            documents = []
-                        }
-                }
-                if (documents.size() > 0) {
-                    bulkIndexWithRetries(documents, whelk)
-                }
-            }
+            boolean includeDeleted = true
+            run(null, includeDeleted, new Date(fromUnixTime * 1000))
         } catch (Throwable e) {
             println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
         }
@@ -66,59 +80,205 @@ class ElasticReindexer {
 
     void reindex(String suppliedCollection) {
         try {
-            int counter = 0
-            startTime = System.currentTimeMillis()
-            List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
-            ThreadPool threadPool = new ThreadPool(Runtime.getRuntime().availableProcessors() * 2)
-            collections.each { collection ->
-                List<Document> documents = []
-                for (document in whelk.storage.loadAll(collection)) {
-                    if ( ! document.getDeleted() ) {
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            println("Indexing $docsPerSec documents per second (running average since process start). Total count: $counter.")
-                            threadPool.executeOnThread(new Batch(documents), new BatchHandler())
-                            documents = []
-                        }
-                    }
+            boolean includeDeleted = false
+            run(suppliedCollection, includeDeleted, null)
+        } catch (Throwable e) {
+            println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
+        }
+    }
+
+    private void run(String collection, boolean includeDeleted, Date since) {
+        startTime = System.currentTimeMillis()
+
+        Run run = new Run(collection: collection, includeDeleted: includeDeleted, since: since)
+        run.partitions = loadCheckpoint(run) ?: createPartitions()
+        List<Partition> unread = run.partitions.findAll { !it.finished }
+        run.readPool = new ThreadPool('reindex-read', readers, unread.size())
+        run.shapePool = new ThreadPool('reindex-shape', shapers)
+        run.sendPool = new ThreadPool('reindex-send', senders)
+        run.inFlightKb = new Semaphore(inFlightPermits())
+
+        println("Reindexing ${collection ?: 'all collections'} in ${unread.size()} id ranges " +
+                "with $readers readers, $shapers shapers and $senders senders")
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor({ Runnable r ->
+            Thread t = new Thread(r, "reindex-reporter")
+            t.setDaemon(true)
+            return t
+        })
+        reporter.scheduleAtFixedRate({ report(run) }, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS)
+
+        Throwable failure = null
+        try {
+            unread.each { Partition p -> run.readPool.executeOnThread(p, { Partition partition, int i -> read(run, partition) } as ThreadPool.Worker) }
+        }
+        catch (Throwable e) {
+            failure = e
+        }
+        // A failing stage discards its queued work, making the stage before it fail when adding more work
+        for (ThreadPool pool : [run.readPool, run.shapePool, run.sendPool]) {
+            try {
+                pool.joinAll()
+            }
+            catch (Throwable e) {
+                failure = failure ?: e
+            }
+        }
+
+        reporter.shutdownNow()
+        report(run)
+
+        if (failure) {
+            throw failure
+        }
+
+        checkpointFile?.delete()
+        println("Done! ${run.indexed.get()} documents reindexed in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
+        whelk.storage.logStats()
+    }
+
+    private void read(Run run, Partition partition) {
+        List<Document> documents = []
+        String start = partition.checkpoint ?: partition.from
+        PostgreSQLComponent.DocumentIterable range = whelk.storage.loadAllByIdRange(
+                run.collection, run.includeDeleted, run.since, start, partition.to)
+        try {
+            for (Document document : range) {
+                documents.add(document)
+                run.read.incrementAndGet()
+                if (documents.size() == BATCH_SIZE) {
+                    shape(run, new Batch(partition, partition.nextSeq(), documents))
+                    documents = []
                 }
-                if (documents.size() > 0) {
-                    bulkIndexWithRetries(documents, whelk)
+                if (run.readPool.hasFailed()) {
+                    return
                 }
             }
-            threadPool.joinAll()
-            println("Done! $counter documents reindexed in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
-            whelk.storage.logStats()
-        } catch (Throwable e) {
-            println("Reindex failed with:\n" + e.toString() + "\ncallstack:\n" + e.printStackTrace())
         }
+        finally {
+            // Ends the transaction if the range wasn't read to the end
+            range.close()
+        }
+        if (documents) {
+            shape(run, new Batch(partition, partition.nextSeq(), documents))
+        }
+        partition.readDone()
     }
 
-    private void bulkIndexWithRetries(List<Document> docs, Whelk whelk) {
-        int retriesLeft = MAX_RETRIES
+    private void shape(Run run, Batch batch) {
+        run.shapePool.executeOnThread(batch, { Batch b, int i ->
+            b.body = withRetries("shape batch") { whelk.elastic.createBulkBody(b.documents, whelk) }
+            b.permits = Math.max(1, Math.min(b.body.size().intdiv(1024) as int, inFlightPermits()))
+            run.shaped.addAndGet(b.documents.size())
+            while (!run.inFlightKb.tryAcquire(b.permits, 1, TimeUnit.SECONDS)) {
+                if (run.sendPool.hasFailed()) {
+                    throw new IllegalStateException("Sending to ElasticSearch failed")
+                }
+            }
+            send(run, b)
+        } as ThreadPool.Worker)
+    }
 
-        Exception error
-        while(error = tryBulkIndex(docs, whelk)) {
-            if (retriesLeft-- > 0) {
-                log.warn("Failed to index batch: [${error}], retrying after ${RETRY_WAIT_MS} ms")
-                sleep()
-            } else {
-                log.warn("Failed to index batch: [${error}], max retries exceeded")
-                throw error
+    private void send(Run run, Batch batch) {
+        try {
+            run.sendPool.executeOnThread(batch, { Batch b, int i ->
+                try {
+                    withRetries("index batch") { whelk.elastic.sendBulkRequest(b.body, b.documents.size()) }
+                    run.indexed.addAndGet(b.documents.size())
+                    b.partition.batchDone(b.seq, b.documents.last().getShortId())
+                }
+                finally {
+                    run.inFlightKb.release(b.permits)
+                    whelk.elastic.releaseBulkBody(b.body)
+                }
+            } as ThreadPool.Worker)
+        }
+        catch (Throwable e) {
+            run.inFlightKb.release(batch.permits)
+            whelk.elastic.releaseBulkBody(batch.body)
+            throw e
+        }
+    }
+
+    private <T> T withRetries(String what, Closure<T> c) {
+        int retriesLeft = MAX_RETRIES
+        while (true) {
+            try {
+                return c.call()
+            }
+            catch (Exception e) {
+                if (retriesLeft-- > 0) {
+                    log.warn("Failed to $what: [${e}], retrying after ${RETRY_WAIT_MS} ms")
+                    sleep()
+                } else {
+                    log.warn("Failed to $what: [${e}], max retries exceeded")
+                    throw e
+                }
             }
         }
     }
 
-    private Exception tryBulkIndex(List<Document> docs, Whelk whelk) {
+    private int inFlightPermits() {
+        return Math.max(1, maxInFlightBytes.intdiv(1024) as int)
+    }
+
+    private List<Partition> createPartitions() {
+        int n = Math.min(readers, whelk.storage.getPoolSize()) * PARTITIONS_PER_READER
+        List<String> boundaries = whelk.storage.getIdPartitionBoundaries(n)
+        List<String> bounds = [null] + boundaries + [null]
+        return (0..<bounds.size() - 1).collect { int i -> new Partition(from: bounds[i], to: bounds[i + 1]) }
+    }
+
+    private void report(Run run) {
         try {
-            whelk.elastic.bulkIndex(docs, whelk)
-            return null
+            double seconds = (System.currentTimeMillis() - startTime) / 1000d
+            long indexed = run.indexed.get()
+            long sinceLastReport = indexed - run.lastReportedIndexed
+            run.lastReportedIndexed = indexed
+            println(String.format("Read %d, shaped %d, indexed %d documents. " +
+                    "%.1f documents per second (%.1f since process start). " +
+                    "Queues: to shape %d/%d, to send %d/%d, %d MB in flight. Id ranges left: %d/%d",
+                    run.read.get(), run.shaped.get(), indexed,
+                    sinceLastReport / (double) REPORT_INTERVAL_SECONDS, seconds > 0 ? indexed / seconds : 0d,
+                    run.shapePool.getQueueSize(), run.shapePool.getQueueCapacity(),
+                    run.sendPool.getQueueSize(), run.sendPool.getQueueCapacity(),
+                    (inFlightPermits() - run.inFlightKb.availablePermits()).intdiv(1024),
+                    run.partitions.count { !it.finished }, run.partitions.size()))
+            saveCheckpoint(run)
         }
         catch (Exception e) {
-            return e
+            log.warn("Failed to report progress: $e", e)
+        }
+    }
+
+    private synchronized void saveCheckpoint(Run run) {
+        if (!checkpointFile) {
+            return
+        }
+        Map checkpoint = [
+                'collection'    : run.collection,
+                'includeDeleted': run.includeDeleted,
+                'since'         : run.since?.getTime(),
+                'partitions'    : run.partitions.collect { it.toMap() }
+        ]
+        File tmp = new File(checkpointFile.getPath() + '.tmp')
+        tmp.setText(mapper.writeValueAsString(checkpoint), 'UTF-8')
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private List<Partition> loadCheckpoint(Run run) {
+        if (!checkpointFile?.exists()) {
+            return null
         }
+        Map checkpoint = mapper.readValue(checkpointFile.getText('UTF-8'), Map)
+        if (checkpoint.collection != run.collection
+                || checkpoint.includeDeleted != run.includeDeleted
+                || checkpoint.since != run.since?.getTime()) {
+            throw new IllegalArgumentException("Checkpoint $checkpointFile was created for another reindex: " +
+                    "collection ${checkpoint.collection}, includeDeleted ${checkpoint.includeDeleted}, since ${checkpoint.since}")
+        }
+        println("Resuming from checkpoint $checkpointFile")
+        return ((List<Map>) checkpoint.partitions).collect { Partition.fromMap(it) }
     }
 
     private void sleep() {
@@ -130,17 +290,77 @@ class ElasticReindexer {
         }
     }
 
-    private class Batch {
-        List<Document> documents
+    private static class Run {
+        String collection
+        boolean includeDeleted
+        Date since
 
-        Batch(List<Document> documents) {
-            this.documents = documents
+        List<Partition> partitions
+        ThreadPool readPool
+        ThreadPool shapePool
+        ThreadPool sendPool
+        Semaphore inFlightKb
+
+        AtomicLong read = new AtomicLong()
+        AtomicLong shaped = new AtomicLong()
+        AtomicLong indexed = new AtomicLong()
+        long lastReportedIndexed = 0
+    }
+
+    /**
+     * A range of ids (from, to], read in order by one reader.
+     *
+     * Batches are numbered in the order they are read. checkpoint is the last id of the last batch that has been
+     * indexed together with all batches before it, i.e. everything up to and including it is done.
+     */
+    private static class Partition {
+        String from
+        String to
+        String checkpoint
+        boolean finished
+
+        private long nextSeq = 0
+        private long doneUpTo = -1
+        private boolean allRead = false
+        private TreeMap<Long, String> done = new TreeMap<>()
+
+        synchronized long nextSeq() {
+            return nextSeq++
+        }
+
+        synchronized void batchDone(long seq, String lastId) {
+            done.put(seq, lastId)
+            while (done.containsKey(doneUpTo + 1)) {
+                checkpoint = done.remove(++doneUpTo)
+            }
+            finished = allRead && doneUpTo == nextSeq - 1
+        }
+
+        synchronized void readDone() {
+            allRead = true
+            finished = doneUpTo == nextSeq - 1
+        }
+
+        synchronized Map toMap() {
+            return ['from': from, 'to': to, 'checkpoint': checkpoint, 'finished': finished]
+        }
+
+        static Partition fromMap(Map m) {
+            return new Partition(from: m.from, to: m.to, checkpoint: m.checkpoint, finished: m.finished)
         }
     }
 
-    private class BatchHandler implements ThreadPool.Worker<Batch> {
-        void doWork(Batch batch, int threadIndex) {
-            bulkIndexWithRetries(batch.documents, whelk)
+    private static class Batch {
+        Partition partition
+        long seq
+        List<Document> documents
+        ElasticJsonWriter.Buffer body
+        int permits = 0
+
+        Batch(Partition partition, long seq, List<Document> documents) {
+            this.partition = partition
+            this.seq = seq
+            this.documents = documents
         }
     }
 }
@@ -0,0 +1,69 @@
+package whelk.reindexer
+
+import groovy.util.logging.Log4j2 as Log
+import whelk.component.PostgreSQLComponent
+import whelk.util.ThreadPool
+
+/**
+ * Stores the history of all documents again with the configured versionKeyframeInterval, see
+ * PostgreSQLComponent.compressVersions(). With an interval of 1 deltas are converted back to full versions.
+ *
+ * Documents are processed one at a time in id order, so this can run while the system is in use. It can be
+ * stopped at any time and resumed with afterId. Batches are logged when queued, not when done, so resume from an
+ * id logged a few batches earlier; documents already converted are left as they are.
+ */
+@Log
+class VersionCompressor {
+    static final int BATCH_SIZE = 1000
+
+    PostgreSQLComponent storage
+    int threads = 1
+    String afterId = null
+
+    VersionCompressor(PostgreSQLComponent storage) {
+        this.storage = storage
+    }
+
+    void compress() {
+        long counter = 0
+        long rewritten = 0
+        long startTime = System.currentTimeMillis()
+        log.info("Storing versions with keyframe interval ${storage.versionKeyframeInterval}, starting after ${afterId ?: 'the first id'}")
+
+        ThreadPool threadPool = new ThreadPool('version-compressor', threads)
+        ThreadPool.WorkerLocal<PostgreSQLComponent.ConnectionContext> connection = threadPool.workerLocal(
+                { new PostgreSQLComponent.ConnectionContext(storage.connectionContextTL) },
+                { PostgreSQLComponent.ConnectionContext c -> c.close() })
+
+        String after = afterId
+        List<String> ids
+        while ((ids = storage.getVersionedIds(after, BATCH_SIZE))) {
+            log.info("Processing ids after ${after ?: 'the first id'}. Total count: $counter, rewritten versions: $rewritten.")
+            threadPool.executeOnThread(ids, { List<String> batch, int threadIndex ->
+                connection.get()
+                long n = compress(batch)
+                synchronized (this) {
+                    rewritten += n
+                }
+            } as ThreadPool.Worker<List<String>>)
+            counter += ids.size()
+            after = ids.last()
+        }
+        threadPool.joinAll()
+
+        log.info("Done! $counter documents processed, $rewritten versions rewritten in ${(System.currentTimeMillis() - startTime) / 1000} seconds.")
+    }
+
+    private long compress(List<String> ids) {
+        long rewritten = 0
+        for (String id : ids) {
+            try {
+                rewritten += storage.compressVersions(id)
+            }
+            catch (Exception e) {
+                log.error("Error compressing versions of $id: $e", e)
+            }
+        }
+        return rewritten
+    }
+}
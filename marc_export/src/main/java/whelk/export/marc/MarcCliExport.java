@@ -5,10 +5,8 @@ import se.kb.libris.export.ExportProfile;
 import se.kb.libris.util.marc.MarcRecord;
 import se.kb.libris.util.marc.io.Iso2709MarcRecordWriter;
 import se.kb.libris.util.marc.io.MarcRecordWriter;
-import se.kb.libris.util.marc.io.MarcXmlRecordReader;
 import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
 import whelk.Document;
-import whelk.JsonLd;
 import whelk.Whelk;
 import whelk.converter.marc.JsonLD2MarcXMLConverter;
 import whelk.util.MarcExport;
@@ -146,10 +144,10 @@ public class MarcCliExport
                 String id = resultSet.getString("id");
                 Document doc = m_whelk.loadEmbellished(id);
 
-                String marcXml = null;
+                MarcRecord marcRecord = null;
                 try
                 {
-                    marcXml = (String) m_toMarcXmlConverter.convert(doc.data, doc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
+                    marcRecord = m_toMarcXmlConverter.convertToRecord(doc.data, doc.getShortId());
                 }
                 catch (Exception | Error e)
                 { // Depending on the converter, a variety of problems may arise here
@@ -157,7 +155,6 @@ public class MarcCliExport
                     continue;
                 }
 
-                MarcRecord marcRecord = MarcXmlRecordReader.fromXml(marcXml);
                 output.writeRecord(marcRecord);
             }
         }
@@ -181,10 +178,10 @@ public class MarcCliExport
                 if ( workDerivativeTypes.contains(mainEntityType) || mainEntityType.equals("Work") )
                     continue;
 
-                String marcXml = null;
+                MarcRecord marcRecord = null;
                 try
                 {
-                    marcXml = (String) m_toMarcXmlConverter.convert(doc.data, doc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY());
+                    marcRecord = m_toMarcXmlConverter.convertToRecord(doc.data, doc.getShortId());
                 }
                 catch (Exception | Error e)
                 { // Depending on the converter, a variety of problems may arise here
@@ -192,7 +189,6 @@ public class MarcCliExport
                     continue;
                 }
 
-                MarcRecord marcRecord = MarcXmlRecordReader.fromXml(marcXml);
                 output.writeRecord(marcRecord);
             }
         }
@@ -201,7 +197,7 @@ public class MarcCliExport
     private void dump(ExportProfile profile, MarcRecordWriter output)
             throws SQLException, InterruptedException
     {
-        ThreadPool threadPool = new ThreadPool(Runtime.getRuntime().availableProcessors());
+        ThreadPool threadPool = new ThreadPool("marc-export", Runtime.getRuntime().availableProcessors());
         Batch batch = new Batch(profile, output);
 
         try (Connection connection = getConnection();
@@ -236,7 +232,7 @@ public class MarcCliExport
     private void dumpSpecific(ExportProfile profile, Path idFilePath, MarcRecordWriter output)
             throws IOException, InterruptedException
     {
-        ThreadPool threadPool = new ThreadPool(Runtime.getRuntime().availableProcessors());
+        ThreadPool threadPool = new ThreadPool("marc-export", Runtime.getRuntime().availableProcessors());
         Batch batch = new Batch(profile, output);
 
         List<String> ids = Files.readAllLines(idFilePath);
@@ -13,6 +13,7 @@ import whelk.Whelk;
 import whelk.converter.marc.JsonLD2MarcXMLConverter;
 import whelk.util.LegacyIntegrationTools;
 import whelk.util.MarcExport;
+import whelk.util.ThreadPool;
 
 import java.io.IOException;
 import java.sql.Connection;
@@ -23,6 +24,8 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -31,6 +34,8 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 public class ProfileExport
@@ -58,6 +63,12 @@ public class ProfileExport
     private static final Summary singleExportLatency = Summary.build().name("marc_export_single_doc_latency_seconds")
         .help("The time in seconds it takes to export a single 'complete' document")
         .labelNames("collection").register();
+    private static final Summary stageLatency = Summary.build().name("marc_export_stage_latency_seconds")
+        .help("The time in seconds spent in each stage (select/embellish/convert/write) of exporting documents")
+        .labelNames("stage").register();
+
+    // Max number of bib documents being prepared or waiting to be written, per worker
+    private static final int MAX_PENDING_PER_WORKER = 4;
     private final JsonLD2MarcXMLConverter m_toMarcXmlConverter;
     private final Whelk m_whelk;
     public ProfileExport(Whelk whelk)
@@ -74,6 +85,9 @@ public class ProfileExport
      * Export MARC data affected in between 'from' and 'until' shaped by 'profile' into 'output'.
      * Return a set of IDs that should be deleted separately and the reason why. If deleteMode is not 'SEPARATE', the
      * returned collection will be empty.
+     *
+     * If the profile property 'parallelism' is greater than 1, documents are embellished and converted by that many
+     * worker threads. The output is the same as when exporting sequentially, in the same order.
      */
     public TreeMap<String, DELETE_REASON> exportInto(MarcRecordWriter output, ExportProfile profile, String from,
                                                      String until, DELETE_MODE deleteMode, boolean doVirtualDeletions)
@@ -94,6 +108,12 @@ public class ProfileExport
         Timestamp fromTimeStamp = new Timestamp(zonedFrom.toInstant().getEpochSecond() * 1000L);
         Timestamp untilTimeStamp = new Timestamp(zonedUntil.toInstant().getEpochSecond() * 1000L);
 
+        int parallelism = Math.min(Integer.parseInt(profile.getProperty("parallelism", "1")),
+                Runtime.getRuntime().availableProcessors());
+        ParallelExport parallelExport = parallelism > 1
+                ? new ParallelExport(parallelism, profile, output, deleteMode, doVirtualDeletions, deletedNotifications)
+                : null;
+
         TreeSet<String> exportedIDs = new TreeSet<>();
         try (Connection connection = m_whelk.getStorage().getOuterConnection()) {
             connection.setAutoCommit(false);
@@ -109,14 +129,26 @@ public class ProfileExport
                     boolean created = zonedFrom.toInstant().isBefore(createdTime.toInstant()) &&
                             zonedUntil.toInstant().isAfter(createdTime.toInstant());
 
+                    if (parallelExport != null) {
+                        parallelExport.submit(id, collection, created, deleted, fromTimeStamp, untilTimeStamp,
+                                exportedIDs, mainEntityType, connection);
+                        continue;
+                    }
+
                     int affected = exportAffectedDocuments(id, collection, created, deleted, fromTimeStamp,
                             untilTimeStamp, profile, output, deleteMode, doVirtualDeletions, exportedIDs,
                             deletedNotifications, mainEntityType, connection);
                     affectedCount.observe(affected);
                 }
+                if (parallelExport != null) {
+                    parallelExport.finish(exportedIDs);
+                }
             }
         }
         finally {
+            if (parallelExport != null) {
+                parallelExport.close();
+            }
             totalExportCount.observe(exportedIDs.size());
         }
 
@@ -155,56 +187,80 @@ public class ProfileExport
     {
         int oldCount = exportedIDs.size();
 
-        if (collection.equals("bib") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
+        List<String> bibIds = getBibIdsToExport(id, collection, created, deleted, from, until, profile, mainEntityType, connection);
+        for (String bibId : bibIds)
         {
-            exportDocument(m_whelk.loadEmbellished(id), profile,
-                    output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
+            // Already exported, no need to load it again
+            if (exportedIDs.contains(bibId))
+                continue;
+
+            writeDocument(bibId, prepareDocument(bibId, profile, deleteMode, doVirtualDeletions), profile, output,
+                    exportedIDs, deletedNotifications);
         }
-        else if (collection.equals("auth") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
+
+        return exportedIDs.size() - oldCount;
+    }
+
+    /**
+     * Get the system IDs of all bib documents that should be exported because 'id' was updated, in export order.
+     */
+    private List<String> getBibIdsToExport(String id, String collection, boolean created, Boolean deleted,
+                                           Timestamp from, Timestamp until, ExportProfile profile,
+                                           String mainEntityType, Connection connection)
+            throws SQLException
+    {
+        Summary.Timer stageTimer = stageLatency.labels("select").startTimer();
+        try
         {
-            for (String bibId : getAffectedBibIdsForAuth(id, profile))
+            List<String> bibIds = new ArrayList<>();
+            if (collection.equals("bib") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
             {
-                exportDocument(m_whelk.loadEmbellished(bibId), profile, output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
+                bibIds.add(id);
             }
-        }
-        else if (collection.equals("hold") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
-        {
-            List<Document> versions = m_whelk.getStorage().loadAllVersions(id);
-
-            // The 'versions' list is sorted, with the oldest version first.
-            // We go through it in reverse (i.e. starting with the newest version).
-            // 1. We iterate through the list, skipping (continue) until we've found a
-            // version inside the update interval.
-            // 2. We keep iterating over versions and check if we're still inside the
-            // interval _after_ each iteration, which means we will pass (export) all
-            // versions inside the interval and exactly one version "before" the interval.
-            for (int i = versions.size()-1; i > -1; --i)
+            else if (collection.equals("auth") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
             {
-                Document version = versions.get(i);
-                String itemOf = version.getHoldingFor();
-                Instant modified = ZonedDateTime.parse(version.getModified()).toInstant();
-
-                if (modified.isAfter(until.toInstant()))
-                    continue;
-
-                String itemOfSystemId = m_whelk.getStorage().getSystemIdByIri(itemOf);
-                // itemOfSystemId _can_ be null, if the bib linked record is deleted (no thing-uri left in the id table)
-                if (itemOfSystemId != null) {
-                    exportDocument(
-                            m_whelk.loadEmbellished(itemOfSystemId)
-                            , profile, output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
-                } else {
-                    logger.info("Not exporting {} ({}) for {} because of missing itemOf systemID", id,
-                            collection, profile.getProperty("name", "unknown"));
+                bibIds.addAll(getAffectedBibIdsForAuth(id, profile));
+            }
+            else if (collection.equals("hold") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
+            {
+                List<Document> versions = m_whelk.getStorage().loadAllVersions(id);
+
+                // The 'versions' list is sorted, with the oldest version first.
+                // We go through it in reverse (i.e. starting with the newest version).
+                // 1. We iterate through the list, skipping (continue) until we've found a
+                // version inside the update interval.
+                // 2. We keep iterating over versions and check if we're still inside the
+                // interval _after_ each iteration, which means we will pass (export) all
+                // versions inside the interval and exactly one version "before" the interval.
+                for (int i = versions.size()-1; i > -1; --i)
+                {
+                    Document version = versions.get(i);
+                    String itemOf = version.getHoldingFor();
+                    Instant modified = ZonedDateTime.parse(version.getModified()).toInstant();
+
+                    if (modified.isAfter(until.toInstant()))
+                        continue;
+
+                    String itemOfSystemId = m_whelk.getStorage().getSystemIdByIri(itemOf);
+                    // itemOfSystemId _can_ be null, if the bib linked record is deleted (no thing-uri left in the id table)
+                    if (itemOfSystemId != null) {
+                        bibIds.add(itemOfSystemId);
+                    } else {
+                        logger.info("Not exporting {} ({}) for {} because of missing itemOf systemID", id,
+                                collection, profile.getProperty("name", "unknown"));
+                    }
+
+                    boolean insideInterval = from.toInstant().isBefore(modified) && until.toInstant().isAfter(modified);
+                    if ( !insideInterval )
+                        break;
                 }
-
-                boolean insideInterval = from.toInstant().isBefore(modified) && until.toInstant().isAfter(modified);
-                if ( !insideInterval )
-                    break;
             }
+            return bibIds;
+        }
+        finally
+        {
+            stageTimer.observeDuration();
         }
-
-        return exportedIDs.size() - oldCount;
     }
 
     /**
@@ -296,25 +352,44 @@ public class ProfileExport
     }
 
     /**
-     * Export bib document (into output)
+     * The result of preparing a bib document for export, to be written by writeDocument()
      */
-    private void exportDocument(Document document, ExportProfile profile, MarcRecordWriter output,
-                                TreeSet<String> exportedIDs, DELETE_MODE deleteMode, boolean doVirtualDeletions,
-                                TreeMap<String, DELETE_REASON> deletedNotifications)
-            throws IOException
+    private static class PreparedDocument
     {
+        boolean isBib = true;
+        DELETE_REASON deleteReason = null; // Set if a delete notification should be sent instead
+        List<MarcRecord> records = Collections.emptyList();
+    }
+
+    /**
+     * Load, embellish and convert a bib document. Does not touch any state shared between documents, so that it can
+     * run on any thread.
+     */
+    private PreparedDocument prepareDocument(String systemId, ExportProfile profile, DELETE_MODE deleteMode,
+                                             boolean doVirtualDeletions)
+    {
+        PreparedDocument result = new PreparedDocument();
+
+        Summary.Timer stageTimer = stageLatency.labels("embellish").startTimer();
+        Document document;
+        try
+        {
+            document = m_whelk.loadEmbellished(systemId);
+        }
+        finally
+        {
+            stageTimer.observeDuration();
+        }
+
         String collection = LegacyIntegrationTools.determineLegacyCollection(document, m_whelk.getJsonld());
         if (!collection.equals("bib"))
         {
             logger.error("CRITICALLY BROKEN DATA: Was asked (but skipping) to include non bib-record in export stream: " + document.getId());
-            return;
+            result.isBib = false;
+            return result;
         }
 
         String profileName = profile.getProperty("name", "unknown");
-        String systemId = document.getShortId();
-        if (exportedIDs.contains(systemId))
-            return;
-        exportedIDs.add(systemId);
 
         DELETE_REASON deleteReason = DELETE_REASON.DELETED; // Default
         if (doVirtualDeletions && !profile.shouldExportAllLocations())
@@ -332,34 +407,205 @@ public class ProfileExport
             switch (deleteMode)
             {
                 case IGNORE:
-                    return;
+                    return result;
                 case SEPARATE:
-                    deletedNotifications.put(systemId, deleteReason);
-                    return;
+                    result.deleteReason = deleteReason;
+                    return result;
                 case EXPORT:
                     break;
             }
         }
 
-        Vector<MarcRecord> result = MarcExport.compileVirtualMarcRecord(profile, document, m_whelk, m_toMarcXmlConverter);
+        stageTimer = stageLatency.labels("convert").startTimer();
+        Vector<MarcRecord> converted;
+        try
+        {
+            converted = MarcExport.compileVirtualMarcRecord(profile, document, m_whelk, m_toMarcXmlConverter);
+        }
+        finally
+        {
+            stageTimer.observeDuration();
+        }
         // A conversion error will already have been logged. Anything else, and we want to fail fast.
-        if (result == null) {
+        if (converted == null) {
             logger.info("Not exporting {} for {} because of conversion error", systemId, profileName);
-            return;
+            return result;
         }
 
-        for (MarcRecord mr : result) {
+        result.records = new ArrayList<>(converted.size());
+        for (MarcRecord mr : converted) {
             String filterName = profile.findFilter(mr);
             if (filterName != null) {
                 logger.debug("Not exporting {} for {} because of {} setting", systemId, profileName, filterName);
                 continue;
             }
+            result.records.add(mr);
+        }
+        return result;
+    }
+
+    /**
+     * Export prepared bib document (into output)
+     */
+    private void writeDocument(String systemId, PreparedDocument document, ExportProfile profile,
+                               MarcRecordWriter output, TreeSet<String> exportedIDs,
+                               TreeMap<String, DELETE_REASON> deletedNotifications)
+            throws IOException
+    {
+        if (!document.isBib)
+            return;
+
+        if (exportedIDs.contains(systemId))
+            return;
+        exportedIDs.add(systemId);
+
+        if (document.deleteReason != null)
+        {
+            deletedNotifications.put(systemId, document.deleteReason);
+            return;
+        }
+
+        String profileName = profile.getProperty("name", "unknown");
+        Summary.Timer stageTimer = stageLatency.labels("write").startTimer();
+        try
+        {
+            for (MarcRecord mr : document.records) {
+                try {
+                    output.writeRecord(mr);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error(String.format("Error writing %s for %s:  %s", systemId, profileName, e), e);
+                }
+            }
+        }
+        finally
+        {
+            stageTimer.observeDuration();
+        }
+    }
+
+    /**
+     * Prepares bib documents on a pool of workers, while selecting documents and writing them is done by the calling
+     * thread, in the same order as a sequential export would.
+     *
+     * Bib documents are only prepared once even if affected by several updates. A document affected again is either
+     * already written or waiting to be written, in both cases writeDocument() would skip it.
+     */
+    private class ParallelExport
+    {
+        private final ThreadPool threadPool;
+        private final int maxPending;
+        private final ExportProfile profile;
+        private final MarcRecordWriter output;
+        private final DELETE_MODE deleteMode;
+        private final boolean doVirtualDeletions;
+        private final TreeMap<String, DELETE_REASON> deletedNotifications;
+
+        private final Set<String> submittedIDs = new HashSet<>();
+        private final ArrayDeque<Update> pending = new ArrayDeque<>();
+        private int pendingDocuments = 0;
+
+        private class Update
+        {
+            final Summary.Timer timer;
+            final List<String> bibIds = new ArrayList<>();
+            final List<CompletableFuture<PreparedDocument>> documents = new ArrayList<>();
+
+            Update(String collection)
+            {
+                timer = singleExportLatency.labels(collection).startTimer();
+            }
+        }
+
+        ParallelExport(int parallelism, ExportProfile profile, MarcRecordWriter output, DELETE_MODE deleteMode,
+                       boolean doVirtualDeletions, TreeMap<String, DELETE_REASON> deletedNotifications)
+        {
+            this.threadPool = new ThreadPool("marc-export-profile", parallelism);
+            this.maxPending = parallelism * MAX_PENDING_PER_WORKER;
+            this.profile = profile;
+            this.output = output;
+            this.deleteMode = deleteMode;
+            this.doVirtualDeletions = doVirtualDeletions;
+            this.deletedNotifications = deletedNotifications;
+        }
+
+        void submit(String id, String collection, boolean created, Boolean deleted, Timestamp from, Timestamp until,
+                    TreeSet<String> exportedIDs, String mainEntityType, Connection connection)
+                throws IOException, SQLException
+        {
+            Update update = new Update(collection);
+            for (String bibId : getBibIdsToExport(id, collection, created, deleted, from, until, profile, mainEntityType, connection))
+            {
+                if (!submittedIDs.add(bibId))
+                    continue;
+
+                CompletableFuture<PreparedDocument> document = new CompletableFuture<>();
+                threadPool.executeOnThread(bibId, (systemId, threadIndex) -> {
+                    try {
+                        document.complete(prepareDocument(systemId, profile, deleteMode, doVirtualDeletions));
+                    } catch (Throwable e) {
+                        document.completeExceptionally(e);
+                    }
+                });
+                update.bibIds.add(bibId);
+                update.documents.add(document);
+                pendingDocuments++;
+            }
+            pending.add(update);
+
+            while (pendingDocuments > maxPending)
+                writeNext(exportedIDs);
+        }
+
+        void finish(TreeSet<String> exportedIDs) throws IOException
+        {
+            while (!pending.isEmpty())
+                writeNext(exportedIDs);
+        }
+
+        void close()
+        {
+            pending.forEach(update -> update.documents.forEach(document -> document.cancel(false)));
             try {
-                output.writeRecord(mr);
-            } catch (IOException e) {
-                throw e;
+                threadPool.joinAll();
             } catch (Exception e) {
-                logger.error(String.format("Error writing %s for %s:  %s", systemId, profileName, e), e);
+                logger.warn("Failed to stop export workers: " + e, e);
+            }
+        }
+
+        private void writeNext(TreeSet<String> exportedIDs) throws IOException
+        {
+            Update update = pending.poll();
+            int oldCount = exportedIDs.size();
+            try
+            {
+                for (int i = 0; i < update.bibIds.size(); i++) {
+                    writeDocument(update.bibIds.get(i), await(update.documents.get(i)), profile, output,
+                            exportedIDs, deletedNotifications);
+                    pendingDocuments--;
+                }
+            }
+            finally
+            {
+                update.timer.observeDuration();
+            }
+            affectedCount.observe(exportedIDs.size() - oldCount);
+        }
+
+        private PreparedDocument await(CompletableFuture<PreparedDocument> document) throws IOException
+        {
+            try {
+                return document.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for export", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
             }
         }
     }
@@ -387,7 +633,10 @@ public class ProfileExport
     private PreparedStatement getAllChangedIDsStatement(Timestamp from, Timestamp until, Connection connection)
             throws SQLException
     {
-        String sql = "SELECT id, collection, created, deleted, data#>>'{@graph,1,@type}' AS mainEntityType FROM lddb__versions WHERE modified >= ? AND modified <= ?";
+        // Versions stored as deltas take the type from their keyframe
+        String sql = "SELECT v.id, v.collection, v.created, v.deleted, COALESCE(v.data, k.data)#>>'{@graph,1,@type}' AS mainEntityType " +
+                "FROM lddb__versions v LEFT JOIN lddb__versions k ON k.id = v.id AND k.pk = v.base_pk " +
+                "WHERE v.modified >= ? AND v.modified <= ?";
         PreparedStatement preparedStatement = connection.prepareStatement(sql);
         preparedStatement.setTimestamp(1, from);
         preparedStatement.setTimestamp(2, until);
@@ -13,6 +13,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -30,6 +31,7 @@ public class Helpers
 
         private final PreparedStatement statement;
         private final ResultSet resultSet;
+        private final Iterator<Document> page;
         private final String requestedCollection;
         private final String mustBeHeldBy;
         private final String explicitSet;
@@ -42,12 +44,28 @@ public class Helpers
                 throws SQLException {
             this.statement = statement;
             this.resultSet = statement.executeQuery();
+            this.page = null;
             this.requestedCollection = requestedCollection;
             this.mustBeHeldBy = mustBeHeldBy;
             this.includeDependenciesInTimeInterval = includeDependenciesInTimeInterval;
             this.explicitSet = explicitSet;
         }
 
+        /**
+         * Iterate over the documents affected by an already loaded page of updated documents
+         */
+        public ResultIterator(List<Document> page, String requestedCollection, String mustBeHeldBy,
+                              boolean includeDependenciesInTimeInterval, String explicitSet) {
+            this.statement = null;
+            this.resultSet = null;
+            this.page = page.iterator();
+            this.requestedCollection = requestedCollection;
+            this.mustBeHeldBy = mustBeHeldBy;
+            this.includeDependenciesInTimeInterval = includeDependenciesInTimeInterval;
+            this.explicitSet = explicitSet;
+            this.firstAccess = false;
+        }
+
         private boolean isHeld(Document doc, String bySigel)
         {
             if (bySigel == null)
@@ -166,11 +184,9 @@ public class Helpers
                 else // More to fetch from db?
                 {
                     firstAccess = false;
-                    while (resultSet.next())
+                    Document updated;
+                    while ((updated = nextUpdated()) != null)
                     {
-                        String data = resultSet.getString("data");
-
-                        Document updated = new Document(mapper.readValue(data, HashMap.class));
                         emitAffected(updated);
 
                         // Did reading this record from the DB result in anything new in the export flow?
@@ -185,7 +201,8 @@ public class Helpers
             {
                 try
                 {
-                    statement.cancel();
+                    if (statement != null)
+                        statement.cancel();
                 } catch (SQLException e2)
                 {
                     throw new RuntimeException(e2);
@@ -200,8 +217,20 @@ public class Helpers
         }
 
         public void close() throws SQLException {
-            resultSet.close();
-            statement.close();
+            if (resultSet != null)
+                resultSet.close();
+            if (statement != null)
+                statement.close();
+        }
+
+        private Document nextUpdated() throws SQLException, IOException
+        {
+            if (page != null)
+                return page.hasNext() ? page.next() : null;
+
+            if (!resultSet.next())
+                return null;
+            return new Document(mapper.readValue(resultSet.getString("data"), HashMap.class));
         }
     }
 
@@ -323,6 +352,124 @@ public class Helpers
         return preparedStatement;
     }
 
+    /**
+     * One page of updated documents, in (modified, id) order
+     */
+    public static class Page
+    {
+        public final List<Document> documents;
+        public final Timestamp lastModified;
+        public final String lastId;
+        public final boolean hasMore;
+
+        Page(List<Document> documents, Timestamp lastModified, String lastId, boolean hasMore)
+        {
+            this.documents = documents;
+            this.lastModified = lastModified;
+            this.lastId = lastId;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Load at most pageSize updated documents, starting after (afterModified, afterId) if given.
+     * The page is read into memory so that the connection is only held for as long as the query runs.
+     */
+    public static Page getUpdatedDocumentsPage(Connection connection, ZonedDateTime fromDateTime,
+                                               ZonedDateTime untilDateTime, boolean includeSilentChanges,
+                                               Timestamp afterModified, String afterId, int pageSize)
+            throws SQLException, IOException
+    {
+        String sql = "SELECT id, modified, data FROM lddb WHERE collection <> 'definitions'";
+
+        // Same intervals as getClosedIntervalStatement/getOpenIntervalStatement: with silent changes a record
+        // matches if either of its dates is within the interval
+        if (fromDateTime != null && untilDateTime != null)
+        {
+            if (includeSilentChanges)
+                sql += " AND ( modified BETWEEN ? AND ? OR totstz(data#>>'{@graph,0,generationDate}') BETWEEN ? AND ? ) ";
+            else
+                sql += " AND ( modified BETWEEN ? AND ? ) ";
+        }
+        else if (fromDateTime != null)
+        {
+            if (includeSilentChanges)
+                sql += " AND ( modified >= ? OR totstz(data#>>'{@graph,0,generationDate}') >= ? ) ";
+            else
+                sql += " AND modified >= ? ";
+        }
+        else if (untilDateTime != null)
+        {
+            if (includeSilentChanges)
+                sql += " AND ( modified <= ? OR totstz(data#>>'{@graph,0,generationDate}') <= ? ) ";
+            else
+                sql += " AND modified <= ? ";
+        }
+        // The redundant 'modified >= ?' lets the modified index be used for the keyset condition
+        if (afterModified != null)
+            sql += " AND modified >= ? AND ( modified > ? OR id > ? ) ";
+        sql += " ORDER BY modified, id LIMIT ?";
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(sql))
+        {
+            int parameterIndex = 1;
+            Timestamp fromTimeStamp = fromDateTime != null
+                    ? new Timestamp(fromDateTime.toInstant().getEpochSecond() * 1000L) : null;
+            Timestamp untilTimeStamp = untilDateTime != null
+                    ? new Timestamp(untilDateTime.toInstant().getEpochSecond() * 1000L) : null;
+            if (fromTimeStamp != null && untilTimeStamp != null)
+            {
+                preparedStatement.setTimestamp(parameterIndex++, fromTimeStamp);
+                preparedStatement.setTimestamp(parameterIndex++, untilTimeStamp);
+                if (includeSilentChanges)
+                {
+                    preparedStatement.setTimestamp(parameterIndex++, fromTimeStamp);
+                    preparedStatement.setTimestamp(parameterIndex++, untilTimeStamp);
+                }
+            }
+            else if (fromTimeStamp != null || untilTimeStamp != null)
+            {
+                Timestamp timeStamp = fromTimeStamp != null ? fromTimeStamp : untilTimeStamp;
+                preparedStatement.setTimestamp(parameterIndex++, timeStamp);
+                if (includeSilentChanges)
+                    preparedStatement.setTimestamp(parameterIndex++, timeStamp);
+            }
+            if (afterModified != null)
+            {
+                preparedStatement.setTimestamp(parameterIndex++, afterModified);
+                preparedStatement.setTimestamp(parameterIndex++, afterModified);
+                preparedStatement.setString(parameterIndex++, afterId);
+            }
+            // One extra row, to know if there is another page
+            preparedStatement.setInt(parameterIndex, pageSize + 1);
+
+            List<Document> documents = new ArrayList<>();
+            Timestamp lastModified = null;
+            String lastId = null;
+            try (ResultSet resultSet = preparedStatement.executeQuery())
+            {
+                while (resultSet.next())
+                {
+                    if (documents.size() == pageSize)
+                        return new Page(documents, lastModified, lastId, true);
+
+                    documents.add(new Document(mapper.readValue(resultSet.getString("data"), HashMap.class)));
+                    lastModified = resultSet.getTimestamp("modified");
+                    lastId = resultSet.getString("id");
+                }
+            }
+            return new Page(documents, lastModified, lastId, false);
+        }
+    }
+
+    public static ResultIterator getMatchingDocuments(List<Document> page, SetSpec setSpec,
+                                                      boolean includeDependenciesInTimeInterval)
+    {
+        SetSelection selection = new SetSelection(setSpec);
+        return new ResultIterator(page, selection.requestedCollection, selection.mustBeHeldBy,
+                includeDependenciesInTimeInterval, selection.explicitSet);
+    }
+
     public static ResultIterator getMatchingDocuments(Connection connection, ZonedDateTime fromDateTime,
                                                       ZonedDateTime untilDateTime, SetSpec setSpec, String id,
                                                       boolean includeDependenciesInTimeInterval,
@@ -344,12 +491,25 @@ public class Helpers
             preparedStatement.setString(1, id);
         }
 
-        // Extract requested marc:collection and explicit set, if any, from setSpec
+        SetSelection selection = new SetSelection(setSpec);
+        return new ResultIterator(preparedStatement, selection.requestedCollection, selection.mustBeHeldBy,
+                includeDependenciesInTimeInterval, selection.explicitSet);
+    }
+
+    /**
+     * The requested marc:collection and explicit set, if any, extracted from a setSpec
+     */
+    private static class SetSelection
+    {
         String requestedCollection = null;
         String mustBeHeldBy = null;
         String explicitSet = null;
-        if (setSpec != null && setSpec.getRootSet() != null)
+
+        SetSelection(SetSpec setSpec)
         {
+            if (setSpec == null || setSpec.getRootSet() == null)
+                return;
+
             switch (setSpec.getRootSet())
             {
                 case SetSpec.SET_AUTH:
@@ -368,8 +528,5 @@ public class Helpers
                     break;
             }
         }
-
-        return new ResultIterator(preparedStatement, requestedCollection, mustBeHeldBy,
-                includeDependenciesInTimeInterval, explicitSet);
     }
 }
@@ -23,6 +23,12 @@ public class ListRecords
     private final static String FORMAT_PARAM = "metadataPrefix";
     private final static String DELETED_DATA_PARAM = "x-withDeletedData";
     private final static String INCLUDE_SILENT_PARAM = "x-withSilentUpdates";
+    private final static String UNPAGED_PARAM = "x-unpaged";
+
+    // Number of updated documents read per page. A page may result in more or fewer records, depending on the set.
+    private final static int PAGE_SIZE = 1000;
+    // Max number of database pages read for one response, when pages have no records in the requested set
+    private final static int MAX_PAGES_PER_RESPONSE = 20;
 
     private static final Counter failedRequests = Counter.build()
             .name("oaipmh_failed_listrecords_requests_total").help("Total failed ListRecords requests.")
@@ -33,6 +39,11 @@ public class ListRecords
 
     /**
      * Verifies the integrity of a OAI-PMH request with the verb 'ListRecords', sends a proper response.
+     *
+     * Responses are paged, with a resumption token for the next page. Each page is read in its own short transaction.
+     * With the (non-standard) parameter x-unpaged=true the whole list is instead sent in one response, read from a
+     * single cursor.
+     *
      * @param onlyIdentifiers When this is set to true, the response will be formatted as a ListIdentifiers response.
      *                        When it is false, the response will be formatted as a ListRecords response.
      */
@@ -44,24 +55,47 @@ public class ListRecords
         String from = request.getParameter(FROM_PARAM); // optional
         String until = request.getParameter(UNTIL_PARAM); // optional
         String set = request.getParameter(SET_PARAM); // optional
-        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive, not supported/used
+        String resumptionToken = request.getParameter(RESUMPTION_PARAM); // exclusive
         String metadataPrefix = request.getParameter(FORMAT_PARAM); // required
 
         // optional and not technically legal OAI-PMH
         boolean withDeletedData = Boolean.parseBoolean(request.getParameter(DELETED_DATA_PARAM));
         boolean withSilentChanges = Boolean.parseBoolean(request.getParameter(INCLUDE_SILENT_PARAM));
+        boolean unpaged = Boolean.parseBoolean(request.getParameter(UNPAGED_PARAM));
 
         if (ResponseCommon.errorOnExtraParameters(request, response,
-                FROM_PARAM, UNTIL_PARAM, SET_PARAM, RESUMPTION_PARAM, FORMAT_PARAM, DELETED_DATA_PARAM, INCLUDE_SILENT_PARAM))
+                FROM_PARAM, UNTIL_PARAM, SET_PARAM, RESUMPTION_PARAM, FORMAT_PARAM, DELETED_DATA_PARAM,
+                INCLUDE_SILENT_PARAM, UNPAGED_PARAM))
             return;
 
-        // We do not use resumption tokens.
+        ResumptionToken previousPage = null;
         if (resumptionToken != null)
         {
-            failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
-            ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
-                    "No such resumption token was issued", request, response);
-            return;
+            if (from != null || until != null || set != null || metadataPrefix != null ||
+                    request.getParameter(DELETED_DATA_PARAM) != null || request.getParameter(INCLUDE_SILENT_PARAM) != null ||
+                    unpaged)
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_ARGUMENT,
+                        "resumptionToken is an exclusive argument.", request, response);
+                return;
+            }
+
+            previousPage = ResumptionToken.decode(resumptionToken);
+            if (previousPage == null)
+            {
+                failedRequests.labels(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN).inc();
+                ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_BAD_RESUMPTION_TOKEN,
+                        "No such resumption token was issued", request, response);
+                return;
+            }
+
+            from = previousPage.from;
+            until = previousPage.until;
+            set = previousPage.set;
+            metadataPrefix = previousPage.metadataPrefix;
+            withDeletedData = previousPage.withDeletedData;
+            withSilentChanges = previousPage.withSilentChanges;
         }
 
         if (metadataPrefix == null)
@@ -106,30 +140,80 @@ public class ListRecords
             return;
         }
 
+        boolean includeDependencies = metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX) ||
+                metadataPrefix.contains("marcxml");
+
+        if (!unpaged)
+        {
+            ResumptionToken position = previousPage != null
+                    ? previousPage
+                    : new ResumptionToken(from, until, set, metadataPrefix, withDeletedData, withSilentChanges, null, null);
+            respondWithPage(request, response, metadataPrefix, onlyIdentifiers, includeDependencies, withDeletedData,
+                    fromDateTime, untilDateTime, setSpec, withSilentChanges, position, previousPage != null);
+            return;
+        }
+
         try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection())
         {
             dbconn.setAutoCommit(false);
-            boolean includeDependencies = metadataPrefix.contains(OaiPmh.FORMAT_EXPANDED_POSTFIX) ||
-                    metadataPrefix.contains("marcxml");
 
             try (Helpers.ResultIterator resultIterator = Helpers.getMatchingDocuments(dbconn, fromDateTime,
                     untilDateTime, setSpec, null, includeDependencies, withSilentChanges))
             {
                 respond(request, response, metadataPrefix, onlyIdentifiers,
-                        includeDependencies, withDeletedData, resultIterator);
+                        includeDependencies, withDeletedData, resultIterator, null);
             } finally {
                 dbconn.commit();
             }
         }
     }
 
+    /**
+     * Respond with the records resulting from the next page(s) of updated documents after 'position'.
+     * Pages that do not result in any records (because of the set selection) are skipped, but at most
+     * MAX_PAGES_PER_RESPONSE pages are read. If none of them had any records the response is an empty page with a
+     * resumption token.
+     */
+    private static void respondWithPage(HttpServletRequest request, HttpServletResponse response,
+                                        String requestedFormat, boolean onlyIdentifiers, boolean embellish,
+                                        boolean withDeletedData, ZonedDateTime fromDateTime,
+                                        ZonedDateTime untilDateTime, SetSpec setSpec, boolean withSilentChanges,
+                                        ResumptionToken position, boolean isResumed)
+            throws IOException, XMLStreamException, SQLException
+    {
+        Helpers.Page page;
+        Helpers.ResultIterator resultIterator;
+        int pagesRead = 0;
+        do
+        {
+            try (Connection dbconn = OaiPmh.s_whelk.getStorage().getOuterConnection())
+            {
+                page = Helpers.getUpdatedDocumentsPage(dbconn, fromDateTime, untilDateTime, withSilentChanges,
+                        position.lastModified, position.lastId, PAGE_SIZE);
+            }
+            resultIterator = Helpers.getMatchingDocuments(page.documents, setSpec, embellish);
+            if (page.hasMore)
+            {
+                position = new ResumptionToken(position.from, position.until, position.set, position.metadataPrefix,
+                        position.withDeletedData, position.withSilentChanges, page.lastModified, page.lastId);
+            }
+            pagesRead++;
+        } while (page.hasMore && !resultIterator.hasNext() && pagesRead < MAX_PAGES_PER_RESPONSE);
+
+        // An empty token in the last page of a paged list, as required by the OAI-PMH specification.
+        // No token at all if everything fit in the first page, then noRecordsMatch is sent if there were no records.
+        String nextToken = page.hasMore ? position.encode() : (isResumed ? "" : null);
+        respond(request, response, requestedFormat, onlyIdentifiers, embellish, withDeletedData, resultIterator, nextToken);
+    }
+
     private static void respond(HttpServletRequest request, HttpServletResponse response,
                                 String requestedFormat, boolean onlyIdentifiers, boolean embellish,
-                                boolean withDeletedData, Helpers.ResultIterator resultIterator)
+                                boolean withDeletedData, Helpers.ResultIterator resultIterator,
+                                String resumptionToken)
             throws IOException, XMLStreamException, SQLException
     {
-        // Is the resultset empty?
-        if (!resultIterator.hasNext())
+        // Is the resultset empty? Pages of a paged list may be, but the list must still be continued or ended.
+        if (!resultIterator.hasNext() && resumptionToken == null)
         {
             failedRequests.labels(OaiPmh.OAIPMH_ERROR_NO_RECORDS_MATCH).inc();
             ResponseCommon.sendOaiPmhError(OaiPmh.OAIPMH_ERROR_NO_RECORDS_MATCH, "", request, response);
@@ -153,6 +237,13 @@ public class ListRecords
                     onlyIdentifiers, embellish, withDeletedData);
         }
 
+        if (resumptionToken != null)
+        {
+            writer.writeStartElement("resumptionToken");
+            writer.writeCharacters(resumptionToken);
+            writer.writeEndElement();
+        }
+
         writer.writeEndElement(); // ListIdentifiers/ListRecords
         ResponseCommon.writeOaiPmhClose(writer, request);
     }
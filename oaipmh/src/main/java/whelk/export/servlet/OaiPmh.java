@@ -81,7 +81,7 @@ public class OaiPmh extends HttpServlet
 
     static
     {
-        s_whelk = Whelk.createLoadedCoreWhelk();
+        s_whelk = Whelk.createLoadedCoreWhelk("secret", true);
         supportedFormats = new HashMap<String, FormatDescription>();
         supportedFormats.put("oai_dc", new FormatDescription(new JsonLD2DublinCoreConverter(), true, "http://www.openarchives.org/OAI/2.0/oai_dc.xsd", "http://www.openarchives.org/OAI/2.0"));
         supportedFormats.put("marcxml", new FormatDescription(new JsonLD2MarcXMLConverter(s_whelk.getMarcFrameConverter()), true, "http://www.loc.gov/standards/marcxml/schema/MARC21slim.xsd", "http://www.loc.gov/MARC21/slim"));
@@ -111,6 +111,7 @@ public class OaiPmh extends HttpServlet
     public void init()
     {
         workDerivativeTypes = new HashSet<>(s_whelk.getJsonld().getSubClasses("Work"));
+        ResumptionToken.checkConfiguration();
     }
 
     public void destroy()
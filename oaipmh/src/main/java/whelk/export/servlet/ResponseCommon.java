@@ -3,9 +3,12 @@ package whelk.export.servlet;
 import org.apache.cxf.staxutils.StaxUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import se.kb.libris.util.marc.MarcRecord;
 import whelk.Document;
 import whelk.JsonLd;
 import whelk.Link;
+import whelk.converter.JSONMarcConverter;
+import whelk.converter.marc.JsonLD2MarcXMLConverter;
 import whelk.util.LegacyIntegrationTools;
 
 import javax.servlet.http.HttpServletRequest;
@@ -110,6 +113,24 @@ public class ResponseCommon
     {
         OaiPmh.FormatDescription formatDescription = OaiPmh.supportedFormats.get(formatPrefix);
 
+        // MARCXML is written straight from the converted record, without going through a string
+        if (formatDescription.converter instanceof JsonLD2MarcXMLConverter)
+        {
+            MarcRecord record;
+            try
+            {
+                record = ((JsonLD2MarcXMLConverter) formatDescription.converter).convertToRecord(jsonLDdoc.data, jsonLDdoc.getShortId());
+            }
+            catch (Exception | Error e) // Depending on the converter, a variety of problems may arise here
+            {
+                writer.writeCharacters("Error: Document conversion failed.");
+                logger.error("Conversion failed for document: " + jsonLDdoc.getShortId(), e);
+                return;
+            }
+            JSONMarcConverter.writeMarcXml(record, writer);
+            return;
+        }
+
         // Convert if the format has a converter (otherwise assume jsonld)
         String convertedText = null;
         if (formatDescription.converter != null)
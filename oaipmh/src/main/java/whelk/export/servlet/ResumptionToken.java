@@ -0,0 +1,167 @@
+package whelk.export.servlet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import whelk.util.PropertyLoader;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import static whelk.util.Jackson.mapper;
+
+/**
+ * A resumption token holds everything needed to continue a paged ListRecords/ListIdentifiers request: the original
+ * request parameters and the (modified, id) of the last database row that was returned. No state is kept on the
+ * server, instead the token is signed so that harvesters cannot alter it.
+ *
+ * The signing key is read from the 'oaipmhResumptionTokenSecret' secret property, which must be the same on all
+ * nodes. If it is not set, a random key is used, and tokens will then not be valid after a restart or on other
+ * nodes. See checkConfiguration().
+ */
+public class ResumptionToken
+{
+    private static final String SECRET_PROPERTY = "oaipmhResumptionTokenSecret";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int VERSION = 1;
+
+    private static final Logger logger = LogManager.getLogger(ResumptionToken.class);
+    private static boolean keyConfigured = false;
+    private static final byte[] key = loadKey();
+
+    public final String from;
+    public final String until;
+    public final String set;
+    public final String metadataPrefix;
+    public final boolean withDeletedData;
+    public final boolean withSilentChanges;
+    public final Timestamp lastModified;
+    public final String lastId;
+
+    public ResumptionToken(String from, String until, String set, String metadataPrefix, boolean withDeletedData,
+                           boolean withSilentChanges, Timestamp lastModified, String lastId)
+    {
+        this.from = from;
+        this.until = until;
+        this.set = set;
+        this.metadataPrefix = metadataPrefix;
+        this.withDeletedData = withDeletedData;
+        this.withSilentChanges = withSilentChanges;
+        this.lastModified = lastModified;
+        this.lastId = lastId;
+    }
+
+    public String encode() throws IOException
+    {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("v", VERSION);
+        fields.put("from", from);
+        fields.put("until", until);
+        fields.put("set", set);
+        fields.put("metadataPrefix", metadataPrefix);
+        fields.put("withDeletedData", withDeletedData);
+        fields.put("withSilentChanges", withSilentChanges);
+        fields.put("lastModified", lastModified.toInstant().toString());
+        fields.put("lastId", lastId);
+
+        String payload = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(mapper.writeValueAsBytes(fields));
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * @return the decoded token, or null if it was not issued by us or has been altered
+     */
+    public static ResumptionToken decode(String token)
+    {
+        int separator = token.lastIndexOf('.');
+        if (separator == -1)
+            return null;
+
+        String payload = token.substring(0, separator);
+        String signature = token.substring(separator + 1);
+        if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.US_ASCII), signature.getBytes(StandardCharsets.US_ASCII)))
+            return null;
+
+        try
+        {
+            Map fields = mapper.readValue(Base64.getUrlDecoder().decode(payload), Map.class);
+            if (!Integer.valueOf(VERSION).equals(fields.get("v")))
+                return null;
+
+            return new ResumptionToken(
+                    (String) fields.get("from"),
+                    (String) fields.get("until"),
+                    (String) fields.get("set"),
+                    (String) fields.get("metadataPrefix"),
+                    Boolean.TRUE.equals(fields.get("withDeletedData")),
+                    Boolean.TRUE.equals(fields.get("withSilentChanges")),
+                    Timestamp.from(Instant.parse((String) fields.get("lastModified"))),
+                    (String) fields.get("lastId"));
+        } catch (IOException | IllegalArgumentException | ClassCastException | NullPointerException | DateTimeParseException e)
+        {
+            logger.warn("Failed to decode correctly signed resumption token {}: {}", token, e.toString());
+            return null;
+        }
+    }
+
+    private static String sign(String payload)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Complain at startup if there is no configured signing key, harvests will then fail when this instance is
+     * restarted or when requests are handled by another node.
+     */
+    public static void checkConfiguration()
+    {
+        if (!keyConfigured)
+        {
+            logger.error("{} is not set! Resumption tokens are signed with a random key and will be rejected after " +
+                    "a restart of this instance and by all other instances. Set it (to the same value on all nodes) " +
+                    "in secret.properties.", SECRET_PROPERTY);
+        }
+    }
+
+    private static byte[] loadKey()
+    {
+        String secret = null;
+        try
+        {
+            secret = PropertyLoader.loadProperties("secret").getProperty(SECRET_PROPERTY);
+        } catch (Exception e)
+        {
+            logger.warn("Could not load secret properties: {}", e.toString());
+        }
+
+        if (secret != null && !secret.trim().isEmpty())
+        {
+            keyConfigured = true;
+            return secret.getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] randomKey = new byte[32];
+        new SecureRandom().nextBytes(randomKey);
+        return randomKey;
+    }
+}
@@ -0,0 +1,100 @@
+package whelk.export.servlet;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HelpersTest
+{
+    private static final String GENERATION_DATE = "totstz(data#>>'{@graph,0,generationDate}')";
+
+    private static final ZonedDateTime FROM = ZonedDateTime.of(2020, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final ZonedDateTime UNTIL = ZonedDateTime.of(2020, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private String sql;
+    private final List<Object> parameters = new ArrayList<>();
+
+    /**
+     * A record modified before from and generated after until is outside the interval on both dates. Each date
+     * must be within the interval on its own, (modified >= from OR generated >= from) AND (modified <= until OR
+     * generated <= until) would match it.
+     */
+    @Test
+    public void closedIntervalWithSilentChangesShouldPairTheDates() throws Exception
+    {
+        Helpers.getUpdatedDocumentsPage(connection(), FROM, UNTIL, true, null, null, 10);
+
+        assertTrue(sql, sql.contains(
+                " AND ( modified BETWEEN ? AND ? OR " + GENERATION_DATE + " BETWEEN ? AND ? ) "));
+        assertEquals(Arrays.asList(timestamp(FROM), timestamp(UNTIL), timestamp(FROM), timestamp(UNTIL), 11),
+                parameters);
+    }
+
+    @Test
+    public void keysetConditionShouldBeAddedToTheClosedInterval() throws Exception
+    {
+        Timestamp afterModified = timestamp(FROM.plusDays(1));
+        Helpers.getUpdatedDocumentsPage(connection(), FROM, UNTIL, true, afterModified, "abc", 10);
+
+        assertTrue(sql, sql.contains(" BETWEEN ? AND ? ) "
+                + " AND modified >= ? AND ( modified > ? OR id > ? ) "));
+        assertEquals(Arrays.asList(timestamp(FROM), timestamp(UNTIL), timestamp(FROM), timestamp(UNTIL),
+                afterModified, afterModified, "abc", 11), parameters);
+    }
+
+    @Test
+    public void openIntervalWithSilentChangesShouldMatchEitherDate() throws Exception
+    {
+        Helpers.getUpdatedDocumentsPage(connection(), FROM, null, true, null, null, 10);
+
+        assertTrue(sql, sql.contains(" AND ( modified >= ? OR " + GENERATION_DATE + " >= ? ) "));
+        assertEquals(Arrays.asList(timestamp(FROM), timestamp(FROM), 11), parameters);
+    }
+
+    private static Timestamp timestamp(ZonedDateTime dateTime)
+    {
+        return new Timestamp(dateTime.toInstant().getEpochSecond() * 1000L);
+    }
+
+    private Connection connection()
+    {
+        ResultSet resultSet = proxy(ResultSet.class, (method, args) -> method.equals("next") ? false : null);
+        PreparedStatement statement = proxy(PreparedStatement.class, (method, args) -> {
+            if (method.startsWith("set") && args.length == 2)
+                parameters.add(args[1]);
+            return method.equals("executeQuery") ? resultSet : null;
+        });
+        return proxy(Connection.class, (method, args) -> {
+            if (method.equals("prepareStatement"))
+            {
+                sql = (String) args[0];
+                return statement;
+            }
+            return null;
+        });
+    }
+
+    private interface Handler
+    {
+        Object invoke(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler)
+    {
+        return (T) Proxy.newProxyInstance(HelpersTest.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> handler.invoke(method.getName(), args == null ? new Object[0] : args));
+    }
+}
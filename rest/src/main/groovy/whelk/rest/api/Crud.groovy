@@ -271,6 +271,10 @@ class Crud extends HttpServlet {
     
     void handleGetRequest(CrudGetRequest request,
                           HttpServletResponse response) {
+        if (tryNotModifiedFromEmbellishCache(request, response)) {
+            return
+        }
+
         Tuple2<Document, String> docAndLocation
 
         if (request.getId() in cachedDocs) {
@@ -292,20 +296,28 @@ class Crud extends HttpServlet {
                     HttpServletResponse.SC_GONE.toString()).inc()
             sendError(response, HttpServletResponse.SC_GONE, "Document has been deleted.")
         } else {
-            String checksum = doc.getChecksum(jsonld)
+            String checksum = doc.getChecksumAsLoaded(jsonld)
+            ETag eTag = ETag.plain(checksum)
             
             if (request.shouldEmbellish()) {
-                whelk.embellish(doc)
+                // The embellish cache only holds the latest version
+                if (request.getVersion().isPresent()) {
+                    whelk.embellish(doc)
+                } else {
+                    doc = whelk.loadEmbellished(doc.getShortId())
+                    if (!doc) {
+                        sendNotFound(response, request.getPath())
+                        return
+                    }
+                }
+                // Same checksum as stored in the embellish cache, i.e. before applying inverses
+                eTag = ETag.embellished(checksum, doc.getChecksum(jsonld))
 
                 // reverse links are inserted by embellish, so can only do this when embellished
                 if (request.shouldApplyInverseOf()) {
                     doc.applyInverses(whelk.jsonld)
                 }
             }
-            
-            ETag eTag = request.shouldEmbellish()
-                    ? ETag.embellished(checksum, doc.getChecksum(jsonld))
-                    : ETag.plain(checksum)
 
             if (request.getIfNoneMatch().map(eTag.&isNotModified).orElse(false)) {
                 sendNotModified(response, eTag)
@@ -322,6 +334,33 @@ class Crud extends HttpServlet {
         }
     }
 
+    /**
+     * Answer a conditional GET for an embellished document with 304 Not Modified using the checksums
+     * stored with the cached embellished version, without loading or embellishing the document.
+     *
+     * @return true if a response was sent
+     */
+    private boolean tryNotModifiedFromEmbellishCache(CrudGetRequest request, HttpServletResponse response) {
+        if (!request.shouldEmbellish() || !request.getIfNoneMatch().isPresent() || request.getId() in cachedDocs
+                || request.getVersion().isPresent()) {
+            return false
+        }
+
+        // Only finds documents requested by system id, anything else takes the normal route
+        Tuple2<String, String> checksums = whelk.storage.getEmbellishedChecksums(request.getId())
+        if (!checksums) {
+            return false
+        }
+
+        ETag eTag = ETag.embellished(checksums.v1, checksums.v2)
+        if (!eTag.isNotModified(request.getIfNoneMatch().get())) {
+            return false
+        }
+
+        sendNotModified(response, eTag)
+        return true
+    }
+
     private void sendNotModified(HttpServletResponse response, ETag eTag) {
         setVary(response)
         response.setHeader("ETag", eTag.toString())
@@ -73,6 +73,12 @@ class CrudSpec extends Specification {
             }
         }
         storage = GroovyMock(PostgreSQLComponent.class)
+        // No embellish cache, embellish whatever the test has stubbed load to return
+        storage.loadEmbellished(_, _) >> { String id, Closure embellish ->
+            Document doc = storage.load(id, null)
+            embellish(doc)
+            return doc
+        }
         // We want to pass through calls in some cases
         accessControl = GroovySpy(AccessControl.class)
         whelk = new Whelk(storage)
@@ -482,6 +488,61 @@ class CrudSpec extends Specification {
         true        | "other"                   || SC_OK
     }
 
+    def "GET document with If-None-Match should be answered from embellish cache checksums"() {
+        given:
+        def id = BASE_URI.resolve("/1234").toString()
+        request.getPathInfo() >> { '/' + id }
+        request.getHeader("Accept") >> { "*/*" }
+        request.getHeader("If-None-Match") >> { '"-1856152111:-5527328642"' }
+        storage.getEmbellishedChecksums(id) >> { new Tuple2('-1856152111', '-5527328642') }
+
+        when:
+        crud.doGet(request, response)
+
+        then:
+        0 * storage.load(_, _)
+        0 * storage.loadEmbellished(_, _)
+        response.getStatus() == SC_NOT_MODIFIED
+        response.getHeader("ETag") == '"-1856152111:-5527328642"'
+    }
+
+    def "GET of a version should not be answered from the embellish cache"() {
+        given:
+        def id = BASE_URI.resolve("/1234").toString()
+        request.getPathInfo() >> { '/' + id }
+        request.getHeader("Accept") >> { "*/*" }
+        request.getHeader("If-None-Match") >> { '"-1856152111:-5527328642"' }
+        request.getParameter("version") >> { "1" }
+        storage.load(_, _) >> {
+            new Document(["@graph": [['@id': id, 'mainEntity': ['@id': "$id#it"]], ['@id': "$id#it"]]])
+        }
+
+        when:
+        crud.doGet(request, response)
+
+        then:
+        0 * storage.getEmbellishedChecksums(_)
+        0 * storage.loadEmbellished(_, _)
+        response.getStatus() == SC_OK
+    }
+
+    def "GET of an embellished document that is gone when embellishing should be not found"() {
+        given:
+        def id = BASE_URI.resolve("/1234").toString()
+        request.getPathInfo() >> { '/' + id }
+        request.getHeader("Accept") >> { "*/*" }
+        storage.load(_, _) >> {
+            new Document(["@graph": [['@id': id, 'mainEntity': ['@id': "$id#it"]], ['@id': "$id#it"]]])
+        }
+
+        when:
+        crud.doGet(request, response)
+
+        then:
+        1 * storage.loadEmbellished(_, _) >> null
+        response.getStatus() == SC_NOT_FOUND
+    }
+
     @Unroll
     def "GET should return correct contentType"() {
         given:
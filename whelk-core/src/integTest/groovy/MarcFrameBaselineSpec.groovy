@@ -0,0 +1,69 @@
+package whelk.converter.marc
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Converts every marc2jsonld fixture and reverts the result, and compares both with output recorded from the
+ * converter as it was before MarcRuleSet compiled its rule sets into a plan (the parent of commit 2f97e55).
+ *
+ * To record the baseline, with the same definitions as the test is run with:
+ *
+ *   git checkout 2f97e55~1 -- src/main/groovy/whelk/converter/marc
+ *   ../gradlew integTest --tests '*MarcFrameBaselineSpec' -Dxl.marcframe.recordBaseline=true
+ *   git checkout HEAD -- src/main/groovy/whelk/converter/marc
+ */
+@Unroll
+class MarcFrameBaselineSpec extends Specification {
+    static final String INPUT_DIR = 'src/test/resources/marc2jsonld/in'
+    static final String BASELINE_DIR = 'src/test/resources/marc2jsonld/baseline'
+
+    @Shared
+    MarcFrameConverter converter = converter()
+    @Shared
+    boolean record = Boolean.getBoolean('xl.marcframe.recordBaseline')
+
+    def "should convert and revert #marcType #id like the baseline"() {
+        given:
+        Map marc = mapper.readValue(file, Map)
+        File convertedFile = new File("$BASELINE_DIR/$marcType/${id}.jsonld")
+        File revertedFile = new File("$BASELINE_DIR/$marcType/${id}.marc.json")
+
+        when:
+        Map converted = converter.convert(copy(marc), id)
+        Map reverted = converter.runRevert(copy(converted))
+        if (record) {
+            convertedFile.parentFile.mkdirs()
+            mapper.writerWithDefaultPrettyPrinter().writeValue(convertedFile, converted)
+            mapper.writerWithDefaultPrettyPrinter().writeValue(revertedFile, reverted)
+        }
+
+        then:
+        assert convertedFile.exists() && revertedFile.exists(),
+                "Missing baseline for $marcType $id, record it as described in ${this.class.simpleName}"
+        converted == mapper.readValue(convertedFile, Map)
+        reverted == mapper.readValue(revertedFile, Map)
+
+        where:
+        [marcType, file] << ['bib', 'auth', 'hold'].collectMany { marcType ->
+            new File("$INPUT_DIR/$marcType").listFiles()
+                    .findAll { it.name.endsWith('.json') }
+                    .sort { it.name }
+                    .collect { [marcType, it] }
+        }
+        id = file.name.replace('.json', '')
+    }
+
+    private static MarcFrameConverter converter() {
+        MarcFrameConverter converter = new MarcFrameConverter()
+        MarcFrameCli.addJsonLd(converter)
+        return converter
+    }
+
+    private static Map copy(Map data) {
+        return mapper.readValue(mapper.writeValueAsString(data), Map)
+    }
+}
@@ -0,0 +1,106 @@
+package whelk.benchmark;
+
+import whelk.Document;
+import whelk.JsonLd;
+import whelk.converter.marc.MarcFrameConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static whelk.util.Jackson.mapper;
+
+/**
+ * The records benchmarks are run on: the MARC records used by the marc2jsonld specs, converted to JSON-LD with the
+ * definitions from the definitions build (the same files as MarcFrameCli and the MarcFrameConverter integration spec).
+ *
+ * Loaded once per JVM.
+ */
+public class Corpus {
+    public static final String MARC_TYPE_BIB = "bib";
+    public static final String MARC_TYPE_AUTH = "auth";
+    public static final String MARC_TYPE_HOLD = "hold";
+
+    private static Corpus instance;
+
+    public final JsonLd jsonld;
+    public final MarcFrameConverter converter;
+
+    private final Map<String, List<Map>> marcByType = new HashMap<>();
+    private final Map<String, List<Document>> documentsByType = new HashMap<>();
+
+    public static synchronized Corpus get() {
+        if (instance == null) {
+            instance = new Corpus(
+                    new File(System.getProperty("xl.benchmark.corpus", "src/test/resources/marc2jsonld/in")),
+                    new File(System.getProperty("xl.defsbuild", System.getenv().getOrDefault("defsbuild", "../../definitions/build"))));
+        }
+        return instance;
+    }
+
+    private Corpus(File marcDir, File defsbuild) {
+        jsonld = new JsonLd(
+                read(new File(defsbuild, "vocab/context.jsonld")),
+                read(new File(defsbuild, "vocab/display.jsonld")),
+                read(new File(defsbuild, "vocab.jsonld")));
+        converter = new MarcFrameConverter(null, jsonld);
+
+        for (String marcType : List.of(MARC_TYPE_BIB, MARC_TYPE_AUTH, MARC_TYPE_HOLD)) {
+            File[] files = new File(marcDir, marcType).listFiles((dir, name) -> name.endsWith(".json"));
+            if (files == null || files.length == 0) {
+                throw new IllegalStateException("No MARC records in " + new File(marcDir, marcType).getAbsolutePath());
+            }
+            Arrays.sort(files);
+
+            List<Map> marc = new ArrayList<>();
+            List<Document> documents = new ArrayList<>();
+            for (File file : files) {
+                Map record = read(file);
+                marc.add(record);
+                String id = file.getName().replace(".json", "");
+                documents.add(new Document(converter.convert(copy(record), id)));
+            }
+            marcByType.put(marcType, Collections.unmodifiableList(marc));
+            documentsByType.put(marcType, Collections.unmodifiableList(documents));
+        }
+    }
+
+    /**
+     * MARC JSON records. Don't modify, use copy().
+     */
+    public List<Map> marc(String marcType) {
+        return marcByType.get(marcType);
+    }
+
+    /**
+     * Converted records. Don't modify, use clone().
+     */
+    public List<Document> documents(String marcType) {
+        return documentsByType.get(marcType);
+    }
+
+    public List<Document> allDocuments() {
+        List<Document> all = new ArrayList<>();
+        documentsByType.values().forEach(all::addAll);
+        return all;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map copy(Map data) {
+        return (Map) Document.deepCopy(data);
+    }
+
+    private static Map read(File file) {
+        try {
+            return mapper.readValue(file, Map.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package whelk.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import whelk.Document;
+import whelk.JsonLd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Document methods that run on every save.
+ *
+ * normalizeUnicode is run on documents that are already normalized after the first pass, like most saved documents.
+ * normalizeUnicodeLarge runs on one large document made up of the graphs of all documents in the corpus.
+ */
+@State(Scope.Thread)
+public class DocumentBenchmark {
+    @Param({Corpus.MARC_TYPE_BIB, Corpus.MARC_TYPE_AUTH, Corpus.MARC_TYPE_HOLD})
+    public String marcType;
+
+    private JsonLd jsonld;
+    private List<Document> documents;
+    private Document largeDocument;
+    private int i = 0;
+
+    @Setup
+    public void setup() {
+        Corpus corpus = Corpus.get();
+        jsonld = corpus.jsonld;
+        documents = corpus.documents(marcType).stream().map(Document::clone).collect(Collectors.toList());
+
+        List<Object> graph = new ArrayList<>();
+        corpus.allDocuments().forEach(d -> graph.addAll((List) d.clone().data.get("@graph")));
+        largeDocument = new Document(new HashMap<>(Map.of("@graph", graph)));
+    }
+
+    @Benchmark
+    public String getChecksum() {
+        return next().getChecksum(jsonld);
+    }
+
+    @Benchmark
+    public Document normalizeUnicode() {
+        Document document = next();
+        document.normalizeUnicode();
+        return document;
+    }
+
+    @Benchmark
+    public Document normalizeUnicodeLarge() {
+        largeDocument.normalizeUnicode();
+        return largeDocument;
+    }
+
+    private Document next() {
+        i = (i + 1) % documents.size();
+        return documents.get(i);
+    }
+}
@@ -0,0 +1,46 @@
+package whelk.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import whelk.Document;
+import whelk.Whelk;
+
+import java.util.List;
+
+/**
+ * Embellishing with the default levels, looking up linked documents in the corpus in memory (see InMemoryWhelk).
+ */
+@State(Scope.Thread)
+public class EmbellishBenchmark {
+    @Param({Corpus.MARC_TYPE_BIB, Corpus.MARC_TYPE_AUTH, Corpus.MARC_TYPE_HOLD})
+    public String marcType;
+
+    private Whelk whelk;
+    private List<Document> documents;
+    private int i = 0;
+
+    private Document document;
+
+    @Setup
+    public void setup() {
+        Corpus corpus = Corpus.get();
+        whelk = InMemoryWhelk.create(corpus);
+        documents = corpus.documents(marcType);
+    }
+
+    @Setup(Level.Invocation)
+    public void next() {
+        i = (i + 1) % documents.size();
+        document = documents.get(i).clone();
+    }
+
+    @Benchmark
+    public Document embellish() {
+        whelk.embellish(document);
+        return document;
+    }
+}
@@ -0,0 +1,95 @@
+package whelk.benchmark;
+
+import whelk.Document;
+import whelk.Link;
+import whelk.Whelk;
+import whelk.component.ElasticSearch;
+import whelk.component.PostgreSQLComponent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Whelk backed by the corpus in memory, for benchmarking code that needs one without a database or index.
+ *
+ * Lookups return full documents in place of cards, and there are no reverse links.
+ */
+public class InMemoryWhelk {
+
+    public static Whelk create(Corpus corpus) {
+        Whelk whelk = new Whelk(new Storage(corpus.allDocuments()));
+        whelk.setJsonld(corpus.jsonld);
+        whelk.setElastic(new Elastic());
+        return whelk;
+    }
+
+    static class Storage extends PostgreSQLComponent {
+        private final Map<String, Document> byIri = new HashMap<>();
+
+        Storage(Collection<Document> documents) {
+            for (Document doc : documents) {
+                byIri.put(doc.getShortId(), doc);
+                doc.getRecordIdentifiers().forEach(iri -> byIri.put(iri, doc));
+                doc.getThingIdentifiers().forEach(iri -> byIri.put(iri, doc));
+            }
+        }
+
+        @Override
+        public Map<String, Document> bulkLoad(Collection<String> ids) {
+            Map<String, Document> result = new LinkedHashMap<>();
+            for (String id : ids) {
+                Document doc = byIri.get(id);
+                if (doc != null) {
+                    result.put(id, doc.clone());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Iterable<Map> getCards(Iterable<String> iris) {
+            List<Map> result = new ArrayList<>();
+            for (String iri : iris) {
+                Document doc = byIri.get(iri);
+                if (doc != null) {
+                    result.add(doc.clone().data);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Set<String> getByReverseRelation(String iri, String relation) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<Link, Set<String>> bulkGetByReverseRelation(Collection<Link> links) {
+            Map<Link, Set<String>> result = new HashMap<>();
+            links.forEach(link -> result.put(link, Collections.emptySet()));
+            return result;
+        }
+
+        @Override
+        public long getIncomingLinkCount(String id) {
+            return 0;
+        }
+    }
+
+    static class Elastic extends ElasticSearch {
+        Elastic() {
+            super("localhost", "benchmark", "benchmark");
+        }
+
+        @Override
+        public void initSettings() {
+            // no index
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package whelk.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import whelk.Document;
+import whelk.Whelk;
+import whelk.component.ElasticJsonWriter;
+import whelk.component.ElasticSearch;
+
+import java.util.List;
+
+/**
+ * Shaping documents for the index, including embellishing and serializing. Linked documents are looked up in the
+ * corpus in memory (see InMemoryWhelk).
+ */
+@State(Scope.Thread)
+public class IndexShapeBenchmark {
+    @Param({Corpus.MARC_TYPE_BIB, Corpus.MARC_TYPE_AUTH, Corpus.MARC_TYPE_HOLD})
+    public String marcType;
+
+    private Whelk whelk;
+    private ElasticSearch elastic;
+    private List<Document> documents;
+    private int i = 0;
+
+    @Setup
+    public void setup() {
+        Corpus corpus = Corpus.get();
+        whelk = InMemoryWhelk.create(corpus);
+        elastic = whelk.getElastic();
+        documents = corpus.documents(marcType);
+    }
+
+    @Benchmark
+    public String getShapeForIndex() {
+        i = (i + 1) % documents.size();
+        return elastic.getShapeForIndex(documents.get(i), whelk);
+    }
+
+    @Benchmark
+    public int createBulkBody() {
+        ElasticJsonWriter.Buffer body = elastic.createBulkBody(documents, whelk);
+        try {
+            return body.size();
+        } finally {
+            elastic.releaseBulkBody(body);
+        }
+    }
+}
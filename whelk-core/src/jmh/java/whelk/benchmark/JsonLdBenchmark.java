@@ -0,0 +1,68 @@
+package whelk.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import whelk.Document;
+import whelk.JsonLd;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Framing, flattening and lenses. Inputs are copied before each invocation since these may modify them.
+ */
+@State(Scope.Thread)
+public class JsonLdBenchmark {
+    @Param({Corpus.MARC_TYPE_BIB, Corpus.MARC_TYPE_AUTH, Corpus.MARC_TYPE_HOLD})
+    public String marcType;
+
+    private JsonLd jsonld;
+    private List<Document> documents;
+    private int i = 0;
+
+    private Map data;
+    private Map framed;
+    private Map thing;
+    private String thingId;
+
+    @Setup
+    public void setup() {
+        Corpus corpus = Corpus.get();
+        jsonld = corpus.jsonld;
+        documents = corpus.documents(marcType);
+    }
+
+    @Setup(Level.Invocation)
+    public void next() {
+        i = (i + 1) % documents.size();
+        Document document = documents.get(i).clone();
+        thingId = document.getThingIdentifiers().get(0);
+        data = Corpus.copy(document.data);
+        framed = JsonLd.frame(thingId, Corpus.copy(document.data));
+        thing = (Map) ((List) document.data.get("@graph")).get(1);
+    }
+
+    @Benchmark
+    public Map frame() {
+        return JsonLd.frame(thingId, data);
+    }
+
+    @Benchmark
+    public Map flatten() {
+        return JsonLd.flatten(framed);
+    }
+
+    @Benchmark
+    public Map toCard() {
+        return jsonld.toCard(thing);
+    }
+
+    @Benchmark
+    public Object toChip() {
+        return jsonld.toChip(thing);
+    }
+}
@@ -0,0 +1,55 @@
+package whelk.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import whelk.Document;
+import whelk.converter.marc.MarcFrameConverter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MARC to JSON-LD and back. Inputs are copied before each invocation since conversion may modify them.
+ */
+@State(Scope.Thread)
+public class MarcFrameConverterBenchmark {
+    @Param({Corpus.MARC_TYPE_BIB, Corpus.MARC_TYPE_AUTH, Corpus.MARC_TYPE_HOLD})
+    public String marcType;
+
+    private MarcFrameConverter converter;
+    private List<Map> marc;
+    private List<Document> documents;
+    private int i = 0;
+
+    private Map marcRecord;
+    private Map data;
+
+    @Setup
+    public void setup() {
+        Corpus corpus = Corpus.get();
+        converter = corpus.converter;
+        marc = corpus.marc(marcType);
+        documents = corpus.documents(marcType);
+    }
+
+    @Setup(Level.Invocation)
+    public void next() {
+        i = (i + 1) % marc.size();
+        marcRecord = Corpus.copy(marc.get(i));
+        data = Corpus.copy(documents.get(i).data);
+    }
+
+    @Benchmark
+    public Map convert() {
+        return converter.convert(marcRecord, "benchmark" + i);
+    }
+
+    @Benchmark
+    public Map runRevert() {
+        return converter.runRevert(data);
+    }
+}
@@ -0,0 +1,129 @@
+package whelk
+
+import groovy.transform.CompileStatic
+
+/**
+ * Snapshot of the links between documents in the definitions collection, for a fixed set of relations
+ * (e.g. broader, exactMatch).
+ *
+ * Traversals are only answered when the snapshot knows the whole answer, i.e. when they never leave the
+ * definitions collection. Otherwise they return null and the caller has to ask the database.
+ */
+@CompileStatic
+class ConceptGraph {
+    final Set<String> relations
+
+    private final Map<String, String> idByIri = new HashMap<>()
+    private final Map<String, String> mainIriById = new HashMap<>()
+    // system id -> relation -> system ids
+    private final Map<String, Map<String, List<String>>> dependencies = new HashMap<>()
+    private final Map<String, Map<String, List<String>>> dependers = new HashMap<>()
+    // Documents in definitions that documents outside definitions link to with any of the relations
+    private final Set<String> linkedFromOutside = new HashSet<>()
+
+    ConceptGraph(Collection<String> relations) {
+        this.relations = Collections.unmodifiableSet(new HashSet<String>(relations))
+    }
+
+    void addIri(String id, String iri, boolean isMainIri) {
+        idByIri.put(iri, id)
+        if (isMainIri) {
+            mainIriById.put(id, iri)
+        }
+    }
+
+    void addLink(String id, String relation, String dependsOnId) {
+        add(dependencies, id, relation, dependsOnId)
+        add(dependers, dependsOnId, relation, id)
+    }
+
+    void addLinkedFromOutside(String id) {
+        linkedFromOutside.add(id)
+    }
+
+    /**
+     * @return whether toIri is the main IRI of a thing reachable from fromIri with the relations in at most
+     * maxDepth steps, or null if the snapshot doesn't know
+     */
+    Boolean isReachable(String fromIri, String toIri, Collection<String> relations, int maxDepth) {
+        Set<String> reached = traverse(fromIri, relations, [], maxDepth, false)
+        if (reached == null) {
+            return null
+        }
+        return reached.any { String id -> mainIriById.get(id) == toIri }
+    }
+
+    /**
+     * @return main IRIs of all things linking to iri with the relations, directly or indirectly in at most
+     * maxDepth steps (symmetric relations are followed in both directions), or null if the snapshot doesn't know
+     */
+    Set<String> followReverse(String iri, Collection<String> relations, Collection<String> symmetricRelations, int maxDepth) {
+        Set<String> reached = traverse(iri, relations, symmetricRelations, maxDepth, true)
+        if (reached == null) {
+            return null
+        }
+        Set<String> result = new HashSet<>()
+        for (String id : reached) {
+            String mainIri = mainIriById.get(id)
+            if (mainIri != null) {
+                result.add(mainIri)
+            }
+        }
+        return result
+    }
+
+    private Set<String> traverse(String iri, Collection<String> relations, Collection<String> symmetricRelations,
+                                 int maxDepth, boolean reverse) {
+        String start = idByIri.get(iri)
+        if (start == null || !this.relations.containsAll(relations)) {
+            return null
+        }
+
+        Set<String> expanded = new HashSet<>([start])
+        Set<String> reached = new HashSet<>()
+        List<String> frontier = [start]
+        for (int depth = 1; depth <= maxDepth && !frontier.isEmpty(); depth++) {
+            List<String> next = []
+            for (String id : frontier) {
+                if (!mainIriById.containsKey(id) || (reverse && linkedFromOutside.contains(id))) {
+                    // Outside definitions, or linked to from outside
+                    return null
+                }
+                for (String relation : relations) {
+                    List<String> neighbours = []
+                    neighbours.addAll(get(reverse ? dependers : dependencies, id, relation))
+                    if (symmetricRelations.contains(relation)) {
+                        neighbours.addAll(get(reverse ? dependencies : dependers, id, relation))
+                    }
+                    for (String n : neighbours) {
+                        reached.add(n)
+                        if (expanded.add(n)) {
+                            next.add(n)
+                        }
+                    }
+                }
+            }
+            frontier = next
+        }
+
+        // Things on the last level are reached but not expanded, they must be known too
+        for (String id : frontier) {
+            if (!mainIriById.containsKey(id)) {
+                return null
+            }
+        }
+
+        return reached
+    }
+
+    private static void add(Map<String, Map<String, List<String>>> m, String from, String relation, String to) {
+        m.computeIfAbsent(from, { new HashMap<String, List<String>>() })
+                .computeIfAbsent(relation, { new ArrayList<String>() })
+                .add(to)
+    }
+
+    private static List<String> get(Map<String, Map<String, List<String>>> m, String id, String relation) {
+        List<String> result = m.get(id)?.get(relation)
+        return result != null ? result : Collections.<String>emptyList()
+    }
+}
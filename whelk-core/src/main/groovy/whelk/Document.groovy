@@ -1,5 +1,6 @@
 package whelk
 
+import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
 import whelk.util.DocumentUtil
 import whelk.util.LegacyIntegrationTools
@@ -73,6 +74,11 @@ class Document {
     public Map data = [:]
     public int version = 0
 
+    /**
+     * Checksum stored in lddb, set when loaded. Not updated when the data is changed, see getChecksumAsLoaded().
+     */
+    String storedChecksum = null
+
     Document(Map data) {
         this.data = data
         updateRecordStatus()
@@ -87,10 +93,75 @@ class Document {
         return new Document(clonedDate)
     }
 
-    void normalizeUnicode() {
-        String json = mapper.writeValueAsString(data)
-        if (!Unicode.isNormalized(json)) {
-            data = mapper.readValue(Unicode.normalize(json), Map)
+    /**
+     * Normalize all strings in the document, values as well as keys, in place.
+     *
+     * @return paths of the values and keys that were changed, empty if the document was already normalized
+     */
+    List<List> normalizeUnicode() {
+        List<List> changed = []
+        normalizeUnicode(data, [], changed)
+        return changed
+    }
+
+    @CompileStatic
+    private static void normalizeUnicode(Object node, List path, List<List> changed) {
+        if (node instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) node
+            boolean keysChanged = false
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                path.add(entry.getKey())
+                Object value = entry.getValue()
+                if (value instanceof String) {
+                    if (!Unicode.isNormalized((String) value)) {
+                        entry.setValue(Unicode.normalize((String) value))
+                        changed.add(new ArrayList(path))
+                    }
+                }
+                else {
+                    normalizeUnicode(value, path, changed)
+                }
+                path.remove(path.size() - 1)
+
+                if (entry.getKey() instanceof String && !Unicode.isNormalized((String) entry.getKey())) {
+                    keysChanged = true
+                }
+            }
+
+            if (keysChanged) {
+                // Rebuild the map to keep the order of keys
+                Map<Object, Object> normalized = new LinkedHashMap<>(map.size())
+                for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                    Object key = entry.getKey()
+                    if (key instanceof String && !Unicode.isNormalized((String) key)) {
+                        key = Unicode.normalize((String) key)
+                        List keyPath = new ArrayList(path)
+                        keyPath.add(key)
+                        changed.add(keyPath)
+                    }
+                    normalized.put(key, entry.getValue())
+                }
+                map.clear()
+                map.putAll(normalized)
+            }
+        }
+        else if (node instanceof List) {
+            ListIterator<Object> it = ((List<Object>) node).listIterator()
+            while (it.hasNext()) {
+                int i = it.nextIndex()
+                Object value = it.next()
+                path.add(i)
+                if (value instanceof String) {
+                    if (!Unicode.isNormalized((String) value)) {
+                        it.set(Unicode.normalize((String) value))
+                        changed.add(new ArrayList(path))
+                    }
+                }
+                else {
+                    normalizeUnicode(value, path, changed)
+                }
+                path.remove(path.size() - 1)
+            }
         }
     }
 
@@ -842,51 +913,15 @@ class Document {
     }
 
     String getChecksum(JsonLd jsonLd) {
-        long checksum = calculateCheckSum(data, 1, null, jsonLd)
+        long checksum = DocumentChecksum.calculate(data, jsonLd ? jsonLd.setContainerTerms : Collections.emptySet())
         return Long.toString(checksum)
     }
 
-    private long calculateCheckSum(node, int depth, parentKey, JsonLd jsonLd) {
-        long term = 0
-
-        if (node == null)
-            return term
-        else if (node instanceof String)
-            return node.hashCode() * depth
-        else if (node instanceof GString)
-            return node.toString().hashCode() * depth
-        else if (node instanceof Boolean)
-            return node.booleanValue() ? depth : term
-        else if (node instanceof Integer)
-            return node.intValue() * depth
-        else if (node instanceof Long)
-            return node.longValue() * depth
-        else if (node instanceof Map) {
-            for (String key : node.keySet()) {
-                if (key != JsonLd.MODIFIED_KEY && key != JsonLd.CREATED_KEY && key != JsonLd.RECORD_STATUS_KEY) {
-
-                    term += key.hashCode() * depth
-                    term += calculateCheckSum(node[key], depth + 1, key, jsonLd)
-                }
-            }
-        }
-        else if (node instanceof List) {
-            int i = 1
-            for (entry in node)
-                if (isSet(parentKey, jsonLd))
-                    term += calculateCheckSum(entry, depth, null, jsonLd)
-                else
-                    term += calculateCheckSum(entry, depth + (i++), null, jsonLd)
-        }
-        else {
-            return node.hashCode() * depth
-        }
-
-        return term
-    }
-
-    private static boolean isSet(String key, JsonLd jsonLd) {
-        jsonLd && key && jsonLd.isSetContainer(key)
+    /**
+     * Checksum of the document as loaded from storage, without calculating it again if it was stored with the
+     * document. Only for documents that have not been changed since they were loaded.
+     */
+    String getChecksumAsLoaded(JsonLd jsonLd) {
+        return storedChecksum ?: getChecksum(jsonLd)
     }
-
 }
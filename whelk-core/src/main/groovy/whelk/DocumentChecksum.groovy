@@ -0,0 +1,66 @@
+package whelk
+
+import groovy.transform.CompileStatic
+
+/**
+ * The checksum of document data, as returned by Document.getChecksum().
+ *
+ * The sum of the hash codes of all keys and values, weighted by depth. Elements of lists count as deeper than the list
+ * itself, in order, except for set containers where order doesn't matter. Created, modified and recordStatus are
+ * not included.
+ *
+ * Note that the value is stored in lddb and used in ETags, it must not change for the same data.
+ */
+@CompileStatic
+class DocumentChecksum {
+    private static final Set<String> EXCLUDED_KEYS = [JsonLd.MODIFIED_KEY, JsonLd.CREATED_KEY, JsonLd.RECORD_STATUS_KEY] as Set<String>
+
+    /**
+     * @param setContainerTerms see JsonLd.setContainerTerms
+     */
+    static long calculate(Object data, Set<String> setContainerTerms) {
+        return calculate(data, 1, null, setContainerTerms)
+    }
+
+    private static long calculate(Object node, int depth, String parentKey, Set<String> setContainerTerms) {
+        if (node == null) {
+            return 0
+        }
+        if (node instanceof String) {
+            return node.hashCode() * depth
+        }
+        if (node instanceof Map) {
+            long term = 0
+            for (Map.Entry entry : ((Map<?, ?>) node).entrySet()) {
+                String key = entry.getKey().toString()
+                if (!EXCLUDED_KEYS.contains(key)) {
+                    term += key.hashCode() * depth
+                    term += calculate(entry.getValue(), depth + 1, key, setContainerTerms)
+                }
+            }
+            return term
+        }
+        if (node instanceof List) {
+            boolean isSet = parentKey && setContainerTerms.contains(parentKey)
+            long term = 0
+            int i = 1
+            for (Object entry : (List) node) {
+                term += calculate(entry, isSet ? depth : depth + (i++), null, setContainerTerms)
+            }
+            return term
+        }
+        if (node instanceof GString) {
+            return node.toString().hashCode() * depth
+        }
+        if (node instanceof Boolean) {
+            return ((Boolean) node).booleanValue() ? depth : 0
+        }
+        if (node instanceof Integer) {
+            return ((Integer) node).intValue() * depth
+        }
+        if (node instanceof Long) {
+            return ((Long) node).longValue() * depth
+        }
+        return node.hashCode() * depth
+    }
+}
@@ -4,6 +4,13 @@ import java.util.function.BiFunction
 import java.util.function.Function
 import groovy.util.logging.Log4j2 as Log
 
+/**
+ * Adds cards/chips of linked (and linking) documents to the graph of documents.
+ *
+ * Every level is resolved with one call per lookup kind (documents, cards, reverse relations),
+ * shared by all documents being embellished. embellishAll() can thus be used to make a batch of
+ * documents share lookups.
+ */
 @Log
 class Embellisher {
     static final List<String> DEFAULT_EMBELLISH_LEVELS = ['cards', 'chips']
@@ -18,6 +25,8 @@ class Embellisher {
     Function<Iterable<String>, Iterable<Map>> getDocs
     Function<Iterable<String>, Iterable<Map>> getCards
     BiFunction<String, List<String>, Set<String>> getByReverseRelation
+    // Batched version of getByReverseRelation, by default implemented with one call per link
+    Function<Collection<Link>, Map<Link, Set<String>>> getByReverseRelations
 
     Embellisher(
             JsonLd jsonld,
@@ -29,7 +38,10 @@ class Embellisher {
         this.getDocs = getDocs
         this.getCards = getCards
         this.getByReverseRelation = getByReverseRelation
-        
+        this.getByReverseRelations = { Collection<Link> links ->
+            links.collectEntries { Link link -> [(link): getByReverseRelation.apply(link.iri, [link.relation])] }
+        }
+
         def integral = jsonld.getCategoryMembers('integral')
         if (integral) {
             this.integralRelations = integral
@@ -38,7 +50,17 @@ class Embellisher {
 
     // FIXME: describe me
     void embellish(Document document) {
-        jsonld.embellish(document.data, getEmbellishData(document))
+        embellishAll([document])
+    }
+
+    void embellishAll(Collection<Document> documents) {
+        List<Embellishment> embellishments = documents
+                .findAll { !it.getThingIdentifiers().isEmpty() }
+                .collect { new Embellishment(it) }
+
+        embellish(embellishments)
+
+        embellishments.each { jsonld.embellish(it.document.data, it.result) }
     }
 
     void setEmbellishLevels(List<String> embellishLevels) {
@@ -49,39 +71,52 @@ class Embellisher {
         this.integralRelations = integralRelations.collect()
     }
 
-    private List getEmbellishData(Document document) {
-        if (document.getThingIdentifiers().isEmpty()) {
-            return []
-        }
+    /**
+     * The state of embellishing one document
+     */
+    private static class Embellishment {
+        Document document
+        Set<String> visitedIris = new HashSet<>()
+        List result = []
 
-        List<Map> start = [document.data]
+        Embellishment(Document document) {
+            this.document = document
+            visitedIris.addAll(plusWithoutHash(document.getThingIdentifiers()))
+        }
+    }
 
-        Set<String> visitedIris = new HashSet<>()
-        visitedIris.addAll(plusWithoutHash(document.getThingIdentifiers()))
+    private void embellish(List<Embellishment> embellishments) {
+        if (embellishments.isEmpty()) {
+            return
+        }
 
-        def docs = fetchIntegral('full', start, visitedIris).collect()
+        Map<Embellishment, List<Map>> start = embellishments.collectEntries { [(it): [it.document.data]] }
+        Map<Embellishment, List<Map>> docs = fetchIntegral('full', start)
 
-        List result = docs
-        List<String> iris = getAllLinks(start + docs)
-        Iterable<Map> previousLevelDocs = start + docs
+        Map<Embellishment, List<String>> iris = [:]
+        Map<Embellishment, List<Map>> previousLevelDocs = [:]
+        embellishments.each { e ->
+            e.result.addAll(docs[e])
+            previousLevelDocs[e] = start[e] + docs[e]
+            iris[e] = getAllLinks(previousLevelDocs[e])
+        }
         String previousLens = 'full'
 
         for (String lens : embellishLevels) {
-            docs = fetchNonVisited(lens, iris, visitedIris)
-            docs += fetchIntegral(lens, docs, visitedIris)
+            docs = fetchNonVisited(lens, iris)
+            fetchIntegral(lens, docs).each { e, integral -> docs[e].addAll(integral) }
 
-            previousLevelDocs.each { insertInverse(previousLens, it, lens, docs, visitedIris) }
+            insertInverse(previousLens, previousLevelDocs, lens, docs)
             previousLevelDocs = docs
             previousLens = lens
 
-            result.addAll(docs)
-
-            iris = getAllLinks(docs)
+            embellishments.each { e ->
+                e.result.addAll(docs[e])
+                iris[e] = getAllLinks(docs[e])
+            }
         }
         // Last level: add reverse links, but don't include documents linking here in embellish graph
-        previousLevelDocs.each { insertInverse(previousLens, it, null, [], visitedIris) }
-
-        return result
+        insertInverse(previousLens, previousLevelDocs, null, null)
     }
 
     private static List<String> getAllLinks(Iterable<Map> docs) {
@@ -94,77 +129,147 @@ class Embellisher {
         }.flatten()
     }
 
-    private Iterable<Map> fetchNonVisited(String lens, Iterable<String> iris, Set<String> visitedIris) {
-        def data = load(lens, iris - visitedIris)
-        visitedIris.addAll(data.collectMany { plusWithoutHash(new Document(it).getThingIdentifiers()) })
-        visitedIris.addAll(iris)
-        return data
+    /**
+     * Load everything not already visited, with one lookup for all embellishments.
+     * Documents wanted by several embellishments are copied since they are modified when reverse links are added.
+     */
+    private Map<Embellishment, List<Map>> fetchNonVisited(String lens, Map<Embellishment, ? extends Collection<String>> irisByEmbellishment) {
+        Map<Embellishment, Collection<String>> toFetch = irisByEmbellishment.collectEntries { e, iris ->
+            [(e): new LinkedHashSet<String>(iris - e.visitedIris)]
+        }
+
+        Map<String, Map> dataByIri = load(lens, (Set<String>) toFetch.values().collectMany(new HashSet<String>()) { it })
+
+        Set<Map> handedOut = Collections.newSetFromMap(new IdentityHashMap<Map, Boolean>())
+        Map<Embellishment, List<Map>> result = [:]
+        toFetch.each { e, iris ->
+            Set<Map> data = Collections.newSetFromMap(new IdentityHashMap<Map, Boolean>())
+            List<Map> fetched = []
+            iris.each { iri ->
+                Map d = dataByIri[iri]
+                if (d != null && data.add(d)) {
+                    fetched.add(handedOut.add(d) ? d : (Map) Document.deepCopy(d))
+                }
+            }
+
+            e.visitedIris.addAll(fetched.collectMany { plusWithoutHash(new Document(it).getThingIdentifiers()) })
+            e.visitedIris.addAll(irisByEmbellishment[e])
+            result[e] = fetched
+        }
+        return result
     }
 
-    private Iterable<Map> fetchIntegral(String lens, Iterable<Map> docs, Set<String> visitedIris) {
-        def result = []
+    private Map<Embellishment, List<Map>> fetchIntegral(String lens, Map<Embellishment, List<Map>> docsByEmbellishment) {
+        Map<Embellishment, List<Map>> result = docsByEmbellishment.collectEntries { e, docs -> [(e): []] }
         while(true) {
-            docs = fetchNonVisited(lens, getIntegralLinks(docs), visitedIris)
+            Map<Embellishment, List<String>> links = docsByEmbellishment
+                    .collectEntries { e, docs -> [(e): getIntegralLinks(docs)] }
+                    .findAll { e, iris -> !iris.isEmpty() }
 
-            if (docs.isEmpty()) {
+            docsByEmbellishment = links.isEmpty()
+                    ? [:]
+                    : fetchNonVisited(lens, links).findAll { e, docs -> !docs.isEmpty() }
+
+            if (docsByEmbellishment.isEmpty()) {
                 break
             }
             else {
-                result.addAll(docs)
+                docsByEmbellishment.each { e, docs -> result[e].addAll(docs) }
             }
         }
 
         return result
     }
 
-    private Iterable<Map> load(String lens, Iterable<String> iris) {
+    /**
+     * @return the loaded data by all IRIs (record, thing and sameAs) identifying it
+     */
+    private Map<String, Map> load(String lens, Collection<String> iris) {
         if (iris.isEmpty()) {
-            return []
+            return [:]
         }
 
         def data = lens == 'full'
                 ? getDocs.apply(iris)
                 : getCards.apply(iris)
 
-        if (lens == 'chips') {
-            data = data.collect{ (Map) jsonld.toChip(it) }
+        Map<String, Map> result = [:]
+        for (Map d : data) {
+            Map shaped = lens == 'chips' ? (Map) jsonld.toChip(d) : d
+            identifiers(d).each { result.putIfAbsent(it, shaped) }
         }
 
-        return data
+        return result
     }
 
-    private void insertInverse(String forLens, Map thing, String applyLens, List<Map> cards, Set<String> visitedIris) {
-        Set<String> inverseRelations = jsonld.getInverseProperties(thing, forLens)
-        if (inverseRelations.isEmpty()) {
-            return
-        }
-
-        String iri = new Document(thing).getThingIdentifiers().first()
-        for (String relation : inverseRelations) {
-            Set<String> irisLinkingHere = getByReverseRelation.apply(iri, [relation])
-            if (irisLinkingHere.isEmpty()) {
-                continue
+    private static List<String> identifiers(Map data) {
+        List<String> result = []
+        ((List) data[JsonLd.GRAPH_KEY])?.each { item ->
+            if (item instanceof Map) {
+                item[JsonLd.ID_KEY]?.with { result.add((String) it) }
+                item[JsonLd.JSONLD_ALT_ID_KEY]?.each { sameAs ->
+                    if (sameAs instanceof Map && sameAs[JsonLd.ID_KEY]) {
+                        result.add((String) sameAs[JsonLd.ID_KEY])
+                    }
+                }
             }
+        }
+        return result
+    }
 
-            if (irisLinkingHere.size() > MAX_REVERSE_LINKS) {
-                log.warn("MAX_REVERSE_LINKS exceeded. $iri $JsonLd.REVERSE_KEY $relation " +
-                        "(${irisLinkingHere.size()} > $MAX_REVERSE_LINKS)")
-                irisLinkingHere = irisLinkingHere.take(MAX_REVERSE_LINKS).toSet()
+    private void insertInverse(String forLens, Map<Embellishment, List<Map>> thingsByEmbellishment,
+                               String applyLens, Map<Embellishment, List<Map>> cardsByEmbellishment) {
+        Map<Map, Link[]> inverseLinks = new IdentityHashMap<>()
+        thingsByEmbellishment.each { e, things ->
+            things.each { Map thing ->
+                Set<String> inverseRelations = jsonld.getInverseProperties(thing, forLens)
+                if (!inverseRelations.isEmpty()) {
+                    String iri = new Document(thing).getThingIdentifiers().first()
+                    inverseLinks[thing] = inverseRelations.collect { new Link(iri: iri, relation: it) } as Link[]
+                }
             }
+        }
+        if (inverseLinks.isEmpty()) {
+            return
+        }
 
-            Map theThing = ((List) thing[JsonLd.GRAPH_KEY])[1]
-            if (!theThing[JsonLd.REVERSE_KEY]) {
-                theThing[JsonLd.REVERSE_KEY] = [:]
+        Map<Link, Set<String>> linkingHere = getByReverseRelations.apply(
+                (Collection<Link>) inverseLinks.values().collectMany(new LinkedHashSet<Link>()) { it as List })
+
+        Map<Embellishment, Set<String>> toFetch = [:]
+        thingsByEmbellishment.each { e, things ->
+            Set<String> fetchForEmbellishment = new LinkedHashSet<>()
+            things.each { Map thing ->
+                for (Link link : (inverseLinks[thing] ?: new Link[0])) {
+                    Set<String> irisLinkingHere = linkingHere[link] ?: Collections.<String>emptySet()
+                    if (irisLinkingHere.isEmpty()) {
+                        continue
+                    }
+
+                    if (irisLinkingHere.size() > MAX_REVERSE_LINKS) {
+                        log.warn("MAX_REVERSE_LINKS exceeded. $link.iri $JsonLd.REVERSE_KEY $link.relation " +
+                                "(${irisLinkingHere.size()} > $MAX_REVERSE_LINKS)")
+                        irisLinkingHere = irisLinkingHere.take(MAX_REVERSE_LINKS).toSet()
+                    }
+
+                    Map theThing = ((List) thing[JsonLd.GRAPH_KEY])[1]
+                    if (!theThing[JsonLd.REVERSE_KEY]) {
+                        theThing[JsonLd.REVERSE_KEY] = [:]
+                    }
+
+                    theThing[JsonLd.REVERSE_KEY][link.relation] = irisLinkingHere.collect { [(JsonLd.ID_KEY): it] }
+                    fetchForEmbellishment.addAll(irisLinkingHere)
+                }
             }
+            toFetch[e] = fetchForEmbellishment
+        }
 
-            theThing[JsonLd.REVERSE_KEY][relation] = irisLinkingHere.collect { [(JsonLd.ID_KEY): it] }
-            if (applyLens) {
-                cards.addAll(fetchNonVisited(applyLens, irisLinkingHere, visitedIris))
-            }
+        if (applyLens) {
+            fetchNonVisited(applyLens, toFetch).each { e, cards -> cardsByEmbellishment[e].addAll(cards) }
         }
     }
 
     private static List<String> plusWithoutHash(List<String> iris) {
         return iris + iris.findResults { if(it.contains('#')) {it.substring(0, it.indexOf('#'))} }
     }
-}
\ No newline at end of file
+}
@@ -10,7 +10,9 @@ import whelk.exception.FramingException
 import whelk.exception.WhelkRuntimeException
 import whelk.util.DocumentUtil
 
+import java.util.function.BiConsumer
 import java.util.regex.Matcher
+import java.util.regex.Pattern
 
 @CompileStatic
 class JsonLd {
@@ -52,6 +54,12 @@ class JsonLd {
 
     static final List<String> NON_DEPENDANT_RELATIONS = ['narrower', 'broader', 'expressionOf', 'related', 'derivedFrom']
 
+    // For sort keys, see applyLensByLang().
+    // \p{L} = Lu, Ll, Lt, Lm, Lo; but we don't want Lm as it includes modifier letters like
+    // MODIFIER LETTER PRIME (ʹ) that are sometimes erroneously used.
+    private static final Pattern LEADING_NON_ALPHANUMERIC = ~/^[^\p{Lu}\p{Ll}\p{Lt}\p{Lo}\p{N}]+/
+    private static final Pattern EMPTY = ~/^$/
+
     static final Set<String> LD_KEYS
 
     static {
@@ -94,6 +102,16 @@ class JsonLd {
      */
     Set<String> repeatableTerms
 
+    /**
+     * Terms declared as set containers in the context.
+     */
+    Set<String> setContainerTerms = Collections.emptySet()
+
+    /**
+     * Properties shown as inverses (@reverse) in any lens.
+     */
+    Set<String> allInverseProperties = Collections.emptySet()
+
     /**
      * Make an instance to encapsulate model driven behaviour.
      */
@@ -112,6 +130,11 @@ class JsonLd {
             context.putAll(contextObj)
         }
 
+        setContainerTerms = context.findResults { key, value ->
+            if (value instanceof Map && isSetContainer(value))
+                return key
+        } as Set<String>
+
         repeatableTerms = context.findResults { key, value ->
             if (isSetContainer(value) || isListContainer(value))
                 return key
@@ -229,11 +252,14 @@ class JsonLd {
 
     @TypeChecked(TypeCheckingMode.SKIP)
     expandInverseLensProperties() {
+        Set<String> all = new HashSet<>()
         eachLens { lens ->
             lens['inverseProperties'] = ((Iterable) lens['showProperties']).findResults {
                 return (it instanceof Map ) && it['inverseOf'] ? it['inverseOf'] : null
             }
+            all.addAll(lens['inverseProperties'])
         }
+        allInverseProperties = all
     }
 
     private void eachLens(Closure c) {
@@ -245,7 +271,7 @@ class JsonLd {
     }
 
     boolean isSetContainer(String property) {
-        context?.get(property)?.with(this.&isSetContainer) ?: false
+        return property != null && setContainerTerms.contains(property)
     }
     
     boolean isSetContainer(dfn) {
@@ -850,6 +876,19 @@ class JsonLd {
        be displayed on the frontend. Mainly for use as search keys.
      */
     Map applyLensAsMapByLang(Map thing, Set<String> languagesToKeep, List<String> removableBaseUris, List<String> lensesToTry) {
+        Map result = [:]
+        applyLensByLang(thing, languagesToKeep, removableBaseUris, lensesToTry, { String lang, String value ->
+            result[lang] = value
+        } as BiConsumer<String, String>)
+        return result
+    }
+
+    /**
+     * Like applyLensAsMapByLang(), but gives each language and string to the consumer, in the order of
+     * languagesToKeep, instead of collecting them in a map.
+     */
+    void applyLensByLang(Map thing, Set<String> languagesToKeep, List<String> removableBaseUris, List<String> lensesToTry,
+                         BiConsumer<String, String> consumer) {
         Map lensGroups = displayData.get('lensGroups')
         Map lens = null
         String initialLens
@@ -867,7 +906,8 @@ class JsonLd {
             String id = (String) thing.get(ID_KEY)
             log.warn('applyLensAsMapByLang() No lens found for {}, tried {}', id, lensesToTry)
             String fallback = id.split('/').last()
-            return languagesToKeep.collectEntries{ [(it) : fallback] }
+            languagesToKeep.each { consumer.accept(it, fallback) }
+            return
         }
 
         // Transform the list of language/property value pairs to a map
@@ -883,24 +923,21 @@ class JsonLd {
             })
 
         // Turn the map values into strings
-        return results.collectEntries { k, v ->
+        results.each { k, v ->
             String result = ((List) v).findAll { it != null }.flatten().join(", ")
             // Use last URI components as fallback
             if (!result && thing['@id']) {
                 result = removeDomain((String) thing['@id'], removableBaseUris)
             } else {
-                result = result
-                    // Remove leading non-alphanumeric characters.
-                    // \p{L} = Lu, Ll, Lt, Lm, Lo; but we don't want Lm as it includes modifier letters like
-                    // MODIFIER LETTER PRIME (ʹ) that are sometimes erroneously used.
-                    .replaceFirst(/^[^\p{Lu}\p{Ll}\p{Lt}\p{Lo}\p{N}]+/, "")
-                    // A string without alphanumerics should not have "" as its sort value, because
-                    // then we get messed up records on top when sorting A-Z. Workaround: use a character from
-                    // Unicode's Private Use Area, forcing such records to appear at the very end when sorting.
-                    // TODO: default to some sensible/explanatory string instead?
-                    .replaceFirst(/^$/, "\uE83A")
+                // Remove leading non-alphanumeric characters.
+                result = LEADING_NON_ALPHANUMERIC.matcher(result).replaceFirst("")
+                // A string without alphanumerics should not have "" as its sort value, because
+                // then we get messed up records on top when sorting A-Z. Workaround: use a character from
+                // Unicode's Private Use Area, forcing such records to appear at the very end when sorting.
+                // TODO: default to some sensible/explanatory string instead?
+                result = EMPTY.matcher(result).replaceFirst("\uE83A")
             }
-            [(k): result]
+            consumer.accept((String) k, result)
         }
     }
 
@@ -1,14 +1,40 @@
 package whelk
 
+import groovy.util.logging.Log4j2 as Log
 import whelk.component.PostgreSQLComponent
 
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Transitive relations are followed with one recursive query each. Relations between documents in the definitions
+ * collection are also kept in memory (see ConceptGraph), which answers most lookups without a query.
+ */
+@Log
 class Relations {
     public static final List<String> BROADER_RELATIONS = ['broader', 'broadMatch', 'exactMatch', 'locatedIn']
 
+    // Guards against cycles together with the depth of real hierarchies
+    static final int MAX_DEPTH = 20
+
+    // Safety net in case changes are missed
+    private static final long CONCEPT_GRAPH_MAX_AGE_MS = TimeUnit.HOURS.toMillis(1)
+
     PostgreSQLComponent storage
 
+    private volatile ConceptGraph conceptGraph
+    private volatile long conceptGraphLoadedAt
+    // Incremented on every change to the relations in conceptGraph, so that a graph loaded during one isn't kept
+    private final AtomicLong conceptGraphGeneration = new AtomicLong()
+
     Relations(PostgreSQLComponent storage) {
         this.storage = storage
+        storage.dependencyCache?.addInvalidationListener({ Set<Link> links ->
+            if (links == null || links.any { it.relation in BROADER_RELATIONS }) {
+                conceptGraphGeneration.incrementAndGet()
+                conceptGraph = null
+            }
+        })
     }
 
     boolean isImpliedBy(String broaderIri, String narrowerIri) {
@@ -30,54 +56,56 @@ class Relations {
         relations.each { result.addAll(storage.getByReverseRelation(iri, it)) }
         return result
     }
+
+    Map<Link, Set<String>> bulkGetByReverse(Collection<Link> links) {
+        return storage.bulkGetByReverseRelation(links)
+    }
     
     Map<String, Long> getReverseCountByRelation(String iri) {
         storage.getIncomingLinkCountByRelation(iri)
     }
 
     private boolean isReachable(String fromIri, String toIri, List<String> relations) {
-        Set<String> visited = []
-        List<String> stack = [fromIri]
-
-        while (!stack.isEmpty()) {
-            String iri = stack.pop()
-            for (String relation : relations) {
-                Set<String> dependencies = new HashSet<>(storage.getByRelation(iri, relation))
-                if (dependencies.contains(toIri)) {
-                    return true
-                }
-                dependencies.removeAll(visited)
-                visited.addAll(dependencies)
-                stack.addAll(dependencies)
-            }
-        }
-
-        return false
+        Boolean reachable = conceptGraph()?.isReachable(fromIri, toIri, relations, MAX_DEPTH)
+        return reachable != null
+                ? reachable
+                : storage.isReachable(fromIri, toIri, relations, MAX_DEPTH)
     }
 
     private Set<String> followReverse(String iri, List<String> relations) {
-        Set<String> iris = []
-        List<String> stack = [iri]
-
-        while (!stack.isEmpty()) {
-            String id = stack.pop()
-            
-            Set<String> dependers = new HashSet<>()
-            for (String relation : relations) {
-                dependers.addAll(storage.getByReverseRelation(id, relation))
-                if (isSymmetric(relation)) {
-                    dependers.addAll(storage.getByRelation(id, relation))
-                }
-            }
-            
-            dependers.removeAll(iris)
-            stack.addAll(dependers)
-            iris.addAll(dependers)
+        List<String> symmetric = relations.findAll { isSymmetric(it) }
+        Set<String> iris = conceptGraph()?.followReverse(iri, relations, symmetric, MAX_DEPTH)
+        return iris != null
+                ? iris
+                : storage.followReverse(iri, relations, symmetric, MAX_DEPTH)
+    }
+
+    private ConceptGraph conceptGraph() {
+        ConceptGraph graph = conceptGraph
+        if (graph != null && System.currentTimeMillis() - conceptGraphLoadedAt < CONCEPT_GRAPH_MAX_AGE_MS) {
+            return graph
         }
 
-        return iris
+        synchronized (this) {
+            if (conceptGraph != null && System.currentTimeMillis() - conceptGraphLoadedAt < CONCEPT_GRAPH_MAX_AGE_MS) {
+                return conceptGraph
+            }
+            long generation = conceptGraphGeneration.get()
+            try {
+                graph = storage.loadDefinitionsConceptGraph(BROADER_RELATIONS)
+            }
+            catch (Exception e) {
+                log.warn("Could not load concept graph: $e", e)
+                return null
+            }
+            if (conceptGraphGeneration.get() == generation) {
+                conceptGraph = graph
+                conceptGraphLoadedAt = System.currentTimeMillis()
+            }
+            return graph
+        }
     }
-    
+
     private static boolean isSymmetric(String relation) {
         // FIXME get from vocab
         relation == "exactMatch"
@@ -0,0 +1,83 @@
+package whelk
+
+import groovy.transform.CompileStatic
+import groovy.transform.Immutable
+
+/**
+ * A typed identifier of a record (graphIndex 0) or thing (graphIndex 1), e.g. an ISBN in identifiedBy of the thing.
+ *
+ * These are stored in lddb__typed_identifiers for duplicate and collision checks. Values are stored and looked up
+ * normalized, see normalize().
+ *
+ * Relations are identifiedBy and indirectlyIdentifiedBy, or marc:canceledIssn for canceled ISSNs of ISSN
+ * identifiers in identifiedBy.
+ */
+@CompileStatic
+@Immutable
+class TypedIdentifier {
+    static final String IDENTIFIED_BY = 'identifiedBy'
+    static final String INDIRECTLY_IDENTIFIED_BY = 'indirectlyIdentifiedBy'
+    static final String CANCELED_ISSN = 'marc:canceledIssn'
+
+    int graphIndex
+    String relation
+    /** null matches any type on lookup */
+    String type
+    String value
+
+    static TypedIdentifier thing(String type, String value, String relation = IDENTIFIED_BY) {
+        return new TypedIdentifier(1, relation, type, value)
+    }
+
+    static TypedIdentifier record(String type, String value) {
+        return new TypedIdentifier(0, IDENTIFIED_BY, type, value)
+    }
+
+    /**
+     * Identifiers are compared ignoring case and surrounding whitespace (the same as the backfill in migration 24).
+     */
+    static String normalize(String value) {
+        return value?.trim()?.toUpperCase(Locale.ROOT)
+    }
+
+    /**
+     * All typed identifiers of the record and thing in document data, normalized.
+     */
+    static Set<TypedIdentifier> collect(Map data) {
+        Set<TypedIdentifier> result = new LinkedHashSet<>()
+        Object graph = data['@graph']
+        if (!(graph instanceof List)) {
+            return result
+        }
+        for (int graphIndex = 0; graphIndex < 2 && graphIndex < ((List) graph).size(); graphIndex++) {
+            Object entity = ((List) graph)[graphIndex]
+            if (!(entity instanceof Map)) {
+                continue
+            }
+            collect((Map) entity, graphIndex, IDENTIFIED_BY, IDENTIFIED_BY, 'value', result)
+            collect((Map) entity, graphIndex, INDIRECTLY_IDENTIFIED_BY, INDIRECTLY_IDENTIFIED_BY, 'value', result)
+            collect((Map) entity, graphIndex, IDENTIFIED_BY, CANCELED_ISSN, CANCELED_ISSN, result)
+        }
+        return result
+    }
+
+    private static void collect(Map entity, int graphIndex, String property, String relation, String valueKey,
+            Set<TypedIdentifier> result) {
+        for (Object identifier : asList(entity[property])) {
+            if (!(identifier instanceof Map)) {
+                continue
+            }
+            Object type = ((Map) identifier)['@type']
+            for (Object value : asList(((Map) identifier)[valueKey])) {
+                if (value instanceof String) {
+                    result.add(new TypedIdentifier(graphIndex, relation, type instanceof String ? (String) type : null,
+                            normalize((String) value)))
+                }
+            }
+        }
+    }
+
+    private static List asList(Object o) {
+        return o instanceof List ? (List) o : o != null ? [o] : []
+    }
+}
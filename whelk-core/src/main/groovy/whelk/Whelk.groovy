@@ -1,6 +1,5 @@
 package whelk
 
-import com.google.common.collect.Iterables
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
 import se.kb.libris.Normalizers
@@ -8,6 +7,7 @@ import whelk.component.CachingPostgreSQLComponent
 import whelk.component.DocumentNormalizer
 import whelk.component.ElasticSearch
 import whelk.component.PostgreSQLComponent
+import whelk.component.ReindexQueue
 import whelk.component.SparqlUpdater
 import whelk.converter.marc.MarcFrameConverter
 import whelk.exception.StorageCreateFailedException
@@ -25,10 +25,10 @@ import java.time.ZoneId
 @Log
 @CompileStatic
 class Whelk {
-    ThreadGroup indexers = new ThreadGroup("dep-reindex")
     PostgreSQLComponent storage
     ElasticSearch elastic
     SparqlUpdater sparqlUpdater
+    ReindexQueue reindexQueue
 
     Map displayData
     Map vocabData
@@ -43,9 +43,9 @@ class Whelk {
     URI baseUri = null
     boolean skipIndex = false
 
-    // useCache may be set to true only when doing initial imports (temporary processes with the rest of Libris down).
-    // Any other use of this results in a "local" cache, which will not be invalidated when data changes elsewhere,
-    // resulting in potential serving of stale data.
+    // useCache keeps cards in memory, see CachingPostgreSQLComponent. Cards changed through any PostgreSQLComponent
+    // using the same database (cached or not, e.g. in whelktool or the importers) are evicted, but changes made
+    // directly in the database are not.
 
     // TODO: encapsulate and configure (LXL-260)
     String vocabContextUri = "https://id.kb.se/vocab/context"
@@ -97,6 +97,13 @@ class Whelk {
         }
         loadCoreData()
         sparqlUpdater = SparqlUpdater.build(storage, jsonld.context, configuration)
+        reindexQueue = ReindexQueue.build(this, configuration)
+        storage.reindexQueueEnabled = reindexQueue != null && !skipIndex
+    }
+
+    void setSkipIndex(boolean skipIndex) {
+        this.skipIndex = skipIndex
+        storage.reindexQueueEnabled = reindexQueue != null && !skipIndex
     }
 
     synchronized MarcFrameConverter getMarcFrameConverter() {
@@ -161,95 +168,21 @@ class Whelk {
         return doc
     }
 
+    /**
+     * Load documents by system id or IRI
+     * @return non-deleted documents by requested identifier
+     */
     Map<String, Document> bulkLoad(Collection<String> ids) {
-        Map<String, Document> result = [:]
-        ids.each { id ->
-            Document doc
-
-            // Fetch from DB
-            if (id.startsWith(Document.BASE_URI.toString())) {
-                id = Document.BASE_URI.resolve(id).getPath().substring(1)
-            }
-            doc = storage.load(id)
-            if (doc == null)
-                doc = storage.getDocumentByIri(id)
-
-            if (doc && !doc.deleted) {
-                result[id] = doc
-            }
-        }
-        return result
+        return storage.bulkLoad(ids).findAll { String id, Document doc -> !doc.deleted }
     }
 
-    private void reindex(Document updated, Document preUpdateDoc) {
+    /**
+     * Index the updated document. Other affected documents are reindexed by the ReindexQueue.
+     */
+    private void reindex(Document updated) {
         if (elastic && !skipIndex) {
             elastic.index(updated, this)
-
-            if (hasChangedMainEntityId(updated, preUpdateDoc)) {
-                reindexAllLinks(updated.shortId)
-            } else {
-                reindexAffected(updated, preUpdateDoc.getExternalRefs(), updated.getExternalRefs())
-            }
-        }
-    }
-
-    private void reindexAffected(Document document, Set<Link> preUpdateLinks, Set<Link> postUpdateLinks) {
-        Runnable reindex = {
-            try {
-                reindexAffectedSync(document, preUpdateLinks, postUpdateLinks)
-            } 
-            catch (Exception e) {
-                log.error("Error reindexing: $e", e)
-            }
-        }
-
-        // If we are inside a batch job. Update them synchronously
-        if (batchJobThread()) {
-            reindex.run()
-        } else {
-            // else use a fire-and-forget thread
-            new Thread(indexers, reindex).start()
-        }
-    }
-
-    private void reindexAllLinks(String id) {
-        SortedSet<String> links = storage.getDependencies(id)
-        links.addAll(storage.getDependers(id))
-        bulkIndex(links)
-    }
-
-    private void reindexAffectedSync(Document document, Set<Link> preUpdateLinks, Set<Link> postUpdateLinks) {
-        Set<Link> addedLinks = (postUpdateLinks - preUpdateLinks)
-        Set<Link> removedLinks = (preUpdateLinks - postUpdateLinks)
-
-        removedLinks.findResults { storage.getSystemIdByIri(it.iri) }
-                .each{id -> elastic.decrementReverseLinks(id) }
-
-        addedLinks.each { link ->
-            String id = storage.getSystemIdByIri(link.iri)
-            if (id) {
-                Document doc = storage.load(id)
-                def lenses = ['chips', 'cards', 'full']
-                def reverseRelations = lenses.collect{ jsonld.getInverseProperties(doc.data, it) }.flatten()
-                if (reverseRelations.contains(link.relation)) {
-                    // we added a link to a document that includes us in its @reverse relations, reindex it
-                    elastic.index(doc, this)
-                }
-                else {
-                    // just update link counter
-                    elastic.incrementReverseLinks(id)
-                }
-            }
-        }
-        
-        if (storage.isCardChangedOrNonexistent(document.getShortId())) {
-            bulkIndex(elastic.getAffectedIds(document.getThingIdentifiers() + document.getRecordIdentifiers()))
-        }
-    }
-    
-    private void bulkIndex(Iterable<String> ids) {
-        Iterables.partition(ids, 100).each {
-            elastic.bulkIndexWithRetry(it, this)
+            reindexQueue?.drainIfSynchronous()
         }
     }
 
@@ -275,6 +208,7 @@ class Whelk {
         // Typed id queries on:
         List<Tuple> typedIDs = document.getTypedRecordIdentifiers()
         typedIDs.addAll(document.getTypedThingIdentifiers())
+        List<TypedIdentifier> toLookUp = []
         for (Tuple typedID : typedIDs) {
             String type = typedID[0]
             String value = typedID[1]
@@ -284,19 +218,23 @@ class Whelk {
             if (type == "Identifier" || type == "SystemNumber")
                 continue
 
-            List<String> collisions = storage.getSystemIDsByTypedID(type, value, graphIndex)
+            toLookUp.add(new TypedIdentifier(graphIndex, TypedIdentifier.IDENTIFIED_BY, type, value))
+        }
+
+        storage.getSystemIdsByTypedIds(toLookUp).each { TypedIdentifier typedID, Set<String> collisions ->
+            String description = typedID.type + "," + typedID.graphIndex + "," + typedID.value
             if (!collisions.isEmpty()) {
                 if (includingTypedIDs) {
                     for (String collision : collisions) {
                         if (collision != document.getShortId())
-                        collidingSystemIDs.add( new Tuple2(collision, "on typed id: " + type + "," + graphIndex + "," + value) )
+                        collidingSystemIDs.add( new Tuple2(collision, "on typed id: " + description) )
                     }
                 } else {
 
                     // We currently are not allowed to enforce typed identifier uniqueness. :(
                     // We can warn at least.
                     log.warn("While testing " + document.getShortId() + " for collisions: Ignoring typed ID collision with : "
-                            + collisions + " on " + type + "," + graphIndex + "," + value + " for political reasons.")
+                            + collisions + " on " + description + " for political reasons.")
                 }
             }
         }
@@ -319,10 +257,7 @@ class Whelk {
 
         boolean success = storage.createDocument(document, changedIn, changedBy, collection, deleted)
         if (success) {
-            if (elastic && !skipIndex) {
-                elastic.index(document, this)
-                reindexAffected(document, new TreeSet<>(), document.getExternalRefs())
-            }
+            reindex(document)
             sparqlUpdater?.pollNow()
         }
         return success
@@ -333,31 +268,28 @@ class Whelk {
      * was modified in another transaction.
      */
     void storeAtomicUpdate(String id, boolean minorUpdate, String changedIn, String changedBy, PostgreSQLComponent.UpdateAgent updateAgent) {
-        Document preUpdateDoc = null
         Document updated = storage.storeUpdate(id, minorUpdate, changedIn, changedBy, { Document doc ->
-            preUpdateDoc = doc.clone()
             updateAgent.update(doc)
             normalize(doc)
         })
 
-        if (updated == null || preUpdateDoc == null) {
+        if (updated == null) {
             return
         }
 
-        reindex(updated, preUpdateDoc)
+        reindex(updated)
         sparqlUpdater?.pollNow()
     }
 
     void storeAtomicUpdate(Document doc, boolean minorUpdate, String changedIn, String changedBy, String oldChecksum) {
         normalize(doc)
-        Document preUpdateDoc = storage.load(doc.shortId)
         Document updated = storage.storeAtomicUpdate(doc, minorUpdate, changedIn, changedBy, oldChecksum)
 
         if (updated == null) {
             return
         }
         
-        reindex(updated, preUpdateDoc)
+        reindex(updated)
         sparqlUpdater?.pollNow()
     }
 
@@ -372,11 +304,10 @@ class Whelk {
   
     void remove(String id, String changedIn, String changedBy) {
         log.debug "Deleting ${id} from Whelk"
-        Document doc = storage.load(id)
         storage.remove(id, changedIn, changedBy)
         if (elastic && !skipIndex) {
             elastic.remove(id)
-            reindexAffected(doc, doc.getExternalRefs(), new TreeSet<>())
+            reindexQueue?.drainIfSynchronous()
             log.debug "Object ${id} was removed from Whelk"
         }
         else {
@@ -391,14 +322,22 @@ class Whelk {
     }
 
     void embellish(Document document, List<String> levels = null) {
-        def docsByIris = { List<String> iris -> bulkLoad(iris).values().collect{ it.data } }
+        embellishAll([document], levels)
+    }
+
+    /**
+     * Embellish documents together, sharing lookups between them
+     */
+    void embellishAll(Collection<Document> documents, List<String> levels = null) {
+        def docsByIris = { Collection<String> iris -> bulkLoad(iris).values().collect{ it.data } }
         Embellisher e = new Embellisher(jsonld, docsByIris, storage.&getCards, relations.&getByReverse)
+        e.setGetByReverseRelations(relations.&bulkGetByReverse)
 
         if(levels) {
             e.setEmbellishLevels(levels)
         }
 
-        e.embellish(document)
+        e.embellishAll(documents)
     }
 
     /**
@@ -433,7 +372,10 @@ class Whelk {
 
     void normalize(Document doc) {
         try {
-            doc.normalizeUnicode()
+            List<List> normalized = doc.normalizeUnicode()
+            if (normalized && log.isDebugEnabled()) {
+                log.debug("Normalized Unicode in ${doc.getShortId()} at $normalized")
+            }
             doc.trimStrings()
 
             if (normalizer != null) {
@@ -456,10 +398,6 @@ class Whelk {
         storage.removeUserData(id)
     }
 
-    private static boolean batchJobThread() {
-        return Thread.currentThread().getThreadGroup().getName().contains("whelktool")
-    }
-
     ZoneId getTimezone() {
         return timezone
     }
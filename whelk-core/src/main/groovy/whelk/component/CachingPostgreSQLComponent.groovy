@@ -1,20 +1,32 @@
 package whelk.component
 
-import com.google.common.cache.CacheBuilder
-import com.google.common.cache.CacheLoader
-import com.google.common.cache.LoadingCache
 import groovy.util.logging.Log4j2 as Log
-import whelk.Document
 
 import java.sql.Connection
 
+/**
+ * Keeps cards in a CardCache. Every PostgreSQLComponent sends changes to cards as notifications to all nodes using the
+ * same database when the transaction commits, so this can be used on any number of nodes.
+ */
 @Log
 class CachingPostgreSQLComponent extends PostgreSQLComponent {
-    private static final int CARD_CACHE_MAX_SIZE = 250_000
-    private LoadingCache<String, Map> cardCache
+    public static final String PROPERTY_CARD_CACHE_MAX_SIZE = "cardCacheMaxSizeBytes"
+
+    private long cardCacheMaxSize = 256L * 1024L * 1024L // default 256MB
+    private CardCache cardCache
 
     CachingPostgreSQLComponent(Properties properties) {
         super(properties)
+        if (properties.getProperty(PROPERTY_CARD_CACHE_MAX_SIZE)) {
+            cardCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_CARD_CACHE_MAX_SIZE))
+        }
+        log.info("$PROPERTY_CARD_CACHE_MAX_SIZE: $cardCacheMaxSize")
+        initCaches()
+    }
+
+    // for testing
+    CachingPostgreSQLComponent(PostgreSQLNotificationListener notificationListener) {
+        super(notificationListener)
         initCaches()
     }
 
@@ -26,54 +38,59 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
 
     @Override
     Iterable<Map> getCards(Iterable<String> iris) {
-        cardCache.getAll(iris).values().findAll{ !it.isEmpty() }
-    }
-
-    @Override
-    Map getCard(String iri) {
-        return cardCache.get(iri)
-    }
+        Map<String, Map> cards = new LinkedHashMap<>()
+        List<String> missing = []
+        for (String iri : iris) {
+            String systemId = cardCache.getSystemId(iri)
+            Map card = systemId ? cardCache.get(iri) : null
+            if (card != null) {
+                cards.putIfAbsent(systemId, card)
+            } else {
+                missing << iri
+            }
+        }
 
-    @Override
-    protected boolean storeCard(CardEntry cardEntry, Connection connection) {
-        boolean change = super.storeCard(cardEntry, connection)
-        Document card = cardEntry.getCard()
-        card.getThingIdentifiers().each { id ->
-            cardCache.put(id, card.data)
+        if (!missing.isEmpty()) {
+            long generation = cardCache.generation()
+            Map<String, String> irisToIds = getSystemIdsByIris(missing)
+            Map<String, Map> loaded = createAndAddMissingCards(bulkLoadCards(irisToIds.values()))
+            irisToIds.each { iri, systemId ->
+                Map card = loaded[systemId]
+                if (card != null) {
+                    cardCache.put(iri, systemId, card, generation)
+                    cards.putIfAbsent(systemId, card)
+                }
+            }
         }
 
-        return change
+        return cards.values()
     }
 
     @Override
-    protected void deleteCard(Document doc, Connection connection) {
-        super.deleteCard(doc, connection)
-        doc.getThingIdentifiers().each { id ->
-            cardCache.invalidate(id)
+    Map getCard(String iri) {
+        Map card = cardCache.get(iri)
+        if (card != null) {
+            return card
         }
+
+        long generation = cardCache.generation()
+        String systemId = getSystemIdByIri(iri)
+        card = loadCard(systemId) ?: makeCardData(systemId)
+        cardCache.put(iri, systemId, card, generation)
+        return card
     }
 
-    private Map superGetCard(String iri) {
-        return super.getCard(iri)
+    @Override
+    protected void cardChanged(String systemId, Connection connection) {
+        // Evict locally right away, other nodes (and this one again) get notified when the transaction commits
+        cardCache.invalidate([systemId])
+        super.cardChanged(systemId, connection)
     }
 
     void initCaches() {
-        cardCache = CacheBuilder.newBuilder()
-                .maximumSize(CARD_CACHE_MAX_SIZE)
-                .recordStats()
-                .build(new CacheLoader<String, Map>() {
-                    @Override
-                    Map load(String iri) throws Exception {
-                        return superGetCard(iri)
-                    }
-
-                    @Override
-                    Map<String, Map> loadAll(Iterable<? extends String> iris) throws Exception {
-                        def irisToIds = getSystemIdsByIris(iris)
-                        def cards = createAndAddMissingCards(bulkLoadCards(irisToIds.values()))
-                        cards.put('NON-EXISTING', Collections.emptyMap())
-                        return iris.collectEntries { [it, cards.get(irisToIds.get(it) ?: "NON-EXISTING")] }
-                    }
-                })
+        cardCache = new CardCache(cardCacheMaxSize)
+        getNotificationListener().listen(CARD_EVICTION_CHANNEL,
+                { String payload -> cardCache.invalidate(PostgreSQLNotificationListener.parseIds(payload)) },
+                { cardCache.invalidateAll() })
     }
 }
@@ -0,0 +1,135 @@
+package whelk.component
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.RemovalListener
+import com.google.common.cache.RemovalNotification
+import com.google.common.cache.Weigher
+import groovy.transform.CompileStatic
+import whelk.util.Metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * In-heap cache of cards by thing IRI, in front of lddb__cards.
+ *
+ * Like EmbellishedDocumentCache, entries are kept serialized (and weighed by their size in bytes) since callers
+ * are free to modify the cards they get back, and every entry is stamped with the generation it was read in so
+ * that data read before an invalidation is never cached after it.
+ *
+ * An entry is invalidated by the system id of its document, whatever IRI it was cached by.
+ */
+@CompileStatic
+class CardCache {
+    // Safety net in case invalidations are lost
+    private static final int EXPIRE_AFTER_WRITE_HOURS = 6
+
+    private static class Entry {
+        final byte[] data
+        final String systemId
+
+        Entry(byte[] data, String systemId) {
+            this.data = data
+            this.systemId = systemId
+        }
+    }
+
+    private final Cache<String, Entry> cache
+    private final Map<String, Set<String>> irisBySystemId = new ConcurrentHashMap<>()
+
+    // Incremented on every invalidation so that loads racing with an invalidation aren't cached
+    private final AtomicLong generation = new AtomicLong()
+
+    CardCache(long maxSizeBytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    int weigh(String iri, Entry entry) {
+                        return entry.data.length
+                    }
+                })
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_HOURS, TimeUnit.HOURS)
+                .removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    void onRemoval(RemovalNotification<String, Entry> notification) {
+                        unindex(notification)
+                    }
+                })
+                .recordStats()
+                .build()
+
+        Metrics.cacheMetrics.addCache('cardCache', cache)
+    }
+
+    long generation() {
+        return generation.get()
+    }
+
+    /**
+     * @return the card, or null if not cached
+     */
+    Map get(String iri) {
+        Entry entry = cache.getIfPresent(iri)
+        return entry ? (Map) mapper.readValue(entry.data, Map) : null
+    }
+
+    String getSystemId(String iri) {
+        return cache.getIfPresent(iri)?.systemId
+    }
+
+    /**
+     * @param generation value of generation() before the card was read
+     */
+    void put(String iri, String systemId, Map card, long generation) {
+        irisBySystemId.compute(systemId, { String k, Set<String> iris ->
+            Set<String> result = iris ?: ConcurrentHashMap.<String>newKeySet()
+            result.add(iri)
+            return result
+        })
+        cache.put(iri, new Entry(mapper.writeValueAsBytes(card), systemId))
+
+        if (this.generation.get() != generation) {
+            cache.invalidate(iri)
+        }
+    }
+
+    void invalidate(Collection<String> systemIds) {
+        generation.incrementAndGet()
+        for (String systemId : systemIds) {
+            Set<String> iris = irisBySystemId.remove(systemId)
+            if (iris) {
+                cache.invalidateAll(iris)
+            }
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet()
+        cache.invalidateAll()
+        irisBySystemId.clear()
+    }
+
+    String stats() {
+        return cache.stats().toString()
+    }
+
+    private void unindex(RemovalNotification<String, Entry> notification) {
+        Entry removed = notification.getValue()
+        if (removed == null) {
+            return
+        }
+        Entry current = cache.getIfPresent(notification.getKey())
+        if (current != null && current.systemId == removed.systemId) {
+            return
+        }
+        irisBySystemId.computeIfPresent(removed.systemId, { String k, Set<String> iris ->
+            iris.remove(notification.getKey())
+            return iris.isEmpty() ? null : iris
+        })
+    }
+}
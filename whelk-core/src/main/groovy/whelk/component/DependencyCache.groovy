@@ -7,47 +7,65 @@ import com.google.common.util.concurrent.ListenableFuture
 import com.google.common.util.concurrent.ListenableFutureTask
 import com.google.common.util.concurrent.ThreadFactoryBuilder
 import groovy.util.logging.Log4j2 as Log
-import io.prometheus.client.guava.cache.CacheMetricsCollector
 import whelk.Document
 import whelk.Link
-import whelk.exception.MissingMainIriException
+import whelk.util.Metrics
 
+import java.nio.charset.StandardCharsets
+import java.sql.Connection
 import java.util.concurrent.Callable
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
-import java.util.function.BiFunction
+import java.util.function.Consumer
+import java.util.function.Function
 import java.util.function.Supplier
 
+/**
+ * Caches (thing IRI, relation) -> thing main IRIs of dependers and dependencies.
+ *
+ * Entries are loaded in bulk with one query for all missing links. Other nodes sharing the database are notified
+ * of invalidations when the invalidating transaction commits, see notifyInvalidation().
+ */
 @Log
 class DependencyCache {
-    private static final int CACHE_SIZE = 50_000
+    // Sum of the number of IRIs in all cached sets
+    private static final long MAX_CACHE_WEIGHT = 2_000_000
+    // Sets larger than this are still cached but weigh no more, so that they are not evicted right away
+    private static final int MAX_ENTRY_WEIGHT = (int) MAX_CACHE_WEIGHT.intdiv(8)
     private static final int REFRESH_INTERVAL_MINUTES = 5
 
-    private static final CacheMetricsCollector cacheMetrics = new CacheMetricsCollector().register()
+    private static final String INVALIDATION_CHANNEL = "lddb__dependency_cache_evict"
+    private static final String DEPENDERS = "<"
+    private static final String DEPENDENCIES = ">"
 
     PostgreSQLComponent storage
 
+    private List<Consumer<Set<Link>>> invalidationListeners = new CopyOnWriteArrayList<>()
+
     private Executor cacheRefresher = Executors.newSingleThreadExecutor(
             new ThreadFactoryBuilder().setDaemon(true).build())
 
     private LoadingCache<Link, Set<String>> dependersCache = CacheBuilder.newBuilder()
-            .maximumSize(CACHE_SIZE)
+            .maximumWeight(MAX_CACHE_WEIGHT)
+            .weigher(DependencyCache.&weigh)
             .refreshAfterWrite(REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES)
             .recordStats()
-            .build(loader(storage.&getDependersOfType))
+            .build(loader({ links -> storage.getDependerIrisOfType(links) }))
 
     private LoadingCache<Link, Set<String>> dependenciesCache = CacheBuilder.newBuilder()
-            .maximumSize(CACHE_SIZE)
+            .maximumWeight(MAX_CACHE_WEIGHT)
+            .weigher(DependencyCache.&weigh)
             .refreshAfterWrite(REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES)
             .recordStats()
-            .build(loader(storage.&getDependenciesOfType))
+            .build(loader({ links -> storage.getDependencyIrisOfType(links) }))
     
     DependencyCache(PostgreSQLComponent storage) {
         this.storage = storage
 
-        cacheMetrics.addCache('dependersCache', dependersCache)
-        cacheMetrics.addCache('dependencyCache', dependenciesCache)
+        Metrics.cacheMetrics.addCache('dependersCache', dependersCache)
+        Metrics.cacheMetrics.addCache('dependencyCache', dependenciesCache)
     }
 
     Set<String> getDependenciesOfType(String iri, String typeOfRelation) {
@@ -58,15 +76,97 @@ class DependencyCache {
         return dependersCache.getUnchecked(new Link(iri: iri, relation: typeOfRelation))
     }
 
+    Map<Link, Set<String>> getDependersOfType(Collection<Link> links) {
+        return dependersCache.getAll(links)
+    }
+
     void invalidate(Document createdDoc) {
+        invalidate(invalidatedBy(createdDoc))
+    }
+
+    void invalidate(Document preUpdateDoc, Document postUpdateDoc) {
+        invalidate(invalidatedBy(preUpdateDoc, postUpdateDoc))
+    }
+
+    void invalidate(String fromIri, Link link) {
+        Map<String, Set<Link>> keys = emptyKeys()
+        addKeys(keys, fromIri, link)
+        invalidate(keys)
+    }
+
+    /**
+     * Tell all nodes (including this one) to invalidate what a created document invalidates.
+     * Delivered when the transaction of connection commits.
+     */
+    void notifyInvalidation(Document createdDoc, Connection connection) {
+        notifyInvalidation(invalidatedBy(createdDoc), connection)
+    }
+
+    /**
+     * Tell all nodes (including this one) to invalidate what an updated document invalidates.
+     * Delivered when the transaction of connection commits.
+     */
+    void notifyInvalidation(Document preUpdateDoc, Document postUpdateDoc, Connection connection) {
+        notifyInvalidation(invalidatedBy(preUpdateDoc, postUpdateDoc), connection)
+    }
+
+    void listenForInvalidation(PostgreSQLNotificationListener listener) {
+        listener.listen(INVALIDATION_CHANNEL,
+                { String payload ->
+                    Map<String, Set<Link>> keys = decode(payload)
+                    invalidate(keys)
+                    invalidationListeners.each { it.accept(keys[DEPENDERS]) }
+                },
+                {
+                    invalidateAll()
+                    invalidationListeners.each { it.accept(null) }
+                })
+    }
+
+    /**
+     * @param listener called with the (thing IRI, relation) links that changed on any node, or with null if
+     * changes may have been missed
+     */
+    void addInvalidationListener(Consumer<Set<Link>> listener) {
+        invalidationListeners.add(listener)
+    }
+
+    void invalidateAll() {
+        dependersCache.invalidateAll()
+        dependenciesCache.invalidateAll()
+    }
+
+    void logStats() {
+        log.info("dependersCache: ${dependersCache.stats()}")
+        log.info("dependenciesCache: ${dependenciesCache.stats()}")
+    }
+
+    private void invalidate(Map<String, Set<Link>> keys) {
+        dependersCache.invalidateAll(keys[DEPENDERS])
+        dependenciesCache.invalidateAll(keys[DEPENDENCIES])
+    }
+
+    private static void notifyInvalidation(Map<String, Set<Link>> keys, Connection connection) {
+        List<String> encoded = []
+        keys.each { kind, links ->
+            links.each { Link link -> encoded << encode(kind, link) }
+        }
+        if (!encoded.isEmpty()) {
+            PostgreSQLNotificationListener.notifyIds(INVALIDATION_CHANNEL, encoded, connection)
+        }
+    }
+
+    private static Map<String, Set<Link>> invalidatedBy(Document createdDoc) {
+        Map<String, Set<Link>> keys = emptyKeys()
         createdDoc.getThingIdentifiers().each { fromIri ->
             createdDoc.getExternalRefs().each { link ->
-                invalidate(fromIri, link)
+                addKeys(keys, fromIri, link)
             }
         }
+        return keys
     }
 
-    void invalidate(Document preUpdateDoc, Document postUpdateDoc) {
+    private static Map<String, Set<Link>> invalidatedBy(Document preUpdateDoc, Document postUpdateDoc) {
         Set thingIris = new HashSet<>()
         thingIris.addAll(preUpdateDoc.getThingIdentifiers())
         thingIris.addAll(postUpdateDoc.getThingIdentifiers())
@@ -74,49 +174,62 @@ class DependencyCache {
         Set<Link> added = (postUpdateDoc.getExternalRefs() - preUpdateDoc.getExternalRefs())
         Set<Link> removed = (preUpdateDoc.getExternalRefs() - postUpdateDoc.getExternalRefs())
 
+        Map<String, Set<Link>> keys = emptyKeys()
         (added + removed).each { Link link ->
             thingIris.each { fromIri ->
-                invalidate(fromIri, link)
+                addKeys(keys, fromIri, link)
             }
         }
+        return keys
     }
 
-    void invalidate(String fromIri, Link link) {
-        dependersCache.invalidate(link)
-        dependenciesCache.invalidate(new Link(iri: fromIri, relation: link.relation))
+    private static Map<String, Set<Link>> emptyKeys() {
+        return [(DEPENDERS): new HashSet<Link>(), (DEPENDENCIES): new HashSet<Link>()]
     }
 
-    void logStats() {
-        log.info("dependersCache: ${dependersCache.stats()}")
-        log.info("dependenciesCache: ${dependenciesCache.stats()}")
+    private static void addKeys(Map<String, Set<Link>> keys, String fromIri, Link link) {
+        keys[DEPENDERS] << link
+        keys[DEPENDENCIES] << new Link(iri: fromIri, relation: link.relation)
     }
-    
-    private CacheLoader<Link, Set<String>> loader(BiFunction<String, String, Set> func) {
+
+    // IRIs can contain the payload separator, so each key is URL encoded
+    private static String encode(String kind, Link link) {
+        return URLEncoder.encode(kind + link.relation + ' ' + link.iri, StandardCharsets.UTF_8)
+    }
+
+    private static Map<String, Set<Link>> decode(String payload) {
+        Map<String, Set<Link>> keys = emptyKeys()
+        PostgreSQLNotificationListener.parseIds(payload).each { String encoded ->
+            String key = URLDecoder.decode(encoded, StandardCharsets.UTF_8)
+            int space = key.indexOf(' ')
+            keys[key.substring(0, 1)]?.add(new Link(relation: key.substring(1, space), iri: key.substring(space + 1)))
+        }
+        return keys
+    }
+
+    private static int weigh(Link link, Set<String> iris) {
+        return 1 + Math.min(iris.size(), MAX_ENTRY_WEIGHT)
+    }
+
+    /**
+     * Loads all links missing from the cache with one call, also when only one link is missing
+     */
+    private CacheLoader<Link, Set<String>> loader(Function<Collection<Link>, Map<Link, Set<String>>> bulkFunc) {
         return new CacheLoader<Link, Set<String>>() {
             @Override
             Set<String> load(Link link) {
-                try {
-                    def iris = func.apply(storage.getSystemIdByThingId(link.iri), link.relation)
-                            .findResults (this.&tryGetThingMainIriBySystemId)
+                return loadAll([link])[link]
+            }
 
-                    return iris.isEmpty()
+            @Override
+            Map<Link, Set<String>> loadAll(Iterable<? extends Link> links) {
+                Map<Link, Set<String>> result = [:]
+                bulkFunc.apply(links.collect()).each { link, iris ->
+                    result[link] = iris.isEmpty()
                             ? Collections.EMPTY_SET
-                            : Collections.unmodifiableSet(new HashSet(iris))
-                }
-                catch (MissingMainIriException e) {
-                    log.warn("Missing Main IRI: $e")
-                    return Collections.EMPTY_SET
-                }
-            }
-            
-            private String tryGetThingMainIriBySystemId(String systemId) {
-                try {
-                    return storage.getThingMainIriBySystemId(systemId)
-                }
-                catch (MissingMainIriException ignored) {
-                    log.warn("Missing thing main IRI for $systemId. Deleted?")
-                    return null
+                            : Collections.unmodifiableSet(iris)
                 }
+                return result
             }
 
             @Override
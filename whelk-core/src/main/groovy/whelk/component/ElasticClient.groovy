@@ -20,6 +20,7 @@ import org.apache.http.client.methods.HttpPost
 import org.apache.http.client.methods.HttpPut
 import org.apache.http.client.methods.HttpRequestBase
 import org.apache.http.conn.HttpClientConnectionManager
+import org.apache.http.entity.ByteArrayEntity
 import org.apache.http.entity.ContentType
 import org.apache.http.entity.StringEntity
 import org.apache.http.impl.client.CloseableHttpClient
@@ -31,6 +32,7 @@ import whelk.exception.UnexpectedHttpStatusException
 
 import java.time.Duration
 import java.util.function.Function
+import java.util.zip.GZIPOutputStream
 
 @Log
 class ElasticClient {
@@ -118,14 +120,36 @@ class ElasticClient {
     }
 
     String performRequest(String method, String path, String body, String contentType0 = null)
+        throws ElasticIOException, UnexpectedHttpStatusException {
+        return performEntityRequest(method, path, body ? stringEntity(body, contentType0) : null)
+    }
+
+    /**
+     * @param gzip send body compressed, with Content-Encoding: gzip
+     */
+    String performRequest(String method, String path, byte[] body, String contentType0, boolean gzip)
+        throws ElasticIOException, UnexpectedHttpStatusException {
+        return performRequest(method, path, body, body ? body.length : 0, contentType0, gzip)
+    }
+
+    /**
+     * @param length send only the first length bytes of body
+     * @param gzip send body compressed, with Content-Encoding: gzip
+     */
+    String performRequest(String method, String path, byte[] body, int length, String contentType0, boolean gzip)
+        throws ElasticIOException, UnexpectedHttpStatusException {
+        return performEntityRequest(method, path, length > 0 ? byteArrayEntity(body, length, contentType0, gzip) : null)
+    }
+
+    private String performEntityRequest(String method, String path, HttpEntity entity)
         throws ElasticIOException, UnexpectedHttpStatusException {
         try {
             def nodes = cycleNodes()
             if (useCircuitBreaker) {
-                globalRetry.executeSupplier({ -> nodes.next().performRequest(method, path, body, contentType0) })
+                globalRetry.executeSupplier({ -> nodes.next().performRequest(method, path, entity) })
             }
             else {
-                nodes.next().performRequest(method, path, body, contentType0)
+                nodes.next().performRequest(method, path, entity)
             }
         }
         catch (UnexpectedHttpStatusException e) {
@@ -137,6 +161,24 @@ class ElasticClient {
         }
     }
 
+    private static HttpEntity stringEntity(String body, String contentType) {
+        return new StringEntity(body,
+                contentType ? ContentType.create(contentType) : ContentType.APPLICATION_JSON)
+    }
+
+    private static HttpEntity byteArrayEntity(byte[] body, int length, String contentType, boolean gzip) {
+        ContentType type = contentType ? ContentType.create(contentType, 'UTF-8') : ContentType.APPLICATION_JSON
+        if (!gzip) {
+            return new ByteArrayEntity(body, 0, length, type)
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length.intdiv(4) as int)
+        new GZIPOutputStream(compressed).withCloseable { it.write(body, 0, length) }
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray(), type)
+        entity.setContentEncoding('gzip')
+        return entity
+    }
+
     private Iterator<ElasticNode> cycleNodes() {
         def cycle = Iterators.cycle(elasticNodes)
         Iterators.advance(cycle, random.nextInt(elasticNodes.size()))
@@ -164,8 +206,8 @@ class ElasticClient {
             }
         }
 
-        String performRequest(String method, String path, String body, String contentType0 = null) {
-            def (int statusCode, String resultBody) = send.apply(buildRequest(method, path, body, contentType0))
+        String performRequest(String method, String path, HttpEntity entity) {
+            def (int statusCode, String resultBody) = send.apply(buildRequest(method, path, entity))
             if (statusCode >= 200 && statusCode < 300) {
                 return resultBody
             }
@@ -218,34 +260,29 @@ class ElasticClient {
             }
         }
 
-        private HttpRequestBase buildRequest(String method, String path, String body, String contentType0 = null) {
+        private HttpRequestBase buildRequest(String method, String path, HttpEntity entity) {
             switch (method) {
                 case 'GET':
                     return new HttpGet(host + path)
                 case 'PUT':
                     HttpPut request = new HttpPut(host + path)
-                    if (body)
-                        request.setEntity(httpEntity(body, contentType0))
+                    if (entity)
+                        request.setEntity(entity)
                     return request
                 case 'POST':
                     HttpPost request = new HttpPost(host + path)
-                    if (body)
-                        request.setEntity(httpEntity(body, contentType0))
+                    if (entity)
+                        request.setEntity(entity)
                     return request
                 case 'DELETE':
                     HttpDeleteWithBody request = new HttpDeleteWithBody(host + path)
-                    if (body)
-                        request.setEntity(httpEntity(body, contentType0))
+                    if (entity)
+                        request.setEntity(entity)
                     return request
                 default:
                     throw new IllegalArgumentException("Bad request method:" + method)
             }
         }
-
-        private static HttpEntity httpEntity(String body, String contentType) {
-            return new StringEntity(body,
-                    contentType ? ContentType.create(contentType) : ContentType.APPLICATION_JSON)
-        }
     }
     
     class HttpDeleteWithBody extends HttpPost { // LOL
@@ -0,0 +1,142 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import org.codehaus.jackson.JsonEncoding
+import org.codehaus.jackson.JsonFactory
+import org.codehaus.jackson.JsonGenerator
+import whelk.JsonLd
+import whelk.util.Unicode
+
+import java.util.function.BiConsumer
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Serializes documents shaped for the index with a Jackson streaming generator, directly to bytes.
+ *
+ * Values of search keys (_str) are Unicode normalized while they are written, instead of in a separate pass over the
+ * document. Values that are StringMaps (e.g. _sortKeyByLang) are computed while they are written, instead of being
+ * built as maps first.
+ */
+@CompileStatic
+class ElasticJsonWriter {
+    private static final JsonFactory factory = mapper.getJsonFactory()
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024
+
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial({ -> new Buffer(INITIAL_BUFFER_SIZE) })
+
+    static byte[] toJson(Object data) {
+        Buffer buffer = buffers.get()
+        try {
+            write(data, buffer)
+            return buffer.toByteArray()
+        }
+        finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                buffers.remove()
+            }
+            else {
+                buffer.reset()
+            }
+        }
+    }
+
+    static void write(Object data, OutputStream out) {
+        JsonGenerator generator = factory.createJsonGenerator(out, JsonEncoding.UTF8)
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        writeValue(generator, data, false)
+        generator.close()
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value, boolean isSearchKey) {
+        if (value instanceof Map) {
+            generator.writeStartObject()
+            for (Map.Entry entry : ((Map<?, ?>) value).entrySet()) {
+                String key = entry.getKey().toString()
+                generator.writeFieldName(key)
+                writeValue(generator, entry.getValue(), JsonLd.SEARCH_KEY == key)
+            }
+            generator.writeEndObject()
+        }
+        else if (value instanceof Collection) {
+            generator.writeStartArray()
+            for (Object v : (Collection) value) {
+                writeValue(generator, v, isSearchKey)
+            }
+            generator.writeEndArray()
+        }
+        else if (value instanceof CharSequence) {
+            String s = value.toString()
+            // TODO: replace with elastic ICU Analysis plugin?
+            // https://www.elastic.co/guide/en/elasticsearch/plugins/current/analysis-icu.html
+            if (isSearchKey && !Unicode.isNormalizedForSearch(s)) {
+                s = Unicode.normalizeForSearch(s)
+            }
+            generator.writeString(s)
+        }
+        else if (value instanceof StringMap) {
+            generator.writeStartObject()
+            ((StringMap) value).eachEntry({ String key, String s ->
+                generator.writeStringField(key, s)
+            } as BiConsumer<String, String>)
+            generator.writeEndObject()
+        }
+        else if (value == null) {
+            generator.writeNull()
+        }
+        else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value)
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).longValue())
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            generator.writeNumber(((Number) value).doubleValue())
+        }
+        else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value)
+        }
+        else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value)
+        }
+        else {
+            mapper.writeValue(generator, value)
+        }
+    }
+
+    /**
+     * An object of string values that is computed while it is written
+     */
+    interface StringMap {
+        void eachEntry(BiConsumer<String, String> entry)
+    }
+
+    /**
+     * A byte buffer that can be rewound, to drop a partially written entry
+     */
+    static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size)
+        }
+
+        synchronized void truncate(int size) {
+            if (size < 0 || size > count) {
+                throw new IllegalArgumentException("Cannot truncate buffer of size $count to $size")
+            }
+            count = size
+        }
+
+        synchronized int capacity() {
+            return buf.length
+        }
+
+        /**
+         * The backing array, without copying. Only the first size() bytes are valid.
+         */
+        synchronized byte[] array() {
+            return buf
+        }
+    }
+}
@@ -13,15 +13,21 @@ import whelk.Whelk
 import whelk.exception.InvalidQueryException
 import whelk.exception.UnexpectedHttpStatusException
 import whelk.util.DocumentUtil
-import whelk.util.Unicode
 
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.LinkedBlockingQueue
+import java.util.function.BiConsumer
 
 import static whelk.util.Jackson.mapper
 
 @Log
 class ElasticSearch {
     static final String BULK_CONTENT_TYPE = "application/x-ndjson"
+    private static final int BULK_BYTES_PER_DOC_ESTIMATE = 8 * 1024
+    private static final int MAX_RETAINED_BULK_BODIES = 16
+    private static final int MAX_RETAINED_BULK_BODY_SIZE = 64 * 1024 * 1024
+    private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8)
 
     static final Set<String> LANGUAGES_TO_INDEX = ['sv', 'en'] as Set
     static final List<String> REMOVABLE_BASE_URIS = [
@@ -42,8 +48,13 @@ class ElasticSearch {
     private ElasticClient client
     private ElasticClient bulkClient
     private boolean isPitApiAvailable = false
+    private boolean gzipBulkRequests = false
 
     private final Queue<Runnable> indexingRetryQueue = new LinkedBlockingQueue<>()
+    // Buffers for bulk request bodies, see createBulkBody()
+    private final Queue<ElasticJsonWriter.Buffer> bulkBodies = new ConcurrentLinkedQueue<>()
+
+    final ElasticWriteAggregator writeAggregator
 
     ElasticSearch(Properties props) {
         this(
@@ -51,6 +62,7 @@ class ElasticSearch {
                 props.getProperty("elasticCluster"),
                 props.getProperty("elasticIndex")
         )
+        gzipBulkRequests = props.getProperty("elasticBulkGzip")?.toLowerCase() == 'true'
     }
 
     ElasticSearch(String elasticHost, String elasticCluster, String elasticIndex) {
@@ -60,6 +72,7 @@ class ElasticSearch {
 
         client = ElasticClient.withDefaultHttpClient(elasticHosts)
         bulkClient = ElasticClient.withBulkHttpClient(elasticHosts)
+        writeAggregator = new ElasticWriteAggregator(this)
 
         new Timer("ElasticIndexingRetries", true).schedule(new TimerTask() {
             void run() {
@@ -154,21 +167,83 @@ class ElasticSearch {
 
     void bulkIndex(Collection<Document> docs, Whelk whelk) {
         if (docs) {
-            String bulkString = docs.findResults{ doc ->
-                try {
-                    String shapedData = getShapeForIndex(doc, whelk)
-                    String action = createActionRow(doc)
-                    return "${action}\n${shapedData}\n"
-                } catch (Exception e) {
-                    log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
-                    return null
-                }
-            }.join('')
+            ElasticJsonWriter.Buffer body = createBulkBody(docs, whelk)
+            try {
+                sendBulkRequest(body, docs.count{it})
+            }
+            finally {
+                releaseBulkBody(body)
+            }
+        }
+    }
+
+    /**
+     * Shape documents for the index. Documents that fail are logged and left out.
+     *
+     * The buffer is reused for later bodies when it is given back with releaseBulkBody(), so it can be created and
+     * sent on different threads.
+     *
+     * @return request body for the _bulk API, as UTF-8 encoded NDJSON
+     */
+    ElasticJsonWriter.Buffer createBulkBody(Collection<Document> docs, Whelk whelk) {
+        List<Document> embellished = embellishForIndex(docs, whelk)
+        ElasticJsonWriter.Buffer body = bulkBodies.poll()
+                ?: new ElasticJsonWriter.Buffer(docs.size() * BULK_BYTES_PER_DOC_ESTIMATE)
+        int i = 0
+        for (Document doc : docs) {
+            Document embellishedDoc = embellished ? embellished[i++] : null
+            writeAggregator.cancelDelete(doc.getShortId())
+            int mark = body.size()
+            try {
+                Object shapedData = embellishedDoc
+                        ? shapeForIndex(doc, embellishedDoc, whelk)
+                        : shapeForIndex(doc, whelk)
+                ElasticJsonWriter.write(createAction(doc), body)
+                body.write(NEWLINE)
+                ElasticJsonWriter.write(shapedData, body)
+                body.write(NEWLINE)
+            } catch (Exception e) {
+                body.truncate(mark)
+                log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
+            }
+        }
+        return body
+    }
+
+    /**
+     * Give back a body from createBulkBody() for reuse. It must not be used after this.
+     */
+    void releaseBulkBody(ElasticJsonWriter.Buffer bulkBody) {
+        if (bulkBody.capacity() <= MAX_RETAINED_BULK_BODY_SIZE && bulkBodies.size() < MAX_RETAINED_BULK_BODIES) {
+            bulkBody.reset()
+            bulkBodies.offer(bulkBody)
+        }
+    }
 
-            String response = bulkClient.performRequest('POST', '/_bulk', bulkString, BULK_CONTENT_TYPE)
-            Map responseMap = mapper.readValue(response, Map)
-            log.info("Bulk indexed ${docs.count{it}} docs in ${responseMap.took} ms")
+    /**
+     * @param bulkBody as created by createBulkBody()
+     */
+    void sendBulkRequest(ElasticJsonWriter.Buffer bulkBody, int docCount) {
+        if (bulkBody.size() == 0) {
+            return
         }
+        Map responseMap = performBulkRequest(bulkBody.array(), bulkBody.size())
+        log.info("Bulk indexed ${docCount} docs in ${responseMap.took} ms")
+    }
+
+    Map performBulkRequest(byte[] bulkBody) {
+        return performBulkRequest(bulkBody, bulkBody.length)
+    }
+
+    /**
+     * Sent gzip compressed if elasticBulkGzip is set.
+     *
+     * @param bulkBody UTF-8 encoded NDJSON, in the first length bytes
+     * @return the parsed response
+     */
+    Map performBulkRequest(byte[] bulkBody, int length) {
+        String response = bulkClient.performRequest('POST', '/_bulk', bulkBody, length, BULK_CONTENT_TYPE, gzipBulkRequests)
+        return mapper.readValue(response, Map)
     }
 
     void bulkIndexWithRetry(Collection<String> ids, Whelk whelk) {
@@ -187,19 +262,25 @@ class ElasticSearch {
     }
 
     String createActionRow(Document doc) {
-        def action = ["index" : [ "_index" : indexName,
-                                  "_id" : toElasticId(doc.getShortId()) ]]
-        return mapper.writeValueAsString(action)
+        return mapper.writeValueAsString(createAction(doc))
+    }
+
+    private Map createAction(Document doc) {
+        return ["index" : [ "_index" : indexName,
+                            "_id" : toElasticId(doc.getShortId()) ]]
     }
 
     void index(Document doc, Whelk whelk) {
+        writeAggregator.cancelDelete(doc.getShortId())
         // The justification for this uncomfortable catch-all, is that an index-failure must raise an alert (log entry)
         // _internally_ but be otherwise invisible to clients (If postgres writing was ok, the save is considered ok).
         try {
             String response = client.performRequest(
                     'PUT',
                     "/${indexName}/_doc/${toElasticId(doc.getShortId())}",
-                    getShapeForIndex(doc, whelk))
+                    ElasticJsonWriter.toJson(shapeForIndex(doc, whelk)),
+                    null,
+                    false)
             if (log.isDebugEnabled()) {
                 Map responseMap = mapper.readValue(response, Map)
                 log.debug("Indexed the document ${doc.getShortId()} as ${indexName}/_doc/${responseMap['_id']} as version ${responseMap['_version']}")
@@ -215,84 +296,82 @@ class ElasticSearch {
         }
     }
 
+    /**
+     * Buffered, see ElasticWriteAggregator
+     */
     void incrementReverseLinks(String shortId) {
-        updateReverseLinkCounter(shortId, 1)
+        writeAggregator.addToReverseLinkCounter(shortId, 1)
     }
 
+    /**
+     * Buffered, see ElasticWriteAggregator
+     */
     void decrementReverseLinks(String shortId) {
-        updateReverseLinkCounter(shortId, -1)
-    }
-
-    private void updateReverseLinkCounter(String shortId, int deltaCount) {
-        String body = """
-        {
-            "script" : {
-                "source": "ctx._source.reverseLinks.totalItems += $deltaCount",
-                "lang": "painless"
-            }
-        }
-        """.stripIndent()
-
-        try {
-            client.performRequest(
-                    'POST',
-                    "/${indexName}/_update/${toElasticId(shortId)}",
-                    body)
-        }
-        catch (Exception e) {
-            if (!isBadRequest(e)) {
-                log.warn("Failed to update reverse link counter for $shortId: $e, placing in retry queue.", e)
-                indexingRetryQueue.add({ -> updateReverseLinkCounter(shortId, deltaCount) })
-            }
-            else {
-                log.warn("Failed to update reverse link counter for $shortId: $e", e)
-            }
-        }
+        writeAggregator.addToReverseLinkCounter(shortId, -1)
     }
 
     static boolean isBadRequest(Exception e) {
         e instanceof UnexpectedHttpStatusException && e.getStatusCode() == 400
     }
 
+    /**
+     * Buffered, see ElasticWriteAggregator
+     */
     void remove(String identifier) {
         if (log.isDebugEnabled()) {
             log.debug("Deleting object with identifier ${toElasticId(identifier)}.")
         }
-        def dsl = ["query":["term":["_id":toElasticId(identifier)]]]
-        try {
-            def response = client.performRequest('POST',
-                    "/${indexName}/_delete_by_query",
-                    JsonOutput.toJson(dsl))
+        writeAggregator.delete(identifier)
+    }
 
-            Map responseMap = mapper.readValue(response, Map)
-            if (log.isDebugEnabled()) {
-                log.debug("Response: ${responseMap.deleted} of ${responseMap.total} objects deleted")
-            }
-            if (responseMap.deleted == 0) {
-                log.warn("Record with id $identifier was not deleted from the Elasticsearch index.")
-            }
-        }
-        catch(Exception e) {
-            log.warn("Record with id $identifier was not deleted from the Elasticsearch index: $e")
+    /**
+     * Embellish copies of all documents together, so that lookups are shared.
+     * @return embellished copies in the same order as docs, or null if that failed
+     */
+    private List<Document> embellishForIndex(Collection<Document> docs, Whelk whelk) {
+        try {
+            List<Document> copies = docs.collect { it.clone() }
+            whelk.embellishAll(copies, ['chips'])
+            return copies
+        } catch (Exception e) {
+            log.warn("Failed to embellish ${docs.size()} documents together, embellishing one by one: $e", e)
+            return null
         }
     }
 
     String getShapeForIndex(Document document, Whelk whelk) {
+        return new String(ElasticJsonWriter.toJson(shapeForIndex(document, whelk)), StandardCharsets.UTF_8)
+    }
+
+    private Object shapeForIndex(Document document, Whelk whelk) {
         Document copy = document.clone()
 
         whelk.embellish(copy, ['chips'])
 
+        return shapeForIndex(document, copy, whelk)
+    }
+
+    /**
+     * Search keys are normalized, and sort keys computed, when the shape is serialized by ElasticJsonWriter.
+     *
+     * @param copy copy of document embellished with chips
+     */
+    private Object shapeForIndex(Document document, Document copy, Whelk whelk) {
         if (log.isDebugEnabled()) {
             log.debug("Framing ${document.getShortId()}")
         }
 
         Set<String> links = whelk.jsonld.expandLinks(document.getExternalRefs()).collect{ it.iri }
 
-        def graph = ((List) copy.data['@graph'])
+        List graph = (List) copy.data['@graph']
         int originalSize = document.data['@graph'].size()
-        copy.data['@graph'] =
-                graph.take(originalSize).collect { toSearchCard(whelk, it, links) } +
-                graph.drop(originalSize).collect { getShapeForEmbellishment(whelk, it) }
+        List shapedGraph = new ArrayList(graph.size())
+        for (int i = 0; i < graph.size(); i++) {
+            shapedGraph.add(i < originalSize
+                    ? toSearchCard(whelk, (Map) graph[i], links)
+                    : getShapeForEmbellishment(whelk, (Map) graph[i]))
+        }
+        copy.data['@graph'] = shapedGraph
 
         setComputedProperties(copy, links, whelk)
         copy.setThingMeta(document.getCompleteId())
@@ -303,25 +382,16 @@ class ElasticSearch {
         }
         String thingId = thingIds.get(0)
         Map framed = JsonLd.frame(thingId, copy.data)
-        framed['_sortKeyByLang'] = whelk.jsonld.applyLensAsMapByLang(
-                framed,
-                LANGUAGES_TO_INDEX,
-                REMOVABLE_BASE_URIS,
-                document.getThingInScheme() ? ['tokens', 'chips'] : ['chips'])
-
-        // TODO: replace with elastic ICU Analysis plugin?
-        // https://www.elastic.co/guide/en/elasticsearch/plugins/current/analysis-icu.html
-        DocumentUtil.findKey(framed, JsonLd.SEARCH_KEY) { value, path ->
-            if (!Unicode.isNormalizedForSearch(value)) {
-                return new DocumentUtil.Replace(Unicode.normalizeForSearch(value))
-            }
-        }
+        List<String> sortKeyLenses = document.getThingInScheme() ? ['tokens', 'chips'] : ['chips']
+        framed['_sortKeyByLang'] = { BiConsumer<String, String> entry ->
+            whelk.jsonld.applyLensByLang(framed, LANGUAGES_TO_INDEX, REMOVABLE_BASE_URIS, sortKeyLenses, entry)
+        } as ElasticJsonWriter.StringMap
 
         if (log.isTraceEnabled()) {
             log.trace("Framed data: ${framed}")
         }
 
-        return JsonOutput.toJson(framed)
+        return framed
     }
 
     private static Map toSearchCard(Whelk whelk, Map thing, Set<String> preserveLinks) {
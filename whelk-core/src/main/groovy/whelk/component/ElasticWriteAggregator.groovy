@@ -0,0 +1,242 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+
+import java.nio.charset.StandardCharsets
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Buffers small writes to ElasticSearch, reverse link counter updates and deletes, and sends them together as
+ * update/delete actions in one _bulk request. The buffer is flushed when it holds maxActions actions, or at the
+ * latest every flushIntervalMs.
+ *
+ * Counter deltas for the same document are merged, so +1 followed by -1 results in no action at all.
+ * A delete replaces any pending counter update for the document.
+ *
+ * A document indexed again cancels its pending delete. If the delete is already being sent, cancelDelete() waits
+ * until that request is done, so that the delete can't reach ElasticSearch after the document is indexed again,
+ * and the delete is not retried.
+ *
+ * Actions failing with a temporary error are put back in the buffer and retried with the next flush.
+ * The buffer is flushed on JVM shutdown but is otherwise lost if the process dies.
+ */
+@Log
+@CompileStatic
+class ElasticWriteAggregator {
+    static final int DEFAULT_MAX_ACTIONS = 1000
+    static final long DEFAULT_FLUSH_INTERVAL_MS = 1000
+
+    private static final String COUNTER_SCRIPT = "ctx._source.reverseLinks.totalItems += params.delta"
+
+    private static final Counter bufferedActions = Counter.build()
+            .labelNames("action")
+            .name("elastic_aggregated_writes_total")
+            .help("Writes buffered for a _bulk request, by action (counter/delete).")
+            .register()
+
+    private static final Counter sentActions = Counter.build()
+            .labelNames("action", "result")
+            .name("elastic_aggregated_actions_total")
+            .help("Actions sent in _bulk requests, by action (update/delete) and result (ok/missing/retry/failed).")
+            .register()
+
+    private static final Counter bulkRequests = Counter.build()
+            .labelNames("result")
+            .name("elastic_aggregated_bulk_requests_total")
+            .help("_bulk requests sent for aggregated writes, by result (ok/failed).")
+            .register()
+
+    private final ElasticSearch elastic
+    private final int maxActions
+
+    private Map<String, Integer> counterDeltas = new HashMap<>()
+    private Set<String> deletes = new HashSet<>()
+    // Deletes in a _bulk request being sent, and those of them cancelled by cancelDelete() meanwhile
+    private final Set<String> deletesInFlight = new HashSet<>()
+    private final Set<String> cancelledInFlight = new HashSet<>()
+
+    ElasticWriteAggregator(ElasticSearch elastic, int maxActions = DEFAULT_MAX_ACTIONS,
+                           long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS) {
+        this.elastic = elastic
+        this.maxActions = maxActions
+
+        new Timer("${ElasticWriteAggregator.class.getSimpleName()}-flush", true).schedule(new TimerTask() {
+            void run() {
+                flush()
+            }
+        }, flushIntervalMs, flushIntervalMs)
+
+        Runtime.getRuntime().addShutdownHook(new Thread({ -> flush() }, "${ElasticWriteAggregator.class.getSimpleName()}-shutdown"))
+    }
+
+    void addToReverseLinkCounter(String shortId, int delta) {
+        bufferedActions.labels("counter").inc()
+        boolean full
+        synchronized (this) {
+            addDelta(shortId, delta)
+            full = size() >= maxActions
+        }
+        if (full) {
+            flush()
+        }
+    }
+
+    void delete(String shortId) {
+        bufferedActions.labels("delete").inc()
+        boolean full
+        synchronized (this) {
+            counterDeltas.remove(shortId)
+            deletes.add(shortId)
+            full = size() >= maxActions
+        }
+        if (full) {
+            flush()
+        }
+    }
+
+    /**
+     * Forget a pending delete, for a document that is indexed again. If the delete is being sent, wait until the
+     * request is done.
+     */
+    synchronized void cancelDelete(String shortId) {
+        deletes.remove(shortId)
+        while (deletesInFlight.contains(shortId)) {
+            cancelledInFlight.add(shortId)
+            wait()
+        }
+    }
+
+    /**
+     * Send everything in the buffer now
+     */
+    void flush() {
+        Map<String, Integer> deltasToSend
+        Set<String> deletesToSend
+        synchronized (this) {
+            if (size() == 0) {
+                return
+            }
+            deltasToSend = counterDeltas
+            deletesToSend = deletes
+            counterDeltas = new HashMap<>()
+            deletes = new HashSet<>()
+            deletesInFlight.addAll(deletesToSend)
+        }
+
+        try {
+            send(deltasToSend, deletesToSend)
+        }
+        catch (Exception e) {
+            log.warn("Failed to send ${deltasToSend.size()} counter updates and ${deletesToSend.size()} deletes, " +
+                    "will retry: $e", e)
+            synchronized (this) {
+                deltasToSend.each { String id, Integer delta -> addDelta(id, delta) }
+                deletesToSend.each { String id -> retryDelete(id) }
+            }
+        }
+        finally {
+            synchronized (this) {
+                deletesInFlight.removeAll(deletesToSend)
+                cancelledInFlight.removeAll(deletesToSend)
+                notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Send counter updates directly, without buffering. Updates failing with a temporary error are put in the
+     * buffer to be retried.
+     *
+     * @throws Exception if the request could not be sent at all
+     */
+    void updateReverseLinkCountersNow(Map<String, Integer> deltas) {
+        Map<String, Integer> nonZero = deltas.findAll { String id, Integer delta -> delta != 0 }
+        if (nonZero) {
+            send(nonZero, new HashSet<String>())
+        }
+    }
+
+    private void send(Map<String, Integer> deltas, Set<String> deletesToSend) {
+        List<String> ids = []
+        StringBuilder body = new StringBuilder()
+        deltas.each { String id, Integer delta ->
+            ids.add(id)
+            body.append(mapper.writeValueAsString(['update': ['_index': elastic.getIndexName(), '_id': ElasticSearch.toElasticId(id), 'retry_on_conflict': 3]]))
+            body.append('\n')
+            body.append(mapper.writeValueAsString(['script': ['source': COUNTER_SCRIPT, 'lang': 'painless', 'params': ['delta': delta]]]))
+            body.append('\n')
+        }
+        deletesToSend.each { String id ->
+            ids.add(id)
+            body.append(mapper.writeValueAsString(['delete': ['_index': elastic.getIndexName(), '_id': ElasticSearch.toElasticId(id)]]))
+            body.append('\n')
+        }
+
+        Map response
+        try {
+            response = elastic.performBulkRequest(body.toString().getBytes(StandardCharsets.UTF_8))
+            bulkRequests.labels("ok").inc()
+        }
+        catch (Exception e) {
+            bulkRequests.labels("failed").inc()
+            throw e
+        }
+
+        List<Map> items = (List<Map>) response['items']
+        for (int i = 0; i < items.size(); i++) {
+            String action = (String) items[i].keySet().first()
+            int status = (Integer) ((Map) items[i][action])['status']
+            String id = ids[i]
+
+            if (status < 300) {
+                sentActions.labels(action, "ok").inc()
+            }
+            else if (status == 404) {
+                // Not in the index, nothing to update or delete
+                sentActions.labels(action, "missing").inc()
+            }
+            else if (status == 429 || status >= 500) {
+                sentActions.labels(action, "retry").inc()
+                synchronized (this) {
+                    if (action == 'delete') {
+                        retryDelete(id)
+                    }
+                    else if (!deletes.contains(id)) {
+                        addDelta(id, deltas[id])
+                    }
+                }
+            }
+            else {
+                sentActions.labels(action, "failed").inc()
+                log.warn("Failed to $action $id in elastic: ${items[i][action]}")
+            }
+        }
+    }
+
+    private void retryDelete(String shortId) {
+        if (cancelledInFlight.contains(shortId)) {
+            return
+        }
+        counterDeltas.remove(shortId)
+        deletes.add(shortId)
+    }
+
+    private void addDelta(String shortId, int delta) {
+        if (deletes.contains(shortId)) {
+            return
+        }
+        int sum = counterDeltas.getOrDefault(shortId, 0) + delta
+        if (sum == 0) {
+            counterDeltas.remove(shortId)
+        } else {
+            counterDeltas.put(shortId, sum)
+        }
+    }
+
+    private int size() {
+        return counterDeltas.size() + deletes.size()
+    }
+}
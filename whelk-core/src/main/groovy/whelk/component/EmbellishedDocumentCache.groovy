@@ -0,0 +1,141 @@
+package whelk.component
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.RemovalCause
+import com.google.common.cache.RemovalListener
+import com.google.common.cache.RemovalNotification
+import com.google.common.cache.Weigher
+import groovy.transform.CompileStatic
+import whelk.util.Metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-heap cache of embellished documents, in front of lddb__embellished.
+ *
+ * Entries are kept serialized (and weighed by their size in bytes) since callers are free to modify
+ * the documents they get back.
+ *
+ * An entry is invalidated by its own system id or by the system id of any document it was embellished
+ * with, i.e. the same rule as PostgreSQLComponent.EVICT_EMBELLISHED_DEPENDERS uses for lddb__embellished.
+ */
+@CompileStatic
+class EmbellishedDocumentCache {
+    // Safety net in case invalidations are lost
+    private static final int EXPIRE_AFTER_WRITE_HOURS = 6
+
+    static class Entry {
+        final byte[] data
+        final Set<String> ids
+        final String checksum
+        final String embellishedChecksum
+
+        Entry(byte[] data, Collection<String> ids, String checksum, String embellishedChecksum) {
+            this.data = data
+            this.ids = Collections.unmodifiableSet(new HashSet<String>(ids))
+            this.checksum = checksum
+            this.embellishedChecksum = embellishedChecksum
+        }
+    }
+
+    private final Cache<String, Entry> cache
+    private final Map<String, Set<String>> keysByEmbellishedId = new ConcurrentHashMap<>()
+
+    // Incremented on every invalidation so that loads racing with an invalidation aren't cached
+    private final AtomicLong generation = new AtomicLong()
+
+    EmbellishedDocumentCache(long maxSizeBytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    int weigh(String id, Entry entry) {
+                        return entry.data.length
+                    }
+                })
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_HOURS, TimeUnit.HOURS)
+                .removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    void onRemoval(RemovalNotification<String, Entry> notification) {
+                        unindex(notification)
+                    }
+                })
+                .recordStats()
+                .build()
+
+        Metrics.cacheMetrics.addCache('embellishedDocumentCache', cache)
+    }
+
+    long generation() {
+        return generation.get()
+    }
+
+    Entry get(String id) {
+        return cache.getIfPresent(id)
+    }
+
+    /**
+     * @param generation value of generation() before the data was read
+     */
+    void put(String id, Entry entry, long generation) {
+        for (String embellishedId : entry.ids) {
+            keysByEmbellishedId.compute(embellishedId, { String k, Set<String> keys ->
+                Set<String> result = keys ?: ConcurrentHashMap.<String>newKeySet()
+                result.add(id)
+                return result
+            })
+        }
+        cache.put(id, entry)
+
+        if (this.generation.get() != generation) {
+            cache.invalidate(id)
+        }
+    }
+
+    void invalidate(Collection<String> ids) {
+        generation.incrementAndGet()
+        for (String id : ids) {
+            cache.invalidate(id)
+            Set<String> keys = keysByEmbellishedId.remove(id)
+            if (keys) {
+                cache.invalidateAll(keys)
+            }
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet()
+        cache.invalidateAll()
+        keysByEmbellishedId.clear()
+    }
+
+    String stats() {
+        return cache.stats().toString()
+    }
+
+    private void unindex(RemovalNotification<String, Entry> notification) {
+        Entry removed = notification.getValue()
+        if (removed == null) {
+            return
+        }
+
+        Set<String> keep = Collections.emptySet()
+        if (notification.getCause() == RemovalCause.REPLACED) {
+            Entry current = cache.getIfPresent(notification.getKey())
+            keep = current ? current.ids : keep
+        }
+
+        for (String embellishedId : removed.ids) {
+            if (keep.contains(embellishedId)) {
+                continue
+            }
+            keysByEmbellishedId.computeIfPresent(embellishedId, { String k, Set<String> keys ->
+                keys.remove(notification.getKey())
+                return keys.isEmpty() ? null : keys
+            })
+        }
+    }
+}
@@ -4,16 +4,19 @@ import com.google.common.base.Preconditions
 import com.zaxxer.hikari.HikariConfig
 import com.zaxxer.hikari.HikariDataSource
 import com.zaxxer.hikari.metrics.prometheus.PrometheusMetricsTrackerFactory
-import groovy.json.StringEscapeUtils
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
 import org.postgresql.PGStatement
 import org.postgresql.util.PGobject
 import org.postgresql.util.PSQLException
+import whelk.ConceptGraph
 import whelk.Document
 import whelk.IdType
 import whelk.JsonLd
 import whelk.Link
+import whelk.TypedIdentifier
 import whelk.exception.CancelUpdateException
 import whelk.exception.LinkValidationException
 import whelk.exception.MissingMainIriException
@@ -25,6 +28,7 @@ import whelk.exception.WhelkRuntimeException
 import whelk.filter.LinkFinder
 import whelk.history.DocumentVersion
 import whelk.util.DocumentUtil
+import whelk.util.JsonPatch
 import whelk.util.LegacyIntegrationTools
 
 import javax.sql.DataSource
@@ -33,10 +37,13 @@ import java.sql.BatchUpdateException
 import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
+import java.sql.ResultSetMetaData
 import java.sql.SQLException
 import java.sql.Statement
 import java.sql.Timestamp
 import java.time.Instant
+import java.time.ZonedDateTime
+import java.time.format.DateTimeParseException
 import java.util.concurrent.atomic.AtomicLong
 import java.util.regex.Matcher
 import java.util.regex.Pattern
@@ -67,18 +74,97 @@ class PostgreSQLComponent {
         Result handle(Document doc)
     }
 
+    interface ReindexQueueHandler {
+        /**
+         * Throw to leave all items in the queue
+         *
+         * @return what to do once the items have been removed from the queue (i.e. what must not be repeated if
+         * handling fails and the items are taken again), or null
+         */
+        Runnable handle(List<ReindexQueueItem> items)
+    }
+
+    enum ReindexKind {
+        // Reindex the document
+        INDEX,
+        // Links to the document were added or removed, delta is the change in number of incoming links. Links with a
+        // relation the document shows as @reverse are queued as INDEX instead.
+        LINKS,
+        // The card of the document changed, reindex documents embedding it
+        CARD
+    }
+
+    /**
+     * All queued entries for the same id and kind, taken together
+     */
+    static class ReindexQueueItem {
+        final String id
+        final ReindexKind kind
+        final int delta
+        final Timestamp enqueued
+
+        ReindexQueueItem(String id, ReindexKind kind, int delta, Timestamp enqueued) {
+            this.id = id
+            this.kind = kind
+            this.delta = delta
+            this.enqueued = enqueued
+        }
+    }
+
     public static final int STALE_UPDATE_RETRIES = 10
 
     public static final String PROPERTY_SQL_URL = "sqlUrl"
     public static final String PROPERTY_SQL_MAX_POOL_SIZE = "sqlMaxPoolSize"
     public static final String PROPERTY_EMBELLISH_CACHE_MAX_SIZE = "embellishCacheMaxSizeBytes"
+    public static final String PROPERTY_EMBELLISH_CACHE_LOW_WATER_MARK = "embellishCacheLowWaterMarkBytes"
+    public static final String PROPERTY_EMBELLISH_L1_CACHE_MAX_SIZE = "embellishL1CacheMaxSizeBytes"
+    public static final String PROPERTY_VERSION_KEYFRAME_INTERVAL = "versionKeyframeInterval"
 
     private static final int DEFAULT_MAX_POOL_SIZE = 16
     private static final String driverClass = "org.postgresql.Driver"
 
+    private static final String EMBELLISH_EVICTION_CHANNEL = "lddb__embellished_evict"
+    private static final String EVICT_ALL = "*"
+    private static final List<String> REVERSE_LENSES = ['chips', 'cards', 'full']
+
+    // Ids of changed or deleted cards, for CachingPostgreSQLComponent
+    protected static final String CARD_EVICTION_CHANNEL = "lddb__cards_evict"
+
+    private static final long EMBELLISH_CACHE_EVICTION_INTERVAL_MS = 60 * 1000
+    private static final int EMBELLISH_CACHE_EVICTION_BATCH_SIZE = 1000
+    // Arbitrary key for the advisory lock making sure only one node at a time trims the embellish cache
+    private static final long EMBELLISH_CACHE_EVICTION_LOCK = 0x656d62656c6cL
+
+    private static final Gauge embellishCacheBytes = Gauge.build()
+            .name("embellish_cache_size_bytes")
+            .help("Estimated size of live rows in lddb__embellished.")
+            .register()
+
+    private static final Gauge embellishCacheHitRatio = Gauge.build()
+            .name("embellish_cache_hit_ratio")
+            .help("Embellish cache hit ratio since the previous eviction check.")
+            .register()
+
+    private static final Counter embellishCacheLookups = Counter.build()
+            .labelNames("result")
+            .name("embellish_cache_lookups")
+            .help("Embellish cache lookups by result (hit/miss).")
+            .register()
+
+    private static final Counter embellishCacheEvictedRows = Counter.build()
+            .name("embellish_cache_evicted_rows")
+            .help("Rows evicted from lddb__embellished to keep it below the low water mark.")
+            .register()
+
     private long embellishCacheMaxSize = 10L * 1024L * 1024L * 1024L // default 10GB
+    private long embellishCacheLowWaterMark = -1 // default 80% of max size
+    private long embellishL1CacheMaxSize = 256L * 1024L * 1024L // default 256MB, 0 disables
 
-    private Random random = new Random(System.currentTimeMillis())
+    // A version is stored as a full copy instead of a delta if the delta isn't at most this fraction of the size
+    private static final double MAX_VERSION_DELTA_RATIO = 0.5
+
+    private AtomicLong embellishCacheHits = new AtomicLong()
+    private AtomicLong embellishCacheMisses = new AtomicLong()
 
     // SQL statements
     private static final String UPDATE_DOCUMENT = """
@@ -98,38 +184,100 @@ class PostgreSQLComponent {
             """.stripIndent()
 
     private static final String GET_DOCUMENT =
-            "SELECT id, data, created, modified, deleted FROM lddb WHERE id = ?"
+            "SELECT id, data, created, modified, deleted, checksum FROM lddb WHERE id = ?"
 
     private static final String GET_DOCUMENT_BY_MAIN_ID = """
-            SELECT id, data, created, modified, deleted 
+            SELECT id, data, created, modified, deleted, checksum
             FROM lddb 
             WHERE id = (SELECT id FROM lddb__identifiers WHERE mainid = 't' AND iri = ?)
             """.stripIndent()
 
     private static final String GET_DOCUMENT_BY_IRI = """
-            SELECT lddb.id, lddb.data, lddb.created, lddb.modified, lddb.deleted 
+            SELECT lddb.id, lddb.data, lddb.created, lddb.modified, lddb.deleted, lddb.checksum
             FROM lddb INNER JOIN lddb__identifiers ON lddb.id = lddb__identifiers.id
             WHERE lddb__identifiers.iri = ?
             """.stripIndent()
 
+    // Rows are (requested identifier, document). By system id first, then by any IRI in lddb__identifiers.
+    private static final String BULK_LOAD_DOCUMENTS = """
+            SELECT lddb.id AS requested, false AS by_iri, lddb.id, lddb.data, lddb.created, lddb.modified, lddb.deleted, lddb.checksum
+            FROM lddb
+            WHERE lddb.id = ANY(?)
+            UNION ALL
+            SELECT lddb__identifiers.iri, true, lddb.id, lddb.data, lddb.created, lddb.modified, lddb.deleted, lddb.checksum
+            FROM lddb__identifiers JOIN lddb ON lddb.id = lddb__identifiers.id
+            WHERE lddb__identifiers.iri = ANY(?)
+            """.stripIndent()
+
     private static final String GET_DOCUMENT_FOR_UPDATE =
-            "SELECT id, data, collection, created, modified, deleted, changedBy FROM lddb WHERE id = ? FOR UPDATE"
+            "SELECT id, data, collection, created, modified, deleted, changedBy, checksum FROM lddb WHERE id = ? FOR UPDATE"
+
+    private static final String INSERT_DOCUMENT_VERSION_DELTA = """
+            INSERT INTO lddb__versions (id, delta, base_pk, collection, changedIn, changedBy, checksum, created, modified, deleted)
+            SELECT ?,?,?,?,?,?,?,?,?,?
+            """.stripIndent()
+
+    // Deltas are always against the latest keyframe
+    private static final String GET_LATEST_VERSION_KEYFRAME = """
+            SELECT k.pk, k.data, (SELECT count(*) FROM lddb__versions d WHERE d.id = k.id AND d.base_pk = k.pk) AS deltas
+            FROM lddb__versions k
+            WHERE k.id = ? AND k.data IS NOT NULL
+            ORDER BY k.pk DESC
+            LIMIT 1
+            """.stripIndent()
+
+    // Keyframes are joined on id too, to use the index on id
+    private static final String GET_DOCUMENT_VERSION = """
+            SELECT v.id, COALESCE(v.data, k.data) AS data, v.delta, v.created, v.modified, v.deleted, v.checksum
+            FROM lddb__versions v
+            LEFT JOIN lddb__versions k ON k.id = v.id AND k.pk = v.base_pk
+            WHERE v.id = ? AND v.checksum = ?
+            """.stripIndent()
+
+    // 'accessed' is only bumped when older than the resolution below, so that hot rows don't cause a write per read
+    private static final String GET_EMBELLISHED_DOCUMENT = """
+            SELECT data, ids, checksum, embellished_checksum, accessed < now() - interval '10 minutes' AS touch
+            FROM lddb__embellished 
+            WHERE id = ?
+            """.stripIndent()
 
-    private static final String GET_DOCUMENT_VERSION =
-            "SELECT id, data FROM lddb__versions WHERE id = ? AND checksum = ?"
+    private static final String GET_EMBELLISHED_CHECKSUMS =
+            "SELECT checksum, embellished_checksum FROM lddb__embellished WHERE id = ?"
 
-    private static final String GET_EMBELLISHED_DOCUMENT =
-            "SELECT data from lddb__embellished where id = ?"
+    private static final String TOUCH_EMBELLISHED_DOCUMENT =
+            "UPDATE lddb__embellished SET accessed = now() WHERE id = ?"
 
     private static final String UPSERT_EMBELLISHED_DOCUMENT = """
-            INSERT INTO lddb__embellished (id, data, ids) VALUES (?,?,?)
+            INSERT INTO lddb__embellished (id, data, ids, checksum, embellished_checksum, created, accessed) 
+            VALUES (?,?,?,?,?,now(),now())
             ON CONFLICT (id) DO UPDATE
-            SET (data, ids) = (EXCLUDED.data, EXCLUDED.ids)
+            SET (data, ids, checksum, embellished_checksum, created, accessed) = 
+                (EXCLUDED.data, EXCLUDED.ids, EXCLUDED.checksum, EXCLUDED.embellished_checksum, EXCLUDED.created, EXCLUDED.accessed)
             WHERE lddb__embellished.id = EXCLUDED.id
             """.stripIndent()
 
     private static final String EVICT_EMBELLISHED_DEPENDERS =
-            "DELETE FROM lddb__embellished WHERE id = ? OR ids @> ?"
+            "DELETE FROM lddb__embellished WHERE id = ANY(?) OR ids && ?"
+
+    private static final String EVICT_COLDEST_EMBELLISHED = """
+            DELETE FROM lddb__embellished
+            WHERE id IN (
+                SELECT id FROM lddb__embellished
+                ORDER BY accessed ASC
+                LIMIT ?
+                FOR UPDATE SKIP LOCKED
+            )
+            """.stripIndent()
+
+    private static final String GET_EMBELLISHED_TABLE_STATS = """
+            SELECT pg_total_relation_size(relid), n_live_tup, n_dead_tup
+            FROM pg_stat_user_tables
+            WHERE relname = 'lddb__embellished'
+            """.stripIndent()
+
+    private static final String TRY_ADVISORY_LOCK = "SELECT pg_try_advisory_lock(?)"
+
+    private static final String ADVISORY_UNLOCK = "SELECT pg_advisory_unlock(?)"
 
     private static final String GET_TABLE_SIZE_BYTES =
             "SELECT pg_total_relation_size(?)"
@@ -137,35 +285,52 @@ class PostgreSQLComponent {
     private static final String CLEAR_EMBELLISHED = "TRUNCATE TABLE lddb__embellished"
 
     private static final String GET_DOCUMENT_VERSION_BY_MAIN_ID = """
-            SELECT id, data 
-            FROM lddb__versions 
-            WHERE id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't') 
-            AND checksum = ?
+            SELECT v.id, COALESCE(v.data, k.data) AS data, v.delta, v.created, v.modified, v.deleted, v.checksum
+            FROM lddb__versions v
+            LEFT JOIN lddb__versions k ON k.id = v.id AND k.pk = v.base_pk
+            WHERE v.id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't') 
+            AND v.checksum = ?
             """.stripIndent()
 
+    // In storage order, since deltas need their keyframe. Sorted by sortVersions() after reconstruction.
     private static final String GET_ALL_DOCUMENT_VERSIONS = """
-            SELECT id, data, deleted, created, modified, changedBy, changedIn 
+            SELECT pk, id, data, delta, base_pk, deleted, created, modified, changedBy, changedIn 
             FROM lddb__versions
             WHERE id = ? 
-            ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) ASC
+            ORDER BY pk ASC
             """.stripIndent()
 
     private static final String GET_ALL_DOCUMENT_VERSIONS_BY_MAIN_ID = """
-            SELECT id, data, deleted, created, modified 
+            SELECT pk, id, data, delta, base_pk, deleted, created, modified, changedBy, changedIn 
             FROM lddb__versions 
             WHERE id = (SELECT id FROM lddb__identifiers WHERE iri = ? AND mainid = 't')
-            ORDER BY GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) ASC
+            ORDER BY pk ASC
             """.stripIndent()
 
+    private static final String UPDATE_VERSION_TO_KEYFRAME =
+            "UPDATE lddb__versions SET data = ?, delta = NULL, base_pk = NULL WHERE pk = ?"
+
+    private static final String UPDATE_VERSION_TO_DELTA =
+            "UPDATE lddb__versions SET data = NULL, delta = ?, base_pk = ? WHERE pk = ?"
+
+    private static final String GET_VERSIONED_IDS =
+            "SELECT DISTINCT id FROM lddb__versions WHERE id > ? ORDER BY id LIMIT ?"
+
     private static final String LOAD_ALL_DOCUMENTS =
-            "SELECT id, data, created, modified, deleted FROM lddb WHERE modified >= ? AND modified <= ?"
+            "SELECT id, data, created, modified, deleted, checksum FROM lddb WHERE modified >= ? AND modified <= ?"
 
     private static final String LOAD_ALL_DOCUMENTS_BY_COLLECTION = """
-            SELECT id, data, created, modified, deleted
+            SELECT id, data, created, modified, deleted, checksum
             FROM lddb 
             WHERE modified >= ? AND modified <= ? AND collection = ? AND deleted = false
             """.stripIndent()
 
+    // Estimated from a sample of about 1% of the table
+    private static final String GET_ID_PARTITION_BOUNDARIES = """
+            SELECT percentile_disc(?::float8[]) WITHIN GROUP (ORDER BY id)
+            FROM lddb TABLESAMPLE SYSTEM (1)
+            """.stripIndent()
+
     private static final String STATUS_OF_DOCUMENT = """
             SELECT t1.id AS id, created, modified, deleted 
             FROM lddb t1 
@@ -173,7 +338,7 @@ class PostgreSQLComponent {
             """.stripIndent()
 
     private static final String DELETE_DEPENDENCIES =
-            "DELETE FROM lddb__dependencies WHERE id = ?"
+            "DELETE FROM lddb__dependencies WHERE id = ? RETURNING relation, dependsOnId"
 
     private static final String INSERT_DEPENDENCIES =
             "INSERT INTO lddb__dependencies (id, relation, dependsOnId) VALUES (?, ?, ?)"
@@ -215,6 +380,82 @@ class PostgreSQLComponent {
     private static final String GET_DEPENDERS =
             "SELECT id FROM lddb__dependencies WHERE dependsOnId = ?"
 
+    // (thing IRI, relation) pairs -> thing main IRIs of documents linking to the thing with the relation
+    private static final String GET_DEPENDER_IRIS_OF_TYPE = """
+            SELECT q.iri, q.relation, depender.iri
+            FROM unnest(?::text[], ?::text[]) AS q(iri, relation)
+            JOIN lddb__identifiers dependency ON dependency.iri = q.iri AND dependency.graphindex = 1
+            JOIN lddb__dependencies d ON d.dependsonid = dependency.id AND d.relation = q.relation
+            JOIN lddb__identifiers depender ON depender.id = d.id AND depender.graphindex = 1 AND depender.mainid IS TRUE
+            """.stripIndent()
+
+    // (thing IRI, relation) pairs -> thing main IRIs of documents the thing links to with the relation
+    private static final String GET_DEPENDENCY_IRIS_OF_TYPE = """
+            SELECT q.iri, q.relation, dependency.iri
+            FROM unnest(?::text[], ?::text[]) AS q(iri, relation)
+            JOIN lddb__identifiers depender ON depender.iri = q.iri AND depender.graphindex = 1
+            JOIN lddb__dependencies d ON d.id = depender.id AND d.relation = q.relation
+            JOIN lddb__identifiers dependency ON dependency.id = d.dependsonid AND dependency.graphindex = 1 AND dependency.mainid IS TRUE
+            """.stripIndent()
+
+    // Things reachable from a thing IRI with any of the relations, in at most a number of steps.
+    // Cycles are cut by UNION, which drops (id, depth) pairs already seen, together with the depth limit.
+    private static final String IS_REACHABLE = """
+            WITH RECURSIVE reachable(id, depth) AS (
+                SELECT id, 0 FROM lddb__identifiers WHERE iri = ? AND graphindex = 1
+                UNION
+                SELECT d.dependsonid, r.depth + 1
+                FROM reachable r
+                JOIN lddb__dependencies d ON d.id = r.id AND d.relation = ANY(?)
+                WHERE r.depth < ?
+            )
+            SELECT EXISTS(
+                SELECT 1 FROM reachable r
+                JOIN lddb__identifiers i ON i.id = r.id AND i.graphindex = 1 AND i.mainid IS TRUE
+                WHERE r.depth > 0 AND i.iri = ?
+            )
+            """.stripIndent()
+
+    // Thing main IRIs of things linking to a thing IRI with any of the relations, in at most a number of steps.
+    // Symmetric relations are followed in both directions.
+    private static final String FOLLOW_REVERSE = """
+            WITH RECURSIVE reachable(id, depth) AS (
+                SELECT id, 0 FROM lddb__identifiers WHERE iri = ? AND graphindex = 1
+                UNION
+                SELECT next.id, r.depth + 1
+                FROM reachable r
+                CROSS JOIN LATERAL (
+                    SELECT d.id FROM lddb__dependencies d WHERE d.dependsonid = r.id AND d.relation = ANY(?)
+                    UNION ALL
+                    SELECT d.dependsonid FROM lddb__dependencies d WHERE d.id = r.id AND d.relation = ANY(?)
+                ) next
+                WHERE r.depth < ?
+            )
+            SELECT DISTINCT i.iri FROM reachable r
+            JOIN lddb__identifiers i ON i.id = r.id AND i.graphindex = 1 AND i.mainid IS TRUE
+            WHERE r.depth > 0
+            """.stripIndent()
+
+    private static final String GET_DEFINITIONS_THING_IRIS = """
+            SELECT i.id, i.iri, i.mainid
+            FROM lddb l JOIN lddb__identifiers i ON i.id = l.id AND i.graphindex = 1
+            WHERE l.collection = 'definitions'
+            """.stripIndent()
+
+    private static final String GET_DEFINITIONS_DEPENDENCIES_OF_TYPE = """
+            SELECT d.id, d.relation, d.dependsonid
+            FROM lddb l JOIN lddb__dependencies d ON d.id = l.id AND d.relation = ANY(?)
+            WHERE l.collection = 'definitions'
+            """.stripIndent()
+
+    private static final String GET_DEFINITIONS_WITH_OTHER_DEPENDERS_OF_TYPE = """
+            SELECT DISTINCT d.dependsonid
+            FROM lddb l
+            JOIN lddb__dependencies d ON d.dependsonid = l.id AND d.relation = ANY(?)
+            JOIN lddb depender ON depender.id = d.id
+            WHERE l.collection = 'definitions' AND depender.collection <> 'definitions'
+            """.stripIndent()
+
     private static final String GET_DEPENDENCIES_OF_TYPE =
             "SELECT dependsOnId FROM lddb__dependencies WHERE id = ? AND relation = ?"
 
@@ -253,6 +494,23 @@ class PostgreSQLComponent {
     private static final String DELETE_IDENTIFIERS =
             "DELETE FROM lddb__identifiers WHERE id = ?"
 
+    private static final String INSERT_TYPED_IDENTIFIERS =
+            "INSERT INTO lddb__typed_identifiers (id, graph_index, relation, type, value_normalized) VALUES (?, ?, ?, ?, ?)"
+
+    private static final String DELETE_TYPED_IDENTIFIERS =
+            "DELETE FROM lddb__typed_identifiers WHERE id = ?"
+
+    // Rows are (index of requested typed identifier, system id). A requested type of null matches any type.
+    private static final String GET_SYSTEM_IDS_BY_TYPED_IDS = """
+            SELECT q.i, t.id
+            FROM unnest(?::int[], ?::text[], ?::text[], ?::text[]) WITH ORDINALITY AS q(graph_index, relation, type, value, i)
+            JOIN lddb__typed_identifiers t ON t.value_normalized = q.value AND t.graph_index = q.graph_index 
+                AND t.relation = q.relation AND (q.type IS NULL OR t.type = q.type)
+            """.stripIndent()
+
+    private static final String GET_SYSTEM_IDS_BY_TYPED_IDS_IN_COLLECTION = GET_SYSTEM_IDS_BY_TYPED_IDS +
+            "JOIN lddb ON lddb.id = t.id AND lddb.collection = ?"
+
     private static final String GET_RECORD_ID_BY_THING_ID =
             "SELECT id FROM lddb__identifiers WHERE iri = ? AND graphIndex = 1"
 
@@ -275,6 +533,15 @@ class PostgreSQLComponent {
             WHERE t1.iri = ? AND t2.mainid = true
             """.stripIndent()
 
+    // Rows are (requested IRI, main IRI of the same graph index, deleted)
+    private static final String GET_MAIN_IDS_AND_DELETED = """
+            SELECT t1.iri, t2.iri, lddb.deleted
+            FROM lddb__identifiers t1
+            JOIN lddb__identifiers t2 ON t2.id = t1.id AND t2.graphindex = t1.graphindex AND t2.mainid = true
+            JOIN lddb ON lddb.id = t2.id
+            WHERE t1.iri = ANY(?)
+            """.stripIndent()
+
     private static final String GET_SYSTEMID_BY_IRI = """
             SELECT lddb__identifiers.id, lddb.deleted
             FROM lddb__identifiers 
@@ -340,6 +607,38 @@ class PostgreSQLComponent {
             RETURNING id;
             """.stripIndent()
 
+    private static final String REINDEX_QUEUE_ADD = "INSERT INTO lddb__reindex_q (id, kind, delta) VALUES (?, ?, ?)"
+
+    // Take the oldest entries together with all other entries for the same id and kind, to coalesce them.
+    // Only entries older than the coalescing window are taken, giving duplicates a chance to arrive.
+    // Every entry deleted is locked with SKIP LOCKED first, so that workers never wait for each other. Entries for
+    // the same id and kind locked by another worker are left to that worker.
+    private static final String REINDEX_QUEUE_TAKE = """
+            WITH oldest AS (
+              SELECT DISTINCT id, kind FROM (
+                SELECT id, kind
+                FROM lddb__reindex_q
+                WHERE enqueued <= now() - (? * interval '1 millisecond')
+                ORDER BY pk ASC
+                LIMIT ?
+                FOR UPDATE SKIP LOCKED
+              ) AS o
+            ),
+            batch AS (
+              SELECT q.pk
+              FROM lddb__reindex_q q
+              JOIN oldest ON q.id = oldest.id AND q.kind = oldest.kind
+              FOR UPDATE OF q SKIP LOCKED
+            )
+            DELETE FROM lddb__reindex_q q
+            USING batch
+            WHERE q.pk = batch.pk
+            RETURNING q.id, q.kind, q.delta, q.enqueued;
+            """.stripIndent()
+
+    private static final String REINDEX_QUEUE_STATUS =
+            "SELECT count(*), extract(epoch from now() - min(enqueued)) FROM lddb__reindex_q"
+
     private static final String SPARQL_QUEUE_ADD_UPDATES_SINCE = """
             INSERT INTO lddb__sparql_q (id)
             SELECT l.id FROM lddb l
@@ -378,10 +677,19 @@ class PostgreSQLComponent {
 
     private HikariDataSource connectionPool
     private HikariDataSource outerConnectionPool
+    private PostgreSQLNotificationListener notificationListener
+
+    EmbellishedDocumentCache embellishedDocumentCache
 
     boolean versioning = true
+    /**
+     * Versions are stored as a full copy (keyframe) every this many versions of a document, and as a JSON patch
+     * against the latest keyframe in between. 1 (the default) stores every version in full.
+     */
+    int versionKeyframeInterval = 1
     boolean doVerifyDocumentIdRetention = true
     boolean sparqlQueueEnabled = false
+    boolean reindexQueueEnabled = false
 
     LinkFinder linkFinder
     DependencyCache dependencyCache
@@ -396,6 +704,11 @@ class PostgreSQLComponent {
     // for testing
     PostgreSQLComponent() {}
 
+    // for testing
+    PostgreSQLComponent(PostgreSQLNotificationListener notificationListener) {
+        this.notificationListener = notificationListener
+    }
+
     PostgreSQLComponent(Properties properties) {
         int maxPoolSize = properties.getProperty(PROPERTY_SQL_MAX_POOL_SIZE)
                 ? Integer.parseInt(properties.getProperty(PROPERTY_SQL_MAX_POOL_SIZE))
@@ -404,7 +717,19 @@ class PostgreSQLComponent {
         if (properties.getProperty(PROPERTY_EMBELLISH_CACHE_MAX_SIZE)) {
            embellishCacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_EMBELLISH_CACHE_MAX_SIZE))
         }
+        embellishCacheLowWaterMark = properties.getProperty(PROPERTY_EMBELLISH_CACHE_LOW_WATER_MARK)
+                ? Long.parseLong(properties.getProperty(PROPERTY_EMBELLISH_CACHE_LOW_WATER_MARK))
+                : (long) (embellishCacheMaxSize * 0.8)
+        if (properties.getProperty(PROPERTY_EMBELLISH_L1_CACHE_MAX_SIZE)) {
+            embellishL1CacheMaxSize = Long.parseLong(properties.getProperty(PROPERTY_EMBELLISH_L1_CACHE_MAX_SIZE))
+        }
+        if (properties.getProperty(PROPERTY_VERSION_KEYFRAME_INTERVAL)) {
+            versionKeyframeInterval = Integer.parseInt(properties.getProperty(PROPERTY_VERSION_KEYFRAME_INTERVAL))
+        }
         log.info("$PROPERTY_EMBELLISH_CACHE_MAX_SIZE: $embellishCacheMaxSize")
+        log.info("$PROPERTY_EMBELLISH_CACHE_LOW_WATER_MARK: $embellishCacheLowWaterMark")
+        log.info("$PROPERTY_EMBELLISH_L1_CACHE_MAX_SIZE: $embellishL1CacheMaxSize")
+        log.info("$PROPERTY_VERSION_KEYFRAME_INTERVAL: $versionKeyframeInterval")
 
         setup(properties.getProperty(PROPERTY_SQL_URL), maxPoolSize)
     }
@@ -443,25 +768,65 @@ class PostgreSQLComponent {
             connectionPool = new HikariDataSource(config)
 
             this.linkFinder = new LinkFinder(this)
+
+            startEmbellishCacheEviction()
+            initEmbellishedDocumentCache()
         }
 
         this.dependencyCache = new DependencyCache(this)
+        if (connectionPool) {
+            dependencyCache.listenForInvalidation(getNotificationListener())
+        }
+    }
+
+    private void initEmbellishedDocumentCache() {
+        if (embellishL1CacheMaxSize <= 0) {
+            return
+        }
+
+        embellishedDocumentCache = new EmbellishedDocumentCache(embellishL1CacheMaxSize)
+        getNotificationListener().listen(EMBELLISH_EVICTION_CHANNEL,
+                { String payload ->
+                    if (payload == EVICT_ALL) {
+                        embellishedDocumentCache.invalidateAll()
+                    } else {
+                        embellishedDocumentCache.invalidate(PostgreSQLNotificationListener.parseIds(payload))
+                    }
+                },
+                { embellishedDocumentCache.invalidateAll() })
+    }
+
+    /**
+     * Listener for notifications from all nodes using the same database.
+     */
+    synchronized PostgreSQLNotificationListener getNotificationListener() {
+        if (!notificationListener) {
+            notificationListener = new PostgreSQLNotificationListener(createAdditionalConnectionPool("NotificationListener", 1))
+        }
+        return notificationListener
     }
 
-    private void cacheEmbellishedDocument(String id, Document embellishedDocument) {
+    private void cacheEmbellishedDocument(String id, Document embellishedDocument, String checksum, long l1CacheGeneration) {
         withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
 
             try {
                 List<String> ids = embellishmentIds(embellishedDocument, connection)
+                String data = mapper.writeValueAsString(embellishedDocument.data)
+                String embellishedChecksum = embellishedDocument.getChecksum(jsonld)
 
                 preparedStatement = connection.prepareStatement(UPSERT_EMBELLISHED_DOCUMENT)
                 preparedStatement.setString(1, id)
-                preparedStatement.setObject(2, mapper.writeValueAsString(embellishedDocument.data), java.sql.Types.OTHER)
+                preparedStatement.setObject(2, data, java.sql.Types.OTHER)
                 preparedStatement.setArray(3, connection.createArrayOf("TEXT", ids as String[]))
+                preparedStatement.setString(4, checksum)
+                preparedStatement.setString(5, embellishedChecksum)
 
                 preparedStatement.execute()
+
+                embellishedDocumentCache?.put(id, new EmbellishedDocumentCache.Entry(
+                        data.getBytes('UTF-8'), ids, checksum, embellishedChecksum), l1CacheGeneration)
             }
             finally {
                 close(preparedStatement)
@@ -491,6 +856,12 @@ class PostgreSQLComponent {
      * (lazy caching).
      */
     Document loadEmbellished(String id, Closure embellish) {
+        EmbellishedDocumentCache.Entry cached = embellishedDocumentCache?.get(id)
+        if (cached != null) {
+            return new Document(mapper.readValue(cached.data, Map))
+        }
+        long l1CacheGeneration = embellishedDocumentCache != null ? embellishedDocumentCache.generation() : 0L
+
         return withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectStatement = null
@@ -502,7 +873,18 @@ class PostgreSQLComponent {
                 resultSet = selectStatement.executeQuery()
 
                 if (resultSet.next()) {
-                    return new Document(mapper.readValue(resultSet.getString("data"), Map))
+                    embellishCacheHits.incrementAndGet()
+                    embellishCacheLookups.labels("hit").inc()
+                    if (resultSet.getBoolean("touch")) {
+                        touchEmbellishedDocument(id, connection)
+                    }
+                    String data = resultSet.getString("data")
+                    if (embellishedDocumentCache != null) {
+                        List<String> ids = ((String[]) resultSet.getArray("ids").getArray()).toList()
+                        embellishedDocumentCache.put(id, new EmbellishedDocumentCache.Entry(data.getBytes('UTF-8'), ids,
+                                resultSet.getString("checksum"), resultSet.getString("embellished_checksum")), l1CacheGeneration)
+                    }
+                    return new Document(mapper.readValue(data, Map))
                 }
             }
             finally {
@@ -510,10 +892,16 @@ class PostgreSQLComponent {
             }
 
             // Cache-miss, embellish and store
+            embellishCacheMisses.incrementAndGet()
+            embellishCacheLookups.labels("miss").inc()
             Document document = load(id)
             if (document) {
+                String checksum = document.getChecksumAsLoaded(jsonld)
                 embellish(document) // will open a connection
-                cacheEmbellishedDocument(id, document)
+                // Deleted documents are served as 410 Gone, don't let a cached checksum answer for them
+                if (!document.deleted) {
+                    cacheEmbellishedDocument(id, document, checksum, l1CacheGeneration)
+                }
             }
             else {
                 log.error("loadEmbellished. No document with $id")
@@ -523,32 +911,222 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Get the checksums of the stored document 'id' and of its embellished version, if an embellished
+     * version is cached. The document itself is neither loaded nor embellished.
+     *
+     * Any update of the document or of a document it is embellished with evicts the cached version,
+     * so the checksums are current when they are found.
+     *
+     * @return checksum and embellished checksum, or null if there is no cached embellished version
+     */
+    Tuple2<String, String> getEmbellishedChecksums(String id) {
+        EmbellishedDocumentCache.Entry cached = embellishedDocumentCache?.get(id)
+        if (cached != null) {
+            return checksums(cached.checksum, cached.embellishedChecksum)
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet resultSet = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_EMBELLISHED_CHECKSUMS)
+                preparedStatement.setString(1, id)
+                resultSet = preparedStatement.executeQuery()
+                return resultSet.next()
+                        ? checksums(resultSet.getString("checksum"), resultSet.getString("embellished_checksum"))
+                        : null
+            }
+            finally {
+                close(resultSet, preparedStatement)
+            }
+        }
+    }
+
+    private static Tuple2<String, String> checksums(String checksum, String embellishedChecksum) {
+        // rows cached before checksums were stored
+        return checksum && embellishedChecksum ? new Tuple2<String, String>(checksum, embellishedChecksum) : null
+    }
+
+    private void touchEmbellishedDocument(String id, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(TOUCH_EMBELLISHED_DOCUMENT)
+            preparedStatement.setString(1, id)
+            preparedStatement.execute()
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
+    /**
+     * Empties the whole embellish cache. Only for maintenance operations that invalidate all derived data
+     * (e.g. reDenormalize), the running system relies on eviction of dependers and trimEmbellishedCache().
+     */
     void clearEmbellishedCache(Connection connection) {
         log.info("Clearing embellish cache")
         PreparedStatement preparedStatement = null
         try {
             preparedStatement = connection.prepareStatement(CLEAR_EMBELLISHED)
             preparedStatement.execute()
+            embellishedDocumentCache?.invalidateAll()
+            PostgreSQLNotificationListener.notify(EMBELLISH_EVICTION_CHANNEL, EVICT_ALL, connection)
         } finally {
             close(preparedStatement)
         }
     }
 
     void evictDependersFromEmbellishedCache(String id, Connection connection) {
-        if (random.nextInt(1000) == 0) { // check every 1000 calls on average
-            boolean isFull = totalTableSizeBytes('lddb__embellished', connection) > embellishCacheMaxSize
-            if(isFull) {
-                clearEmbellishedCache(connection)
-                return
+        evictDependersFromEmbellishedCache([id], connection)
+    }
+
+    void evictDependersFromEmbellishedCache(Collection<String> ids, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(EVICT_EMBELLISHED_DEPENDERS)
+            preparedStatement.setArray(1, connection.createArrayOf('TEXT', ids as String[]))
+            preparedStatement.setArray(2, connection.createArrayOf('TEXT', ids as String[]))
+
+            preparedStatement.execute()
+
+            // Evict locally right away, other nodes (and this one again) get notified when the transaction commits
+            embellishedDocumentCache?.invalidate(ids)
+            PostgreSQLNotificationListener.notifyIds(EMBELLISH_EVICTION_CHANNEL, ids, connection)
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
+    private void startEmbellishCacheEviction() {
+        new Timer("EmbellishCacheEviction", true).schedule(new TimerTask() {
+            void run() {
+                try {
+                    trimEmbellishedCache()
+                }
+                catch (Exception e) {
+                    log.warn("Failed to trim embellish cache: $e", e)
+                }
+            }
+        }, EMBELLISH_CACHE_EVICTION_INTERVAL_MS, EMBELLISH_CACHE_EVICTION_INTERVAL_MS)
+    }
+
+    /**
+     * Evict the least recently accessed rows from lddb__embellished, in batches, until the estimated size of
+     * the live rows is below the low water mark. Does nothing unless the size is above embellishCacheMaxSize.
+     * Only one node at a time does the trimming (guarded by an advisory lock).
+     *
+     * @return number of evicted rows
+     */
+    long trimEmbellishedCache() {
+        updateEmbellishCacheHitRatio()
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            if (!tryAdvisoryLock(EMBELLISH_CACHE_EVICTION_LOCK, connection)) {
+                return 0L
+            }
+            try {
+                long[] stats = embellishedTableStats(connection)
+                long liveBytes = stats[0]
+                long liveRows = stats[1]
+                embellishCacheBytes.set(liveBytes)
+
+                if (liveBytes <= embellishCacheMaxSize || liveRows <= 0) {
+                    return 0L
+                }
+
+                long bytesPerRow = Math.max(1L, (long) (liveBytes / liveRows))
+                long toEvict = (long) ((liveBytes - embellishCacheLowWaterMark) / bytesPerRow)
+                log.info("Embellish cache is ${liveBytes} bytes (${liveRows} rows), evicting ${toEvict} rows")
+
+                long evicted = 0
+                while (evicted < toEvict) {
+                    int batchSize = (int) Math.min(EMBELLISH_CACHE_EVICTION_BATCH_SIZE, toEvict - evicted)
+                    int n = evictColdestEmbellished(batchSize, connection)
+                    evicted += n
+                    embellishCacheEvictedRows.inc(n)
+                    if (n < batchSize) {
+                        break
+                    }
+                }
+                embellishCacheBytes.set(Math.max(0L, liveBytes - evicted * bytesPerRow))
+                log.info("Evicted ${evicted} rows from embellish cache")
+                return evicted
             }
+            finally {
+                advisoryUnlock(EMBELLISH_CACHE_EVICTION_LOCK, connection)
+            }
+        }
+    }
+
+    private void updateEmbellishCacheHitRatio() {
+        long hits = embellishCacheHits.getAndSet(0)
+        long misses = embellishCacheMisses.getAndSet(0)
+        if (hits + misses > 0) {
+            embellishCacheHitRatio.set(hits / (double) (hits + misses))
         }
+    }
 
+    private static int evictColdestEmbellished(int limit, Connection connection) {
         PreparedStatement preparedStatement = null
         try {
-            preparedStatement = connection.prepareStatement(EVICT_EMBELLISHED_DEPENDERS)
-            preparedStatement.setString(1, id)
-            preparedStatement.setArray(2, connection.createArrayOf('TEXT', [id] as String[]))
+            preparedStatement = connection.prepareStatement(EVICT_COLDEST_EMBELLISHED)
+            preparedStatement.setInt(1, limit)
+            return preparedStatement.executeUpdate()
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
+    /**
+     * pg_total_relation_size doesn't shrink when rows are deleted (until VACUUM FULL) so the size of live rows
+     * is estimated from the live/dead tuple ratio.
+     *
+     * @return [estimated live bytes, estimated live rows]
+     */
+    private static long[] embellishedTableStats(Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(GET_EMBELLISHED_TABLE_STATS)
+            resultSet = preparedStatement.executeQuery()
+            if (!resultSet.next()) {
+                throw new WhelkRuntimeException("No such table lddb__embellished")
+            }
+            long totalBytes = resultSet.getLong(1)
+            long live = resultSet.getLong(2)
+            long dead = resultSet.getLong(3)
+            long liveBytes = live + dead > 0 ? (long) (totalBytes * (live / (double) (live + dead))) : totalBytes
+            return [liveBytes, live] as long[]
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
 
+    private static boolean tryAdvisoryLock(long key, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(TRY_ADVISORY_LOCK)
+            preparedStatement.setLong(1, key)
+            resultSet = preparedStatement.executeQuery()
+            return resultSet.next() && resultSet.getBoolean(1)
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
+
+    private static void advisoryUnlock(long key, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(ADVISORY_UNLOCK)
+            preparedStatement.setLong(1, key)
             preparedStatement.execute()
         }
         finally {
@@ -558,6 +1136,9 @@ class PostgreSQLComponent {
 
     void logStats() {
         dependencyCache.logStats()
+        if (embellishedDocumentCache != null) {
+            log.info("Embellished document cache: ${embellishedDocumentCache.stats()}")
+        }
         log.info("Cards created or changed: $cardsUpdated")
     }
 
@@ -688,6 +1269,8 @@ class PostgreSQLComponent {
 
                 saveVersion(doc, connection, now, now, changedIn, changedBy, collection, deleted)
                 refreshDerivativeTables(doc, connection, deleted)
+                reindexQueueAdd(null, doc, connection)
+                dependencyCache.notifyInvalidation(doc, connection)
 
                 connection.commit()
                 def status = status(doc.getURI(), connection)
@@ -827,7 +1410,7 @@ class PostgreSQLComponent {
         while (true) {
             try {
                 Document doc = load(id)
-                String checksum = doc.getChecksum(jsonld)
+                String checksum = doc.getChecksumAsLoaded(jsonld)
                 updateAgent.update(doc)
                 Document updated = storeAtomicUpdate(doc, minorUpdate, changedIn, changedBy, checksum)
                 return updated
@@ -861,8 +1444,9 @@ class PostgreSQLComponent {
                 throw new SQLException("There is no document with the id: " + id)
             Document preUpdateDoc = assembleDocument(resultSet)
 
-            if (preUpdateDoc.getChecksum(jsonld) != oldChecksum) {
-                throw new StaleUpdateException("Document $doc.shortId has been modified. Checksum mismatch: ${preUpdateDoc.getChecksum(jsonld)} <> $oldChecksum")
+            String preUpdateChecksum = preUpdateDoc.getChecksumAsLoaded(jsonld)
+            if (preUpdateChecksum != oldChecksum) {
+                throw new StaleUpdateException("Document $doc.shortId has been modified. Checksum mismatch: ${preUpdateChecksum} <> $oldChecksum")
             }
 
             String collection = resultSet.getString("collection")
@@ -936,12 +1520,14 @@ class PostgreSQLComponent {
                 SortedSet<String> idsLinkingToOldId = getDependencyData(id, GET_DEPENDERS, connection)
                 for (String dependerId : idsLinkingToOldId) {
                     Document depender = load(dependerId)
-                    storeAtomicUpdate(depender, true, changedIn, changedBy, depender.getChecksum(jsonld), connection, postCommitActions)
+                    storeAtomicUpdate(depender, true, changedIn, changedBy, depender.getChecksumAsLoaded(jsonld), connection, postCommitActions)
                 }
             }
 
             refreshDerivativeTables(doc, connection, deleted)
+            reindexQueueAdd(preUpdateDoc, doc, connection)
 
+            dependencyCache.notifyInvalidation(preUpdateDoc, doc, connection)
             postCommitActions << { dependencyCache.invalidate(preUpdateDoc, doc) }
 
             log.debug("Saved document ${doc.getShortId()} with timestamps ${doc.created} / ${doc.modified}")
@@ -1033,11 +1619,16 @@ class PostgreSQLComponent {
         }
     }
 
-    void refreshDerivativeTables(Document doc, Connection connection, boolean deleted, boolean leaveCacheAlone = false) {
+    /**
+     * @return system ids of the documents whose embellished versions must be evicted because doc started or stopped
+     * linking to them, for callers using leaveCacheAlone
+     */
+    Set<String> refreshDerivativeTables(Document doc, Connection connection, boolean deleted, boolean leaveCacheAlone = false) {
         saveIdentifiers(doc, connection, deleted)
-        saveDependencies(doc, connection)
+        saveTypedIdentifiers(doc, connection, deleted)
+        Set<String> reverseLinkChanged = saveDependencies(doc, connection)
         if (!leaveCacheAlone)
-            evictDependersFromEmbellishedCache(doc.getShortId(), connection)
+            evictDependersFromEmbellishedCache([doc.getShortId()] + reverseLinkChanged, connection)
 
         if (jsonld) {
             if (deleted) {
@@ -1050,6 +1641,8 @@ class PostgreSQLComponent {
         if (sparqlQueueEnabled) {
             sparqlQueueAdd(doc.getShortId(), connection)
         }
+
+        return reverseLinkChanged
     }
 
     /**
@@ -1174,18 +1767,22 @@ class PostgreSQLComponent {
     boolean isCardChangedOrNonexistent(String systemId) {
         return withDbConnection {
             Connection connection = getMyConnection()
-            PreparedStatement preparedStatement = null
-            ResultSet rs = null
-            try {
-                preparedStatement = connection.prepareStatement(IS_CARD_CHANGED)
-                preparedStatement.setString(1, systemId)
+            return isCardChangedOrNonexistent(systemId, connection)
+        }
+    }
 
-                rs = preparedStatement.executeQuery()
+    private static boolean isCardChangedOrNonexistent(String systemId, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet rs = null
+        try {
+            preparedStatement = connection.prepareStatement(IS_CARD_CHANGED)
+            preparedStatement.setString(1, systemId)
 
-                return rs.next() ? rs.getBoolean(1) : true
-            } finally {
-                close(rs, preparedStatement)
-            }
+            rs = preparedStatement.executeQuery()
+
+            return rs.next() ? rs.getBoolean(1) : true
+        } finally {
+            close(rs, preparedStatement)
         }
     }
 
@@ -1212,6 +1809,7 @@ class PostgreSQLComponent {
 
             if (createdOrUpdated) {
                 cardsUpdated.incrementAndGet()
+                cardChanged(card.getShortId(), connection)
             }
 
             return createdOrUpdated
@@ -1239,6 +1837,7 @@ class PostgreSQLComponent {
 
             if (updated) {
                 cardsUpdated.incrementAndGet()
+                cardChanged(card.getShortId(), connection)
             }
 
             return updated
@@ -1256,12 +1855,21 @@ class PostgreSQLComponent {
             preparedStatement.setString(1,systemId)
 
             preparedStatement.executeUpdate()
+            cardChanged(systemId, connection)
         }
         finally {
             close(preparedStatement)
         }
     }
 
+    /**
+     * Tell every CachingPostgreSQLComponent using this database that a card was changed or deleted. Sent in the
+     * transaction of connection, so it is only delivered if the change is committed.
+     */
+    protected void cardChanged(String systemId, Connection connection) {
+        PostgreSQLNotificationListener.notifyIds(CARD_EVICTION_CHANNEL, [systemId], connection)
+    }
+
     protected Map loadCard(String id) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -1335,7 +1943,7 @@ class PostgreSQLComponent {
         return result
     }
 
-    private Map makeCardData(String systemId) {
+    protected Map makeCardData(String systemId) {
         Document doc = load(systemId)
         if (!doc) {
             throw new WhelkException("Could not find document with id " + systemId)
@@ -1352,17 +1960,26 @@ class PostgreSQLComponent {
         }
     }
     
-    private void saveDependencies(Document doc, Connection connection) {
-        List dependencies = _calculateDependenciesSystemIDs(doc, connection)
+    /**
+     * @return system ids of the documents that doc started or stopped linking to with a relation that embellish
+     * shows as @reverse on them
+     */
+    private Set<String> saveDependencies(Document doc, Connection connection) {
+        List<String[]> dependencies = _calculateDependenciesSystemIDs(doc, connection)
 
         // Clear out old dependencies
+        Set<List<String>> removed = new HashSet<>()
         PreparedStatement removeDependencies = connection.prepareStatement(DELETE_DEPENDENCIES)
+        ResultSet rs = null
         try {
             removeDependencies.setString(1, doc.getShortId())
-            int numRemoved = removeDependencies.executeUpdate()
-            log.debug("Removed $numRemoved dependencies for id ${doc.getShortId()}")
+            rs = removeDependencies.executeQuery()
+            while (rs.next()) {
+                removed.add([rs.getString(1), rs.getString(2)])
+            }
+            log.debug("Removed ${removed.size()} dependencies for id ${doc.getShortId()}")
         } finally {
-            close(removeDependencies)
+            close(rs, removeDependencies)
         }
 
         if (!doc.deleted) { // We do not care for the dependencies of deleted documents.
@@ -1383,6 +2000,13 @@ class PostgreSQLComponent {
                 close(insertDependencies)
             }
         }
+
+        Set<List<String>> added = doc.deleted ? new HashSet<List<String>>() : dependencies.collect { it.toList() }.toSet()
+        Set<String> inverseRelations = jsonld ? jsonld.getAllInverseProperties() : Collections.<String>emptySet()
+        return ((removed - added) + (added - removed))
+                .findAll { List<String> dependency -> dependency[0] in inverseRelations }
+                .collect { List<String> dependency -> dependency[1] }
+                .toSet()
     }
 
     private void saveIdentifiers(Document doc, Connection connection, boolean deleted, boolean removeOnly = false) {
@@ -1436,6 +2060,44 @@ class PostgreSQLComponent {
         }
     }
 
+    private void saveTypedIdentifiers(Document doc, Connection connection, boolean deleted) {
+        PreparedStatement remove = connection.prepareStatement(DELETE_TYPED_IDENTIFIERS)
+        try {
+            remove.setString(1, doc.getShortId())
+            remove.executeUpdate()
+        } finally {
+            close(remove)
+        }
+
+        // Deleted documents are never duplicates
+        if (deleted)
+            return
+
+        Set<TypedIdentifier> typedIds = TypedIdentifier.collect(doc.data)
+        if (typedIds.isEmpty())
+            return
+
+        PreparedStatement insert = connection.prepareStatement(INSERT_TYPED_IDENTIFIERS)
+        try {
+            for (TypedIdentifier typedId : typedIds) {
+                if (!typedId.value)
+                    continue
+                insert.setString(1, doc.getShortId())
+                insert.setInt(2, typedId.graphIndex)
+                insert.setString(3, typedId.relation)
+                insert.setString(4, typedId.type)
+                insert.setString(5, typedId.value)
+                insert.addBatch()
+            }
+            insert.executeBatch()
+        } catch (BatchUpdateException bue) {
+            log.error("Failed saving typed identifiers for ${doc.getShortId()}")
+            throw bue.getNextException()
+        } finally {
+            close(insert)
+        }
+    }
+
     private PreparedStatement rigInsertStatement(PreparedStatement insert, Document doc, Date timestamp, String changedIn, String changedBy, String collection, boolean deleted) {
         insert.setString(1, doc.getShortId())
         insert.setObject(2, doc.dataAsString, OTHER)
@@ -1464,6 +2126,11 @@ class PostgreSQLComponent {
                         Date modTime, String changedIn, String changedBy,
                         String collection, boolean deleted) {
         if (versioning) {
+            if (versionKeyframeInterval > 1 && saveVersionDelta(doc, connection, createdTime, modTime, changedIn,
+                    changedBy, collection, deleted)) {
+                return true
+            }
+
             PreparedStatement insVersion = connection.prepareStatement(INSERT_DOCUMENT_VERSION)
             try {
                 log.debug("Trying to save a version of ${doc.getShortId() ?: ""} with checksum ${doc.getChecksum(jsonld)}. Modified: $modTime")
@@ -1484,8 +2151,64 @@ class PostgreSQLComponent {
         }
     }
 
-    private PreparedStatement rigVersionStatement(PreparedStatement insvers,
-                                                         Document doc, Date createdTime,
+    /**
+     * Save the version as a delta against the latest keyframe of the document, if there is one, the keyframe
+     * interval isn't reached and the delta is small enough.
+     *
+     * Must be called with the document row locked (or with the document not yet committed), so that keyframes
+     * aren't added concurrently.
+     *
+     * @return false if the version should be saved in full instead
+     */
+    private boolean saveVersionDelta(Document doc, Connection connection, Date createdTime,
+                                     Date modTime, String changedIn, String changedBy,
+                                     String collection, boolean deleted) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(GET_LATEST_VERSION_KEYFRAME)
+            statement.setString(1, doc.getShortId())
+            rs = statement.executeQuery()
+            if (!rs.next() || rs.getInt("deltas") + 1 >= versionKeyframeInterval) {
+                return false
+            }
+            int keyframePk = rs.getInt("pk")
+            String delta = encodeVersionDelta(mapper.readValue(rs.getString("data"), Map), doc.data)
+            if (delta == null) {
+                return false
+            }
+            close(rs, statement)
+            rs = null
+
+            statement = connection.prepareStatement(INSERT_DOCUMENT_VERSION_DELTA)
+            statement.setString(1, doc.getShortId())
+            statement.setObject(2, delta, OTHER)
+            statement.setInt(3, keyframePk)
+            statement.setString(4, collection)
+            statement.setString(5, changedIn)
+            statement.setString(6, changedBy)
+            statement.setString(7, doc.getChecksum(jsonld))
+            statement.setTimestamp(8, new Timestamp(createdTime.getTime()))
+            statement.setTimestamp(9, new Timestamp(modTime.getTime()))
+            statement.setBoolean(10, deleted)
+            statement.executeUpdate()
+            return true
+        } finally {
+            close(rs, statement)
+        }
+    }
+
+    /**
+     * @return the JSON patch from keyframe to data, or null if it isn't enough smaller than data
+     */
+    private static String encodeVersionDelta(Map keyframe, Map data) {
+        String delta = mapper.writeValueAsString(JsonPatch.diff(keyframe, data))
+        String full = mapper.writeValueAsString(data)
+        return delta.length() <= full.length() * MAX_VERSION_DELTA_RATIO ? delta : null
+    }
+
+    private PreparedStatement rigVersionStatement(PreparedStatement insvers,
+                                                         Document doc, Date createdTime,
                                                          Date modTime, String changedIn,
                                                          String changedBy, String collection,
                                                          boolean deleted) {
@@ -1529,11 +2252,12 @@ class PostgreSQLComponent {
                 }
                 batch.executeBatch()
                 ver_batch.executeBatch()
+                Set<String> evict = new LinkedHashSet<>(docs.collect { it.getShortId() })
                 docs.each { doc ->
                     boolean leaveCacheAlone = true
-                    refreshDerivativeTables(doc, connection, false, leaveCacheAlone)
+                    evict.addAll(refreshDerivativeTables(doc, connection, false, leaveCacheAlone))
                 }
-                clearEmbellishedCache(connection)
+                evictDependersFromEmbellishedCache(evict, connection)
                 connection.commit()
                 log.debug("Stored ${docs.size()} documents in collection ${collection} (versioning: ${versioning})")
                 return true
@@ -1615,6 +2339,189 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Queue reindexing of documents affected by an update, in the same transaction as the update.
+     * Nothing is queued for the updated document itself, that is indexed directly.
+     *
+     * @param preUpdateDoc null for new documents
+     */
+    private void reindexQueueAdd(Document preUpdateDoc, Document doc, Connection connection) {
+        if (!reindexQueueEnabled) {
+            return
+        }
+
+        String id = doc.getShortId()
+        Map<String, Integer> linkDeltas = [:]
+        boolean changedMainEntityId = preUpdateDoc != null &&
+                preUpdateDoc.getThingIdentifiers()[0] &&
+                doc.getThingIdentifiers()[0] &&
+                doc.getThingIdentifiers()[0] != preUpdateDoc.getThingIdentifiers()[0]
+
+        PreparedStatement statement = null
+        try {
+            statement = connection.prepareStatement(REINDEX_QUEUE_ADD)
+            if (changedMainEntityId) {
+                // Everything linking to or from the document needs to be reindexed
+                SortedSet<String> ids = getDependencyData(id, GET_DEPENDENCIES, connection)
+                ids.addAll(getDependencyData(id, GET_DEPENDERS, connection))
+                for (String linkedId : ids) {
+                    addReindexQueueBatch(statement, linkedId, ReindexKind.INDEX, 0)
+                }
+            }
+            else {
+                Set<Link> preUpdateLinks = preUpdateDoc != null && !preUpdateDoc.getDeleted()
+                        ? preUpdateDoc.getExternalRefs() : new HashSet<Link>()
+                Set<Link> postUpdateLinks = !doc.getDeleted() ? doc.getExternalRefs() : new HashSet<Link>()
+                Set<String> reindexLinked = new LinkedHashSet<>()
+                Map<Link, Integer> changedLinks = [:]
+                (preUpdateLinks - postUpdateLinks).each { Link link -> changedLinks[link] = -1 }
+                (postUpdateLinks - preUpdateLinks).each { Link link -> changedLinks[link] = 1 }
+                changedLinks.each { Link link, Integer delta ->
+                    String linkedId = getSystemIdByIri(link.iri, connection)
+                    if (!linkedId) {
+                        return
+                    }
+                    if (showsAsReverse(linkedId, link.relation)) {
+                        reindexLinked.add(linkedId)
+                    }
+                    else {
+                        linkDeltas[linkedId] = linkDeltas.getOrDefault(linkedId, 0) + delta
+                    }
+                }
+                for (String linkedId : reindexLinked) {
+                    addReindexQueueBatch(statement, linkedId, ReindexKind.INDEX, 0)
+                }
+                // Reindexing also recalculates the link counter
+                linkDeltas.each { String linkedId, Integer delta ->
+                    if (!(linkedId in reindexLinked)) {
+                        addReindexQueueBatch(statement, linkedId, ReindexKind.LINKS, delta)
+                    }
+                }
+
+                if (isCardChangedOrNonexistent(id, connection)) {
+                    addReindexQueueBatch(statement, id, ReindexKind.CARD, 0)
+                }
+            }
+            statement.executeBatch()
+        }
+        finally {
+            close(statement)
+        }
+    }
+
+    /**
+     * Does the document show documents linking to it with relation as @reverse in some lens, i.e. must it be
+     * reindexed when such a link is added or removed
+     */
+    private boolean showsAsReverse(String id, String relation) {
+        if (!jsonld || !(relation in jsonld.getAllInverseProperties())) {
+            return false
+        }
+        Document linked = load(id)
+        return linked && REVERSE_LENSES.any { String lens -> jsonld.getInverseProperties(linked.data, lens).contains(relation) }
+    }
+
+    private static void addReindexQueueBatch(PreparedStatement statement, String id, ReindexKind kind, int delta) {
+        statement.setString(1, id)
+        statement.setString(2, kind.name())
+        statement.setInt(3, delta)
+        statement.addBatch()
+    }
+
+    /**
+     * Queue reindexing of documents, outside of any update
+     */
+    void reindexQueueAdd(Collection<String> ids, ReindexKind kind) {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            try {
+                statement = connection.prepareStatement(REINDEX_QUEUE_ADD)
+                for (String id : ids) {
+                    addReindexQueueBatch(statement, id, kind, 0)
+                }
+                statement.executeBatch()
+            }
+            finally {
+                close(statement)
+            }
+        }
+    }
+
+    /**
+     * Take the <num> oldest entries (that have been in the queue for at least coalesceMillis) from the reindex queue,
+     * together with all other entries for the same id and kind, and pass them to the handler.
+     * If the handler throws, all entries remain in the queue. What the handler returns is run after the entries have
+     * been removed.
+     *
+     * @return the number of items passed to the handler
+     */
+    int reindexQueueTake(ReindexQueueHandler handler, int num, long coalesceMillis, DataSource connectionPool) {
+        Connection connection = null
+        PreparedStatement statement = null
+        ResultSet rs = null
+        Runnable afterCommit = null
+        int taken
+        try {
+            connection = connectionPool.getConnection()
+            connection.setAutoCommit(false)
+
+            statement = connection.prepareStatement(REINDEX_QUEUE_TAKE)
+            statement.setLong(1, coalesceMillis)
+            statement.setInt(2, num)
+            rs = statement.executeQuery()
+
+            Map<String, ReindexQueueItem> items = new LinkedHashMap<>()
+            while (rs.next()) {
+                ReindexKind kind = ReindexKind.valueOf(rs.getString('kind'))
+                String key = kind.name() + ' ' + rs.getString('id')
+                ReindexQueueItem previous = items[key]
+                Timestamp enqueued = rs.getTimestamp('enqueued')
+                items[key] = new ReindexQueueItem(
+                        rs.getString('id'),
+                        kind,
+                        rs.getInt('delta') + (previous ? previous.delta : 0),
+                        previous && previous.enqueued.before(enqueued) ? previous.enqueued : enqueued)
+            }
+
+            if (!items.isEmpty()) {
+                afterCommit = handler.handle(new ArrayList<ReindexQueueItem>(items.values()))
+            }
+            connection.commit()
+            taken = items.size()
+        }
+        catch (Exception e) {
+            connection?.rollback()
+            throw e
+        }
+        finally {
+            close(rs, statement, connection)
+        }
+
+        afterCommit?.run()
+        return taken
+    }
+
+    /**
+     * @return number of entries in the reindex queue and the age of the oldest entry in seconds
+     */
+    Tuple2<Long, Double> getReindexQueueStatus() {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            ResultSet rs = null
+            try {
+                statement = connection.prepareStatement(REINDEX_QUEUE_STATUS)
+                rs = statement.executeQuery()
+                rs.next()
+                return new Tuple2<Long, Double>(rs.getLong(1), rs.getDouble(2))
+            }
+            finally {
+                close(rs, statement)
+            }
+        }
+    }
+
     private Collection<String> sparqlQueueTakeIds(int num, Connection connection) {
         PreparedStatement statement = null
         try {
@@ -1709,6 +2616,41 @@ class PostgreSQLComponent {
         return getRecordOrThingId(id, GET_MAIN_ID, connection)
     }
 
+    /**
+     * Get the main IRI of many IRIs in one query, together with whether the document is deleted.
+     *
+     * @return IRI -> (main IRI, deleted), for all IRIs found
+     */
+    Map<String, Tuple2<String, Boolean>> getMainIdsWithDeleted(Collection<String> iris) {
+        Map<String, Tuple2<String, Boolean>> result = new HashMap<>()
+        if (iris.isEmpty()) {
+            return result
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_MAIN_IDS_AND_DELETED)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", iris as String[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    String iri = rs.getString(1)
+                    if (result.containsKey(iri)) {
+                        log.warn("Multiple main IDs found for ID ${iri}")
+                        continue
+                    }
+                    result.put(iri, new Tuple2<String, Boolean>(rs.getString(2), rs.getBoolean(3)))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     private static String getRecordOrThingId(String id, String sql, Connection connection) {
         PreparedStatement selectstmt = null
         ResultSet rs = null
@@ -1829,6 +2771,71 @@ class PostgreSQLComponent {
         return doc
     }
 
+    /**
+     * Load many documents, identified by system ids and/or IRIs, with one query.
+     *
+     * IRIs in our own namespace (Document.BASE_URI) are also tried as system ids. Deleted documents are included.
+     * If several of the requested identifiers belong to the same document they share the same Document instance.
+     *
+     * @return documents by requested identifier, identifiers not found are left out
+     */
+    Map<String, Document> bulkLoad(Collection<String> ids) {
+        Map<String, Document> result = new HashMap<>()
+        if (ids.isEmpty()) {
+            return result
+        }
+
+        Map<String, List<String>> requestedBySystemId = new HashMap<>()
+        for (String id : ids) {
+            String systemId = id.startsWith(Document.BASE_URI.toString())
+                    ? Document.BASE_URI.resolve(id).getPath().substring(1)
+                    : id
+            requestedBySystemId.computeIfAbsent(systemId, { new ArrayList<String>() }).add(id)
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(BULK_LOAD_DOCUMENTS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", requestedBySystemId.keySet() as String[]))
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+
+                Map<String, Document> docs = new HashMap<>()
+                Set<String> foundBySystemId = new HashSet<>()
+                Map<String, String> systemIdByIri = new HashMap<>()
+                while (rs.next()) {
+                    String systemId = rs.getString("id")
+                    if (!docs.containsKey(systemId)) {
+                        docs.put(systemId, assembleDocument(rs))
+                    }
+
+                    if (rs.getBoolean("by_iri")) {
+                        systemIdByIri.put(rs.getString("requested"), systemId)
+                    }
+                    else {
+                        foundBySystemId.add(systemId)
+                    }
+                }
+
+                // Same precedence as load(id) followed by getDocumentByIri(id)
+                for (String systemId : foundBySystemId) {
+                    for (String id : requestedBySystemId[systemId]) {
+                        result.put(id, docs[systemId])
+                    }
+                }
+                systemIdByIri.each { String iri, String systemId -> result.putIfAbsent(iri, docs[systemId]) }
+
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     String getSystemIdByIri(String iri) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -1987,6 +2994,144 @@ class PostgreSQLComponent {
         return getDependencyDataOfType(id, relation, GET_DEPENDERS_OF_TYPE)
     }
 
+    /**
+     * Get the thing main IRIs of all documents linking to a thing with a relation, for many (thing IRI, relation)
+     * pairs in one query.
+     *
+     * @return dependers for every requested link, an empty set if there are none
+     */
+    Map<Link, Set<String>> getDependerIrisOfType(Collection<Link> links) {
+        return getIrisOfType(links, GET_DEPENDER_IRIS_OF_TYPE)
+    }
+
+    /**
+     * Get the thing main IRIs of all documents that a thing links to with a relation, for many (thing IRI, relation)
+     * pairs in one query.
+     *
+     * @return dependencies for every requested link, an empty set if there are none
+     */
+    Map<Link, Set<String>> getDependencyIrisOfType(Collection<Link> links) {
+        return getIrisOfType(links, GET_DEPENDENCY_IRIS_OF_TYPE)
+    }
+
+    private Map<Link, Set<String>> getIrisOfType(Collection<Link> links, String query) {
+        Map<Link, Set<String>> result = new HashMap<>()
+        links.each { Link link -> result.put(link, new HashSet<String>()) }
+        if (links.isEmpty()) {
+            return result
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(query)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", links.collect { it.iri } as String[]))
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", links.collect { it.relation } as String[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    result.get(new Link(iri: rs.getString(1), relation: rs.getString(2)))?.add(rs.getString(3))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Is toIri the thing main IRI of a document reachable from fromIri by following any of the relations, in at
+     * most maxDepth steps? Answered with one query.
+     */
+    boolean isReachable(String fromIri, String toIri, Collection<String> relations, int maxDepth) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(IS_REACHABLE)
+                preparedStatement.setString(1, fromIri)
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", relations as String[]))
+                preparedStatement.setInt(3, maxDepth)
+                preparedStatement.setString(4, toIri)
+                rs = preparedStatement.executeQuery()
+                return rs.next() && rs.getBoolean(1)
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Get the thing main IRIs of all documents linking to iri with any of the relations, directly or indirectly in
+     * at most maxDepth steps. Symmetric relations are also followed forwards. Answered with one query.
+     */
+    Set<String> followReverse(String iri, Collection<String> relations, Collection<String> symmetricRelations, int maxDepth) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(FOLLOW_REVERSE)
+                preparedStatement.setString(1, iri)
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", relations as String[]))
+                preparedStatement.setArray(3, connection.createArrayOf("TEXT", symmetricRelations as String[]))
+                preparedStatement.setInt(4, maxDepth)
+                rs = preparedStatement.executeQuery()
+                Set<String> result = new HashSet<>()
+                while (rs.next()) {
+                    result.add(rs.getString(1))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Load the links with any of the relations between documents in the definitions collection.
+     */
+    ConceptGraph loadDefinitionsConceptGraph(Collection<String> relations) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            ConceptGraph graph = new ConceptGraph(relations)
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_DEFINITIONS_THING_IRIS)
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    graph.addIri(rs.getString(1), rs.getString(2), rs.getBoolean(3))
+                }
+                close(rs, preparedStatement)
+
+                preparedStatement = connection.prepareStatement(GET_DEFINITIONS_DEPENDENCIES_OF_TYPE)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", relations as String[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    graph.addLink(rs.getString(1), rs.getString(2), rs.getString(3))
+                }
+                close(rs, preparedStatement)
+
+                preparedStatement = connection.prepareStatement(GET_DEFINITIONS_WITH_OTHER_DEPENDERS_OF_TYPE)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", relations as String[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    graph.addLinkedFromOutside(rs.getString(1))
+                }
+                return graph
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     SortedSet<String> getDependencies(String id) {
         return withDbConnection {
             return getDependencyData(id, GET_DEPENDENCIES, getMyConnection())
@@ -2007,6 +3152,10 @@ class PostgreSQLComponent {
         return dependencyCache.getDependersOfType(iri, relation)
     }
 
+    Map<Link, Set<String>> bulkGetByReverseRelation(Collection<Link> links) {
+        return dependencyCache.getDependersOfType(links)
+    }
+
     long getIncomingLinkCount(String id) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -2091,29 +3240,45 @@ class PostgreSQLComponent {
      * If type is passed as null, all types will match.
      */
     List<String> getSystemIDsByTypedID(String idType, String idValue, int graphIndex) {
+        TypedIdentifier typedId = new TypedIdentifier(graphIndex, TypedIdentifier.IDENTIFIED_BY, idType, idValue)
+        return getSystemIdsByTypedIds([typedId]).values().first().toList()
+    }
+
+    /**
+     * Get the system ids of all (non-deleted) documents having any of the typed identifiers, in one query.
+     * Values are compared normalized, see TypedIdentifier.normalize().
+     *
+     * @param collection if not null, only match documents in this collection
+     * @return system ids for every requested typed identifier, an empty set if there are none
+     */
+    Map<TypedIdentifier, Set<String>> getSystemIdsByTypedIds(Collection<TypedIdentifier> typedIds, String collection = null) {
+        Map<TypedIdentifier, Set<String>> result = new LinkedHashMap<>()
+        typedIds.each { TypedIdentifier typedId -> result.put(typedId, new LinkedHashSet<String>()) }
+        List<TypedIdentifier> requested = result.keySet().findAll { it.value != null }.toList()
+        if (requested.isEmpty()) {
+            return result
+        }
+
         return withDbConnection {
+            Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
             ResultSet rs = null
             try {
-                String query = "SELECT id FROM lddb WHERE deleted = false AND data#>'{@graph," + graphIndex + ",identifiedBy}' @> ?"
-                Connection connection = getMyConnection()
-                preparedStatement = connection.prepareStatement(query)
-
-                if (idType != null) {
-                    String escapedId = StringEscapeUtils.escapeJavaScript(idValue)
-                    preparedStatement.setObject(1, "[{\"@type\": \"" + idType + "\", \"value\": \"" + escapedId + "\"}]", OTHER)
-                }
-                else {
-                    String escapedId = StringEscapeUtils.escapeJavaScript(idValue)
-                    preparedStatement.setObject(1, "[{\"value\": \"" + escapedId + "\"}]", OTHER)
+                preparedStatement = connection.prepareStatement(collection
+                        ? GET_SYSTEM_IDS_BY_TYPED_IDS_IN_COLLECTION
+                        : GET_SYSTEM_IDS_BY_TYPED_IDS)
+                preparedStatement.setArray(1, connection.createArrayOf("INTEGER", requested.collect { it.graphIndex } as Integer[]))
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", requested.collect { it.relation } as String[]))
+                preparedStatement.setArray(3, connection.createArrayOf("TEXT", requested.collect { it.type } as String[]))
+                preparedStatement.setArray(4, connection.createArrayOf("TEXT", requested.collect { TypedIdentifier.normalize(it.value) } as String[]))
+                if (collection) {
+                    preparedStatement.setString(5, collection)
                 }
-
                 rs = preparedStatement.executeQuery()
-                List<String> results = []
                 while (rs.next()) {
-                    results.add( rs.getString(1) )
+                    result.get(requested[(int) rs.getLong(1) - 1]).add(rs.getString(2))
                 }
-                return results
+                return result
             }
             finally {
                 close(rs, preparedStatement)
@@ -2265,57 +3430,191 @@ class PostgreSQLComponent {
     }
 
     List<Document> loadAllVersions(String identifier) {
-        return doLoadAllVersions(identifier, GET_ALL_DOCUMENT_VERSIONS)
+        return doLoadAllVersions(identifier, GET_ALL_DOCUMENT_VERSIONS).collect { it.doc }
     }
 
     List<Document> loadAllVersionsByMainId(String identifier) {
         return doLoadAllVersions(identifier,
-                                 GET_ALL_DOCUMENT_VERSIONS_BY_MAIN_ID)
+                                 GET_ALL_DOCUMENT_VERSIONS_BY_MAIN_ID).collect { it.doc }
     }
 
-    private List<Document> doLoadAllVersions(String identifier, String sql) {
+    List<DocumentVersion> loadDocumentHistory(String id) {
+        return doLoadAllVersions(id, GET_ALL_DOCUMENT_VERSIONS)
+    }
+
+    private List<DocumentVersion> doLoadAllVersions(String identifier, String sql) {
         return withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectstmt = null
             ResultSet rs = null
-            List<Document> docList = []
+            List<DocumentVersion> docList
             try {
                 selectstmt = connection.prepareStatement(sql)
                 selectstmt.setString(1, identifier)
                 rs = selectstmt.executeQuery()
-                int v = 0
-                while (rs.next()) {
-                    def doc = assembleDocument(rs)
-                    doc.version = v++
-                    docList << doc
-                }
+                docList = readVersions(rs).collect { it.version }
             } finally {
                 close(rs, selectstmt)
             }
+            sortVersions(docList)
+            docList.eachWithIndex { DocumentVersion version, int v -> version.doc.version = v }
             return docList
         }
     }
 
-    List<DocumentVersion> loadDocumentHistory(String id) {
+    private static class StoredVersion {
+        final int pk
+        final Integer basePk
+        final DocumentVersion version
+
+        StoredVersion(int pk, Integer basePk, DocumentVersion version) {
+            this.pk = pk
+            this.basePk = basePk
+            this.version = version
+        }
+    }
+
+    /**
+     * Read versions in storage order, reconstructing deltas from their keyframes (which come before them).
+     */
+    private static List<StoredVersion> readVersions(ResultSet rs) {
+        List<StoredVersion> versions = []
+        Map<Integer, String> keyframes = [:]
+        while (rs.next()) {
+            int pk = rs.getInt("pk")
+            String data = rs.getString("data")
+            Integer basePk = null
+            if (data != null) {
+                keyframes.put(pk, data)
+            } else {
+                basePk = rs.getInt("base_pk")
+                data = keyframes.get(basePk)
+                if (data == null) {
+                    throw new WhelkRuntimeException("Keyframe $basePk of version $pk of ${rs.getString("id")} not found")
+                }
+            }
+            Document doc = assembleDocument(rs, data)
+            versions << new StoredVersion(pk, basePk,
+                    new DocumentVersion(doc, rs.getString("changedBy"), rs.getString("changedIn")))
+        }
+        return versions
+    }
+
+    /**
+     * Sort versions chronologically, oldest first. Script edits may keep modified, so generationDate is used when
+     * later. Versions with the same time are kept in storage order.
+     */
+    private static void sortVersions(List<DocumentVersion> versions) {
+        Map<DocumentVersion, Instant> times = new IdentityHashMap<>()
+        for (DocumentVersion version : versions) {
+            times.put(version, versionTime(version.doc))
+        }
+        versions.sort(true) { DocumentVersion a, DocumentVersion b -> times[a] <=> times[b] }
+    }
+
+    private static Instant versionTime(Document doc) {
+        Instant time = ZonedDateTime.parse(doc.getModified()).toInstant()
+        try {
+            Instant generated = doc.getGenerationDate() ? ZonedDateTime.parse(doc.getGenerationDate()).toInstant() : null
+            if (generated != null && generated.isAfter(time)) {
+                time = generated
+            }
+        } catch (DateTimeParseException e) {
+            log.debug("Invalid generationDate in ${doc.getShortId()}: ${e.message}")
+        }
+        return time
+    }
+
+    /**
+     * Store the versions of a document again with the current versionKeyframeInterval, e.g. to convert history
+     * saved in full to keyframes and deltas. The document is locked meanwhile, like when it's updated.
+     *
+     * Rewritten rows are reclaimed by (auto)vacuum.
+     *
+     * @return the number of versions rewritten
+     */
+    int compressVersions(String id) {
         return withDbConnection {
             Connection connection = getMyConnection()
-            PreparedStatement selectstmt = null
+            PreparedStatement selectStatement = null
+            PreparedStatement keyframeStatement = null
+            PreparedStatement deltaStatement = null
             ResultSet rs = null
-            List<DocumentVersion> docList = []
             try {
-                selectstmt = connection.prepareStatement(GET_ALL_DOCUMENT_VERSIONS)
-                selectstmt.setString(1, id)
-                rs = selectstmt.executeQuery()
-                int v = 0
+                connection.setAutoCommit(false)
+                acquireRowLock(id, connection)
+
+                selectStatement = connection.prepareStatement(GET_ALL_DOCUMENT_VERSIONS)
+                selectStatement.setString(1, id)
+                rs = selectStatement.executeQuery()
+                List<StoredVersion> versions = readVersions(rs)
+
+                keyframeStatement = connection.prepareStatement(UPDATE_VERSION_TO_KEYFRAME)
+                deltaStatement = connection.prepareStatement(UPDATE_VERSION_TO_DELTA)
+                int rewritten = 0
+                StoredVersion keyframe = null
+                int deltas = 0
+                for (StoredVersion stored : versions) {
+                    Map data = stored.version.doc.data
+                    String delta = keyframe != null && deltas + 1 < versionKeyframeInterval
+                            ? encodeVersionDelta(keyframe.version.doc.data, data)
+                            : null
+                    if (delta != null) {
+                        deltas++
+                        if (stored.basePk != keyframe.pk) {
+                            deltaStatement.setObject(1, delta, OTHER)
+                            deltaStatement.setInt(2, keyframe.pk)
+                            deltaStatement.setInt(3, stored.pk)
+                            deltaStatement.addBatch()
+                            rewritten++
+                        }
+                    } else {
+                        keyframe = stored
+                        deltas = 0
+                        if (stored.basePk != null) {
+                            keyframeStatement.setObject(1, mapper.writeValueAsString(data), OTHER)
+                            keyframeStatement.setInt(2, stored.pk)
+                            keyframeStatement.addBatch()
+                            rewritten++
+                        }
+                    }
+                }
+                // Keyframes first, deltas may be based on them
+                keyframeStatement.executeBatch()
+                deltaStatement.executeBatch()
+                connection.commit()
+                return rewritten
+            } catch (Exception e) {
+                connection.rollback()
+                throw e
+            } finally {
+                close(rs, selectStatement, keyframeStatement, deltaStatement)
+                connection.setAutoCommit(true)
+            }
+        }
+    }
+
+    /**
+     * @return ids with versions, in order, starting after afterId
+     */
+    List<String> getVersionedIds(String afterId, int limit) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            ResultSet rs = null
+            List<String> ids = []
+            try {
+                statement = connection.prepareStatement(GET_VERSIONED_IDS)
+                statement.setString(1, afterId ?: "")
+                statement.setInt(2, limit)
+                rs = statement.executeQuery()
                 while (rs.next()) {
-                    def doc = assembleDocument(rs)
-                    doc.version = v++
-                    docList.add(new DocumentVersion(doc, rs.getString("changedBy"), rs.getString("changedIn")))
+                    ids << rs.getString("id")
                 }
             } finally {
-                close(rs, selectstmt)
+                close(rs, statement)
             }
-            return docList
+            return ids
         }
     }
 
@@ -2345,7 +3644,21 @@ class PostgreSQLComponent {
     }
 
     private static Document assembleDocument(ResultSet rs) {
-        Document doc = new Document(mapper.readValue(rs.getString("data"), Map))
+        return assembleDocument(rs, rs.getString("data"))
+    }
+
+    /**
+     * @param data document data, or the data of the keyframe if the row is a version delta
+     */
+    private static Document assembleDocument(ResultSet rs, String data) {
+        Map documentData = mapper.readValue(data, Map)
+        if (hasColumn(rs, "delta")) {
+            String delta = rs.getString("delta")
+            if (delta != null) {
+                documentData = (Map) JsonPatch.apply(documentData, mapper.readValue(delta, List))
+            }
+        }
+        Document doc = new Document(documentData)
         doc.setModified(new Date(rs.getTimestamp("modified").getTime()))
         doc.setDeleted(rs.getBoolean("deleted"))
 
@@ -2355,10 +3668,24 @@ class PostgreSQLComponent {
         } catch (SQLException ignored) {
             log.trace("Resultset didn't have created. Probably a version request.")
         }
-        
+
+        if (hasColumn(rs, "checksum")) {
+            doc.setStoredChecksum(rs.getString("checksum"))
+        }
+
         return doc
     }
 
+    private static boolean hasColumn(ResultSet rs, String column) {
+        ResultSetMetaData metaData = rs.getMetaData()
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(metaData.getColumnName(i))) {
+                return true
+            }
+        }
+        return false
+    }
+
     @CompileStatic(SKIP)
     Iterable<Document> loadAll(String collection, boolean includeDeleted = false, Date since = null, Date until = null) {
         return new Iterable<Document>() {
@@ -2423,10 +3750,130 @@ class PostgreSQLComponent {
         }
     }
 
-    static Iterable<Document> iterateDocuments(ResultSet rs) {
-        def conn = rs.statement.connection
-        boolean more = rs.next() // rs starts at "-1"
-        if (!more) {
+    /**
+     * Like loadAll() but ordered by id and limited to ids in the range (afterId, toId].
+     * Either bound can be null for an open range.
+     *
+     * Iterate all the way through, the connection is closed when there are no more documents.
+     */
+    DocumentIterable loadAllByIdRange(String collection, boolean includeDeleted, Date since,
+                                      String afterId, String toId) {
+        StringBuilder sql = new StringBuilder("SELECT id, data, created, modified, deleted, checksum FROM lddb WHERE modified >= ?")
+        List<String> parameters = []
+        if (collection) {
+            sql.append(" AND collection = ?")
+            parameters.add(collection)
+        }
+        if (!includeDeleted) {
+            sql.append(" AND deleted = false")
+        }
+        if (afterId) {
+            sql.append(" AND id > ?")
+            parameters.add(afterId)
+        }
+        if (toId) {
+            sql.append(" AND id <= ?")
+            parameters.add(toId)
+        }
+        sql.append(" ORDER BY id")
+
+        Connection connection = getOuterConnection()
+        try {
+            connection.setAutoCommit(false)
+            PreparedStatement statement = connection.prepareStatement(sql.toString())
+            statement.setFetchSize(100)
+            statement.setTimestamp(1, new Timestamp(since?.getTime() ?: 0L))
+            parameters.eachWithIndex { String value, int i -> statement.setString(i + 2, value) }
+            return iterateDocuments(statement.executeQuery())
+        }
+        catch (Exception e) {
+            close(connection)
+            throw e
+        }
+    }
+
+    /**
+     * Get ids splitting lddb into partitions of about the same size, e.g. for reading it in parallel.
+     *
+     * @return at most partitions - 1 ordered ids, fewer (or none) if lddb is small
+     */
+    List<String> getIdPartitionBoundaries(int partitions) {
+        if (partitions < 2) {
+            return []
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                Double[] fractions = (1..<partitions).collect { int i -> (double) i / partitions } as Double[]
+                preparedStatement = connection.prepareStatement(GET_ID_PARTITION_BOUNDARIES)
+                preparedStatement.setArray(1, connection.createArrayOf("float8", fractions))
+                rs = preparedStatement.executeQuery()
+                if (!rs.next() || rs.getArray(1) == null) {
+                    return Collections.<String>emptyList()
+                }
+                // Already in ORDER BY id order, which is the order the ranges are compared in (id > ? AND id <= ?).
+                // Sorting in Java could disagree with the collation of the database.
+                List<String> boundaries = []
+                for (String id : (String[]) rs.getArray(1).getArray()) {
+                    if (id != null && (boundaries.isEmpty() || boundaries.last() != id)) {
+                        boundaries.add(id)
+                    }
+                }
+                return boundaries
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    static DocumentIterable iterateDocuments(ResultSet rs) {
+        return new DocumentIterable(rs)
+    }
+
+    /**
+     * Documents read from a result set while iterating. The transaction is committed and the connection closed after
+     * the last document. To stop before that, call close(), which rolls back and closes the connection.
+     */
+    static class DocumentIterable implements Iterable<Document>, AutoCloseable {
+        private final ResultSet rs
+        private final Connection conn
+        private boolean more
+        private boolean closed = false
+
+        DocumentIterable(ResultSet rs) {
+            this.rs = rs
+            this.conn = rs.statement.connection
+            this.more = rs.next() // rs starts at "-1"
+            if (!more) {
+                done()
+            }
+        }
+
+        Iterator<Document> iterator() {
+            return new Iterator<Document>() {
+                @Override
+                Document next() {
+                    Document doc = assembleDocument(rs)
+                    more = rs.next()
+                    if (!more) {
+                        done()
+                    }
+                    return doc
+                }
+
+                @Override
+                boolean hasNext() {
+                    return more
+                }
+            }
+        }
+
+        private void done() {
+            closed = true
             try {
                 conn.commit()
                 conn.setAutoCommit(true)
@@ -2434,29 +3881,19 @@ class PostgreSQLComponent {
                 conn.close()
             }
         }
-        return new Iterable<Document>() {
-            Iterator<Document> iterator() {
-                return new Iterator<Document>() {
-                    @Override
-                    Document next() {
-                        Document doc = assembleDocument(rs)
-                        more = rs.next()
-                        if (!more) {
-                            try {
-                                conn.commit()
-                                conn.setAutoCommit(true)
-                            } finally {
-                                conn.close()
-                            }
-                        }
-                        return doc
-                    }
 
-                    @Override
-                    boolean hasNext() {
-                        return more
-                    }
-                }
+        @Override
+        void close() {
+            if (closed) {
+                return
+            }
+            closed = true
+            more = false
+            try {
+                conn.rollback()
+                conn.setAutoCommit(true)
+            } finally {
+                conn.close()
             }
         }
     }
@@ -0,0 +1,192 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import org.postgresql.PGConnection
+import org.postgresql.PGNotification
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.Statement
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Consumer
+
+/**
+ * Receives PostgreSQL NOTIFY messages on a dedicated connection and dispatches them to subscribers.
+ *
+ * Used to keep in-process caches on several nodes sharing one database consistent. Notifications sent
+ * inside a transaction are only delivered if and when it commits.
+ *
+ * Whenever the listening connection is (re)established notifications may have been lost, so subscribers
+ * also get a callback telling them to drop everything they know.
+ */
+@Log
+@CompileStatic
+class PostgreSQLNotificationListener {
+    private static final long POLL_INTERVAL_MS = 250
+    private static final long RECONNECT_DELAY_MS = 10 * 1000
+
+    // NOTIFY payloads must be shorter than 8000 bytes
+    static final int MAX_PAYLOAD_LENGTH = 7000
+    static final String PAYLOAD_SEPARATOR = ","
+
+    private final DataSource connectionPool
+    private final Map<String, List<Subscription>> subscriptions = new ConcurrentHashMap<>()
+    private Thread thread
+
+    PostgreSQLNotificationListener(DataSource connectionPool) {
+        this.connectionPool = connectionPool
+    }
+
+    /**
+     * @param channel name of the channel, must be a valid SQL identifier
+     * @param onNotification called with the payload of every notification on the channel
+     * @param onMissedNotifications called when notifications may have been lost (e.g. after reconnect)
+     */
+    synchronized void listen(String channel, Consumer<String> onNotification, Runnable onMissedNotifications) {
+        subscriptions.computeIfAbsent(channel, { new CopyOnWriteArrayList<Subscription>() })
+                .add(new Subscription(onNotification, onMissedNotifications))
+
+        if (thread == null) {
+            thread = new Thread(this.&run, "PostgreSQLNotificationListener")
+            thread.setDaemon(true)
+            thread.start()
+        }
+    }
+
+    /**
+     * Send a notification. If connection is in a transaction it will be delivered on commit.
+     */
+    static void notify(String channel, String payload, Connection connection) {
+        PreparedStatement statement = null
+        try {
+            statement = connection.prepareStatement("SELECT pg_notify(?, ?)")
+            statement.setString(1, channel)
+            statement.setString(2, payload)
+            statement.execute()
+        }
+        finally {
+            statement?.close()
+        }
+    }
+
+    /**
+     * Send ids as one or more notifications, each with a payload of ids separated by PAYLOAD_SEPARATOR.
+     */
+    static void notifyIds(String channel, Collection<String> ids, Connection connection) {
+        StringBuilder payload = new StringBuilder()
+        for (String id : ids) {
+            if (payload.length() > 0 && payload.length() + id.length() + 1 > MAX_PAYLOAD_LENGTH) {
+                notify(channel, payload.toString(), connection)
+                payload.setLength(0)
+            }
+            if (payload.length() > 0) {
+                payload.append(PAYLOAD_SEPARATOR)
+            }
+            payload.append(id)
+        }
+        if (payload.length() > 0) {
+            notify(channel, payload.toString(), connection)
+        }
+    }
+
+    static List<String> parseIds(String payload) {
+        return payload ? payload.split(PAYLOAD_SEPARATOR).toList() : Collections.<String>emptyList()
+    }
+
+    private void run() {
+        while (true) {
+            Connection connection = null
+            try {
+                connection = connectionPool.getConnection()
+                connection.setAutoCommit(true)
+                Set<String> listening = new HashSet<>()
+                listenToNew(listening, connection)
+                eachSubscription { Subscription s -> s.onMissedNotifications.run() }
+                log.info("Listening for notifications on ${listening}")
+
+                while (true) {
+                    listenToNew(listening, connection)
+                    poll(connection)
+                    Thread.sleep(POLL_INTERVAL_MS)
+                }
+            }
+            catch (InterruptedException ignored) {
+                return
+            }
+            catch (Exception e) {
+                log.warn("Notification listener failed, reconnecting in ${RECONNECT_DELAY_MS} ms: $e", e)
+            }
+            finally {
+                try {
+                    connection?.close()
+                } catch (Exception ignored) {
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS)
+            }
+            catch (InterruptedException ignored) {
+                return
+            }
+        }
+    }
+
+    private void listenToNew(Set<String> listening, Connection connection) {
+        for (String channel : subscriptions.keySet()) {
+            if (!listening.contains(channel)) {
+                Statement statement = connection.createStatement()
+                try {
+                    statement.execute("LISTEN " + channel)
+                } finally {
+                    statement.close()
+                }
+                listening.add(channel)
+            }
+        }
+    }
+
+    private void poll(Connection connection) {
+        // The driver only picks up notifications when talking to the server
+        Statement statement = connection.createStatement()
+        try {
+            statement.execute("SELECT 1")
+        } finally {
+            statement.close()
+        }
+
+        PGNotification[] notifications = connection.unwrap(PGConnection).getNotifications()
+        if (notifications == null) {
+            return
+        }
+
+        for (PGNotification notification : notifications) {
+            List<Subscription> subscribers = subscriptions.get(notification.getName())
+            for (Subscription s : (subscribers ?: Collections.<Subscription>emptyList())) {
+                try {
+                    s.onNotification.accept(notification.getParameter())
+                }
+                catch (Exception e) {
+                    log.warn("Failed to handle notification on ${notification.getName()}: $e", e)
+                }
+            }
+        }
+    }
+
+    private void eachSubscription(Closure c) {
+        subscriptions.values().each { List<Subscription> l -> l.each(c) }
+    }
+
+    private static class Subscription {
+        final Consumer<String> onNotification
+        final Runnable onMissedNotifications
+
+        Subscription(Consumer<String> onNotification, Runnable onMissedNotifications) {
+            this.onNotification = onNotification
+            this.onMissedNotifications = onMissedNotifications
+        }
+    }
+}
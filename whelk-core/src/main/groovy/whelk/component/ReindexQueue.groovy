@@ -0,0 +1,224 @@
+package whelk.component
+
+import com.google.common.collect.Iterables
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Summary
+import whelk.Document
+import whelk.Whelk
+import whelk.component.PostgreSQLComponent.ReindexKind
+import whelk.component.PostgreSQLComponent.ReindexQueueHandler
+import whelk.component.PostgreSQLComponent.ReindexQueueItem
+
+import javax.sql.DataSource
+
+/**
+ * Reindexes documents affected by updates of other documents, e.g. documents embedding a card that changed.
+ *
+ * What to reindex is queued in lddb__reindex_q by PostgreSQLComponent, in the same transaction as the update, so
+ * nothing is lost on restart. The queue is drained by a fixed number of workers in every process with a ReindexQueue.
+ * Entries for the same document are coalesced, and entries are left in the queue for a short while before being
+ * taken so that repeated updates of popular documents only result in one reindex.
+ *
+ * With reindexQueueEnabled = false there are no workers, instead the queue is drained synchronously after every
+ * update made through this process, see drainIfSynchronous().
+ */
+@Log
+@CompileStatic
+class ReindexQueue {
+    private static final int DEFAULT_NUM_WORKERS = 2
+    private static final long DEFAULT_COALESCE_MS = 2000
+
+    // Number of queue entries to take each time
+    private static final int QUEUE_TAKE_NUM = 500
+    private static final int BULK_INDEX_SIZE = 100
+
+    private static final long IDLE_WAIT_MS = 1000
+    private static final long FAILURE_WAIT_MS = 10 * 1000
+    private static final long STATUS_INTERVAL_MS = 10 * 1000
+
+    private static final Gauge queueSize = Gauge.build()
+            .name("reindex_queue_size")
+            .help("Entries in the reindex queue.")
+            .register()
+
+    private static final Gauge queueLag = Gauge.build()
+            .name("reindex_queue_lag_seconds")
+            .help("Age of the oldest entry in the reindex queue.")
+            .register()
+
+    private static final Counter itemsHandled = Counter.build()
+            .labelNames("kind")
+            .name("reindex_queue_items_total")
+            .help("Coalesced reindex queue items handled, by kind.")
+            .register()
+
+    private static final Counter failures = Counter.build()
+            .name("reindex_queue_failures_total")
+            .help("Failed attempts to handle a batch from the reindex queue.")
+            .register()
+
+    private static final Summary itemLatency = Summary.build()
+            .name("reindex_queue_item_latency_seconds")
+            .help("Time from an item being queued until it has been handled.")
+            .register()
+
+    private final Whelk whelk
+    private final long coalesceMillis
+    private final boolean synchronous
+    private final DataSource connectionPool
+    private final List<Thread> workers = []
+    private final Timer timer = new Timer("${ReindexQueue.class.getSimpleName()}-status", true)
+
+    static ReindexQueue build(Whelk whelk, Properties configuration) {
+        if (!whelk.elastic) {
+            return null
+        }
+        if (configuration.getProperty("reindexQueueEnabled")?.toLowerCase() == 'false') {
+            log.warn("Reindex queue workers disabled, affected documents are reindexed synchronously after each update")
+            return new ReindexQueue(whelk, 0, 0, true)
+        }
+
+        int numWorkers = configuration.getProperty("reindexQueueWorkers")
+                ? Integer.parseInt(configuration.getProperty("reindexQueueWorkers"))
+                : DEFAULT_NUM_WORKERS
+        long coalesceMillis = configuration.getProperty("reindexQueueCoalesceMs")
+                ? Long.parseLong(configuration.getProperty("reindexQueueCoalesceMs"))
+                : DEFAULT_COALESCE_MS
+
+        return new ReindexQueue(whelk, numWorkers, coalesceMillis, false)
+    }
+
+    private ReindexQueue(Whelk whelk, int numWorkers, long coalesceMillis, boolean synchronous) {
+        this.whelk = whelk
+        this.coalesceMillis = coalesceMillis
+        this.synchronous = synchronous
+        int poolSize = synchronous ? 1 : numWorkers
+        this.connectionPool = poolSize > 0
+                ? whelk.storage.createAdditionalConnectionPool(this.getClass().getSimpleName(), poolSize)
+                : null
+
+        for (int i = 0; i < numWorkers; i++) {
+            Thread t = new Thread({ -> runWorker() }, "${this.getClass().getSimpleName()}-$i".toString())
+            t.setDaemon(true)
+            workers.add(t)
+            t.start()
+        }
+
+        if (numWorkers > 0) {
+            timer.scheduleAtFixedRate({ updateStatus() }, STATUS_INTERVAL_MS, STATUS_INTERVAL_MS)
+        }
+    }
+
+    /**
+     * Without workers, reindex everything in the queue now. Entries that fail stay in the queue until the next time.
+     */
+    void drainIfSynchronous() {
+        if (!synchronous) {
+            return
+        }
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items -> return handle(items) } as ReindexQueueHandler
+        try {
+            while (whelk.storage.reindexQueueTake(handler, QUEUE_TAKE_NUM, 0, connectionPool) > 0) {
+            }
+        }
+        catch (Exception e) {
+            failures.inc()
+            log.error("Failed to reindex affected documents, they stay in the queue: $e", e)
+        }
+    }
+
+    private void runWorker() {
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items -> return handle(items) } as ReindexQueueHandler
+        while (true) {
+            try {
+                if (whelk.storage.reindexQueueTake(handler, QUEUE_TAKE_NUM, coalesceMillis, connectionPool) == 0) {
+                    Thread.sleep(IDLE_WAIT_MS)
+                }
+            }
+            catch (InterruptedException ignored) {
+                return
+            }
+            catch (Exception e) {
+                failures.inc()
+                log.warn("Failed to reindex from queue, retrying in ${FAILURE_WAIT_MS} ms: $e", e)
+                try {
+                    Thread.sleep(FAILURE_WAIT_MS)
+                }
+                catch (InterruptedException ignored) {
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the reverse link counter updates, to be sent once the items are gone from the queue
+     */
+    private Runnable handle(List<ReindexQueueItem> items) {
+        Set<String> toIndex = new LinkedHashSet<>()
+        Map<String, Integer> linkCounterDeltas = [:]
+
+        for (ReindexQueueItem item : items) {
+            switch (item.kind) {
+                case ReindexKind.INDEX:
+                    toIndex.add(item.id)
+                    break
+
+                case ReindexKind.CARD:
+                    Document changed = whelk.storage.load(item.id)
+                    if (changed) {
+                        Iterables.addAll(toIndex, whelk.elastic.getAffectedIds(changed.getThingIdentifiers() + changed.getRecordIdentifiers()))
+                    }
+                    break
+
+                case ReindexKind.LINKS:
+                    // Links shown as @reverse on the linked document are queued as INDEX instead
+                    if (item.delta != 0) {
+                        linkCounterDeltas[item.id] = item.delta
+                    }
+                    break
+            }
+        }
+
+        // Indexing a document also recalculates its link counter
+        linkCounterDeltas.keySet().removeAll(toIndex)
+
+        for (List<String> ids : Iterables.partition(toIndex, BULK_INDEX_SIZE)) {
+            whelk.elastic.bulkIndex(whelk.bulkLoad(ids).values(), whelk)
+        }
+
+        long now = System.currentTimeMillis()
+        for (ReindexQueueItem item : items) {
+            itemsHandled.labels(item.kind.name()).inc()
+            itemLatency.observe((now - item.enqueued.getTime()) / 1000d)
+        }
+
+        // Counter updates aren't idempotent, they must not be sent again if the items are taken again
+        return linkCounterDeltas ? { -> updateReverseLinkCounters(linkCounterDeltas) } as Runnable : null
+    }
+
+    private void updateReverseLinkCounters(Map<String, Integer> deltas) {
+        try {
+            whelk.elastic.writeAggregator.updateReverseLinkCountersNow(deltas)
+        }
+        catch (Exception e) {
+            // Reindexing recalculates the counters
+            log.warn("Failed to update ${deltas.size()} reverse link counters, queueing reindex instead: $e", e)
+            whelk.storage.reindexQueueAdd(deltas.keySet(), ReindexKind.INDEX)
+        }
+    }
+
+    private void updateStatus() {
+        try {
+            Tuple2<Long, Double> status = whelk.storage.getReindexQueueStatus()
+            queueSize.set(status.getV1())
+            queueLag.set(status.getV2())
+        }
+        catch (Exception e) {
+            log.warn("Failed to get reindex queue status: $e")
+        }
+    }
+}
@@ -4,12 +4,16 @@ import groovy.util.logging.Log4j2 as Log
 import org.w3c.dom.DocumentFragment
 import se.kb.libris.util.marc.Controlfield
 import se.kb.libris.util.marc.Datafield
+import se.kb.libris.util.marc.Field
 import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.Subfield
 import se.kb.libris.util.marc.impl.ControlfieldImpl
 import se.kb.libris.util.marc.impl.DatafieldImpl
 import se.kb.libris.util.marc.impl.MarcRecordImpl
 import se.kb.libris.util.marc.io.DomSerializer
 
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamWriter
 import javax.xml.transform.Result
 import javax.xml.transform.Source
 import javax.xml.transform.Transformer
@@ -20,6 +24,7 @@ import static whelk.util.Jackson.mapper
 
 @Log
 class JSONMarcConverter {
+    static final String MARCXML_NAMESPACE = "http://www.loc.gov/MARC21/slim"
 
     static MarcRecord fromJson(String marcJson) {
         Map resultJson = mapper.readValue(marcJson, Map)
@@ -91,8 +96,134 @@ class JSONMarcConverter {
         return sw.toString()
     }
 
+    /**
+     * Write a record as MARCXML, the same way as marcRecordAsXMLString() serializes it.
+     * The record is expected to have been cleaned with removeRestrictedCharacters().
+     */
+    static void writeMarcXml(MarcRecord record, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement("", "record", MARCXML_NAMESPACE)
+        writer.writeDefaultNamespace(MARCXML_NAMESPACE)
+        String type = recordType(record)
+        if (type) {
+            writer.writeAttribute("type", type)
+        }
+
+        writer.writeStartElement("", "leader", MARCXML_NAMESPACE)
+        writer.writeCharacters(record.getLeader())
+        writer.writeEndElement()
+
+        for (Field field : record) {
+            if (field instanceof Controlfield) {
+                writer.writeStartElement("", "controlfield", MARCXML_NAMESPACE)
+                writer.writeAttribute("tag", field.getTag())
+                writer.writeCharacters(((Controlfield) field).getData())
+                writer.writeEndElement()
+            }
+            else if (field instanceof Datafield) {
+                Datafield datafield = (Datafield) field
+                writer.writeStartElement("", "datafield", MARCXML_NAMESPACE)
+                writer.writeAttribute("tag", datafield.getTag())
+                writer.writeAttribute("ind1", String.valueOf(datafield.getIndicator(0)))
+                writer.writeAttribute("ind2", String.valueOf(datafield.getIndicator(1)))
+                for (Subfield subfield : datafield) {
+                    writer.writeStartElement("", "subfield", MARCXML_NAMESPACE)
+                    writer.writeAttribute("code", String.valueOf(subfield.getCode()))
+                    writer.writeCharacters(subfield.getData())
+                    writer.writeEndElement()
+                }
+                writer.writeEndElement()
+            }
+        }
+
+        writer.writeEndElement()
+    }
+
+    /**
+     * Remove characters that are not allowed in XML, with the same result as serializing the record to
+     * MARCXML (where control characters in subfields are replaced with '?' and others are written as character
+     * references), filtering out the restricted character references and parsing it back.
+     *
+     * Restricted characters are defined at: https://www.w3.org/TR/xml11/#charsets
+     */
+    static MarcRecord removeRestrictedCharacters(MarcRecord record) {
+        record.setLeader(removeRestrictedCharacters(record.getLeader()))
+        for (Field field : record) {
+            if (field instanceof Controlfield) {
+                Controlfield controlfield = (Controlfield) field
+                controlfield.setData(removeRestrictedCharacters(controlfield.getData()))
+            }
+            else if (field instanceof Datafield) {
+                for (Subfield subfield : (Datafield) field) {
+                    String data = subfield.getData()
+                    if (data != null) {
+                        subfield.setData(removeRestrictedCharacters(replaceControlCharacters(data)))
+                    }
+                }
+            }
+        }
+        return record
+    }
+
     static DocumentFragment marcRecordAsXMLFragment(MarcRecord record) {
         DocumentFragment docFragment = DomSerializer.serialize(record, javax.xml.parsers.DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument())
         return docFragment
     }
+
+    private static String recordType(MarcRecord record) {
+        switch (String.valueOf(record.getLeader(6))) {
+            case 'z':
+                return "Authority"
+            case ['u', 'v', 'x', 'y']:
+                return "Holdings"
+            case ['a', 'c', 'd', 'e', 'f', 'g', 'i', 'j', 'k', 'm', 'o', 'p', 'r', 't']:
+                return "Bibliographic"
+            case 'w':
+                return "Classification"
+            case 'q':
+                return "Community"
+            default:
+                return null
+        }
+    }
+
+    // Done by DomSerializer for subfields
+    private static String replaceControlCharacters(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < (char) 32) {
+                char[] chars = s.toCharArray()
+                for (int j = i; j < chars.length; j++) {
+                    if (chars[j] < (char) 32) {
+                        chars[j] = (char) '?'
+                    }
+                }
+                return new String(chars)
+            }
+        }
+        return s
+    }
+
+    private static String removeRestrictedCharacters(String s) {
+        if (s == null) {
+            return null
+        }
+        StringBuilder result = null
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i)
+            if (isRestricted(c)) {
+                if (result == null) {
+                    result = new StringBuilder(s.length())
+                    result.append(s, 0, i)
+                }
+            }
+            else if (result != null) {
+                result.append(c)
+            }
+        }
+        return result != null ? result.toString() : s
+    }
+
+    private static boolean isRestricted(char c) {
+        return (c <= (char) 0x8) || c == (char) 0xB || c == (char) 0xC || (c >= (char) 0xE && c <= (char) 0x1F) ||
+                (c >= (char) 0x7F && c <= (char) 0x84) || (c >= (char) 0x86 && c <= (char) 0x9F)
+    }
 }
@@ -13,21 +13,6 @@ import static whelk.util.Jackson.mapper
 @Log
 class JsonLD2MarcXMLConverter implements FormatConverter {
 
-    // List of restricted chars defined at: https://www.w3.org/TR/xml11/#charsets
-    static List<String> restrictedSequences = []
-    static {
-        for (int i = 0x0; i < 0x8+1; ++i)
-            restrictedSequences.add("&#"+i+";")
-        restrictedSequences.add("&#"+0xB+";")
-        restrictedSequences.add("&#"+0xC+";")
-        for (int i = 0xE; i < 0x1F+1; ++i)
-            restrictedSequences.add("&#"+i+";")
-        for (int i = 0x7F; i < 0x84+1; ++i)
-            restrictedSequences.add("&#"+i+";")
-        for (int i = 0x86; i < 0x9F+1; ++i)
-            restrictedSequences.add("&#"+i+";")
-    }
-
     JsonLD2MarcConverter jsonldConverter = null
     
     JsonLD2MarcXMLConverter(MarcFrameConverter marcFrameConverter) {
@@ -36,6 +21,19 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
 
     @Override
     Map convert(Map data, String id) {
+        MarcRecord record = convertToRecord(data, id)
+
+        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
+        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
+
+        return xmlDocument
+    }
+
+    /**
+     * Same as convert() but without serializing to MARCXML, for writing the record as ISO2709 or
+     * with JSONMarcConverter.writeMarcXml().
+     */
+    MarcRecord convertToRecord(Map data, String id) {
         Document originalDocument = new Document(data)
 
         Map marcJsonData = jsonldConverter.convert(data, id)
@@ -44,11 +42,7 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
 
         record = prepareRecord(record, id, originalDocument.getModified(), originalDocument.getChecksum(jsonldConverter.marcFrameConverter.ld))
 
-        String xmlString = whelk.converter.JSONMarcConverter.marcRecordAsXMLString(record)
-        xmlString = filterRestrictedXmlEscapeSequences(xmlString)
-        Map xmlDocument = [(JsonLd.NON_JSON_CONTENT_KEY): xmlString]
-
-        return xmlDocument
+        return JSONMarcConverter.removeRestrictedCharacters(record)
     }
 
     static MarcRecord prepareRecord(record, identifier, modified, checksum) {
@@ -88,11 +82,4 @@ class JsonLD2MarcXMLConverter implements FormatConverter {
     String getResultContentType() {
         return "application/marcxml+xml"
     }
-
-    private static String filterRestrictedXmlEscapeSequences(String xmlString) {
-        for (String s : restrictedSequences) {
-            xmlString = xmlString.replaceAll(s, "")
-        }
-        return xmlString
-    }
 }
@@ -430,32 +430,8 @@ class MarcConversion {
             }
         }
 
-        Map state = [:]
-        Map marc = [:]
-        List fields = []
-        marc['fields'] = fields
-        marcRuleSet.revertFieldOrder.each { tag ->
-            def handler = marcRuleSet.fieldHandlers[tag]
-            def value = handler.revert(state, data, marc)
-            if (tag == "000") {
-                marc.leader = value
-            } else {
-                if (value == null)
-                    return
-                if (value instanceof List) {
-                    value.each {
-                        if (it) {
-                            fields << [(tag): it]
-                        }
-                    }
-                } else {
-                    fields << [(tag): value]
-                }
-            }
-        }
-
-        // Order fields in result by number, not by revertFieldOrder.
-        fields.sort { it.keySet()[0] }
+        Map marc = marcRuleSet.revert(data)
+        List fields = (List) marc['fields']
 
         if (data._marcUncompleted) {
             List<Map> marcUncompleted = data._marcUncompleted instanceof List
@@ -491,13 +467,26 @@ class MarcRuleSet {
     String thingLink
     String definingTrait
 
-    def fieldHandlers = [:]
+    Map<String, MarcFieldConverter> fieldHandlers = [:]
     List<MarcFramePostProcStep> postProcSteps
 
     Set primaryTags = new HashSet()
 
     Iterable<String> revertFieldOrder = new LinkedHashSet<>()
 
+    // The handlers compiled into a plan by compilePlan(), for converting and
+    // reverting without looking up handlers and tags by name for each field.
+    private MarcFieldConverter[] handlersByTag
+    private int[] tagGroups
+    private String[] revertTags
+    private MarcFieldConverter[] revertHandlers
+    private Map<String, Map<String, Pattern>> matchUriTokenPatterns = [:]
+
+    private static final int NUMBER_OF_TAGS = 1000
+    private static final int PREPROC_FIELD = 0
+    private static final int PRIMARY_FIELD = 1
+    private static final int OTHER_FIELD = 2
+
     // aboutTypeMap is used on revert to determine which ruleSet to use
     Map<String, Set<String>> aboutTypeMap = new HashMap<String, Set<String>>()
 
@@ -624,6 +613,73 @@ class MarcRuleSet {
                 revertFieldOrder << tag
             }
         }
+
+        compilePlan()
+    }
+
+    @CompileStatic
+    private void compilePlan() {
+        handlersByTag = new MarcFieldConverter[NUMBER_OF_TAGS]
+        tagGroups = new int[NUMBER_OF_TAGS]
+        for (int i = 0; i < NUMBER_OF_TAGS; i++) {
+            String tag = String.format('%03d', i)
+            handlersByTag[i] = fieldHandlers[tag]
+            tagGroups[i] = tagGroup(tag)
+        }
+
+        List<String> tags = revertFieldOrder.toList()
+        revertTags = tags as String[]
+        revertHandlers = new MarcFieldConverter[tags.size()]
+        for (int i = 0; i < tags.size(); i++) {
+            revertHandlers[i] = fieldHandlers[tags[i]]
+        }
+
+        topPendingResources.each { String key, Map dfn ->
+            Map<String, Pattern> patterns = [:]
+            ((Map<String, String>) dfn.matchUriTokens)?.each { recordKey, matchUriToken ->
+                patterns[recordKey] = Pattern.compile(matchUriToken)
+            }
+            matchUriTokenPatterns[key] = patterns
+        }
+    }
+
+    @CompileStatic
+    private int tagGroup(String tag) {
+        if (tag in PREPROC_TAGS) {
+            return PREPROC_FIELD
+        } else if (tag in primaryTags) {
+            return PRIMARY_FIELD
+        } else {
+            return OTHER_FIELD
+        }
+    }
+
+    @CompileStatic
+    private static int tagIndex(String tag) {
+        if (tag.length() != 3) {
+            return -1
+        }
+        int index = 0
+        for (int i = 0; i < 3; i++) {
+            char c = tag.charAt(i)
+            if (c < ('0' as char) || c > ('9' as char)) {
+                return -1
+            }
+            index = index * 10 + Character.getNumericValue(c)
+        }
+        return index
+    }
+
+    @CompileStatic
+    private MarcFieldConverter getHandler(String tag) {
+        int index = tagIndex(tag)
+        return index > -1 ? handlersByTag[index] : fieldHandlers[tag]
+    }
+
+    @CompileStatic
+    private int getTagGroup(String tag) {
+        int index = tagIndex(tag)
+        return index > -1 ? tagGroups[index] : tagGroup(tag)
     }
 
     def processInherit(config, subConf, tag, fieldDfn) {
@@ -721,62 +777,107 @@ class MarcRuleSet {
         }
     }
 
+    @CompileStatic
     void convert(Map marcSource, Map state) {
-        def preprocFields = []
-        def primaryFields = []
-        def otherFields = []
+        List<Map> preprocFields = []
+        List<Map> primaryFields = []
+        List<Map> otherFields = []
 
-        topPendingResources.each { key, dfn ->
-            state.entityMap[key] = [:]
+        Map entityMap = (Map) state.entityMap
+        for (String key : topPendingResources.keySet()) {
+            entityMap[key] = [:]
         }
 
-        marcSource.fields.each { field ->
-            field.each { tag, value ->
-                def fieldsByTag = state.sourceMap[tag]
+        Map sourceMap = (Map) state.sourceMap
+        for (Object f : (List) marcSource.fields) {
+            Map field = (Map) f
+            for (Object t : field.keySet()) {
+                String tag = (String) t
+                List fieldsByTag = (List) sourceMap[tag]
                 if (fieldsByTag == null) {
-                    fieldsByTag = state.sourceMap[tag] = []
+                    fieldsByTag = []
+                    sourceMap[tag] = fieldsByTag
                 }
                 fieldsByTag << field
 
-                if (tag in PREPROC_TAGS) {
-                    preprocFields << field
-                } else if (tag in primaryTags) {
-                    primaryFields << field
-                } else {
-                    otherFields << field
+                switch (getTagGroup(tag)) {
+                    case PREPROC_FIELD:
+                        preprocFields << field
+                        break
+                    case PRIMARY_FIELD:
+                        primaryFields << field
+                        break
+                    default:
+                        otherFields << field
                 }
             }
         }
 
-        fieldHandlers["000"].convert(state, state.sourceMap.leader)
-        processFields(state, fieldHandlers, preprocFields)
-        processFields(state, fieldHandlers, primaryFields)
-        processFields(state, fieldHandlers, otherFields)
+        fieldHandlers["000"].convert(state, sourceMap.leader)
+        processFields(state, preprocFields)
+        processFields(state, primaryFields)
+        processFields(state, otherFields)
     }
 
-    void processFields(state, fieldHandlers, fields) {
-        for (field in fields) {
+    @CompileStatic
+    private void processFields(Map state, List<Map> fields) {
+        Map marcRemains = (Map) state.marcRemains
+        for (Map field : fields) {
             try {
-                def result = null
-                field.each { tag, value ->
-                    def handler = fieldHandlers[tag]
-                    if (handler) {
-                        result = handler.convert(state, value)
+                ConvertResult result = null
+                for (Map.Entry entry : ((Map<?, ?>) field).entrySet()) {
+                    MarcFieldConverter handler = getHandler((String) entry.key)
+                    if (handler != null) {
+                        result = handler.convert(state, entry.value)
                     }
                 }
-                if (!result || !result.ok) {
-                    field = field.clone()
-                    if (result && result.unhandled) {
-                        field['_unhandled'] = result.unhandled as List
+                if (result == null || !result.ok) {
+                    Map uncompleted = new LinkedHashMap(field)
+                    if (result != null && result.unhandled) {
+                        uncompleted['_unhandled'] = new ArrayList(result.unhandled)
                     }
-                    state.marcRemains.uncompleted << field
+                    ((List) marcRemains.uncompleted) << uncompleted
                 }
             } catch (MalformedFieldValueException e) {
-                state.marcRemains.broken << field
+                ((List) marcRemains.broken) << field
             }
         }
     }
 
+    @CompileStatic
+    Map revert(Map data) {
+        Map state = [:]
+        Map marc = [:]
+        List<Map> fields = []
+        marc['fields'] = fields
+        for (int i = 0; i < revertTags.length; i++) {
+            String tag = revertTags[i]
+            def value = revertHandlers[i].revert(state, data, marc)
+            if (tag == "000") {
+                marc.leader = value
+            } else {
+                if (value == null)
+                    continue
+                if (value instanceof List) {
+                    for (Object v : (List) value) {
+                        if (v) {
+                            fields << [(tag): v]
+                        }
+                    }
+                } else {
+                    fields << [(tag): value]
+                }
+            }
+        }
+
+        // Order fields in result by number, not by revertFieldOrder.
+        fields.sort(true) { Map a, Map b ->
+            ((String) a.keySet().iterator().next()) <=> ((String) b.keySet().iterator().next())
+        }
+
+        return marc
+    }
+
     void processExtraData(Map entityMap, Map extraData) {
         extraData?.get("oaipmhSetSpecs")?.each {
             def cIdx = it.indexOf(':')
@@ -827,7 +928,7 @@ class MarcRuleSet {
             def builtEntityId = null
 
             boolean uriTokensOk = true
-            dfn.matchUriTokens?.each { recordKey, matchUriToken ->
+            matchUriTokenPatterns[key]?.each { recordKey, matchUriToken ->
                 if (!(record[recordKey] =~ matchUriToken)) {
                     uriTokensOk = false
                 }
@@ -882,6 +983,18 @@ class MarcRuleSet {
 }
 
 
+/**
+ * Converts and reverts the fields of one tag (or the leader).
+ */
+@CompileStatic
+interface MarcFieldConverter {
+
+    ConvertResult convert(Map state, value)
+
+    def revert(Map state, Map data, Map result)
+
+}
+
 @Log
 @CompileStatic
 class ConversionPart {
@@ -1190,7 +1303,7 @@ class ConversionPart {
 }
 
 @CompileStatic
-abstract class BaseMarcFieldHandler extends ConversionPart {
+abstract class BaseMarcFieldHandler extends ConversionPart implements MarcFieldConverter {
 
     /**
      * Keep actual field tag intact on handlers having a specific "when"
@@ -1322,7 +1435,7 @@ class ConvertResult {
 }
 
 @CompileStatic
-class MarcFixedFieldHandler {
+class MarcFixedFieldHandler implements MarcFieldConverter {
 
     MarcRuleSet ruleSet
     String tag
@@ -1387,8 +1500,12 @@ class MarcFixedFieldHandler {
         return new ConvertResult(success)
     }
 
+    def revert(Map state, Map data, Map result) {
+        return revert(state, data, result, false)
+    }
+
     @CompileStatic(SKIP)
-    def revert(Map state, Map data, Map result, boolean keepEmpty = false) {
+    def revert(Map state, Map data, Map result, boolean keepEmpty) {
         def value = new StringBuilder(FIXED_NONE * fieldSize)
         def actualValue = false
         for (col in columns) {
@@ -1493,13 +1610,17 @@ class MarcFixedFieldHandler {
 
 }
 
+@CompileStatic
 class TokenSwitchFieldHandler extends BaseMarcFieldHandler {
 
+    private static final String NON_VALUE_CHARS = MarcFixedFieldHandler.FIXED_NONE + MarcFixedFieldHandler.FIXED_UNDEF + "0"
+
     MarcFixedFieldHandler baseConverter
     Map<String, MarcFixedFieldHandler> handlerMap = [:]
     boolean useRecTypeBibLevel = false
     Map tokenNames = [:]
 
+    @CompileStatic(SKIP)
     TokenSwitchFieldHandler(ruleSet, tag, Map fieldDfn, tokenMapKey = 'tokenTypeMap') {
         super(ruleSet, tag, fieldDfn)
         assert !link || repeatable // this kind should always be repeatable if linked
@@ -1522,6 +1643,7 @@ class TokenSwitchFieldHandler extends BaseMarcFieldHandler {
         }
     }
 
+    @CompileStatic(SKIP)
     private void buildHandlersByRecTypeBibLevel(fieldDfn, recTypeBibLevelMap) {
         recTypeBibLevelMap.each { recTypes, nameBibLevelMap ->
             nameBibLevelMap.each { typeName, bibLevels ->
@@ -1536,6 +1658,7 @@ class TokenSwitchFieldHandler extends BaseMarcFieldHandler {
         }
     }
 
+    @CompileStatic(SKIP)
     private void buildHandlersByTokens(fieldDfn, tokenMap) {
         if (tokenMap instanceof String) {
             tokenMap = fieldDfn[tokenMap].tokenMap
@@ -1547,73 +1670,77 @@ class TokenSwitchFieldHandler extends BaseMarcFieldHandler {
         }
     }
 
+    @CompileStatic(SKIP)
     private void addHandler(token, dfn) {
         handlerMap[token] = new MarcFixedFieldHandler(ruleSet, tag, dfn)
     }
 
-    String getToken(leader, value) {
+    String getToken(String leader, String value) {
         if (useRecTypeBibLevel) {
             def typeOfRecord = ruleSet.conversion.getTypeOfRecord(leader)
             def bibLevel = ruleSet.conversion.getBibLevel(leader)
             return typeOfRecord + bibLevel
         } else if (value) {
-            return value[0]
+            return value.substring(0, 1)
         } else {
             return value
         }
     }
 
     ConvertResult convert(Map state, value) {
-        def token = getToken(state.sourceMap.leader, value)
+        def token = getToken((String) ((Map) state.sourceMap).leader, value instanceof String ? (String) value : null)
         def converter = handlerMap[token]
         if (converter == null)
             return FAIL
 
         def linkRule = getLinkRule(state, value)
 
-        def entityMap = state.entityMap
+        def entityMap = (Map) state.entityMap
         if (linkRule.link) {
-            def ent = entityMap[aboutEntityName]
-            def newEnt = newEntity(state, linkRule.resourceType, linkRule.groupId, linkRule.embedded)
-            addValue(ent, linkRule.link, newEnt, linkRule.repeatable)
-            state = state.clone()
-            state.entityMap = entityMap.clone()
-            state.entityMap['?thing'] = newEnt
+            def ent = (Map) entityMap[aboutEntityName]
+            def newEnt = newEntity(state, (String) linkRule.resourceType, (String) linkRule.groupId, (Boolean) linkRule.embedded)
+            addValue(ent, (String) linkRule.link, newEnt, linkRule.repeatable as boolean)
+            state = new LinkedHashMap(state)
+            Map localEntityMap = new LinkedHashMap(entityMap)
+            localEntityMap['?thing'] = newEnt
+            state.entityMap = localEntityMap
         }
 
-        def baseOk = true
+        // NOTE: any result from the base converter counts as ok (as it always has)
+        boolean baseOk = true
         if (baseConverter)
-            baseOk = baseConverter.convert(state, value)
-        def ok = converter.convert(state, value).ok
+            baseOk = baseConverter.convert(state, value) != null
+        boolean ok = converter.convert(state, value).ok
         return new ConvertResult(baseOk && ok)
     }
 
     def revert(Map state, Map data, Map result) {
         // NOTE: using rootEntity instead of data here fails on revert of bib 008
-        def entities = [data]
+        List entities = [data]
         def rootEntity = getEntity(state, data)
         if (link) {
-            entities = rootEntity.get(link) ?: []
+            entities = Util.asList(rootEntity.get(link))
         }
         if (linkRepeated) {
             def entitiesFromRepeated = rootEntity.get(linkRepeated.link)
             if (entitiesFromRepeated) {
-                entities += Util.asList(entitiesFromRepeated)
+                entities = entities + Util.asList(entitiesFromRepeated)
             }
         }
-        def values = []
+        List values = []
         for (entity in entities) {
-            def value = null
+            String value = null
             if (baseConverter)
-                value = baseConverter.revert(state, entity, result, true)
-            def tokenBasedConverter = handlerMap[getToken(result.leader, value)]
+                value = (String) baseConverter.revert(state, (Map) entity, result, true)
+            def tokenBasedConverter = handlerMap[getToken((String) result.leader, value)]
             if (tokenBasedConverter) {
-                def overlay = tokenBasedConverter.revert(state, entity, result, true)
+                String overlay = (String) tokenBasedConverter.revert(state, (Map) entity, result, true)
                 if (value.size() == 1) {
                     value = value + overlay.substring(1)
                 } else {
-                    def combined = value.split('')
-                    overlay.eachWithIndex { c, i ->
+                    String[] combined = value.split('')
+                    for (int i = 0; i < overlay.size(); i++) {
+                        String c = overlay.substring(i, i + 1)
                         if (c != " ") {
                             combined[i] = c
                         }
@@ -1624,17 +1751,22 @@ class TokenSwitchFieldHandler extends BaseMarcFieldHandler {
             // TODO: revert column lists instead and skip if isActualValue is
             // false for all. Filter below is poor since both "_" and "0" are
             // meaningful in some places!
-            if (value.find {
-                it != MarcFixedFieldHandler.FIXED_NONE &&
-                        it != MarcFixedFieldHandler.FIXED_UNDEF &&
-                        it != "0"
-            }) {
+            if (hasActualValue(value)) {
                 values << value
             }
         }
         return values
     }
 
+    private static boolean hasActualValue(String value) {
+        for (int i = 0; i < value.size(); i++) {
+            if (NON_VALUE_CHARS.indexOf((int) value.charAt(i)) == -1) {
+                return true
+            }
+        }
+        return false
+    }
+
 }
 
 @CompileStatic
@@ -1878,6 +2010,7 @@ class MarcFieldHandler extends BaseMarcFieldHandler {
     Set<String> uriTemplateKeys
     Map uriTemplateDefaults
     Map<String, MarcSubFieldHandler> subfields = [:]
+    Map computeLinksResourceMap
     List<List<MarcSubFieldHandler>> orderedAndGroupedSubfields
     List<MatchRule> matchRules
     Map<String, Map> pendingResources
@@ -1891,6 +2024,8 @@ class MarcFieldHandler extends BaseMarcFieldHandler {
 
     static GENERIC_REL_URI_TEMPLATE = "generic:{_}"
 
+    private static final Pattern NON_TOKEN_CHARS = ~/[^a-z0-9_-]/
+
     MarcFieldHandler(MarcRuleSet ruleSet, String tag, Map fieldDfn,
             String baseTag = tag) {
         super(ruleSet, tag, fieldDfn, baseTag)
@@ -1924,6 +2059,8 @@ class MarcFieldHandler extends BaseMarcFieldHandler {
         computeLinks = (fieldDfn.computeLinks) ? new HashMap(fieldDfn['computeLinks'] as Map) : [:]
         if (computeLinks) {
             computeLinks.use = ((String) computeLinks['use']).replaceFirst(/^\$/, '')
+            computeLinksResourceMap = (Map) ((computeLinks.mapping instanceof Map) ?
+                    computeLinks.mapping : tokenMaps[computeLinks.mapping])
         }
 
         matchRules = MatchRule.parseRules(this, fieldDfn) ?: Collections.emptyList() as List<MatchRule>
@@ -2191,15 +2328,14 @@ class MarcFieldHandler extends BaseMarcFieldHandler {
             def useLinks = Collections.emptyList()
             if (computeLinks) {
                 def use = computeLinks.use
-                Map resourceMap = (Map) ((computeLinks.mapping instanceof Map) ?
-                        computeLinks.mapping : tokenMaps[computeLinks.mapping])
+                Map resourceMap = computeLinksResourceMap
                 def linkTokens = value.subfields.findAll { Map it ->
                     use in it.keySet()
                 }.collect { ((Map.Entry) it.iterator().next()).value }
                 useLinks = linkTokens.collect {
                     def linkDfn = resourceMap[it]
                     if (linkDfn == null) {
-                        linkDfn = resourceMap[it.toLowerCase().replaceAll(/[^a-z0-9_-]/, '')]
+                        linkDfn = resourceMap[NON_TOKEN_CHARS.matcher(it.toLowerCase()).replaceAll('')]
                     }
                     if (linkDfn instanceof String)
                         return linkDfn
@@ -16,20 +16,23 @@ class LinkFinder {
 
     PostgreSQLComponent postgres
 
-    static String ENTITY_QUERY
+    // Rows are (index of entity, main IRI of a matching record or thing), all entities in one query.
+    // Only documents with any of the record IRIs are candidates.
+    static final String ENTITY_QUERY = """
+            SELECT q.i, ids2.iri AS thingUri
+            FROM unnest(?::text[]) WITH ORDINALITY AS q(entity, i)
+            JOIN lddb ON lddb.data -> '@graph' @> q.entity::jsonb
+            JOIN lddb__identifiers ids1 ON lddb.data#>>'{@graph,1,@id}' = ids1.iri
+            JOIN lddb__identifiers ids2 ON ids1.id = ids2.id
+            WHERE ids2.mainid = true
+            AND lddb.id IN (SELECT id
+                         FROM lddb__identifiers
+                         WHERE iri = ANY(?))
+            ORDER BY q.i, ids2.graphindex
+            """.stripIndent()
 
     LinkFinder(PostgreSQLComponent pgsql) {
         postgres = pgsql
-        ENTITY_QUERY = """SELECT ids2.iri AS thingUri
-                        FROM lddb
-                        JOIN lddb__identifiers ids1 ON lddb.data#>>'{@graph,1,@id}' = ids1.iri
-                        JOIN lddb__identifiers ids2 ON ids1.id = ids2.id
-                        WHERE data -> '@graph' @> ?
-                        AND ids2.mainid=true
-                        AND lddb.id IN (SELECT id
-                                     FROM lddb__identifiers
-                                     WHERE iri IN (€))
-                        ORDER BY ids2.graphindex;"""
     }
 
     List<URI> findLinks(List<Map> entities, List<String> recordIds) {
@@ -37,32 +40,34 @@ class LinkFinder {
             if(recordIds.any() && entities.any()) {
                 log.debug "Finding links for ${entities.size()} entities and ${recordIds.size()} record Ids"
 
-                def paramsQuery = ENTITY_QUERY.replace('€', recordIds.collect { it -> '?' }.join(','))
                 def connection = postgres.getMyConnection()
-
-                PreparedStatement stmt = connection.prepareStatement(paramsQuery)
-
-                def foundLinks = entities.collect { entity ->
-                    int i = 1
-                    stmt.setObject(i, mapper.writeValueAsString([entity]), java.sql.Types.OTHER)
-                    recordIds.each { recordId ->
-                        stmt.setObject(++i, recordId)
-                    }
-
-                    def id
+                PreparedStatement stmt = connection.prepareStatement(ENTITY_QUERY)
+                ResultSet rs = null
+                try {
+                    stmt.setArray(1, connection.createArrayOf("TEXT",
+                            entities.collect { entity -> mapper.writeValueAsString([entity]) } as String[]))
+                    stmt.setArray(2, connection.createArrayOf("TEXT", recordIds as String[]))
+
+                    Map<Integer, List<String>> idsByEntity = [:]
                     log.trace stmt.toString()
-                    ResultSet rs = stmt.executeQuery()
-                    if (rs.next()) {
-                        id = rs.getString("thingUri") // set id to record id, as fallback
-                        if (rs.next()) {
-                            id = rs.getString("thingUri") // if there's a second row (mainEntity), use that id instead.
-                        }
+                    rs = stmt.executeQuery()
+                    while (rs.next()) {
+                        idsByEntity.computeIfAbsent(rs.getInt(1) - 1, { [] }) << rs.getString("thingUri")
                     }
 
-                    return id ? Document.BASE_URI.resolve(id) : null
+                    def foundLinks = entities.indices.collect { i ->
+                        // The record id is the fallback, if there's a second row (mainEntity), use that id instead.
+                        List<String> ids = idsByEntity[i]
+                        def id = ids ? (ids.size() > 1 ? ids[1] : ids[0]) : null
+                        return id ? Document.BASE_URI.resolve(id) : null
+                    }
+                    log.debug "Found ${foundLinks.count { it -> it }} links to replace in entities"
+                    return foundLinks
+                }
+                finally {
+                    rs?.close()
+                    stmt.close()
                 }
-                log.debug "Found ${foundLinks.count { it -> it }} links to replace in entities"
-                return foundLinks
             }
             else{
                 log.debug "missing arguments. No linkfinding will be performed."
@@ -113,13 +118,32 @@ class LinkFinder {
         items[0][JsonLd.THING_KEY]['@id'] = items[1]['@id']
     }
 
+    /**
+     * Replaces all links in data with the main IRI of what they link to. All links are looked up in one query.
+     */
     private void replaceSameAsLinksWithPrimaries(Map data) {
+        List<Map> links = []
+        collectLinks(data, links)
+        if (links.isEmpty())
+            return
+
+        Map<String, Tuple2<String, Boolean>> mainIds = postgres.getMainIdsWithDeleted(links.collect { it.get("@id") })
+        for (Map link : links) {
+            Tuple2<String, Boolean> mainId = mainIds[link.get("@id")]
+            if (mainId == null)
+                continue
+
+            if (mainId.v2)
+                throw new LinkValidationException("Not allowed to link to the deleted resource: " + mainId.v1)
+            link.put("@id", mainId.v1)
+        }
+    }
+
+    private void collectLinks(Map data, List<Map> links) {
         // If this is a link (an object containing _only_ an id)
         String id = data.get("@id")
         if (id != null && data.keySet().size() == 1) {
-            String primaryId = lookupPrimaryId(id)
-            if (primaryId != null)
-                data.put("@id", primaryId)
+            links.add(data)
         }
 
         // Keep looking for more links
@@ -133,32 +157,21 @@ class LinkFinder {
             Object value = data.get(key)
 
             if (value instanceof List)
-                replaceSameAsLinksWithPrimaries( (List) value )
+                collectLinks( (List) value, links )
             if (value instanceof Map)
-                replaceSameAsLinksWithPrimaries( (Map) value )
+                collectLinks( (Map) value, links )
         }
     }
 
-    private void replaceSameAsLinksWithPrimaries(List data) {
+    private void collectLinks(List data, List<Map> links) {
         for (Object element : data){
             if (element instanceof List)
-                replaceSameAsLinksWithPrimaries( (List) element )
+                collectLinks( (List) element, links )
             else if (element instanceof Map)
-                replaceSameAsLinksWithPrimaries( (Map) element )
+                collectLinks( (Map) element, links )
         }
     }
 
-    private String lookupPrimaryId(String id) {
-        String mainIri = postgres.getMainId(id)
-
-        if (mainIri == null)
-            return null
-
-        if (postgres.iriIsLinkable(mainIri))
-            return mainIri
-        throw new LinkValidationException("Not allowed to link to the deleted resource: " + mainIri)
-    }
-
     /**
      * A heavy-handed last line of defense against confusing embedded entities with references.
      * After running this, 'document' can no longer have both @id and other data in any same
@@ -166,18 +179,38 @@ class LinkFinder {
      */
     private void clearReferenceAmbiguities(Document document) {
         List graphList = document.data.get(JsonLd.GRAPH_KEY)
+
+        // Look up all ambiguous ids in one query
+        Set<String> ambiguousIds = new HashSet<>()
+        for (Object entry : graphList) {
+            collectAmbiguousIds(entry, true, ambiguousIds)
+        }
+        Set<String> existingIds = ambiguousIds ? postgres.getSystemIdsByIris(ambiguousIds).keySet() : Collections.emptySet()
+
         for (Object entry : graphList) {
-            clearReferenceAmbiguities_internal(entry, true)
+            clearReferenceAmbiguities_internal(entry, true, existingIds)
+        }
+    }
+
+    private void collectAmbiguousIds(Object data, boolean isRootEntry, Set<String> ids) {
+        if (data instanceof List) {
+            data.each { collectAmbiguousIds(it, false, ids) }
+        } else if (data instanceof Map) {
+            Object id = data.get("@id")
+            if (!isRootEntry && id != null && data.size() > 1) {
+                ids.add((String) id)
+            }
+            data.values().each { collectAmbiguousIds(it, false, ids) }
         }
     }
 
-    private void clearReferenceAmbiguities_internal(Map data, boolean isRootEntry) {
+    private void clearReferenceAmbiguities_internal(Map data, boolean isRootEntry, Set<String> existingIds) {
         if (!isRootEntry) {
             Object id = data.get("@id")
             // If we have both @id and data (which is bad)
             if (id != null && data.size() > 1) {
 
-                if (postgres.getSystemIdByIri(id) != null) { // If we have such a record, then the link (@id) is enough.
+                if (existingIds.contains(id)) { // If we have such a record, then the link (@id) is enough.
                     data.clear()
                     data.put("@id", id)
                 } else if (id.startsWith("https://libris.kb.se/library/")) {
@@ -205,18 +238,18 @@ class LinkFinder {
             Object value = data.get(key)
 
             if (value instanceof List)
-                clearReferenceAmbiguities_internal( (List) value )
+                clearReferenceAmbiguities_internal( (List) value, existingIds )
             if (value instanceof Map)
-                clearReferenceAmbiguities_internal( (Map) value, false )
+                clearReferenceAmbiguities_internal( (Map) value, false, existingIds )
         }
     }
 
-    private void clearReferenceAmbiguities_internal(List data) {
+    private void clearReferenceAmbiguities_internal(List data, Set<String> existingIds) {
         for (Object element : data){
             if (element instanceof List)
-                clearReferenceAmbiguities_internal( (List) element )
+                clearReferenceAmbiguities_internal( (List) element, existingIds )
             else if (element instanceof Map)
-                clearReferenceAmbiguities_internal( (Map) element, false )
+                clearReferenceAmbiguities_internal( (Map) element, false, existingIds )
         }
     }
 }
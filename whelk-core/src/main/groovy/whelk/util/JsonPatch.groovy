@@ -0,0 +1,163 @@
+package whelk.util
+
+import groovy.transform.CompileStatic
+
+/**
+ * Minimal JSON Patch (RFC 6902) for data as parsed by Jackson: computing a patch from one value to another and
+ * applying it. Only the add, remove and replace operations are used.
+ *
+ * Lists are diffed by skipping their common head and tail and diffing the rest pairwise, which keeps patches
+ * small for the typical edit (a property or list element changed, added or removed).
+ *
+ * Keys added to a map by a patch end up last, so key order isn't preserved.
+ */
+@CompileStatic
+class JsonPatch {
+    static final String ADD = 'add'
+    static final String REMOVE = 'remove'
+    static final String REPLACE = 'replace'
+
+    /**
+     * @return the operations turning from into to
+     */
+    static List<Map> diff(Object from, Object to) {
+        List<Map> patch = []
+        diff(from, to, '', patch)
+        return patch
+    }
+
+    /**
+     * Apply patch to target. Target is modified.
+     *
+     * @return the patched value, which is a new value if the root was replaced
+     */
+    static Object apply(Object target, List<Map> patch) {
+        Object root = target
+        for (Map operation : patch) {
+            root = apply(root, (String) operation['op'], (String) operation['path'], operation['value'])
+        }
+        return root
+    }
+
+    private static void diff(Object from, Object to, String path, List<Map> patch) {
+        if (from instanceof Map && to instanceof Map) {
+            diffMaps((Map) from, (Map) to, path, patch)
+        } else if (from instanceof List && to instanceof List) {
+            diffLists((List) from, (List) to, path, patch)
+        } else if (!Objects.equals(from, to)) {
+            patch.add(operation(REPLACE, path, to))
+        }
+    }
+
+    private static void diffMaps(Map from, Map to, String path, List<Map> patch) {
+        for (Map.Entry entry : (Set<Map.Entry>) from.entrySet()) {
+            String p = path + '/' + escape((String) entry.key)
+            if (to.containsKey(entry.key)) {
+                diff(entry.value, to[entry.key], p, patch)
+            } else {
+                patch.add(operation(REMOVE, p))
+            }
+        }
+        for (Map.Entry entry : (Set<Map.Entry>) to.entrySet()) {
+            if (!from.containsKey(entry.key)) {
+                patch.add(operation(ADD, path + '/' + escape((String) entry.key), entry.value))
+            }
+        }
+    }
+
+    private static void diffLists(List from, List to, String path, List<Map> patch) {
+        int head = 0
+        while (head < from.size() && head < to.size() && Objects.equals(from[head], to[head])) {
+            head++
+        }
+        int tail = 0
+        while (tail < from.size() - head && tail < to.size() - head
+                && Objects.equals(from[from.size() - 1 - tail], to[to.size() - 1 - tail])) {
+            tail++
+        }
+
+        int fromCount = from.size() - head - tail
+        int toCount = to.size() - head - tail
+        int paired = Math.min(fromCount, toCount)
+        for (int i = head; i < head + paired; i++) {
+            diff(from[i], to[i], path + '/' + i, patch)
+        }
+        // Remove from the end so that the indexes of the elements left stay the same
+        for (int i = head + fromCount - 1; i >= head + paired; i--) {
+            patch.add(operation(REMOVE, path + '/' + i))
+        }
+        for (int i = head + paired; i < head + toCount; i++) {
+            patch.add(operation(ADD, path + '/' + i, to[i]))
+        }
+    }
+
+    private static Object apply(Object root, String op, String path, Object value) {
+        if (path == '') {
+            if (op == REMOVE) {
+                throw new IllegalArgumentException("Can't remove root")
+            }
+            return value
+        }
+
+        List<String> tokens = parse(path)
+        Object parent = root
+        for (String token : tokens.subList(0, tokens.size() - 1)) {
+            parent = parent instanceof List ? ((List) parent)[index(token, (List) parent)] : ((Map) parent)[token]
+            if (parent == null) {
+                throw new IllegalArgumentException("No such path: $path")
+            }
+        }
+
+        String last = tokens.last()
+        if (parent instanceof Map) {
+            if (op == REMOVE) {
+                ((Map) parent).remove(last)
+            } else {
+                ((Map) parent).put(last, value)
+            }
+        } else if (parent instanceof List) {
+            List list = (List) parent
+            if (op == ADD) {
+                list.add(last == '-' ? list.size() : index(last, list.size() + 1), value)
+            } else if (op == REMOVE) {
+                list.remove(index(last, list))
+            } else {
+                list.set(index(last, list), value)
+            }
+        } else {
+            throw new IllegalArgumentException("No such path: $path")
+        }
+        return root
+    }
+
+    private static int index(String token, List list) {
+        return index(token, list.size())
+    }
+
+    private static int index(String token, int size) {
+        int i = Integer.parseInt(token)
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index $i out of bounds for size $size")
+        }
+        return i
+    }
+
+    private static Map operation(String op, String path, Object value = null) {
+        Map operation = [op: op, path: path]
+        if (op != REMOVE) {
+            operation['value'] = value
+        }
+        return operation
+    }
+
+    private static String escape(String key) {
+        return key.replace('~', '~0').replace('/', '~1')
+    }
+
+    private static List<String> parse(String path) {
+        if (!path.startsWith('/')) {
+            throw new IllegalArgumentException("Invalid path: $path")
+        }
+        return path.substring(1).split('/', -1).collect { String t -> t.replace('~1', '/').replace('~0', '~') }
+    }
+}
@@ -3,11 +3,11 @@ package whelk.util
 import groovy.util.logging.Log4j2
 import org.postgresql.util.PSQLException
 import se.kb.libris.export.ExportProfile
+import se.kb.libris.util.marc.Datafield
 import se.kb.libris.util.marc.Field
 import se.kb.libris.util.marc.MarcRecord
-import se.kb.libris.util.marc.io.MarcXmlRecordReader
+import se.kb.libris.util.marc.Subfield
 import whelk.Document
-import whelk.JsonLd
 import whelk.Whelk
 import whelk.converter.marc.JsonLD2MarcXMLConverter
 
@@ -15,16 +15,14 @@ import whelk.converter.marc.JsonLD2MarcXMLConverter
 class MarcExport {
     static Vector<MarcRecord> compileVirtualMarcRecord(ExportProfile profile, Document rootDocument,
                                                        Whelk whelk, JsonLD2MarcXMLConverter toMarcXmlConverter) {
-        String bibXmlString = toXmlString(rootDocument, toMarcXmlConverter)
-        if (bibXmlString == null)
+        MarcRecord bibRecord = toMarcRecord(rootDocument, toMarcXmlConverter)
+        if (bibRecord == null)
             return null
 
-        def xmlRecord = new XmlSlurper(false, false).parseText(bibXmlString)
-
         List auth_ids = []
-        xmlRecord.datafield.subfield.each {
-            if ( it.@code.text().equals("0") ) {
-                auth_ids.add(it.text().replaceAll("#it", ""))
+        for (Datafield datafield : bibRecord.getDatafields()) {
+            for (Subfield subfield : datafield.getSubfields("0")) {
+                auth_ids.add(subfield.getData().replaceAll("#it", ""))
             }
         }
 
@@ -41,9 +39,9 @@ class MarcExport {
                 log.warn("Failed to getDocument() an auth record with URI: $auth_id. Ignoring.")
             }
             if (authDoc != null) {
-                String xmlString = toXmlString(authDoc, toMarcXmlConverter)
-                if (xmlString != null)
-                    auths.add(MarcXmlRecordReader.fromXml(xmlString))
+                MarcRecord auth = toMarcRecord(authDoc, toMarcXmlConverter)
+                if (auth != null)
+                    auths.add(auth)
             }
 
             def it = auths.iterator()
@@ -59,14 +57,14 @@ class MarcExport {
 
         for (Document holding : holdingDocuments) {
             try {
-                holdings.put(holding.getHeldBySigel(), MarcXmlRecordReader.fromXml(toXmlString(holding, toMarcXmlConverter)))
+                MarcRecord holdingRecord = toMarcRecord(holding, toMarcXmlConverter)
+                if (holdingRecord != null)
+                    holdings.put(holding.getHeldBySigel(), holdingRecord)
             } catch (Exception e) {
                 log.warn("Failed adding holding record when compiling MARC for " + rootDocument.getShortId(), e)
             }
         }
 
-        MarcRecord bibRecord = MarcXmlRecordReader.fromXml(bibXmlString)
-
         // remove any existing 003
         ListIterator li = bibRecord.listIterator()
         while (li.hasNext())
@@ -92,11 +90,11 @@ class MarcExport {
     }
 
     /**
-     * Make a marc xml string out of a whelk document
+     * Make a marc record out of a whelk document
      */
-    static String toXmlString(Document doc, JsonLD2MarcXMLConverter toMarcXmlConverter) {
+    static MarcRecord toMarcRecord(Document doc, JsonLD2MarcXMLConverter toMarcXmlConverter) {
         try {
-            return (String) toMarcXmlConverter.convert(doc.data, doc.getShortId()).get(JsonLd.getNON_JSON_CONTENT_KEY())
+            return toMarcXmlConverter.convertToRecord(doc.data, doc.getShortId())
         }
         catch (Exception | Error e) { // Depending on the converter, a variety of problems may arise here
             log.error("Conversion error for: " + doc.getCompleteId() + " cause: ", e)
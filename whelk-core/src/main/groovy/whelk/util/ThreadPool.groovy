@@ -1,62 +1,243 @@
 package whelk.util
 
 import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
 
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * A fixed number of worker threads taking work from a bounded queue.
+ *
+ * executeOnThread() blocks while the queue is full, so a producer can never get far ahead of the workers.
+ * joinAll() waits for all queued work to finish and then stops the workers.
+ *
+ * If any work throws, the first exception is rethrown (wrapped) by the next call to executeOnThread() or
+ * joinAll(). Work still in the queue at that point is discarded.
+ *
+ * Per-worker state, e.g. a pinned database connection, can be kept in a WorkerLocal.
+ */
+@Log
 @CompileStatic
 class ThreadPool {
-    private final int THREAD_COUNT
-    private final Thread[] s_threadPool
+    private static final Gauge queueSize = Gauge.build()
+            .labelNames("pool")
+            .name("thread_pool_queue_size")
+            .help("Work waiting in the queue of a thread pool.")
+            .register()
 
-    ThreadPool(int threadCount) {
-        THREAD_COUNT = threadCount
-        s_threadPool = new Thread[THREAD_COUNT]
-    }
+    private static final Gauge activeWorkers = Gauge.build()
+            .labelNames("pool")
+            .name("thread_pool_active_workers")
+            .help("Workers currently doing work in a thread pool.")
+            .register()
+
+    private static final Counter completedWork = Counter.build()
+            .labelNames("pool", "result")
+            .name("thread_pool_completed_work")
+            .help("Work done by a thread pool, by result (ok/failed/discarded).")
+            .register()
 
     interface Worker<T> {
         void doWork(T t, int threadIndex)
     }
 
+    private static final Runnable STOP = {}
+
+    private final String name
+    private final BlockingQueue<Runnable> queue
+    private final List<Thread> threads = []
+    private final List<WorkerLocal> workerLocals = new CopyOnWriteArrayList<>()
+    private final AtomicInteger active = new AtomicInteger()
+    private final AtomicReference<Throwable> failure = new AtomicReference<>()
+    private long completed = 0
+    private boolean stopped = false
+
+    ThreadPool(int threadCount) {
+        this('ThreadPool', threadCount)
+    }
+
     /**
-     * Will block until a thread becomes available to perform this work.
+     * @param name used for thread names and metrics
+     * @param queueCapacity max number of work items waiting for a worker
+     */
+    ThreadPool(String name, int threadCount, int queueCapacity = threadCount * 2) {
+        this.name = name
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity))
+        for (int i = 0; i < threadCount; i++) {
+            int threadIndex = i
+            Thread t = new Thread({ -> runWorker(threadIndex) }, "$name-$i".toString())
+            t.setDaemon(true)
+            threads.add(t)
+            t.start()
+        }
+    }
+
+    /**
+     * Will block until there is room in the queue for this work.
      */
     def <T> void executeOnThread(T workLoad, Worker<T> worker) {
-        // Find a suitable thread from the pool to do the work
-
-        int i = 0
-        while(true) {
-            i++
-            if (i == THREAD_COUNT) {
-                i = 0
-                Thread.yield()
-            }
+        if (stopped) {
+            throw new IllegalStateException("$name has been joined")
+        }
+        throwIfFailed()
 
-            if (s_threadPool[i] == null || s_threadPool[i].getState() == Thread.State.TERMINATED) {
-                s_threadPool[i] = new Thread(new Runnable() {
-                    void run() {
-                        worker.doWork(workLoad, i)
-                    }
-                })
-                s_threadPool[i].start()
-                return
+        Runnable work = new Work<T>(workLoad, worker)
+        queue.put(work)
+        queueSize.labels(name).set(queue.size())
+    }
+
+    /**
+     * Create state local to each worker. It is created the first time a worker calls get() and handed to
+     * onExit on the same worker thread when the pool is joined.
+     */
+    def <S> WorkerLocal<S> workerLocal(Supplier<S> initial, Consumer<S> onExit = null) {
+        WorkerLocal<S> local = new WorkerLocal<S>(initial, onExit)
+        workerLocals.add(local)
+        return local
+    }
+
+    /**
+     * Wait for all queued work to finish and stop the workers. The pool can't be used after this.
+     *
+     * @throws RuntimeException wrapping the first exception thrown by any work
+     */
+    void joinAll() throws InterruptedException {
+        if (!stopped) {
+            stopped = true
+            for (Thread ignored : threads) {
+                queue.put(STOP)
             }
         }
+        for (Thread t : threads) {
+            t.join()
+        }
+        queueSize.labels(name).set(0)
+        throwIfFailed()
     }
 
     int getActiveThreadCount() {
-        int activeThreadCount = 0
-        for (int i = 0; i < THREAD_COUNT; ++i) {
-            if (s_threadPool[i] != null && s_threadPool[i].getState() != Thread.State.TERMINATED)
-                ++activeThreadCount
+        return active.get()
+    }
+
+    int getQueueSize() {
+        return queue.size()
+    }
+
+    int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity()
+    }
+
+    synchronized long getCompletedCount() {
+        return completed
+    }
+
+    boolean hasFailed() {
+        return failure.get() != null
+    }
+
+    private void throwIfFailed() {
+        Throwable t = failure.get()
+        if (t != null) {
+            throw new RuntimeException("Work failed in $name: $t", t)
+        }
+    }
+
+    private void runWorker(int threadIndex) {
+        try {
+            while (true) {
+                Runnable work = queue.take()
+                queueSize.labels(name).set(queue.size())
+                if (work.is(STOP)) {
+                    break
+                }
+                if (hasFailed()) {
+                    completedWork.labels(name, "discarded").inc()
+                    continue
+                }
+
+                ((Work) work).threadIndex = threadIndex
+                active.incrementAndGet()
+                activeWorkers.labels(name).inc()
+                try {
+                    work.run()
+                    completedWork.labels(name, "ok").inc()
+                }
+                catch (Throwable e) {
+                    log.error("Work failed in ${Thread.currentThread().getName()}: $e", e)
+                    failure.compareAndSet(null, e)
+                    completedWork.labels(name, "failed").inc()
+                }
+                finally {
+                    active.decrementAndGet()
+                    activeWorkers.labels(name).dec()
+                    synchronized (this) {
+                        completed++
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+        finally {
+            for (WorkerLocal local : workerLocals) {
+                try {
+                    local.exit()
+                }
+                catch (Exception e) {
+                    log.warn("Failed to clean up worker state in ${Thread.currentThread().getName()}: $e", e)
+                }
+            }
         }
-        return activeThreadCount
     }
 
-    void joinAll()
-            throws InterruptedException {
-        for (int i = 0; i < THREAD_COUNT; ++i) {
-            if (s_threadPool[i] != null)
-                s_threadPool[i].join()
+    private static class Work<T> implements Runnable {
+        final T workLoad
+        final Worker<T> worker
+        int threadIndex
+
+        Work(T workLoad, Worker<T> worker) {
+            this.workLoad = workLoad
+            this.worker = worker
+        }
+
+        void run() {
+            worker.doWork(workLoad, threadIndex)
         }
     }
 
+    static class WorkerLocal<S> {
+        private final ThreadLocal<S> value = new ThreadLocal<>()
+        private final Supplier<S> initial
+        private final Consumer<S> onExit
+
+        private WorkerLocal(Supplier<S> initial, Consumer<S> onExit) {
+            this.initial = initial
+            this.onExit = onExit
+        }
+
+        S get() {
+            S s = value.get()
+            if (s == null) {
+                s = initial.get()
+                value.set(s)
+            }
+            return s
+        }
+
+        private void exit() {
+            S s = value.get()
+            value.remove()
+            if (s != null && onExit != null) {
+                onExit.accept(s)
+            }
+        }
+    }
 }
@@ -46,9 +46,24 @@ class Unicode {
     }
     
     static boolean isNormalized(String s) {
+        if (isAscii(s)) {
+            return true
+        }
         return Normalizer.isNormalized(s, Normalizer.Form.NFC) && !EXTRA_NORMALIZATION_MAP.keySet().any{ s.contains(it) }
     }
 
+    /**
+     * ASCII strings are always normalized, and checking is much cheaper than running the Normalizer.
+     */
+    static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7F) {
+                return false
+            }
+        }
+        return true
+    }
+
     static String normalize(String s) {
         return Normalizer.normalize(s, Normalizer.Form.NFC).replace(EXTRA_NORMALIZATION_MAP)
     }
@@ -7,7 +7,7 @@ public class WhelkFactory {
 
     public static synchronized Whelk getSingletonWhelk() {
         if (whelk == null) {
-            whelk = Whelk.createLoadedSearchWhelk();
+            whelk = Whelk.createLoadedSearchWhelk("secret", true);
         }
 
         return whelk;
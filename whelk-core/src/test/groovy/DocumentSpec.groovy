@@ -409,6 +409,39 @@ class DocumentSpec extends Specification {
         implicitList1.getChecksum(jsonld) != implicitList2.getChecksum(jsonld)
     }
 
+    def "checksum as loaded is the stored checksum if there is one"() {
+        given:
+        def doc = new Document(["@graph": [["@id": "/id", "@type": "Record"], ["@id": "/itemId", "@type": "Work"]]])
+        def loaded = doc.clone()
+        loaded.setStoredChecksum("123")
+
+        expect:
+        doc.getChecksumAsLoaded(jsonld) == doc.getChecksum(jsonld)
+        loaded.getChecksumAsLoaded(jsonld) == "123"
+    }
+
+    def "normalizeUnicode normalizes values and keys in place"() {
+        given:
+        String decomposed = "a\u030Aa" // å as a + combining ring
+        def thing = ["@id": "/itemId", "@type": "Work", "label": ["plain", decomposed], (decomposed): "x", "tail": "bene\uFB01t"]
+        def doc = new Document(["@graph": [["@id": "/id", "@type": "Record"], thing]])
+
+        when:
+        def changed = doc.normalizeUnicode()
+
+        then:
+        doc.data["@graph"][1].is(thing)
+        thing == ["@id": "/itemId", "@type": "Work", "label": ["plain", "\u00E5a"], ("\u00E5a"): "x", "tail": "benefit"]
+        thing.keySet() as List == ["@id", "@type", "label", "\u00E5a", "tail"]
+        changed as Set == [["@graph", 1, "label", 1], ["@graph", 1, "tail"], ["@graph", 1, "\u00E5a"]] as Set
+
+        when:
+        changed = doc.normalizeUnicode()
+
+        then:
+        changed == []
+    }
+
     static String readFile(String filename) {
         return DocumentSpec.class.getClassLoader()
                 .getResourceAsStream(filename).getText("UTF-8")
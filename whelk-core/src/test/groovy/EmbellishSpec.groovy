@@ -655,6 +655,67 @@ digraph {
         result['@graph'].size() == 2 + 7
     }
 
+    def "should embellish many documents at once, sharing lookups"() {
+        given:
+        def ld = new JsonLd(JsonLdSpec.CONTEXT_DATA, DISPLAY_DATA, JsonLdSpec.VOCAB_DATA)
+
+        def doc1 = ['@graph': [['@type': 'R', '@id': '/record1', 'mainEntity': ['@id': '/thing1']],
+                               ['@type': 'X', '@id': '/thing1', 'px1': ['@id': '/thingX1']]
+        ]]
+
+        def doc2 = ['@graph': [['@type': 'R', '@id': '/record2', 'mainEntity': ['@id': '/thing2']],
+                               ['@type': 'X', '@id': '/thing2', 'px1': ['@id': '/thingX1'], 'px2': ['@id': '/thingX2']]
+        ]]
+
+        def docs = [
+                ['@graph': [['@type': 'R', '@id': '/recordX1', 'mainEntity': ['@id': '/thingX1']],
+                            ['@type': 'X', '@id': '/thingX1', 'px1': ['@id': '/thingX2'], 'px2': ['@id': '/thingX3']]]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX2', 'mainEntity': ['@id': '/thingX2']],
+                            ['@type': 'X', '@id': '/thingX2', 'px1': 'foo', 'px2': 'foo']]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordX3', 'mainEntity': ['@id': '/thingX3']],
+                            ['@type': 'X', '@id': '/thingX3', 'px1': 'foo', 'px2': 'foo']]],
+
+                ['@graph': [['@type': 'R', '@id': '/recordY1', 'mainEntity': ['@id': '/thingY1']],
+                            ['@type': 'Y', '@id': '/thingY1', 'py1': ['@id': '/thingX1'], 'py2': 'foo']]],
+        ]
+
+        def storage = new TestStorage(ld)
+        storage.add(doc1)
+        storage.add(doc2)
+        docs.each(storage.&add)
+
+        def embellisher = new Embellisher(ld, storage.&getFull, storage.&getCards, storage.&getReverseLinks)
+        int reverseLookups = 0
+        embellisher.getByReverseRelations = { Collection<Link> links ->
+            reverseLookups++
+            links.collectEntries { [(it): storage.getReverseLinks(it.iri, [it.relation])] }
+        }
+
+        def oneByOne = [new Document(Document.deepCopy(doc1)), new Document(Document.deepCopy(doc2))]
+        oneByOne.each(embellisher.&embellish)
+        reverseLookups = 0
+
+        def together = [new Document(Document.deepCopy(doc1)), new Document(Document.deepCopy(doc2))]
+
+        when:
+        embellisher.embellishAll(together)
+
+        then:
+        reverseLookups <= 3
+        [together, oneByOne].transpose().each { Document a, Document b ->
+            assert a.data['@graph'].size() == b.data['@graph'].size()
+            ['/thingX1', '/thingX2', '/thingX3', '/thingY1'].each {
+                assert find(a.data, it) == find(b.data, it)
+            }
+        }
+        lens(find(together[0].data, '/thingX1')) == 'card'
+        find(together[0].data, '/thingX1')['@reverse'] == ['py1': [['@id': '/thingY1']]]
+        lens(find(together[1].data, '/thingX2')) == 'card'
+        !find(together[0].data, '/thingX1').is(find(together[1].data, '/thingX1'))
+    }
+
     def "should understand sameAs when avoiding loops in embellish graph"() {
         given:
         def ld = new JsonLd(JsonLdSpec.CONTEXT_DATA, DISPLAY_DATA, JsonLdSpec.VOCAB_DATA)
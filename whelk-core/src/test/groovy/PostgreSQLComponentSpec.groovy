@@ -4,10 +4,12 @@ import groovy.util.logging.Log4j2 as Log
 import org.codehaus.jackson.map.ObjectMapper
 import spock.lang.Specification
 import whelk.Document
+import whelk.JsonLd
 
 import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
+import java.sql.ResultSetMetaData
 import java.sql.Timestamp
 
 @Log
@@ -72,6 +74,34 @@ class PostgreSQLComponentSpec extends Specification {
         r == null
     }
 
+    def "should bulk load documents by system id and IRI, keyed by requested identifier"() {
+        given:
+        def rows = [
+                ['requested': 'testid', 'by_iri': false],
+                ['requested': 'http://example.org/alias', 'by_iri': true],
+        ]
+        int row = -1
+        result.next() >> { ++row < rows.size() }
+        result.getString(_) >> {
+            switch (it.first()) {
+                case "id": return "testid"
+                case "data": return documentData
+                case "requested": return rows[row]['requested']
+            }
+        }
+        result.getBoolean(_) >> { it.first() == "by_iri" ? rows[row]['by_iri'] : false }
+        result.getTimestamp(_) >> { new Timestamp(new Date().getTime()) }
+
+        when:
+        Map<String, Document> docs = storage.bulkLoad(
+                ['testid', 'https://libris.kb.se/testid', 'http://example.org/alias', 'missing'])
+
+        then:
+        docs.keySet() == ['testid', 'https://libris.kb.se/testid', 'http://example.org/alias'] as Set
+        docs.values()*.getShortId().toSet() == ['testid'] as Set
+        docs['testid'].is(docs['http://example.org/alias'])
+    }
+
     def "should calculate correct checksum regardless of created, modified or previous checksum"() {
         when:
         //String cs1 = new Document(["@graph": [["key": "some data", "@id": "testid"], ["identifier": "testid", "collection": "test", "created": 1298619287, "modified": 10284701287]]]).checksum
@@ -105,4 +135,73 @@ class PostgreSQLComponentSpec extends Specification {
         cs1 == cs2
     }
 
+    def "should not confirm the cached embellished checksums of an instance after a holding starts linking to it"() {
+        given:
+        storage.jsonld = Stub(JsonLd) {
+            getAllInverseProperties() >> (['itemOf'] as Set)
+            toCard(_, _) >> { Map thing, boolean chipsify -> thing }
+        }
+        storage.embellishedDocumentCache = new EmbellishedDocumentCache(1024 * 1024)
+        storage.embellishedDocumentCache.put('instance', new EmbellishedDocumentCache.Entry(
+                '{}'.getBytes('UTF-8'), ['work'], '-1856152111', '-5527328642'), storage.embellishedDocumentCache.generation())
+        Document holding = new Document(["@graph": [
+                ["@id": "https://libris.kb.se/holding", "mainEntity": ["@id": "https://libris.kb.se/holding#it"]],
+                ["@id": "https://libris.kb.se/holding#it", "itemOf": ["@id": "https://libris.kb.se/instance#it"]]
+        ]])
+
+        // The system id of the instance is looked up, the holding had no dependencies before, and the
+        // embellished instance is no longer in lddb__embellished afterwards
+        result.next() >>> [true, false]
+        result.getString(1) >> "https://libris.kb.se/instance#it"
+        result.getString(2) >> "instance"
+        result.getBoolean(3) >> false
+        List<List> evicted = []
+        conn.createArrayOf('TEXT', _) >> { String type, Object[] ids -> evicted << ids.toList(); null }
+
+        expect:
+        storage.getEmbellishedChecksums('instance') == new Tuple2('-1856152111', '-5527328642')
+
+        when:
+        storage.refreshDerivativeTables(holding)
+
+        then:
+        evicted.any { 'instance' in it }
+        storage.getEmbellishedChecksums('instance') == null
+    }
+
+    def "should keep partition boundaries in database order, dropping repeated ids"() {
+        given:
+        java.sql.Array boundaries = Mock()
+        boundaries.getArray() >> (['b', 'b', 'B', null, 'c', 'c'] as String[])
+        result.next() >> true
+        result.getArray(1) >> boundaries
+
+        expect:
+        storage.getIdPartitionBoundaries(7) == ['b', 'B', 'c']
+    }
+
+    def "should roll back and close the connection when not iterating documents to the end"() {
+        given:
+        Connection connection = Mock()
+        PreparedStatement statement = Mock()
+        ResultSet rs = Mock()
+        rs.getStatement() >> statement
+        statement.getConnection() >> connection
+        rs.next() >> true
+        rs.getString('id') >> 'testid'
+        rs.getString('data') >> documentData
+        rs.getTimestamp(_) >> new Timestamp(new Date().getTime())
+        rs.getMetaData() >> Mock(ResultSetMetaData)
+
+        when:
+        PostgreSQLComponent.DocumentIterable documents = PostgreSQLComponent.iterateDocuments(rs)
+        documents.iterator().next()
+        documents.close()
+        documents.close()
+
+        then:
+        0 * connection.commit()
+        1 * connection.rollback()
+        1 * connection.close()
+    }
 }
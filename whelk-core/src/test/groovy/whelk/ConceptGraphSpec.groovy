@@ -0,0 +1,59 @@
+package whelk
+
+import spock.lang.Specification
+
+class ConceptGraphSpec extends Specification {
+    static final List<String> RELATIONS = ['broader', 'exactMatch']
+
+    def "follow reverse within definitions"() {
+        given:
+        def graph = graph()
+
+        expect:
+        graph.followReverse('https://id.kb.se/a', ['broader'], [], 10) == ['https://id.kb.se/b', 'https://id.kb.se/c'] as Set
+        graph.followReverse('https://id.kb.se/a', ['broader'], [], 1) == ['https://id.kb.se/b'] as Set
+        graph.followReverse('https://id.kb.se/a-alias', ['broader'], [], 10) == ['https://id.kb.se/b', 'https://id.kb.se/c'] as Set
+        graph.followReverse('https://id.kb.se/d', RELATIONS, ['exactMatch'], 10) == ['https://id.kb.se/d', 'https://id.kb.se/e'] as Set
+    }
+
+    def "is reachable within definitions"() {
+        given:
+        def graph = graph()
+
+        expect:
+        graph.isReachable('https://id.kb.se/c', 'https://id.kb.se/a', ['broader'], 10)
+        !graph.isReachable('https://id.kb.se/c', 'https://id.kb.se/a', ['broader'], 1)
+        !graph.isReachable('https://id.kb.se/a', 'https://id.kb.se/c', ['broader'], 10)
+        !graph.isReachable('https://id.kb.se/c', 'https://id.kb.se/a-alias', ['broader'], 10)
+    }
+
+    def "don't answer what isn't known"() {
+        given:
+        def graph = graph()
+
+        expect: 'not in definitions'
+        graph.followReverse('https://libris.kb.se/x#it', ['broader'], [], 10) == null
+        graph.isReachable('https://libris.kb.se/x#it', 'https://id.kb.se/a', ['broader'], 10) == null
+
+        and: 'linked to from outside definitions'
+        graph.followReverse('https://id.kb.se/f', ['broader'], [], 10) == null
+
+        and: 'linking to outside definitions'
+        graph.isReachable('https://id.kb.se/g', 'https://id.kb.se/a', ['broader'], 10) == null
+
+        and: 'relation not in snapshot'
+        graph.followReverse('https://id.kb.se/a', ['locatedIn'], [], 10) == null
+    }
+
+    private static ConceptGraph graph() {
+        def graph = new ConceptGraph(RELATIONS)
+        ['a', 'b', 'c', 'd', 'e', 'f', 'g'].each { graph.addIri(it, "https://id.kb.se/$it".toString(), true) }
+        graph.addIri('a', 'https://id.kb.se/a-alias', false)
+        graph.addLink('b', 'broader', 'a')
+        graph.addLink('c', 'broader', 'b')
+        graph.addLink('d', 'exactMatch', 'e')
+        graph.addLink('g', 'broader', 'x')
+        graph.addLinkedFromOutside('f')
+        return graph
+    }
+}
@@ -0,0 +1,46 @@
+package whelk
+
+import spock.lang.Specification
+
+class TypedIdentifierSpec extends Specification {
+
+    def "should collect typed identifiers of record and thing"() {
+        given:
+        Map data = ['@graph': [
+                ['@id': 'https://libris.kb.se/x#record',
+                 'identifiedBy': [['@type': 'SystemNumber', 'value': '(OCoLC)123']]],
+                ['@id': 'https://libris.kb.se/x#it',
+                 'identifiedBy': [
+                         ['@type': 'ISBN', 'value': ' 91-0-012345-x '],
+                         ['@type': 'ISSN', 'value': '1234-5678', 'marc:canceledIssn': ['1111-2222', '3333-4444']],
+                         ['@type': 'EAN', 'value': ['1', '2']]
+                 ],
+                 'indirectlyIdentifiedBy': ['@type': 'ISBN', 'value': '9789100123456']],
+                ['@id': 'https://libris.kb.se/x#work',
+                 'identifiedBy': [['@type': 'ISBN', 'value': 'not collected']]]
+        ]]
+
+        expect:
+        TypedIdentifier.collect(data) == [
+                new TypedIdentifier(0, 'identifiedBy', 'SystemNumber', '(OCOLC)123'),
+                new TypedIdentifier(1, 'identifiedBy', 'ISBN', '91-0-012345-X'),
+                new TypedIdentifier(1, 'identifiedBy', 'ISSN', '1234-5678'),
+                new TypedIdentifier(1, 'identifiedBy', 'EAN', '1'),
+                new TypedIdentifier(1, 'identifiedBy', 'EAN', '2'),
+                new TypedIdentifier(1, 'indirectlyIdentifiedBy', 'ISBN', '9789100123456'),
+                new TypedIdentifier(1, 'marc:canceledIssn', 'ISSN', '1111-2222'),
+                new TypedIdentifier(1, 'marc:canceledIssn', 'ISSN', '3333-4444'),
+        ] as Set
+    }
+
+    def "should normalize values"() {
+        expect:
+        TypedIdentifier.normalize(value) == expected
+
+        where:
+        value          | expected
+        null           | null
+        ' 123x '       | '123X'
+        'urn:nbn:se:a' | 'URN:NBN:SE:A'
+    }
+}
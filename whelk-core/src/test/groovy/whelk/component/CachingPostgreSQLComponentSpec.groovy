@@ -0,0 +1,118 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.JsonLd
+
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.time.Instant
+import java.util.function.Consumer
+
+class CachingPostgreSQLComponentSpec extends Specification {
+    PostgreSQLNotificationListener listener = Mock()
+    Connection connection = Mock()
+    PreparedStatement statement = Mock()
+    PreparedStatement notifyStatement = Mock()
+
+    List<String> notifications = []
+    Consumer<String> onCardEviction
+    int loads = 0
+
+    CachingPostgreSQLComponent cache
+    PostgreSQLComponent writer
+
+    def setup() {
+        listener.listen('lddb__cards_evict', _, _) >> { String channel, Consumer<String> onNotification, Runnable onMissed ->
+            onCardEviction = onNotification
+        }
+        connection.prepareStatement('SELECT pg_notify(?, ?)') >> notifyStatement
+        connection.prepareStatement(_) >> statement
+        notifyStatement.setString(2, _) >> { int i, String payload -> notifications << payload }
+        statement.executeUpdate() >> 1
+
+        cache = new CachingPostgreSQLComponent(listener) {
+            @Override
+            String getSystemIdByIri(String iri) {
+                return systemId(iri)
+            }
+
+            @Override
+            protected Map loadCard(String id) {
+                loads++
+                return card(id)
+            }
+        }
+
+        // A component without cache, e.g. in an importer or whelktool
+        writer = new PostgreSQLComponent() {
+            @Override
+            String getSystemIdByIri(String iri) {
+                return systemId(iri)
+            }
+        }
+        writer.jsonld = Stub(JsonLd) {
+            toCard(_, _) >> { Map thing, boolean chipsify -> thing }
+        }
+    }
+
+    def "a card changed by a component without cache should be evicted from the cache"() {
+        given:
+        cache.getCard('https://libris.kb.se/a#it')
+        cache.getCard('https://libris.kb.se/a#it')
+
+        when:
+        writer.storeCard(new PostgreSQLComponent.CardEntry(writer, new Document(card('a')), Instant.now()), connection)
+        commit()
+
+        then:
+        loads == 1
+        notifications == ['a']
+        cache.getCard('https://libris.kb.se/a#it') == card('a')
+        loads == 2
+    }
+
+    def "a card deleted by a component without cache should be evicted from the cache"() {
+        given:
+        cache.getCard('https://libris.kb.se/a#it')
+
+        when:
+        writer.deleteCard(new Document(card('a')), connection)
+        commit()
+
+        then:
+        notifications == ['a']
+        cache.getCard('https://libris.kb.se/a#it')
+        loads == 2
+    }
+
+    def "cards not changed by a component without cache should stay in the cache"() {
+        given:
+        cache.getCard('https://libris.kb.se/a#it')
+
+        when:
+        writer.storeCard(new PostgreSQLComponent.CardEntry(writer, new Document(card('b')), Instant.now()), connection)
+        commit()
+        cache.getCard('https://libris.kb.se/a#it')
+
+        then:
+        notifications == ['b']
+        loads == 1
+    }
+
+    // Notifications are delivered to all listeners when the transaction commits
+    private void commit() {
+        notifications.each { onCardEviction.accept(it) }
+    }
+
+    private static String systemId(String iri) {
+        return iri.replace('https://libris.kb.se/', '').replace('#it', '')
+    }
+
+    private static Map card(String id) {
+        ['@graph': [
+                ['@id': "https://libris.kb.se/$id".toString(), 'mainEntity': ['@id': "https://libris.kb.se/$id#it".toString()]],
+                ['@id': "https://libris.kb.se/$id#it".toString()]
+        ]]
+    }
+}
@@ -0,0 +1,51 @@
+package whelk.component
+
+import spock.lang.Specification
+
+class CardCacheSpec extends Specification {
+
+    def "invalidate by system id, whatever IRI the card was cached by"() {
+        given:
+        def cache = new CardCache(1024 * 1024)
+        cache.put('https://libris.kb.se/a#it', 'a', card('a'), cache.generation())
+        cache.put('http://libris.kb.se/resource/bib/1', 'a', card('a'), cache.generation())
+        cache.put('https://libris.kb.se/b#it', 'b', card('b'), cache.generation())
+
+        when:
+        cache.invalidate(['a'])
+
+        then:
+        cache.get('https://libris.kb.se/a#it') == null
+        cache.get('http://libris.kb.se/resource/bib/1') == null
+        cache.get('https://libris.kb.se/b#it') == card('b')
+    }
+
+    def "don't cache cards read before an invalidation"() {
+        given:
+        def cache = new CardCache(1024 * 1024)
+        long generation = cache.generation()
+        cache.invalidate(['x'])
+
+        when:
+        cache.put('https://libris.kb.se/a#it', 'a', card('a'), generation)
+
+        then:
+        cache.get('https://libris.kb.se/a#it') == null
+    }
+
+    def "returned cards can be modified"() {
+        given:
+        def cache = new CardCache(1024 * 1024)
+        cache.put('https://libris.kb.se/a#it', 'a', card('a'), cache.generation())
+
+        when:
+        cache.get('https://libris.kb.se/a#it')['@graph'].clear()
+
+        then:
+        cache.get('https://libris.kb.se/a#it') == card('a')
+    }
+
+    private static Map card(String id) {
+        ['@graph': [['@id': "https://libris.kb.se/$id".toString()], ['@id': "https://libris.kb.se/$id#it".toString()]]]
+    }
+}
@@ -0,0 +1,76 @@
+package whelk.component
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.function.BiConsumer
+
+import static whelk.util.Jackson.mapper
+
+class ElasticJsonWriterSpec extends Specification {
+
+    def "writes the same JSON as the mapper"() {
+        given:
+        Map data = [
+                '@id'     : 'https://libris.kb.se/x#it',
+                'list'    : [1, 2L, 1.5d, true, null, "s", "${1 + 1}"],
+                'set'     : ['a', 'b'] as LinkedHashSet,
+                'nested'  : ['åäö': ['x': new BigDecimal("1.25")]],
+        ]
+
+        expect:
+        mapper.readValue(ElasticJsonWriter.toJson(data), Map) == mapper.readValue(mapper.writeValueAsString(data), Map)
+    }
+
+    def "normalizes search keys only"() {
+        given:
+        String ligature = "\uFB01" // "fi" in NFKC
+        Map data = ['_str': ligature, 'label': ligature, 'x': [['_str': [ligature]]]]
+
+        when:
+        Map result = mapper.readValue(new String(ElasticJsonWriter.toJson(data), StandardCharsets.UTF_8), Map)
+
+        then:
+        result == ['_str': 'fi', 'label': ligature, 'x': [['_str': ['fi']]]]
+    }
+
+    def "buffer can be rewound"() {
+        given:
+        def buffer = new ElasticJsonWriter.Buffer(4)
+
+        when:
+        ElasticJsonWriter.write(['a': 1], buffer)
+        int mark = buffer.size()
+        ElasticJsonWriter.write(['b': 2], buffer)
+        buffer.truncate(mark)
+
+        then:
+        new String(buffer.toByteArray(), StandardCharsets.UTF_8) == '{"a":1}'
+    }
+
+    def "computes string maps while writing"() {
+        given:
+        Map data = ['label': 'x', '_sortKeyByLang': { BiConsumer<String, String> entry ->
+            entry.accept('sv', 'Titel')
+            entry.accept('en', 'Title')
+        } as ElasticJsonWriter.StringMap]
+
+        when:
+        Map result = mapper.readValue(ElasticJsonWriter.toJson(data), Map)
+
+        then:
+        result == ['label': 'x', '_sortKeyByLang': ['sv': 'Titel', 'en': 'Title']]
+    }
+
+    def "buffer gives its backing array without copying"() {
+        given:
+        def buffer = new ElasticJsonWriter.Buffer(64)
+
+        when:
+        ElasticJsonWriter.write(['a': 1], buffer)
+
+        then:
+        buffer.array().length == 64
+        new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8) == '{"a":1}'
+    }
+}
@@ -0,0 +1,125 @@
+package whelk.component
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static whelk.util.Jackson.mapper
+
+class ElasticWriteAggregatorSpec extends Specification {
+    static final long NO_TIMED_FLUSH = TimeUnit.HOURS.toMillis(1)
+
+    ElasticSearch elastic = Mock()
+    List<List<Map>> requests = []
+    ElasticWriteAggregator aggregator = new ElasticWriteAggregator(elastic, 100, NO_TIMED_FLUSH)
+
+    def setup() {
+        elastic.getIndexName() >> 'libris'
+    }
+
+    def "should not delete a document indexed again before the flush"() {
+        given:
+        aggregator.delete('a')
+        aggregator.delete('b')
+
+        when:
+        aggregator.cancelDelete('a')
+        aggregator.flush()
+
+        then:
+        1 * elastic.performBulkRequest(_) >> { byte[] body -> respond(body) }
+        requests == [[['delete': ['_index': 'libris', '_id': 'b']]]]
+    }
+
+    def "should merge counter updates for the same document"() {
+        given:
+        aggregator.addToReverseLinkCounter('a', 1)
+        aggregator.addToReverseLinkCounter('b', 1)
+        aggregator.addToReverseLinkCounter('a', 1)
+        aggregator.addToReverseLinkCounter('b', -1)
+        aggregator.addToReverseLinkCounter('a', 1)
+
+        when:
+        aggregator.flush()
+
+        then:
+        1 * elastic.performBulkRequest(_) >> { byte[] body -> respond(body) }
+        requests.size() == 1
+        requests[0].size() == 2
+        requests[0][0] == ['update': ['_index': 'libris', '_id': 'a', 'retry_on_conflict': 3]]
+        requests[0][1].script.params == ['delta': 3]
+    }
+
+    def "should buffer again what failed to be sent"() {
+        given:
+        aggregator.addToReverseLinkCounter('a', 2)
+        aggregator.delete('b')
+
+        when:
+        aggregator.flush()
+
+        then:
+        1 * elastic.performBulkRequest(_) >> { byte[] body -> read(body); throw new IOException('elastic is down') }
+
+        when:
+        aggregator.addToReverseLinkCounter('a', 1)
+        aggregator.flush()
+
+        then:
+        1 * elastic.performBulkRequest(_) >> { byte[] body -> respond(body) }
+        requests.size() == 2
+        requests[1][0] == ['update': ['_index': 'libris', '_id': 'a', 'retry_on_conflict': 3]]
+        requests[1][1].script.params == ['delta': 3]
+        requests[1][2] == ['delete': ['_index': 'libris', '_id': 'b']]
+    }
+
+    def "should wait for a delete being sent, and not retry it, when the document is indexed again"() {
+        given:
+        CountDownLatch sending = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        elastic.performBulkRequest(_) >> { byte[] body ->
+            sending.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            // Temporary error, the delete would be retried if it wasn't cancelled
+            respond(body, 503)
+        } >> { byte[] body -> respond(body) }
+        aggregator.delete('a')
+
+        when:
+        Thread flush = Thread.start { aggregator.flush() }
+        sending.await(10, TimeUnit.SECONDS)
+        boolean cancelled = false
+        Thread cancel = Thread.start { aggregator.cancelDelete('a'); cancelled = true }
+        cancel.join(200)
+
+        then:
+        !cancelled
+
+        when:
+        release.countDown()
+        flush.join(10000)
+        cancel.join(10000)
+        aggregator.flush()
+
+        then:
+        cancelled
+        requests == [[['delete': ['_index': 'libris', '_id': 'a']]]]
+    }
+
+    private Map respond(byte[] body, int status = 200) {
+        List<Map> actions = read(body)
+        List<Map> items = actions.findAll { it.update || it.delete }.collect { Map action ->
+            String name = action.keySet().first()
+            [(name): ['_id': action[name]._id, 'status': status]]
+        }
+        return ['took': 1, 'errors': status >= 300, 'items': items]
+    }
+
+    private List<Map> read(byte[] body) {
+        List<Map> actions = new String(body, StandardCharsets.UTF_8).readLines().collect { mapper.readValue(it, Map) }
+        requests << actions
+        return actions
+    }
+}
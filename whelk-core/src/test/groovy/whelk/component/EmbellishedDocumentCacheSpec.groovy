@@ -0,0 +1,65 @@
+package whelk.component
+
+import spock.lang.Specification
+
+class EmbellishedDocumentCacheSpec extends Specification {
+
+    def "invalidate by own id or embellished id"() {
+        given:
+        def cache = new EmbellishedDocumentCache(1024 * 1024)
+        cache.put('a', entry(['x', 'y']), cache.generation())
+        cache.put('b', entry(['y']), cache.generation())
+        cache.put('c', entry([]), cache.generation())
+
+        when:
+        cache.invalidate(['x'])
+
+        then:
+        cache.get('a') == null
+        cache.get('b') != null
+        cache.get('c') != null
+
+        when:
+        cache.invalidate(['y', 'c'])
+
+        then:
+        cache.get('b') == null
+        cache.get('c') == null
+    }
+
+    def "don't cache data read before an invalidation"() {
+        given:
+        def cache = new EmbellishedDocumentCache(1024 * 1024)
+        long generation = cache.generation()
+        cache.invalidate(['x'])
+
+        when:
+        cache.put('a', entry(['x']), generation)
+
+        then:
+        cache.get('a') == null
+    }
+
+    def "replaced entry is indexed by its new ids only"() {
+        given:
+        def cache = new EmbellishedDocumentCache(1024 * 1024)
+        cache.put('a', entry(['x']), cache.generation())
+        cache.put('a', entry(['y']), cache.generation())
+
+        when:
+        cache.invalidate(['x'])
+
+        then:
+        cache.get('a') != null
+
+        when:
+        cache.invalidate(['y'])
+
+        then:
+        cache.get('a') == null
+    }
+
+    private static EmbellishedDocumentCache.Entry entry(List<String> ids) {
+        new EmbellishedDocumentCache.Entry('{"@graph":[]}'.getBytes('UTF-8'), ids, '1', '2')
+    }
+}
@@ -0,0 +1,286 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.Document
+import whelk.JsonLd
+import whelk.Whelk
+import whelk.component.PostgreSQLComponent.ReindexKind
+import whelk.component.PostgreSQLComponent.ReindexQueueHandler
+import whelk.component.PostgreSQLComponent.ReindexQueueItem
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.SQLException
+import java.sql.Timestamp
+
+class ReindexQueueSpec extends Specification {
+    DataSource pool = Mock()
+    Connection connection = Mock()
+    PreparedStatement statement = Mock()
+    ResultSet rs = Mock()
+
+    Whelk whelk = Mock()
+    PostgreSQLComponent storage = Mock()
+    ElasticSearch elastic = Mock()
+    ElasticWriteAggregator writeAggregator = Mock()
+    JsonLd jsonld = Mock()
+
+    Document withReverse = doc('a')
+    Document withoutReverse = doc('b')
+
+    def setup() {
+        pool.getConnection() >> connection
+        connection.prepareStatement(_) >> statement
+        statement.executeQuery() >> rs
+
+        whelk.getStorage() >> storage
+        whelk.getElastic() >> elastic
+        whelk.getJsonld() >> jsonld
+        elastic.getWriteAggregator() >> writeAggregator
+        storage.load('a') >> withReverse
+        storage.load('b') >> withoutReverse
+        jsonld.getInverseProperties(_, _) >> { Map data, String lens ->
+            data.is(withReverse.data) ? ['itemOf'] as Set : [] as Set
+        }
+        whelk.bulkLoad(_) >> { List<String> ids -> ids.collectEntries { [it, doc(it)] } }
+    }
+
+    def "should coalesce entries for the same id and kind"() {
+        given:
+        queueRows([
+                ['a', 'LINKS', 1, 2000],
+                ['b', 'INDEX', 0, 1500],
+                ['a', 'LINKS', 1, 1000],
+                ['a', 'CARD', 0, 3000],
+        ])
+        List<ReindexQueueItem> taken = null
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items -> taken = items; return null } as ReindexQueueHandler
+
+        when:
+        int n = new PostgreSQLComponent().reindexQueueTake(handler, 10, 0, pool)
+
+        then:
+        n == 3
+        taken.collect { [it.id, it.kind, it.delta, it.enqueued.getTime()] } == [
+                ['a', ReindexKind.LINKS, 2, 1000L],
+                ['b', ReindexKind.INDEX, 0, 1500L],
+                ['a', ReindexKind.CARD, 0, 3000L],
+        ]
+        1 * connection.commit()
+    }
+
+    def "should leave entries in the queue if handling fails"() {
+        given:
+        queueRows([['a', 'INDEX', 0, 1000]])
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items ->
+            throw new RuntimeException('elastic is down')
+        } as ReindexQueueHandler
+
+        when:
+        new PostgreSQLComponent().reindexQueueTake(handler, 10, 0, pool)
+
+        then:
+        thrown(RuntimeException)
+        0 * connection.commit()
+        1 * connection.rollback()
+    }
+
+    def "should run what the handler returns only after commit"() {
+        given:
+        queueRows([['a', 'LINKS', 1, 1000]])
+        Runnable afterCommit = Mock()
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items -> afterCommit } as ReindexQueueHandler
+
+        when:
+        new PostgreSQLComponent().reindexQueueTake(handler, 10, 0, pool)
+
+        then:
+        1 * connection.commit()
+
+        then:
+        1 * afterCommit.run()
+    }
+
+    def "should not run what the handler returns if commit fails"() {
+        given:
+        queueRows([['a', 'LINKS', 1, 1000]])
+        Runnable afterCommit = Mock()
+        ReindexQueueHandler handler = { List<ReindexQueueItem> items -> afterCommit } as ReindexQueueHandler
+        connection.commit() >> { throw new SQLException('connection lost') }
+
+        when:
+        new PostgreSQLComponent().reindexQueueTake(handler, 10, 0, pool)
+
+        then:
+        thrown(SQLException)
+        0 * afterCommit.run()
+    }
+
+    def "should queue reindexing of linked documents that show the relation as reverse, and counter updates for others"() {
+        given:
+        jsonld.getAllInverseProperties() >> (['itemOf'] as Set)
+        Connection updateConnection = Mock()
+        PreparedStatement queueStatement = Mock()
+        updateConnection.prepareStatement(_) >> { String sql ->
+            sql == PostgreSQLComponent.REINDEX_QUEUE_ADD ? queueStatement : statement
+        }
+        List<List> queued = []
+        List current = []
+        queueStatement.setString(_, _) >> { int i, String value -> current << value }
+        queueStatement.setInt(_, _) >> { int i, int value -> current << value }
+        queueStatement.addBatch() >> { queued << current; current = [] }
+
+        List<String> loaded = []
+        PostgreSQLComponent component = new PostgreSQLComponent() {
+            @Override
+            String getSystemIdByIri(String iri, Connection connection) {
+                return iri.replaceAll(~/^https:\/\/libris.kb.se\/(.*)#it$/, '$1')
+            }
+
+            @Override
+            Document load(String id) {
+                loaded << id
+                return [a: withReverse, b: withoutReverse][id]
+            }
+        }
+        component.jsonld = jsonld
+        component.reindexQueueEnabled = true
+
+        Document preUpdate = doc('h', ['itemOf': ['@id': 'https://libris.kb.se/a#it'],
+                                       'subject': ['@id': 'https://libris.kb.se/c#it']])
+        Document updated = doc('h', ['itemOf': ['@id': 'https://libris.kb.se/b#it']])
+
+        when:
+        component.reindexQueueAdd(preUpdate, updated, updateConnection)
+
+        then:
+        queued == [
+                ['a', 'INDEX', 0],
+                ['c', 'LINKS', -1],
+                ['b', 'LINKS', 1],
+                ['h', 'CARD', 0],
+        ]
+        // Only relations that are shown as reverse somewhere need a look at the linked document
+        loaded.toSet() == ['a', 'b'] as Set
+        1 * queueStatement.executeBatch()
+    }
+
+    def "should only update counters for links when handling the queue"() {
+        given:
+        ReindexQueue queue = reindexQueue()
+
+        when:
+        Runnable afterCommit = queue.handle([item('a', ReindexKind.LINKS, 1)])
+
+        then:
+        0 * elastic.bulkIndex(_, _)
+        0 * writeAggregator.updateReverseLinkCountersNow(_)
+
+        when:
+        afterCommit.run()
+
+        then:
+        1 * writeAggregator.updateReverseLinkCountersNow(['a': 1])
+    }
+
+    def "should drain the queue synchronously when the queue workers are disabled"() {
+        given:
+        Properties properties = new Properties()
+        properties.setProperty('reindexQueueEnabled', 'false')
+        storage.createAdditionalConnectionPool(_, 1) >> pool
+        ReindexQueue queue = ReindexQueue.build(whelk, properties)
+
+        when:
+        queue.drainIfSynchronous()
+
+        then:
+        2 * storage.reindexQueueTake(_, _, 0, pool) >>> [3, 0]
+    }
+
+    def "should leave draining to the workers when they are enabled"() {
+        given:
+        ReindexQueue queue = reindexQueue()
+
+        when:
+        queue.drainIfSynchronous()
+
+        then:
+        0 * storage.reindexQueueTake(*_)
+    }
+
+    def "should update counters only after handling, and not for documents that are reindexed anyway"() {
+        given:
+        ReindexQueue queue = reindexQueue()
+        storage.load('c') >> doc('c')
+
+        when:
+        Runnable afterCommit = queue.handle([
+                item('b', ReindexKind.LINKS, 2),
+                item('c', ReindexKind.LINKS, -1),
+                item('c', ReindexKind.INDEX, 0),
+        ])
+
+        then:
+        1 * elastic.bulkIndex({ it*.getShortId() == ['c'] }, whelk)
+        0 * writeAggregator.updateReverseLinkCountersNow(_)
+
+        when:
+        afterCommit.run()
+
+        then:
+        1 * writeAggregator.updateReverseLinkCountersNow(['b': 2])
+    }
+
+    def "should not update counters if indexing fails"() {
+        given:
+        ReindexQueue queue = reindexQueue()
+        elastic.bulkIndex(_, _) >> { throw new RuntimeException('elastic is down') }
+
+        when:
+        queue.handle([item('b', ReindexKind.LINKS, 1), item('x', ReindexKind.INDEX, 0)])
+
+        then:
+        thrown(RuntimeException)
+        0 * writeAggregator.updateReverseLinkCountersNow(_)
+    }
+
+    def "should queue reindexing if counters can't be updated"() {
+        given:
+        ReindexQueue queue = reindexQueue()
+        writeAggregator.updateReverseLinkCountersNow(_) >> { throw new IOException('elastic is down') }
+
+        when:
+        queue.handle([item('b', ReindexKind.LINKS, 1)]).run()
+
+        then:
+        1 * storage.reindexQueueAdd(['b'] as Set, ReindexKind.INDEX)
+    }
+
+    private ReindexQueue reindexQueue() {
+        Properties properties = new Properties()
+        properties.setProperty('reindexQueueWorkers', '0')
+        return ReindexQueue.build(whelk, properties)
+    }
+
+    private void queueRows(List<List> rows) {
+        int row = -1
+        rs.next() >> { ++row < rows.size() }
+        rs.getString('id') >> { rows[row][0] }
+        rs.getString('kind') >> { rows[row][1] }
+        rs.getInt('delta') >> { rows[row][2] }
+        rs.getTimestamp('enqueued') >> { new Timestamp(rows[row][3]) }
+    }
+
+    private static ReindexQueueItem item(String id, ReindexKind kind, int delta) {
+        return new ReindexQueueItem(id, kind, delta, new Timestamp(System.currentTimeMillis()))
+    }
+
+    private static Document doc(String id, Map thing = [:]) {
+        return new Document(['@graph': [
+                ['@id': "https://libris.kb.se/$id".toString(), 'mainEntity': ['@id': "https://libris.kb.se/$id#it".toString()]],
+                ['@id': "https://libris.kb.se/$id#it".toString()] + thing
+        ]])
+    }
+}
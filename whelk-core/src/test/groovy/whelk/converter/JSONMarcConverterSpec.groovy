@@ -0,0 +1,49 @@
+package whelk.converter
+
+import se.kb.libris.util.marc.MarcRecord
+import se.kb.libris.util.marc.io.MarcXmlRecordReader
+import spock.lang.Specification
+
+import javax.xml.stream.XMLOutputFactory
+import javax.xml.stream.XMLStreamWriter
+
+class JSONMarcConverterSpec extends Specification {
+
+    static MarcRecord record(String title) {
+        JSONMarcConverter.fromJsonMap([
+                "leader": "00000cam a22000005a 4500",
+                "fields": [
+                        ["001": "1234"],
+                        ["245": ["ind1": "1", "ind2": "0", "subfields": [["a": title], ["c": "x & y <z>"]]]],
+                        ["100": ["ind1": "1", "ind2": " ", "subfields": [["0": "https://id.kb.se/x#it"]]]],
+                ]
+        ])
+    }
+
+    def "writeMarcXml writes the same record as marcRecordAsXMLString"() {
+        given:
+        MarcRecord record = record("Title")
+
+        when:
+        StringWriter out = new StringWriter()
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out)
+        JSONMarcConverter.writeMarcXml(record, writer)
+        writer.flush()
+
+        then:
+        MarcXmlRecordReader.fromXml(out.toString()).toString() ==
+                MarcXmlRecordReader.fromXml(JSONMarcConverter.marcRecordAsXMLString(record)).toString()
+        out.toString().contains('type="Bibliographic"')
+    }
+
+    def "removeRestrictedCharacters"() {
+        given:
+        MarcRecord record = record("a\u0001b\tc\u0085d\u0090e")
+
+        when:
+        JSONMarcConverter.removeRestrictedCharacters(record)
+
+        then:
+        record.getDatafields("245").first().getSubfields("a").first().getData() == "a?b?c\u0085de"
+    }
+}
@@ -0,0 +1,59 @@
+package whelk.util
+
+import spock.lang.Specification
+
+import static whelk.util.Jackson.mapper
+
+class JsonPatchSpec extends Specification {
+
+    def "diff and apply should turn from into to"() {
+        given:
+        // Patches are stored as JSON, and applied to a fresh copy
+        List<Map> patch = mapper.readValue(mapper.writeValueAsString(JsonPatch.diff(from, to)), List)
+        Object copy = mapper.readValue(mapper.writeValueAsString(from), Object)
+
+        expect:
+        JsonPatch.apply(copy, patch) == to
+
+        where:
+        from                                | to
+        [a: 1, b: 2]                        | [a: 1, b: 3]
+        [a: 1, b: 2]                        | [a: 1]
+        [a: 1]                              | [a: 1, 'c/d~e': [x: 1]]
+        [a: [1, 2, 3, 4]]                   | [a: [1, 5, 4]]
+        [a: [1, 2, 3]]                      | [a: [1, 7, 8, 9, 2, 3]]
+        [a: [1, 2, 3]]                      | [a: []]
+        [a: [[b: 1], [b: 2]]]               | [a: [[b: 1], [b: 3, c: 4]]]
+        [a: [b: [c: 'x']]]                  | [a: [b: ['x', 'y']]]
+        [a: null]                           | [a: 'x']
+        [1, 2]                              | [a: 1]
+    }
+
+    def "diff of equal values should be empty"() {
+        given:
+        Map data = ['@graph': [['@id': 'a', 'x': [1, 2]], ['@id': 'b']]]
+
+        expect:
+        JsonPatch.diff(data, mapper.readValue(mapper.writeValueAsString(data), Map)) == []
+    }
+
+    def "diff should only touch what changed"() {
+        given:
+        Map from = ['@graph': [['@id': 'r', 'modified': '1'], ['@id': 't', 'hasTitle': [['mainTitle': 'a']]]]]
+        Map to = ['@graph': [['@id': 'r', 'modified': '2'], ['@id': 't', 'hasTitle': [['mainTitle': 'b']]]]]
+
+        expect:
+        JsonPatch.diff(from, to) == [
+                [op: 'replace', path: '/@graph/0/modified', value: '2'],
+                [op: 'replace', path: '/@graph/1/hasTitle/0/mainTitle', value: 'b'],
+        ]
+    }
+
+    def "apply should fail on missing path"() {
+        when:
+        JsonPatch.apply([a: 1], [[op: 'replace', path: '/b/c', value: 1]])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
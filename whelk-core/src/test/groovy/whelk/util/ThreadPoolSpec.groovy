@@ -0,0 +1,84 @@
+package whelk.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ThreadPoolSpec extends Specification {
+
+    def "all work is done before joinAll returns"() {
+        given:
+        def pool = new ThreadPool('test', 4)
+        def sum = new AtomicInteger()
+
+        when:
+        (1..100).each { pool.executeOnThread(it, { Integer i, int threadIndex -> sum.addAndGet(i) } as ThreadPool.Worker) }
+        pool.joinAll()
+
+        then:
+        sum.get() == 5050
+        pool.getCompletedCount() == 100
+    }
+
+    def "producer blocks while the queue is full"() {
+        given:
+        def pool = new ThreadPool('test', 1, 1)
+        def release = new CountDownLatch(1)
+        def blocking = { Object o, int threadIndex -> release.await() } as ThreadPool.Worker
+        pool.executeOnThread(1, blocking) // taken by the worker
+        pool.executeOnThread(2, blocking) // fills the queue
+
+        when:
+        def producerDone = new CountDownLatch(1)
+        Thread.start {
+            pool.executeOnThread(3, blocking)
+            producerDone.countDown()
+        }
+
+        then:
+        !producerDone.await(200, TimeUnit.MILLISECONDS)
+
+        when:
+        release.countDown()
+
+        then:
+        producerDone.await(5, TimeUnit.SECONDS)
+
+        cleanup:
+        pool.joinAll()
+    }
+
+    def "failures are propagated to the caller"() {
+        given:
+        def pool = new ThreadPool('test', 2)
+
+        when:
+        pool.executeOnThread('x', { String s, int threadIndex -> throw new IllegalArgumentException(s) } as ThreadPool.Worker)
+        pool.joinAll()
+
+        then:
+        RuntimeException e = thrown()
+        e.getCause() instanceof IllegalArgumentException
+    }
+
+    def "worker local state is created once per worker and cleaned up on join"() {
+        given:
+        def pool = new ThreadPool('test', 3)
+        def created = new AtomicInteger()
+        def exited = new AtomicInteger()
+        def local = pool.workerLocal({ created.incrementAndGet(); new Object() }, { exited.incrementAndGet() })
+        def seen = ConcurrentHashMap.newKeySet()
+
+        when:
+        (1..50).each { pool.executeOnThread(it, { Integer i, int threadIndex -> seen.add(local.get()) } as ThreadPool.Worker) }
+        pool.joinAll()
+
+        then:
+        created.get() == seen.size()
+        created.get() <= 3
+        exited.get() == created.get()
+    }
+}
@@ -31,6 +31,18 @@ class UnicodeSpec extends Specification {
         Unicode.normalize(s) == norm
     }
 
+    def "ASCII is normalized"() {
+        expect:
+        Unicode.isAscii(s) == ascii
+        Unicode.isNormalized(s) == normalized
+        where:
+        s                  | ascii | normalized
+        ''                 | true  | true
+        'Plain ASCII 123'  | true  | true
+        '\u00E5'           | false | true
+        'a\u030A'          | false | false
+    }
+
     def "trim noise"() {
         expect:
         Unicode.trimNoise(dirty) == clean
@@ -297,7 +297,7 @@ class WhelkTool {
             if (limit > -1 && counter.readCount > limit) {
                 break
             }
-            DocumentItem item = new DocumentItem(number: counter.readCount, doc: doc, whelk: whelk, preUpdateChecksum: doc.getChecksum(whelk.jsonld))
+            DocumentItem item = new DocumentItem(number: counter.readCount, doc: doc, whelk: whelk, preUpdateChecksum: doc.getChecksumAsLoaded(whelk.jsonld))
             item.existsInStorage = !newItems
             batch.items << item
             if (batch.items.size() == batchSize) {
@@ -432,7 +432,7 @@ class WhelkTool {
                         logRetry(e, item)
                         Document doc = whelk.getDocument(item.doc.shortId)
                         item = new DocumentItem(number: item.number, doc: doc, whelk: whelk,
-                                preUpdateChecksum: doc.getChecksum(whelk.jsonld), existsInStorage: true)
+                                preUpdateChecksum: doc.getChecksumAsLoaded(whelk.jsonld), existsInStorage: true)
                         return doProcess(process, item, counter)
                     }
                     counter.countModified()